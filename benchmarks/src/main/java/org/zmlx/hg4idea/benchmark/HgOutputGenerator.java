@@ -0,0 +1,259 @@
+/*
+ * Copyright 2013-2025 consulo.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zmlx.hg4idea.benchmark;
+
+import consulo.virtualFileSystem.VirtualFile;
+import consulo.virtualFileSystem.light.LightVirtualFile;
+import jakarta.annotation.Nonnull;
+import org.zmlx.hg4idea.util.HgChangesetUtil;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generates synthetic hg output with the shape of a real repository: a few authors, branches and directories,
+ * multi-line commit messages, merges and copies. The same seed is used on each call, so all runs parse the same data.
+ */
+public final class HgOutputGenerator {
+  private static final long SEED = 20130501L;
+
+  private static final String[] AUTHORS = {
+    "John Smith <john.smith@example.com>",
+    "Jane Doe <jane@example.org>",
+    "build-bot",
+    "Иван Петров <ivan.petrov@example.ru>",
+    "<anonymous@example.com>"
+  };
+  private static final String[] BRANCHES = {"default", "stable", "feature/parsers", "release-3.x"};
+  private static final String[] DIRECTORIES = {"src/main/java/org/example/core", "src/main/java/org/example/ui", "src/test/java/org/example",
+    "docs", "build/scripts"};
+  private static final String[] WORDS = {"fix", "parser", "status", "log", "refactor", "cache", "merge", "branch", "update", "tests",
+    "annotate", "performance", "memory", "revert", "command", "repository"};
+
+  private HgOutputGenerator() {
+  }
+
+  /**
+   * @return the root of the repository the generated paths are relative to
+   */
+  @Nonnull
+  public static VirtualFile createRepositoryRoot() {
+    return new LightVirtualFile("repository");
+  }
+
+  /**
+   * Records of {@code hg log} with the template of {@code HgBaseLogParser.constructFullTemplateArgument}, as they are passed to the parser,
+   * i.e. split by the changeset separator. The newest changeset goes first.
+   *
+   * @param includeFiles whether the added, modified, deleted and copied files are printed
+   */
+  @Nonnull
+  public static List<String> logRecords(int changesets, boolean includeFiles) {
+    Random random = new Random(SEED);
+    String[] nodes = new String[changesets];
+    for (int rev = 0; rev < changesets; rev++) {
+      nodes[rev] = hash(random);
+    }
+    long timestamp = 1_300_000_000L;
+    List<String> records = new ArrayList<>(changesets);
+    for (int rev = changesets - 1; rev >= 0; rev--) {
+      List<String> items = new ArrayList<>();
+      items.add(String.valueOf(rev));
+      items.add(nodes[rev]);
+      String parents = rev == 0 ? "-1:" + nullHash() : (rev - 1) + ":" + nodes[rev - 1];
+      if (rev > 10 && random.nextInt(20) == 0) {
+        int second = rev - 2 - random.nextInt(8);
+        parents += " " + second + ":" + nodes[second];
+      }
+      else {
+        parents += " -1:" + nullHash();
+      }
+      items.add(parents);
+      items.add((timestamp + rev * 600L) + " " + (random.nextBoolean() ? "-3600" : "0"));
+      items.add(AUTHORS[random.nextInt(AUTHORS.length)]);
+      items.add(message(random));
+      items.add(BRANCHES[random.nextInt(BRANCHES.length)]);
+      if (includeFiles) {
+        items.add(files(random, rev, random.nextInt(3)));
+        items.add(files(random, rev, 1 + random.nextInt(6)));
+        items.add(files(random, rev, random.nextInt(2)));
+        items.add(random.nextInt(10) == 0 ? path(random, rev) + " (" + path(random, rev + 1) + ")" : "");
+      }
+      StringBuilder record = new StringBuilder();
+      for (String item : items) {
+        record.append(item).append(HgChangesetUtil.ITEM_SEPARATOR);
+      }
+      records.add(record.toString());
+    }
+    return records;
+  }
+
+  /**
+   * Lines of {@code hg status -C}: mostly modified files, with added, removed, unknown files and copy sources.
+   */
+  @Nonnull
+  public static List<String> statusLines(int lines) {
+    Random random = new Random(SEED);
+    List<String> result = new ArrayList<>(lines);
+    while (result.size() < lines) {
+      int kind = random.nextInt(20);
+      String path = path(random, result.size());
+      if (kind == 0 && result.size() + 1 < lines) {
+        result.add("A " + path);
+        result.add("  " + path(random, result.size() + 1));
+      }
+      else if (kind < 3) {
+        result.add("A " + path);
+      }
+      else if (kind < 5) {
+        result.add("R " + path);
+      }
+      else if (kind < 7) {
+        result.add("? " + path);
+      }
+      else {
+        result.add("M " + path);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Lines of {@code hg annotate -cvnudl} for a file with the given number of lines, changed by a few hundred changesets.
+   */
+  @Nonnull
+  public static List<String> annotateLines(int lines) {
+    Random random = new Random(SEED);
+    int changesets = 300;
+    String[] nodes = new String[changesets];
+    String[] dates = new String[changesets];
+    String[] days = {"Mon", "Tue", "Wed", "Thu", "Fri", "Sat", "Sun"};
+    String[] months = {"Jan", "Feb", "Mar", "Apr", "May", "Jun", "Jul", "Aug", "Sep", "Oct", "Nov", "Dec"};
+    for (int i = 0; i < changesets; i++) {
+      nodes[i] = hash(random).substring(0, 12);
+      dates[i] = String.format("%s %s %02d %02d:%02d:%02d %d %s", days[random.nextInt(7)], months[random.nextInt(12)],
+                               1 + random.nextInt(28), random.nextInt(24), random.nextInt(60), random.nextInt(60),
+                               2010 + random.nextInt(10), random.nextBoolean() ? "+0100" : "-0700");
+    }
+    List<String> result = new ArrayList<>(lines);
+    for (int line = 1; line <= lines; line++) {
+      int rev = random.nextInt(changesets);
+      String author = AUTHORS[rev % AUTHORS.length];
+      result.add(author + " " + rev + " " + nodes[rev] + " " + dates[rev] + ":" + line + ": " + sourceLine(random));
+    }
+    return result;
+  }
+
+  /**
+   * Output of {@code hg branches}: active, inactive and closed branches.
+   */
+  @Nonnull
+  public static String branchesOutput(int branches) {
+    Random random = new Random(SEED);
+    StringBuilder output = new StringBuilder();
+    for (int i = 0; i < branches; i++) {
+      String name = i < BRANCHES.length ? BRANCHES[i] : "feature/" + WORDS[random.nextInt(WORDS.length)] + "-" + i;
+      output.append(String.format("%-40s %6d:%s", name, branches * 10 - i, hash(random).substring(0, 12)));
+      int kind = random.nextInt(4);
+      if (kind == 0) {
+        output.append(" (inactive)");
+      }
+      else if (kind == 1) {
+        output.append(" (closed)");
+      }
+      output.append('\n');
+    }
+    return output.toString();
+  }
+
+  /**
+   * Content of {@code .hg/cache/branch2-served}: the tip line followed by {@code <node> <o|c> <branch>} lines.
+   */
+  @Nonnull
+  public static String branchHeadsFile(int heads) {
+    Random random = new Random(SEED);
+    StringBuilder content = new StringBuilder();
+    content.append(hash(random)).append(' ').append(heads * 10).append('\n');
+    for (int i = 0; i < heads; i++) {
+      String branch = random.nextInt(3) == 0 ? BRANCHES[random.nextInt(BRANCHES.length)] : "feature-" + i;
+      content.append(hash(random)).append(' ').append(random.nextInt(5) == 0 ? 'c' : 'o').append(' ').append(branch).append('\n');
+    }
+    return content.toString();
+  }
+
+  @Nonnull
+  private static String message(@Nonnull Random random) {
+    StringBuilder message = new StringBuilder();
+    int words = 3 + random.nextInt(8);
+    for (int i = 0; i < words; i++) {
+      if (i > 0) {
+        message.append(' ');
+      }
+      message.append(WORDS[random.nextInt(WORDS.length)]);
+    }
+    if (random.nextInt(3) == 0) {
+      message.append("\n\n").append("Details: ").append(WORDS[random.nextInt(WORDS.length)]).append(" (").append(random.nextInt(10000))
+        .append(')');
+    }
+    return message.toString();
+  }
+
+  @Nonnull
+  private static String files(@Nonnull Random random, int seed, int count) {
+    StringBuilder files = new StringBuilder();
+    for (int i = 0; i < count; i++) {
+      if (i > 0) {
+        files.append(HgChangesetUtil.FILE_SEPARATOR);
+      }
+      files.append(path(random, seed + i));
+    }
+    return files.toString();
+  }
+
+  @Nonnull
+  private static String path(@Nonnull Random random, int seed) {
+    return DIRECTORIES[random.nextInt(DIRECTORIES.length)] + "/" + WORDS[random.nextInt(WORDS.length)] + "/File" + (seed % 5000) + ".java";
+  }
+
+  @Nonnull
+  private static String sourceLine(@Nonnull Random random) {
+    int indent = random.nextInt(4) * 2;
+    StringBuilder line = new StringBuilder();
+    for (int i = 0; i < indent; i++) {
+      line.append(' ');
+    }
+    int words = random.nextInt(9);
+    for (int i = 0; i < words; i++) {
+      line.append(WORDS[random.nextInt(WORDS.length)]).append(i % 3 == 2 ? "(); " : " ");
+    }
+    return line.toString();
+  }
+
+  @Nonnull
+  private static String hash(@Nonnull Random random) {
+    StringBuilder hash = new StringBuilder(40);
+    for (int i = 0; i < 40; i++) {
+      hash.append(Character.forDigit(random.nextInt(16), 16));
+    }
+    return hash.toString();
+  }
+
+  @Nonnull
+  private static String nullHash() {
+    return "0000000000000000000000000000000000000000";
+  }
+}
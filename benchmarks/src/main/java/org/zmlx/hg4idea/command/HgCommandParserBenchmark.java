@@ -0,0 +1,82 @@
+/*
+ * Copyright 2013-2025 consulo.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zmlx.hg4idea.command;
+
+import consulo.process.util.ProcessOutput;
+import consulo.virtualFileSystem.VirtualFile;
+import org.openjdk.jmh.annotations.*;
+import org.zmlx.hg4idea.benchmark.HgOutputGenerator;
+import org.zmlx.hg4idea.execution.HgCommandResult;
+import org.zmlx.hg4idea.provider.annotate.HgAnnotationLines;
+
+import java.text.SimpleDateFormat;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parses whole outputs of {@code hg status}, {@code hg annotate} and {@code hg branches} per operation.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class HgCommandParserBenchmark {
+  @Param({"200000"})
+  public int statusLines;
+
+  @Param({"50000"})
+  public int annotateLines;
+
+  @Param({"500"})
+  public int branches;
+
+  private VirtualFile myRoot;
+  private List<String> myStatusOutput;
+  private List<String> myAnnotateOutput;
+  private HgCommandResult myBranchesResult;
+
+  @Setup
+  public void setUp() {
+    myRoot = HgOutputGenerator.createRepositoryRoot();
+    myStatusOutput = HgOutputGenerator.statusLines(statusLines);
+    myAnnotateOutput = HgOutputGenerator.annotateLines(annotateLines);
+    ProcessOutput branchesOutput = new ProcessOutput(0);
+    branchesOutput.appendStdout(HgOutputGenerator.branchesOutput(branches));
+    myBranchesResult = new HgCommandResult(branchesOutput);
+  }
+
+  @Benchmark
+  public Object status() {
+    return HgStatusCommand.parseChanges(myRoot, myStatusOutput);
+  }
+
+  @Benchmark
+  public Object annotate() {
+    SimpleDateFormat dateFormat = HgAnnotateCommand.createDateFormat();
+    HgAnnotationLines.Builder annotations = new HgAnnotationLines.Builder();
+    for (String line : myAnnotateOutput) {
+      HgAnnotateCommand.parseLine(line, dateFormat, annotations);
+    }
+    return annotations.build();
+  }
+
+  @Benchmark
+  public Object branchNames() {
+    return HgBranchesCommand.collectNames(myBranchesResult);
+  }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2013-2025 consulo.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zmlx.hg4idea.log;
+
+import consulo.util.collection.SmartList;
+import consulo.virtualFileSystem.VirtualFile;
+import jakarta.annotation.Nonnull;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.zmlx.hg4idea.HgFile;
+import org.zmlx.hg4idea.HgRevisionNumber;
+import org.zmlx.hg4idea.benchmark.HgOutputGenerator;
+import org.zmlx.hg4idea.util.HgVersion;
+
+import java.io.File;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parses a whole {@code hg log} output per operation: short records (revision, parents, date, author) through
+ * {@link HgBaseLogParser#convert} and full records with files through {@link HgFileRevisionLogParser}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class HgLogParserBenchmark {
+  @Param({"1000", "100000"})
+  public int changesets;
+
+  private List<String> myShortRecords;
+  private List<String> myFullRecords;
+  private HgBaseLogParser<HgRevisionNumber> myBaseParser;
+  private HgFileRevisionLogParser myFileRevisionParser;
+
+  @Setup
+  public void setUp() {
+    myShortRecords = HgOutputGenerator.logRecords(changesets, false);
+    myFullRecords = HgOutputGenerator.logRecords(changesets, true);
+    myBaseParser = new HgBaseLogParser<>() {
+      @Override
+      protected HgRevisionNumber convertDetails(@Nonnull String rev,
+                                                @Nonnull String changeset,
+                                                @Nonnull SmartList<HgRevisionNumber> parents,
+                                                @Nonnull Date revisionDate,
+                                                @Nonnull String author,
+                                                @Nonnull String email,
+                                                @Nonnull List<String> attributes) {
+        return new HgRevisionNumber(rev, changeset, author, email, "", parents);
+      }
+    };
+    VirtualFile root = HgOutputGenerator.createRepositoryRoot();
+    HgFile file = new HgFile(root, new File(root.getPath(), "src/main/java/org/example/core/File.java"));
+    // the project is only kept by the created revisions, parsing doesn't touch it
+    myFileRevisionParser = new HgFileRevisionLogParser(null, file, new HgVersion(4, 0, 0));
+  }
+
+  @Benchmark
+  public void baseLogParser(Blackhole blackhole) {
+    for (String record : myShortRecords) {
+      blackhole.consume(myBaseParser.convert(record));
+    }
+  }
+
+  @Benchmark
+  public void fileRevisionLogParser(Blackhole blackhole) {
+    for (String record : myFullRecords) {
+      blackhole.consume(myFileRevisionParser.convert(record));
+    }
+  }
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright 2013-2025 consulo.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zmlx.hg4idea.repo;
+
+import org.openjdk.jmh.annotations.*;
+import org.zmlx.hg4idea.benchmark.HgOutputGenerator;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Parses the branch heads cache file, as {@link HgRepositoryReader#readBranches()} does on each repository update.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class HgBranchHeadsBenchmark {
+  @Param({"100", "10000"})
+  public int heads;
+
+  private String myContent;
+
+  @Setup
+  public void setUp() {
+    myContent = HgOutputGenerator.branchHeadsFile(heads);
+  }
+
+  @Benchmark
+  public Object readBranches() {
+    return HgRepositoryReader.parseBranchHeads(myContent, true, Function.identity());
+  }
+}
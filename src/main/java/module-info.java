@@ -39,6 +39,8 @@ open module consulo.mercurial {
   requires consulo.virtual.file.system.api;
   requires consulo.virtual.file.status.api;
 
+  requires jdk.jfr;
+
   requires com.google.common;
 
   // TODO remove in future
@@ -59,6 +59,11 @@ public class HgFileRevision implements VcsFileRevision
     myFilesMoved = filesMoved;
   }
 
+  @Nonnull
+  public HgFile getFile() {
+    return myFile;
+  }
+
   @Nonnull
   public HgRevisionNumber getRevisionNumber() {
     return myRevisionNumber;
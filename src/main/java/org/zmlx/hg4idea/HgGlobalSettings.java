@@ -22,8 +22,10 @@ import jakarta.annotation.Nonnull;
 import jakarta.annotation.Nullable;
 import jakarta.inject.Singleton;
 import org.jetbrains.annotations.NonNls;
+import org.zmlx.hg4idea.util.HgExecutableCapabilities;
 
 import java.io.File;
+import java.nio.charset.Charset;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -60,6 +62,10 @@ public class HgGlobalSettings implements PersistentStateComponent<HgGlobalSettin
     public String myHgExecutable = null;
     // visited URL -> login for this URL. Passwords are remembered in the PasswordSafe.
     public Map<String, String> myRememberedUserNames = new HashMap<>();
+    // run commands in pooled 'hg serve --cmdserver pipe' processes instead of starting hg for each command
+    public boolean myCommandServerEnabled = false;
+    // what is known about the configured executable, so that it isn't probed on each start
+    public HgExecutableCapabilities myExecutableCapabilities = null;
   }
 
   @Override
@@ -145,6 +151,44 @@ public class HgGlobalSettings implements PersistentStateComponent<HgGlobalSettin
     myState.myHgExecutable = hgExecutable;
   }
 
+  public boolean isCommandServerEnabled() {
+    return myState.myCommandServerEnabled;
+  }
+
+  public void setCommandServerEnabled(boolean commandServerEnabled) {
+    myState.myCommandServerEnabled = commandServerEnabled;
+  }
+
+  /**
+   * @return the capabilities recorded for the given executable, or null if they were never recorded,
+   * or the executable or the global hg configuration has changed since then
+   */
+  @Nullable
+  public HgExecutableCapabilities getExecutableCapabilities(@Nonnull String executable) {
+    HgExecutableCapabilities capabilities = myState.myExecutableCapabilities;
+    return capabilities != null && capabilities.isUpToDate(executable) ? capabilities : null;
+  }
+
+  public void setExecutableCapabilities(@Nullable HgExecutableCapabilities capabilities) {
+    myState.myExecutableCapabilities = capabilities;
+  }
+
+  /**
+   * Doesn't check the executable on disk, so it is cheap enough to be called for each command.
+   *
+   * @return true if the given executable is known to fail with the given value of the {@code --encoding} option
+   */
+  public boolean isEncodingRejected(@Nonnull String executable, @Nonnull Charset charset) {
+    HgExecutableCapabilities capabilities = myState.myExecutableCapabilities;
+    return capabilities != null && executable.equals(capabilities.myExecutable) && capabilities.isEncodingRejected(charset);
+  }
+
+  public synchronized void rememberRejectedEncoding(@Nonnull String executable, @Nonnull Charset charset) {
+    HgExecutableCapabilities capabilities = myState.myExecutableCapabilities;
+    if (capabilities != null && executable.equals(capabilities.myExecutable) && !capabilities.isEncodingRejected(charset)) {
+      myState.myExecutableCapabilities = capabilities.withRejectedEncoding(charset);
+    }
+  }
 
   public static int getIncomingCheckIntervalSeconds() {
     return FIVE_MINUTES;
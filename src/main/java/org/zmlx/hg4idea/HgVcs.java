@@ -46,6 +46,10 @@ import consulo.virtualFileSystem.VirtualFile;
 import consulo.virtualFileSystem.util.VirtualFileUtil;
 import jakarta.annotation.Nonnull;
 import jakarta.annotation.Nullable;
+import org.zmlx.hg4idea.execution.HgCommandCoalescer;
+import org.zmlx.hg4idea.execution.HgCommandScheduler;
+import org.zmlx.hg4idea.execution.HgCommandServerPool;
+import org.zmlx.hg4idea.execution.HgCommandStatistics;
 import org.zmlx.hg4idea.provider.*;
 import org.zmlx.hg4idea.provider.annotate.HgAnnotationProvider;
 import org.zmlx.hg4idea.provider.commit.HgCheckinEnvironment;
@@ -57,6 +61,7 @@ import org.zmlx.hg4idea.roots.HgIntegrationEnabler;
 import org.zmlx.hg4idea.status.HgRemoteStatusUpdater;
 import org.zmlx.hg4idea.status.ui.HgWidgetUpdater;
 import org.zmlx.hg4idea.util.HgUtil;
+import org.zmlx.hg4idea.util.HgExecutableCapabilities;
 import org.zmlx.hg4idea.util.HgVersion;
 
 import javax.swing.event.HyperlinkEvent;
@@ -106,8 +111,12 @@ public class HgVcs extends AbstractVcs<CommittedChangeList> {
   private final CommitExecutor myCommitAndPushExecutor;
   private final CommitExecutor myMqNewExecutor;
   private final HgCloseBranchExecutor myCloseBranchExecutor;
+  private final HgCommandScheduler myCommandScheduler = new HgCommandScheduler();
+  private final HgCommandCoalescer myCommandCoalescer = new HgCommandCoalescer();
+  private final HgCommandStatistics myCommandStatistics = new HgCommandStatistics();
 
   private HgRemoteStatusUpdater myHgRemoteStatusUpdater;
+  private volatile HgCommandServerPool myCommandServerPool;
 
   @Nonnull
   private HgVersion myVersion = HgVersion.NULL;  // version of Hg which this plugin uses.
@@ -259,6 +268,29 @@ public class HgVcs extends AbstractVcs<CommittedChangeList> {
     return myHgRemoteStatusUpdater;
   }
 
+  @Nonnull
+  public HgCommandScheduler getCommandScheduler() {
+    return myCommandScheduler;
+  }
+
+  @Nonnull
+  public HgCommandCoalescer getCommandCoalescer() {
+    return myCommandCoalescer;
+  }
+
+  @Nonnull
+  public HgCommandStatistics getCommandStatistics() {
+    return myCommandStatistics;
+  }
+
+  /**
+   * @return the pool of hg command server processes, or null if the vcs is not active.
+   */
+  @Nullable
+  public HgCommandServerPool getCommandServerPool() {
+    return myCommandServerPool;
+  }
+
   /**
    * @return the prompthooks.py extension used for capturing prompts from Mercurial and requesting IDEA's user about authentication.
    */
@@ -279,6 +311,8 @@ public class HgVcs extends AbstractVcs<CommittedChangeList> {
     // validate hg executable on start and update hg version
     checkExecutableAndVersion();
 
+    myCommandServerPool = new HgCommandServerPool(this);
+
     // updaters and listeners
     myHgRemoteStatusUpdater = new HgRemoteStatusUpdater(this, projectSettings);
     myHgRemoteStatusUpdater.activate();
@@ -319,6 +353,11 @@ public class HgVcs extends AbstractVcs<CommittedChangeList> {
       myVFSListener = null;
     }
 
+    if (myCommandServerPool != null) {
+      myCommandServerPool.dispose();
+      myCommandServerPool = null;
+    }
+
     super.deactivate();
   }
 
@@ -404,7 +443,13 @@ public class HgVcs extends AbstractVcs<CommittedChangeList> {
       }
     };
     try {
-      myVersion = HgVersion.identifyVersion(executable);
+      HgGlobalSettings globalSettings = getGlobalSettings();
+      HgExecutableCapabilities capabilities = globalSettings.getExecutableCapabilities(executable);
+      if (capabilities == null) {
+        capabilities = HgExecutableCapabilities.probe(executable);
+        globalSettings.setExecutableCapabilities(capabilities);
+      }
+      myVersion = capabilities.getVersion();
       //if version is not supported, but have valid hg executable
       if (!myVersion.isSupported()) {
         LOG.info("Unsupported Hg version: " + myVersion);
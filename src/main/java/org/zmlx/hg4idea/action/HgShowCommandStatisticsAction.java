@@ -0,0 +1,65 @@
+/*
+ * Copyright 2013-2025 consulo.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zmlx.hg4idea.action;
+
+import consulo.execution.ui.console.ConsoleViewContentType;
+import consulo.project.Project;
+import consulo.ui.annotation.RequiredUIAccess;
+import consulo.ui.ex.action.AnActionEvent;
+import consulo.ui.ex.action.DumbAwareAction;
+import jakarta.annotation.Nonnull;
+import org.zmlx.hg4idea.HgVcs;
+import org.zmlx.hg4idea.execution.HgCommandCoalescer;
+import org.zmlx.hg4idea.execution.HgCommandPriority;
+import org.zmlx.hg4idea.execution.HgCommandScheduler;
+
+/**
+ * Prints statistics of the hg commands executed in the project to the Version Control console.
+ */
+public class HgShowCommandStatisticsAction extends DumbAwareAction {
+
+  @Override
+  @RequiredUIAccess
+  public void actionPerformed(@Nonnull AnActionEvent e) {
+    HgVcs vcs = HgVcs.getInstance(e.getData(Project.KEY));
+    if (vcs == null) {
+      return;
+    }
+    StringBuilder report = new StringBuilder(vcs.getCommandStatistics().getReport());
+
+    HgCommandScheduler scheduler = vcs.getCommandScheduler();
+    report.append("\nscheduler:\n");
+    for (HgCommandPriority priority : HgCommandPriority.values()) {
+      report.append("  ").append(priority).append(": running ").append(scheduler.getRunningCount(priority))
+        .append(", queued ").append(scheduler.getQueueDepth(priority))
+        .append(" (max ").append(scheduler.getMaxQueueDepth(priority)).append("), started ").append(scheduler.getStartedCount(priority))
+        .append(", avg wait ").append(scheduler.getAverageWaitMillis(priority)).append(" ms, max wait ")
+        .append(scheduler.getMaxWaitMillis(priority)).append(" ms\n");
+    }
+
+    HgCommandCoalescer coalescer = vcs.getCommandCoalescer();
+    report.append("\nshared read-only commands: executed ").append(coalescer.getExecutedCount())
+      .append(", results shared ").append(coalescer.getSharedCount()).append('\n');
+
+    vcs.showMessageInConsole(report.toString(), ConsoleViewContentType.NORMAL_OUTPUT);
+  }
+
+  @Override
+  @RequiredUIAccess
+  public void update(@Nonnull AnActionEvent e) {
+    e.getPresentation().setEnabledAndVisible(HgVcs.getInstance(e.getData(Project.KEY)) != null);
+  }
+}
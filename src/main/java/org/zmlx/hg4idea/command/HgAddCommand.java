@@ -20,8 +20,10 @@ import consulo.virtualFileSystem.VirtualFile;
 import jakarta.annotation.Nonnull;
 import jakarta.annotation.Nullable;
 import org.zmlx.hg4idea.execution.HgCommandExecutor;
+import org.zmlx.hg4idea.util.HgPathArguments;
 import org.zmlx.hg4idea.util.HgUtil;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
@@ -68,15 +70,18 @@ public class HgAddCommand {
   }
 
   private void addFilesSynchronously(VirtualFile repo, Collection<VirtualFile> files, @Nullable ProgressIndicator indicator) {
-    final List<List<String>> chunks = VcsFileUtil.chunkFiles(repo, files);
-    int currentChunk = 0;
-    for (List<String> paths : chunks) {
-      if (indicator != null) {
-        if (indicator.isCanceled()) return;
-        indicator.setFraction((double)currentChunk / chunks.size());
-        currentChunk++;
-      }
-      new HgCommandExecutor(myProject).executeInCurrentThread(repo, "add", paths);
+    if (indicator != null && indicator.isCanceled()) return;
+    final List<String> paths = new ArrayList<>(files.size());
+    for (VirtualFile file : files) {
+      paths.add(VcsFileUtil.relativePath(repo, file));
+    }
+    // all files are added by one process, see HgPathArguments
+    HgCommandExecutor executor = new HgCommandExecutor(myProject);
+    try (HgPathArguments pathArguments = HgPathArguments.create(paths, executor.getCharset())) {
+      executor.executeInCurrentThread(repo, "add", pathArguments.getArguments());
+    }
+    if (indicator != null) {
+      indicator.setFraction(1);
     }
   }
 
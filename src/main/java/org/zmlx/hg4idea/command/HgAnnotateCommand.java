@@ -12,9 +12,10 @@
 // limitations under the License.
 package org.zmlx.hg4idea.command;
 
+import consulo.application.progress.ProgressIndicator;
+import consulo.application.progress.ProgressManager;
 import consulo.logging.Logger;
 import consulo.project.Project;
-import consulo.application.util.DateFormatUtil;
 
 import jakarta.annotation.Nonnull;
 import jakarta.annotation.Nullable;
@@ -23,14 +24,15 @@ import org.zmlx.hg4idea.HgRevisionNumber;
 import org.zmlx.hg4idea.HgVcs;
 import org.zmlx.hg4idea.execution.HgCommandExecutor;
 import org.zmlx.hg4idea.execution.HgCommandResult;
-import org.zmlx.hg4idea.provider.annotate.HgAnnotationLine;
+import org.zmlx.hg4idea.provider.annotate.HgAnnotationLines;
 
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Date;
 import java.util.List;
 import java.util.Locale;
+import java.util.function.Consumer;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -54,13 +56,23 @@ public class HgAnnotateCommand {
     myProject = project;
   }
 
-  public List<HgAnnotationLine> execute(@Nonnull HgFile hgFile, @Nullable HgRevisionNumber revision) {
+  @Nonnull
+  public HgAnnotationLines execute(@Nonnull HgFile hgFile, @Nullable HgRevisionNumber revision) {
+    return execute(hgFile, revision, null).getLines();
+  }
+
+  /**
+   * @param revisionListener if not null, receives each annotated revision once, as soon as its first line is printed,
+   *                         so that the revision details may be loaded while hg annotate is still running
+   * @return the lines printed by hg and the way it finished: the lines of a failed or cancelled command may be incomplete
+   */
+  @Nonnull
+  public Result execute(@Nonnull HgFile hgFile,
+                        @Nullable HgRevisionNumber revision,
+                        @Nullable Consumer<HgRevisionNumber> revisionListener) {
     final List<String> arguments = new ArrayList<>();
     arguments.add("-cvnudl");
-    HgVcs vcs = HgVcs.getInstance(myProject);
-    if (vcs != null &&
-        vcs.getProjectSettings().isWhitespacesIgnoredInAnnotations() &&
-        vcs.getVersion().isIgnoreWhitespaceDiffInAnnotationsSupported()) {
+    if (isWhitespaceIgnored()) {
       arguments.add("-w");
     }
     if (revision != null) {
@@ -68,41 +80,108 @@ public class HgAnnotateCommand {
       arguments.add(revision.getChangeset());
     }
     arguments.add(hgFile.getRelativePath());
-    final HgCommandResult result = new HgCommandExecutor(myProject).executeInCurrentThread(hgFile.getRepo(), "annotate", arguments);
+    // lines are parsed as soon as hg prints them, the raw output of a large file is never kept in memory as a whole
+    final HgAnnotationLines.Builder annotations = new HgAnnotationLines.Builder();
+    final SimpleDateFormat dateFormat = createDateFormat();
+    HgCommandExecutor executor = new HgCommandExecutor(myProject);
+    ProgressIndicator indicator = ProgressManager.getInstance().getProgressIndicator();
+    final HgCommandResult result = executor.executeStreaming(hgFile.getRepo(), "annotate", arguments, '\n', line -> {
+      int revisionCount = annotations.getRevisionCount();
+      if (parseLine(line, dateFormat, annotations) && revisionListener != null && annotations.getRevisionCount() > revisionCount) {
+        revisionListener.accept(annotations.getRevision(revisionCount));
+      }
+      return true;
+    });
 
     if (result == null) {
-      return Collections.emptyList();
+      return new Result(new HgAnnotationLines.Builder().build(), Result.NOT_EXECUTED, false);
     }
+    // a killed process may exit with any code, so the indicator is checked too
+    boolean cancelled = result == HgCommandResult.CANCELLED || indicator != null && indicator.isCanceled();
+    return new Result(annotations.build(), result.getExitValue(), cancelled);
+  }
+
+  /**
+   * @return true if annotations are computed ignoring whitespace changes, they differ from the plain ones then
+   */
+  public boolean isWhitespaceIgnored() {
+    HgVcs vcs = HgVcs.getInstance(myProject);
+    return vcs != null &&
+           vcs.getProjectSettings().isWhitespacesIgnoredInAnnotations() &&
+           vcs.getVersion().isIgnoreWhitespaceDiffInAnnotationsSupported();
+  }
 
-    List<String> outputLines = result.getOutputLines();
-    return parse(outputLines);
+  /**
+   * The format of dates printed by {@code hg annotate -d}; the instance isn't thread-safe, so it is created per command.
+   */
+  @Nonnull
+  static SimpleDateFormat createDateFormat() {
+    return new SimpleDateFormat("EEE MMM dd HH:mm:ss yyyy", Locale.US);
   }
 
-  private static List<HgAnnotationLine> parse(List<String> outputLines) {
-    List<HgAnnotationLine> annotations = new ArrayList<>(outputLines.size());
-    for (String line : outputLines) {
-      Matcher matcher = LINE_PATTERN.matcher(line);
-      if (matcher.matches()) {
-        String user = matcher.group(USER_GROUP).trim();
-        HgRevisionNumber rev = HgRevisionNumber.getInstance(matcher.group(REVISION_GROUP), matcher.group(CHANGESET_GROUP));
-        String dateGroup = matcher.group(DATE_GROUP).trim();
-        SimpleDateFormat dateFormat = new SimpleDateFormat("EEE MMM dd HH:mm:ss yyyy", Locale.US);
-        String date = "";
-        try {
-          date = DateFormatUtil.formatPrettyDate(dateFormat.parse(dateGroup));
-        }
-        catch (ParseException e) {
-          LOG.error("Couldn't parse annotation date ", e);
-        }
-        Integer lineNumber = Integer.valueOf(matcher.group(LINE_NUMBER_GROUP));
-        String content = matcher.group(CONTENT_GROUP);
-        HgAnnotationLine annotationLine = new HgAnnotationLine(
-          user, rev, date, lineNumber, content
-        );
-        annotations.add(annotationLine);
+  /**
+   * Adds the parsed line to the annotation; the author and the date are parsed only for the first line of a revision.
+   *
+   * @return false if the line doesn't look like an annotated line
+   */
+  static boolean parseLine(@Nonnull String line, @Nonnull SimpleDateFormat dateFormat, @Nonnull HgAnnotationLines.Builder annotations) {
+    Matcher matcher = LINE_PATTERN.matcher(line);
+    if (!matcher.matches()) {
+      return false;
+    }
+    String changeset = matcher.group(CHANGESET_GROUP);
+    int revision = annotations.findRevision(changeset);
+    if (revision < 0) {
+      String user = matcher.group(USER_GROUP).trim();
+      Date date = null;
+      try {
+        date = dateFormat.parse(matcher.group(DATE_GROUP).trim());
       }
+      catch (ParseException e) {
+        LOG.error("Couldn't parse annotation date ", e);
+      }
+      revision = annotations.addRevision(HgRevisionNumber.getInstance(matcher.group(REVISION_GROUP), changeset), user, date);
+    }
+    annotations.addLine(revision, Integer.parseInt(matcher.group(LINE_NUMBER_GROUP)), matcher.group(CONTENT_GROUP));
+    return true;
+  }
+
+  public static final class Result {
+    /**
+     * The exit value if hg couldn't be run at all.
+     */
+    public static final int NOT_EXECUTED = -1;
+
+    @Nonnull
+    private final HgAnnotationLines myLines;
+    private final int myExitValue;
+    private final boolean myCancelled;
+
+    Result(@Nonnull HgAnnotationLines lines, int exitValue, boolean cancelled) {
+      myLines = lines;
+      myExitValue = exitValue;
+      myCancelled = cancelled;
+    }
+
+    @Nonnull
+    public HgAnnotationLines getLines() {
+      return myLines;
+    }
+
+    public int getExitValue() {
+      return myExitValue;
+    }
+
+    public boolean isCancelled() {
+      return myCancelled;
+    }
+
+    /**
+     * @return true if hg printed the annotation of the whole file
+     */
+    public boolean isComplete() {
+      return myExitValue == 0 && !myCancelled;
     }
-    return annotations;
   }
 
 }
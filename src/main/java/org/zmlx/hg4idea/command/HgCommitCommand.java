@@ -16,10 +16,10 @@ import consulo.project.Project;
 import consulo.versionControlSystem.VcsException;
 import consulo.versionControlSystem.distributed.repository.Repository;
 import jakarta.annotation.Nonnull;
-import org.zmlx.hg4idea.HgVcs;
 import org.zmlx.hg4idea.execution.HgCommandException;
 import org.zmlx.hg4idea.execution.HgCommandExecutor;
 import org.zmlx.hg4idea.repo.HgRepository;
+import org.zmlx.hg4idea.util.HgPathArguments;
 import org.zmlx.hg4idea.util.HgUtil;
 
 import java.util.Collections;
@@ -55,53 +55,37 @@ public class HgCommitCommand extends HgCommitTypeCommand {
     this(project, repo, message, false);
   }
 
-  protected void executeChunked(@Nonnull List<List<String>> chunkedCommits) throws HgCommandException, VcsException {
-    if (chunkedCommits.isEmpty()) {
-      commitChunkFiles(List.of(), myAmend, myCloseBranch);
+  /**
+   * All files are committed at once, so the result is one changeset even for a huge set of files.
+   */
+  @Override
+  protected void executeWithFiles(@Nonnull List<String> relativePaths) throws HgCommandException, VcsException {
+    if (!relativePaths.isEmpty() && myShouldCommitWithSubrepos && myRepository.hasSubrepos()) {
+      mySubrepos = HgUtil.getNamesWithoutHashes(myRepository.getSubrepos());
     }
-    else {
-      int size = chunkedCommits.size();
-      if (myShouldCommitWithSubrepos && myRepository.hasSubrepos()) {
-        mySubrepos = HgUtil.getNamesWithoutHashes(myRepository.getSubrepos());
-      }
-      commitChunkFiles(chunkedCommits.get(0), myAmend, !mySubrepos.isEmpty(), myCloseBranch && size == 1);
-      HgVcs vcs = HgVcs.getInstance(myProject);
-      boolean amendCommit = vcs != null && vcs.getVersion().isAmendSupported();
-      for (int i = 1; i < size; i++) {
-        List<String> chunk = chunkedCommits.get(i);
-        commitChunkFiles(chunk, amendCommit, false, myCloseBranch && i == size - 1);
-      }
-    }
-  }
-
-  private void commitChunkFiles(@Nonnull List<String> chunk, boolean amendCommit, boolean closeBranch) throws VcsException {
-    commitChunkFiles(chunk, amendCommit, false, closeBranch);
-  }
-
-  private void commitChunkFiles(@Nonnull List<String> chunk, boolean amendCommit, boolean withSubrepos, boolean closeBranch)
-    throws VcsException
-  {
     List<String> parameters = new LinkedList<>();
     parameters.add("--logfile");
     parameters.add(saveCommitMessage().getAbsolutePath());
     // note: for now mercurial could not perform amend commit with -S option
-    if (withSubrepos) {
+    if (!mySubrepos.isEmpty()) {
       parameters.add("-S");
       parameters.addAll(mySubrepos);
     }
-    else if (amendCommit) {
+    else if (myAmend) {
       parameters.add("--amend");
     }
-    if (closeBranch) {
-      if (chunk.isEmpty() && myRepository.getState() != Repository.State.MERGING) {
+    if (myCloseBranch) {
+      if (relativePaths.isEmpty() && myRepository.getState() != Repository.State.MERGING) {
         //if there are changed files but nothing selected -> need to exclude all; if merge commit then nothing excluded
         parameters.add("-X");
         parameters.add("\"**\"");
       }
       parameters.add("--close-branch");
     }
-    parameters.addAll(chunk);
-    HgCommandExecutor executor = new HgCommandExecutor(myProject);
-    ensureSuccess(executor.executeInCurrentThread(myRepository.getRoot(), "commit", parameters));
+    try (HgPathArguments pathArguments = createPathArguments(relativePaths)) {
+      parameters.addAll(pathArguments.getArguments());
+      HgCommandExecutor executor = new HgCommandExecutor(myProject);
+      ensureSuccess(executor.executeInCurrentThread(myRepository.getRoot(), "commit", parameters));
+    }
   }
 }
@@ -22,14 +22,14 @@ import consulo.util.collection.ContainerUtil;
 import consulo.util.io.FileUtil;
 import consulo.util.lang.StringUtil;
 import consulo.versionControlSystem.VcsException;
-import consulo.versionControlSystem.util.VcsFileUtil;
 import jakarta.annotation.Nonnull;
 import org.zmlx.hg4idea.HgFile;
 import org.zmlx.hg4idea.HgRemoteUpdater;
 import org.zmlx.hg4idea.HgVcsMessages;
 import org.zmlx.hg4idea.execution.HgCommandException;
+import org.zmlx.hg4idea.execution.HgCommandExecutor;
 import org.zmlx.hg4idea.repo.HgRepository;
-import org.zmlx.hg4idea.util.HgEncodingUtil;
+import org.zmlx.hg4idea.util.HgPathArguments;
 
 import java.io.File;
 import java.io.IOException;
@@ -59,7 +59,8 @@ public abstract class HgCommitTypeCommand {
     myRepository = repository;
     myMessage = message;
     myAmend = amend;
-    myCharset = HgEncodingUtil.getDefaultCharset(myProject);
+    // the commit message and the list of files are read by hg in the encoding it is run with
+    myCharset = new HgCommandExecutor(myProject).getCharset();
   }
 
   public void setFiles(@Nonnull Set<HgFile> files) {
@@ -83,18 +84,21 @@ public abstract class HgCommitTypeCommand {
     if (StringUtil.isEmptyOrSpaces(myMessage)) {
       throw new HgCommandException(HgVcsMessages.message("hg4idea.commit.error.messageEmpty"));
     }
-    if (myFiles.isEmpty()) {
-      executeChunked(Collections.<List<String>>emptyList());
-    }
-    else {
-      List<String> relativePaths = ContainerUtil.map2List(myFiles, file -> file.getRelativePath());
-      List<List<String>> chunkedCommits = VcsFileUtil.chunkArguments(relativePaths);
-      executeChunked(chunkedCommits);
-    }
+    executeWithFiles(ContainerUtil.map2List(myFiles, file -> file.getRelativePath()));
     myRepository.update();
     final MessageBus messageBus = myProject.getMessageBus();
     messageBus.syncPublisher(HgRemoteUpdater.class).update(myProject, null);
   }
 
-  protected abstract void executeChunked(@Nonnull List<List<String>> chunkedCommits) throws HgCommandException, VcsException;
+  /**
+   * Commits the given files in one hg process, passing them via {@link HgPathArguments}.
+   *
+   * @param relativePaths paths relative to the repository root; if empty, all changes are committed
+   */
+  protected abstract void executeWithFiles(@Nonnull List<String> relativePaths) throws HgCommandException, VcsException;
+
+  @Nonnull
+  protected HgPathArguments createPathArguments(@Nonnull List<String> relativePaths) {
+    return HgPathArguments.create(relativePaths, myCharset);
+  }
 }
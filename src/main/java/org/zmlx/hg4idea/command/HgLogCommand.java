@@ -26,6 +26,7 @@ import org.zmlx.hg4idea.HgVcs;
 import org.zmlx.hg4idea.execution.HgCommandException;
 import org.zmlx.hg4idea.execution.HgCommandExecutor;
 import org.zmlx.hg4idea.execution.HgCommandResult;
+import org.zmlx.hg4idea.execution.HgOutputRecordConsumer;
 import org.zmlx.hg4idea.log.HgBaseLogParser;
 import org.zmlx.hg4idea.log.HgFileRevisionLogParser;
 import org.zmlx.hg4idea.log.HgHistoryUtil;
@@ -33,9 +34,11 @@ import org.zmlx.hg4idea.util.HgChangesetUtil;
 import org.zmlx.hg4idea.util.HgUtil;
 import org.zmlx.hg4idea.util.HgVersion;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.function.Predicate;
 
 public class HgLogCommand {
 
@@ -89,23 +92,58 @@ public class HgLogCommand {
    * @param limit Pass -1 to set no limits on history
    */
   public final List<HgFileRevision> execute(final HgFile hgFile, int limit, boolean includeFiles, @Nullable List<String> argsForCmd) {
+    List<HgFileRevision> revisions = new ArrayList<>();
+    return execute(hgFile, limit, includeFiles, argsForCmd, revisions::add) ? revisions : Collections.emptyList();
+  }
+
+  /**
+   * Same as {@link #execute(HgFile, int, boolean, List)}, but passes each revision to the consumer as soon as it is parsed.
+   * The log process is killed if the consumer returns false or the progress indicator is cancelled.
+   *
+   * @return false if the log failed
+   */
+  public final boolean execute(final HgFile hgFile,
+                               int limit,
+                               boolean includeFiles,
+                               @Nullable List<String> argsForCmd,
+                               @Nonnull Predicate<HgFileRevision> consumer) {
     if ((limit <= 0 && limit != -1) || hgFile == null) {
-      return Collections.emptyList();
+      return true;
     }
 
     String[] templates = HgBaseLogParser.constructFullTemplateArgument(includeFiles, myVersion);
     String template = HgChangesetUtil.makeTemplate(templates);
     FilePath originalFileName = HgUtil.getOriginalFileName(hgFile.toFilePath(), ChangeListManager.getInstance(myProject));
     HgFile originalHgFile = new HgFile(hgFile.getRepo(), originalFileName);
-    HgCommandResult result = execute(hgFile.getRepo(), template, limit, originalHgFile, argsForCmd);
-
-    return  HgHistoryUtil.getCommitRecords(myProject, result,
-                                           new HgFileRevisionLogParser(myProject, originalHgFile, myVersion));
+    HgFileRevisionLogParser parser = new HgFileRevisionLogParser(myProject, originalHgFile, myVersion);
+    return HgHistoryUtil.streamCommitRecords(myProject, false, parser, consumer,
+                                             recordConsumer -> executeStreaming(hgFile.getRepo(), template, limit, originalHgFile,
+                                                                                argsForCmd, recordConsumer));
   }
 
   @Nullable
   public HgCommandResult execute(@Nonnull VirtualFile repo, @Nonnull String template, int limit, @Nullable HgFile hgFile,
 								 @Nullable List<String> argsForCmd) {
+    HgCommandExecutor commandExecutor = new HgCommandExecutor(myProject);
+    commandExecutor.setOutputAlwaysSuppressed(true);
+    return commandExecutor.executeInCurrentThread(repo, "log", createArguments(template, limit, hgFile, argsForCmd));
+  }
+
+  /**
+   * Same as {@link #execute(VirtualFile, String, int, HgFile, List)}, but passes the output to the consumer changeset by changeset.
+   * The template must end each changeset with {@link HgChangesetUtil#CHANGESET_SEPARATOR}.
+   */
+  @Nullable
+  public HgCommandResult executeStreaming(@Nonnull VirtualFile repo, @Nonnull String template, int limit, @Nullable HgFile hgFile,
+                                          @Nullable List<String> argsForCmd, @Nonnull HgOutputRecordConsumer consumer) {
+    HgCommandExecutor commandExecutor = new HgCommandExecutor(myProject);
+    commandExecutor.setOutputAlwaysSuppressed(true);
+    return commandExecutor.executeStreaming(repo, "log", createArguments(template, limit, hgFile, argsForCmd),
+                                            HgChangesetUtil.CHANGESET_SEPARATOR.charAt(0), consumer);
+  }
+
+  @Nonnull
+  private List<String> createArguments(@Nonnull String template, int limit, @Nullable HgFile hgFile, @Nullable List<String> argsForCmd) {
     List<String> arguments = new LinkedList<>();
     if (myIncludeRemoved) {
       // There is a bug in mercurial that causes --follow --removed <file> to cause
@@ -137,9 +175,7 @@ public class HgLogCommand {
     if (myLogFile && hgFile != null) {
       arguments.add(hgFile.getRelativePath());
     }
-    HgCommandExecutor commandExecutor = new HgCommandExecutor(myProject);
-    commandExecutor.setOutputAlwaysSuppressed(true);
-    return commandExecutor.executeInCurrentThread(repo, "log", arguments);
+    return arguments;
   }
 
 }
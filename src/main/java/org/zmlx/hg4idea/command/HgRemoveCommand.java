@@ -13,11 +13,11 @@
 package org.zmlx.hg4idea.command;
 
 import consulo.project.Project;
-import consulo.versionControlSystem.util.VcsFileUtil;
 import consulo.virtualFileSystem.VirtualFile;
 import jakarta.annotation.Nonnull;
 import org.zmlx.hg4idea.HgFile;
 import org.zmlx.hg4idea.execution.HgCommandExecutor;
+import org.zmlx.hg4idea.util.HgPathArguments;
 import org.zmlx.hg4idea.util.HgUtil;
 
 import java.util.*;
@@ -50,11 +50,13 @@ public class HgRemoveCommand {
   public void executeInCurrentThread(@Nonnull Collection<HgFile> hgFiles) {
     for (Map.Entry<VirtualFile, List<String>> entry : HgUtil.getRelativePathsByRepository(hgFiles).entrySet()) {
       List<String> filePaths = entry.getValue();
-      for (List<String> chunkFiles : VcsFileUtil.chunkArguments(filePaths)) {
+      // all files of the repository are removed by one process, see HgPathArguments
+      HgCommandExecutor executor = new HgCommandExecutor(myProject);
+      try (HgPathArguments pathArguments = HgPathArguments.create(filePaths, executor.getCharset())) {
         List<String> parameters = new LinkedList<>();
-        parameters.addAll(chunkFiles);
-        parameters.add(0, "--after");
-        new HgCommandExecutor(myProject).executeInCurrentThread(entry.getKey(), "remove", parameters);
+        parameters.add("--after");
+        parameters.addAll(pathArguments.getArguments());
+        executor.executeInCurrentThread(entry.getKey(), "remove", parameters);
       }
     }
   }
@@ -21,6 +21,7 @@ import jakarta.annotation.Nonnull;
 import org.zmlx.hg4idea.HgRevisionNumber;
 import org.zmlx.hg4idea.execution.HgCommandExecutor;
 import org.zmlx.hg4idea.execution.HgCommandResult;
+import org.zmlx.hg4idea.util.HgPathArguments;
 
 import java.util.Collection;
 import java.util.LinkedList;
@@ -34,7 +35,11 @@ public class HgRevertCommand {
     this.project = project;
   }
 
-  //all files should be already chunked
+  /**
+   * Reverts any number of files in one hg process, see {@link HgPathArguments}.
+   *
+   * @param files paths relative to the repository root
+   */
   @Nullable
   public HgCommandResult execute(@Nonnull VirtualFile repo, @Nonnull Collection<String> files, @Nullable HgRevisionNumber vcsRevisionNumber, boolean backupFile) {
     final List<String> options = new LinkedList<>();
@@ -50,7 +55,10 @@ public class HgRevertCommand {
     if (!backupFile) {
       options.add("--no-backup");
     }
-    options.addAll(files);
-    return new HgCommandExecutor(project).executeInCurrentThread(repo, "revert", options);
+    HgCommandExecutor executor = new HgCommandExecutor(project);
+    try (HgPathArguments pathArguments = HgPathArguments.create(files, executor.getCharset())) {
+      options.addAll(pathArguments.getArguments());
+      return executor.executeInCurrentThread(repo, "revert", options);
+    }
   }
 }
@@ -12,6 +12,7 @@
 // limitations under the License.
 package org.zmlx.hg4idea.command;
 
+import consulo.application.progress.ProgressManager;
 import consulo.logging.Logger;
 import consulo.project.Project;
 import consulo.util.lang.StringUtil;
@@ -27,8 +28,13 @@ import org.zmlx.hg4idea.HgChange;
 import org.zmlx.hg4idea.HgFile;
 import org.zmlx.hg4idea.HgFileStatusEnum;
 import org.zmlx.hg4idea.HgRevisionNumber;
+import org.zmlx.hg4idea.HgVcs;
+import org.zmlx.hg4idea.execution.HgCommandCoalescer;
 import org.zmlx.hg4idea.execution.HgCommandExecutor;
+import org.zmlx.hg4idea.execution.HgCommandPriority;
 import org.zmlx.hg4idea.execution.HgCommandResult;
+import org.zmlx.hg4idea.execution.HgOutputRecordConsumer;
+import org.zmlx.hg4idea.util.HgPathArguments;
 
 import java.io.File;
 import java.util.*;
@@ -54,6 +60,7 @@ public class HgStatusCommand {
 
   @Nullable private final HgRevisionNumber myBaseRevision;
   @Nullable private final HgRevisionNumber myTargetRevision;
+  @Nullable private final HgCommandPriority myPriority;
 
   public void cleanFilesOption(boolean clean) {
     myCleanStatus = clean;
@@ -70,6 +77,7 @@ public class HgStatusCommand {
 
     private HgRevisionNumber baseRevision;
     private HgRevisionNumber targetRevision;
+    private HgCommandPriority priority;
 
     public Builder(boolean initValue) {
       includeAdded = initValue;
@@ -113,6 +121,11 @@ public class HgStatusCommand {
       return this;
     }
 
+    public Builder priority(HgCommandPriority val) {
+      priority = val;
+      return this;
+    }
+
     public HgStatusCommand build(@Nonnull Project project) {
       return new HgStatusCommand(project, this);
     }
@@ -130,6 +143,7 @@ public class HgStatusCommand {
     myIncludeCopySource = builder.includeCopySource;
     myBaseRevision = builder.baseRevision;
     myTargetRevision = builder.targetRevision;
+    myPriority = builder.priority;
   }
 
   public Set<HgChange> executeInCurrentThread(VirtualFile repo) {
@@ -143,6 +157,7 @@ public class HgStatusCommand {
 
     HgCommandExecutor executor = new HgCommandExecutor(myProject);
     executor.setSilent(true);
+    executor.setPriority(myPriority);
 
     List<String> options = new LinkedList<>();
     if (myIncludeAdded) {
@@ -182,26 +197,83 @@ public class HgStatusCommand {
     final Set<HgChange> changes = new HashSet<>();
 
     if (paths != null) {
-      final List<List<String>> chunked = VcsFileUtil.chunkPaths(repo, paths);
-      for (List<String> chunk : chunked) {
-        List<String> args = new ArrayList<>();
-        args.addAll(options);
-        args.addAll(chunk);
-        HgCommandResult result = executor.executeInCurrentThread(repo, "status", args);
-        changes.addAll(parseChangesFromResult(repo, result, args));
+      if (paths.isEmpty()) {
+        return changes;
+      }
+      List<String> relativePaths = new ArrayList<>(paths.size());
+      for (FilePath path : paths) {
+        relativePaths.add(VcsFileUtil.relativePath(repo, path));
+      }
+      // any number of paths is checked by one process, see HgPathArguments
+      try (HgPathArguments pathArguments = HgPathArguments.create(relativePaths, executor.getCharset())) {
+        List<String> args = new ArrayList<>(options);
+        args.addAll(pathArguments.getArguments());
+        List<String> keyArgs = new ArrayList<>(options);
+        keyArgs.addAll(relativePaths);
+        changes.addAll(executeAndParse(executor, repo, args, keyArgs));
       }
     } else {
-      HgCommandResult result = executor.executeInCurrentThread(repo, "status", options);
-      changes.addAll(parseChangesFromResult(repo, result, options));
+      changes.addAll(executeAndParse(executor, repo, options, options));
     }
     return changes;
   }
 
-  private  Collection<HgChange> parseChangesFromResult(VirtualFile repo, HgCommandResult result, List<String> args) {
-    final Set<HgChange> changes = new HashSet<>();
-    HgChange previous = null;
-    if (result == null) {
-      return changes;
+  /**
+   * Identical status requests running at the same time share one hg process, see {@link HgCommandCoalescer}.
+   * Every caller gets its own copy of the changes, because they are mutable and callers modify them.
+   *
+   * @param keyArgs the arguments which identify the request, i.e. with the paths instead of the temporary list file
+   */
+  @Nonnull
+  private Collection<HgChange> executeAndParse(@Nonnull HgCommandExecutor executor,
+                                               @Nonnull VirtualFile repo,
+                                               @Nonnull List<String> args,
+                                               @Nonnull List<String> keyArgs) {
+    HgVcs vcs = HgVcs.getInstance(myProject);
+    if (vcs == null) {
+      return Collections.emptySet();
+    }
+    // the output is decoded with the executor charset, so it's a part of the key as in HgCommandExecutor
+    String key = "status" + '\0' + executor.getCharset().name() + '\0' + StringUtil.join(keyArgs, "\0");
+    HgCommandCoalescer coalescer = vcs.getCommandCoalescer();
+    Collection<HgChange> changes =
+      coalescer.execute(repo.getPath(), "status", args, key, ProgressManager.getInstance().getProgressIndicator(), result -> true,
+                        inFlight -> {
+                          executor.setInFlight(inFlight);
+                          try {
+                            return executeAndParseInCurrentThread(executor, repo, args);
+                          }
+                          finally {
+                            executor.setInFlight(null);
+                          }
+                        });
+    return changes != null ? copyChanges(changes) : Collections.emptySet();
+  }
+
+  @Nonnull
+  private static Collection<HgChange> copyChanges(@Nonnull Collection<HgChange> changes) {
+    Set<HgChange> copies = new HashSet<>(changes.size());
+    for (HgChange change : changes) {
+      HgChange copy = new HgChange(change.beforeFile(), change.getStatus());
+      copy.setAfterFile(change.afterFile());
+      copies.add(copy);
+    }
+    return copies;
+  }
+
+  /**
+   * Parses status lines as soon as hg prints them, so that the output for a large working copy isn't kept in memory.
+   *
+   * @return null if the command was cancelled or couldn't be executed
+   */
+  @Nullable
+  private Collection<HgChange> executeAndParseInCurrentThread(@Nonnull HgCommandExecutor executor,
+                                                              @Nonnull VirtualFile repo,
+                                                              @Nonnull List<String> args) {
+    StatusParser parser = new StatusParser(repo, args);
+    HgCommandResult result = executor.executeStreaming(repo, "status", args, '\n', parser);
+    if (result == null || result == HgCommandResult.CANCELLED) {
+      return null;
     }
     List<String> errors = result.getErrorLines();
     if (!errors.isEmpty()) {
@@ -209,33 +281,60 @@ public class HgStatusCommand {
         String title = "Could not execute hg status command ";
         LOG.warn(title + errors.toString());
         VcsNotifier.getInstance(myProject).logInfo(title, errors.toString());
-        return changes;
+        return Collections.emptySet();
       }
       LOG.warn(errors.toString());
     }
-    for (String line : result.getOutputLines()) {
+    return parser.myChanges;
+  }
+
+  /**
+   * Parses lines of {@code hg status} output printed for the given repository; used directly by the parser benchmarks.
+   */
+  @Nonnull
+  static Set<HgChange> parseChanges(@Nonnull VirtualFile repo, @Nonnull Iterable<String> lines) {
+    StatusParser parser = new StatusParser(repo, Collections.emptyList());
+    for (String line : lines) {
+      parser.consume(line);
+    }
+    return parser.myChanges;
+  }
+
+  private static class StatusParser implements HgOutputRecordConsumer {
+    @Nonnull private final VirtualFile myRepo;
+    @Nonnull private final List<String> myArgs;
+    private final Set<HgChange> myChanges = new HashSet<>();
+    @Nullable private HgChange myPrevious;
+
+    StatusParser(@Nonnull VirtualFile repo, @Nonnull List<String> args) {
+      myRepo = repo;
+      myArgs = args;
+    }
+
+    @Override
+    public boolean consume(@Nonnull String line) {
       if (StringUtil.isEmptyOrSpaces(line) || line.length() < ITEM_COUNT) {
         LOG.warn("Unexpected line in status '" + line + '\'');
-        continue;
+        return true;
       }
       char statusChar = line.charAt(STATUS_INDEX);
       HgFileStatusEnum status = HgFileStatusEnum.parse(statusChar);
       if (status == null) {
-        LOG.error("Unknown status [" + statusChar + "] in line [" + line + "]" + "\n with arguments " + args);
-        continue;
+        LOG.error("Unknown status [" + statusChar + "] in line [" + line + "]" + "\n with arguments " + myArgs);
+        return true;
       }
-      File ioFile = new File(repo.getPath(), line.substring(2));
-      if (HgFileStatusEnum.COPY == status && previous != null
-        && previous.getStatus() == HgFileStatusEnum.ADDED) {
-        previous.setStatus(HgFileStatusEnum.COPY);
-        previous.setBeforeFile(new HgFile(repo, ioFile));
-        previous = null;
+      File ioFile = new File(myRepo.getPath(), line.substring(2));
+      if (HgFileStatusEnum.COPY == status && myPrevious != null
+        && myPrevious.getStatus() == HgFileStatusEnum.ADDED) {
+        myPrevious.setStatus(HgFileStatusEnum.COPY);
+        myPrevious.setBeforeFile(new HgFile(myRepo, ioFile));
+        myPrevious = null;
       } else {
-        previous = new HgChange(new HgFile(repo, ioFile), status);
-        changes.add(previous);
+        myPrevious = new HgChange(new HgFile(myRepo, ioFile), status);
+        myChanges.add(myPrevious);
       }
+      return true;
     }
-    return changes;
   }
 
   @Nonnull
@@ -28,6 +28,7 @@ import org.zmlx.hg4idea.execution.HgCommandExecutor;
 import org.zmlx.hg4idea.execution.HgCommandResult;
 import org.zmlx.hg4idea.repo.HgRepository;
 import org.zmlx.hg4idea.util.HgErrorUtil;
+import org.zmlx.hg4idea.util.HgPathArguments;
 
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
@@ -44,50 +45,47 @@ public class HgQNewCommand extends HgCommitTypeCommand {
   }
 
   @Override
-  protected void executeChunked(@Nonnull List<List<String>> chunkedCommits) throws HgCommandException, VcsException
+  protected void executeWithFiles(@Nonnull List<String> relativePaths) throws HgCommandException, VcsException
   {
-    if (chunkedCommits.isEmpty()) {
-      executeQNewInCurrentThread(List.of());
+    if (myAmend && !relativePaths.isEmpty()) {
+      executeQRefreshInCurrentThread(relativePaths);
     }
     else {
-      int size = chunkedCommits.size();
-      int i = 0;
-      if (!myAmend) {
-        executeQNewInCurrentThread(chunkedCommits.get(0));
-        i = 1;
-      }
-      for (; i < size; i++) {
-        executeQRefreshInCurrentThread(chunkedCommits.get(i));
-      }
+      executeQNewInCurrentThread(relativePaths);
     }
     myRepository.update();
     final MessageBus messageBus = myProject.getMessageBus();
     messageBus.syncPublisher(HgRemoteUpdater.class).update(myProject, null);
   }
 
-  private void executeQRefreshInCurrentThread(@Nonnull List<String> chunkFiles) throws VcsException {
+  private void executeQRefreshInCurrentThread(@Nonnull List<String> relativePaths) throws VcsException {
     List<String> args = new ArrayList<>();
     args.add("-l");
     args.add(saveCommitMessage().getAbsolutePath());
     args.add("-s");
-    args.addAll(chunkFiles);
-    HgCommandResult result = new HgCommandExecutor(myProject).executeInCurrentThread(myRepository.getRoot(), "qrefresh", args);
+    HgCommandResult result;
+    try (HgPathArguments pathArguments = createPathArguments(relativePaths)) {
+      args.addAll(pathArguments.getArguments());
+      result = new HgCommandExecutor(myProject).executeInCurrentThread(myRepository.getRoot(), "qrefresh", args);
+    }
     if (HgErrorUtil.hasErrorsInCommandExecution(result)) {
       new HgCommandResultNotifier(myProject)
         .notifyError(result, "QRefresh Failed", "Could not amend selected changes to newly created patch");
     }
   }
 
-  private void executeQNewInCurrentThread(@Nonnull List<String> chunkFiles) throws VcsException {
+  private void executeQNewInCurrentThread(@Nonnull List<String> relativePaths) throws VcsException {
     List<String> args = ContainerUtil.newArrayList();
     args.add("-l");
     args.add(saveCommitMessage().getAbsolutePath());
     args.add("-UD");
     String patchName = DATE_FORMAT.format(new Date()).concat(".diff");
     args.add(patchName);
-    args.addAll(chunkFiles);
-    HgCommandExecutor executor = new HgCommandExecutor(myProject);
-    HgCommandResult result = executor.executeInCurrentThread(myRepository.getRoot(), "qnew", args);
+    HgCommandResult result;
+    try (HgPathArguments pathArguments = createPathArguments(relativePaths)) {
+      args.addAll(pathArguments.getArguments());
+      result = new HgCommandExecutor(myProject).executeInCurrentThread(myRepository.getRoot(), "qnew", args);
+    }
     if (HgErrorUtil.hasErrorsInCommandExecution(result)) {
       new HgCommandResultNotifier(myProject)
         .notifyError(result, "Qnew Failed", "Could not create mq patch for selected changes");
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2013-2025 consulo.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zmlx.hg4idea.execution;
+
+import consulo.application.progress.ProgressIndicator;
+import consulo.logging.Logger;
+import jakarta.annotation.Nonnull;
+import jakarta.annotation.Nullable;
+
+import java.util.Set;
+import java.util.concurrent.*;
+
+/**
+ * <p>Watches progress indicators of all running hg processes and of the commands waiting to start or for a shared result
+ * from one shared daemon thread, so that neither a process nor a waiting thread has to wake up periodically to check for cancellation.</p>
+ * <p>Progress indicators don't notify about cancellation, so the thread polls them every {@link #CHECK_INTERVAL_MS} ms,
+ * and only while there is something to watch.</p>
+ */
+final class HgCancellationWatcher {
+  private static final Logger LOG = Logger.getInstance(HgCancellationWatcher.class);
+
+  private static final long CHECK_INTERVAL_MS = 50;
+
+  private static final Set<Watch> ourWatches = ConcurrentHashMap.newKeySet();
+  private static final ScheduledExecutorService ourExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+    Thread thread = new Thread(runnable, "Hg process cancellation watcher");
+    thread.setDaemon(true);
+    return thread;
+  });
+  @Nullable
+  private static ScheduledFuture<?> ourTask;
+
+  private HgCancellationWatcher() {
+  }
+
+  /**
+   * Calls onCancel once, when the indicator becomes cancelled.
+   *
+   * @return the runnable which stops watching, it must be called when the process has finished
+   */
+  @Nonnull
+  static Runnable watch(@Nullable ProgressIndicator indicator, @Nonnull Runnable onCancel) {
+    if (indicator == null) {
+      return () -> {
+      };
+    }
+    Watch watch = new Watch(indicator, onCancel);
+    ourWatches.add(watch);
+    synchronized (HgCancellationWatcher.class) {
+      if (ourTask == null) {
+        ourTask = ourExecutor.scheduleWithFixedDelay(HgCancellationWatcher::checkCancelled, CHECK_INTERVAL_MS, CHECK_INTERVAL_MS,
+                                                     TimeUnit.MILLISECONDS);
+      }
+    }
+    return () -> {
+      ourWatches.remove(watch);
+      synchronized (HgCancellationWatcher.class) {
+        if (ourWatches.isEmpty() && ourTask != null) {
+          ourTask.cancel(false);
+          ourTask = null;
+        }
+      }
+    };
+  }
+
+  private static void checkCancelled() {
+    for (Watch watch : ourWatches) {
+      if (watch.myIndicator.isCanceled() && ourWatches.remove(watch)) {
+        try {
+          watch.myOnCancel.run();
+        }
+        catch (RuntimeException e) {
+          LOG.error(e);
+        }
+      }
+    }
+  }
+
+  private static final class Watch {
+    @Nonnull
+    private final ProgressIndicator myIndicator;
+    @Nonnull
+    private final Runnable myOnCancel;
+
+    private Watch(@Nonnull ProgressIndicator indicator, @Nonnull Runnable onCancel) {
+      myIndicator = indicator;
+      myOnCancel = onCancel;
+    }
+  }
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright 2013-2025 consulo.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zmlx.hg4idea.execution;
+
+import consulo.application.progress.ProgressIndicator;
+import consulo.logging.Logger;
+import jakarta.annotation.Nonnull;
+import jakarta.annotation.Nullable;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * <p>Lets concurrent callers of the same side-effect-free hg command share one process and its result.</p>
+ * <p>Commands reading only the repository state (e.g. {@code branches}, {@code tip}) are shared while they are running,
+ * until the repository is {@link #invalidate changed}. Commands which depend on the working copy files ({@code status},
+ * {@code identify}) are shared only while their process isn't started yet, e.g. while waiting in the {@link HgCommandScheduler},
+ * because files may be modified after the process has read them.</p>
+ */
+public final class HgCommandCoalescer {
+  private static final Logger LOG = Logger.getInstance(HgCommandCoalescer.class);
+
+  private final ConcurrentMap<String, InFlight<?>> myInFlight = new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, Long> myGenerations = new ConcurrentHashMap<>();
+  private final AtomicLong myExecutedCount = new AtomicLong();
+  private final AtomicLong mySharedCount = new AtomicLong();
+
+  /**
+   * @return true if the command doesn't change anything and its result may be shared
+   */
+  public static boolean isCoalescable(@Nonnull String operation, @Nullable List<String> arguments) {
+    switch (operation) {
+      case "identify":
+      case "parents":
+      case "tip":
+      case "branches":
+      case "heads":
+      case "showconfig":
+      case "status":
+        return true;
+      case "resolve":
+        return arguments != null && (arguments.contains("--list") || arguments.contains("-l"));
+      default:
+        return false;
+    }
+  }
+
+  /**
+   * @return true if the command surely changes neither the repository nor the working copy;
+   * other commands {@link #invalidate} shared results of the repository as soon as they finish
+   */
+  public static boolean isReadOnly(@Nonnull String operation, @Nullable List<String> arguments) {
+    if (isCoalescable(operation, arguments) || operation.startsWith("debug")) {
+      return true;
+    }
+    switch (operation) {
+      case "log":
+      case "cat":
+      case "annotate":
+      case "diff":
+      case "manifest":
+      case "locate":
+      case "files":
+      case "grep":
+      case "paths":
+      case "summary":
+      case "incoming":
+      case "outgoing":
+      case "version":
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  private static boolean dependsOnWorkingCopy(@Nonnull String operation, @Nullable List<String> arguments) {
+    return "status".equals(operation) ||
+           "identify".equals(operation) && (arguments == null || !(arguments.contains("-r") || arguments.contains("--rev")));
+  }
+
+  /**
+   * Runs the command or joins the identical one, which is already in flight.
+   *
+   * @param key       identifies the command: everything which may change its output, except the root
+   * @param command   runs the command; it must call {@link InFlight#markStarted()} right before its process is started
+   * @param shareable tells if the result may be given to other callers, e.g. a result of a cancelled command may not
+   * @param indicator checked for cancellation while waiting for a shared result
+   * @return the result of the command; if the shared command failed or was cancelled, the command is run by this caller itself
+   */
+  public <T> T execute(@Nonnull String root,
+                       @Nonnull String operation,
+                       @Nullable List<String> arguments,
+                       @Nonnull String key,
+                       @Nullable ProgressIndicator indicator,
+                       @Nonnull Predicate<T> shareable,
+                       @Nonnull Function<InFlight<T>, T> command) {
+    String fullKey = root + '\0' + myGenerations.getOrDefault(root, 0L) + '\0' + key;
+    boolean workingCopy = dependsOnWorkingCopy(operation, arguments);
+    InFlight<T> mine = new InFlight<>();
+    @SuppressWarnings("unchecked")
+    InFlight<T> existing = (InFlight<T>)myInFlight.putIfAbsent(fullKey, mine);
+    if (existing != null && !(workingCopy && existing.myStarted)) {
+      T result = await(existing, indicator);
+      if (result != null) {
+        mySharedCount.incrementAndGet();
+        return result;
+      }
+      return command.apply(new InFlight<>());
+    }
+    if (existing != null) {
+      // the running command could have missed the latest changes; run our own, later callers will share it
+      myInFlight.put(fullKey, mine);
+    }
+
+    myExecutedCount.incrementAndGet();
+    T result = null;
+    try {
+      result = command.apply(mine);
+      return result;
+    }
+    finally {
+      myInFlight.remove(fullKey, mine);
+      mine.myResult.complete(result != null && shareable.test(result) ? result : null);
+    }
+  }
+
+  @Nullable
+  private static <T> T await(@Nonnull InFlight<T> inFlight, @Nullable ProgressIndicator indicator) {
+    // completed either by the shared command or, with null, by the cancellation
+    CompletableFuture<T> result = new CompletableFuture<>();
+    inFlight.myResult.whenComplete((value, error) -> result.complete(error == null ? value : null));
+    Runnable stopWatching = HgCancellationWatcher.watch(indicator, () -> result.complete(null));
+    try {
+      if (indicator != null && indicator.isCanceled()) {
+        return null;
+      }
+      return result.get();
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return null;
+    }
+    catch (ExecutionException e) {
+      LOG.debug(e);
+      return null;
+    }
+    finally {
+      stopWatching.run();
+    }
+  }
+
+  /**
+   * Called when the repository has changed: commands started before can't be shared with new callers anymore.
+   * It is called synchronously by the executor of a changing command when it finishes, and by the repository updater
+   * for changes made outside the IDE.
+   */
+  public void invalidate(@Nonnull String root) {
+    myGenerations.merge(root, 1L, Long::sum);
+  }
+
+  /**
+   * @return number of commands which were really executed
+   */
+  public long getExecutedCount() {
+    return myExecutedCount.get();
+  }
+
+  /**
+   * @return number of calls which got the result of a command executed for another caller
+   */
+  public long getSharedCount() {
+    return mySharedCount.get();
+  }
+
+  public static final class InFlight<T> {
+    private final CompletableFuture<T> myResult = new CompletableFuture<>();
+    private volatile boolean myStarted;
+
+    private InFlight() {
+    }
+
+    public void markStarted() {
+      myStarted = true;
+    }
+  }
+}
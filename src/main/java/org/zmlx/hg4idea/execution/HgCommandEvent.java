@@ -0,0 +1,60 @@
+/*
+ * Copyright 2013-2025 consulo.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zmlx.hg4idea.execution;
+
+import jdk.jfr.*;
+
+/**
+ * JFR event recorded for each executed hg command; its duration is the wall time of the command including queueing.
+ */
+@Name("org.zmlx.hg4idea.HgCommand")
+@Label("Hg Command")
+@Category("Mercurial")
+@Description("Execution of an hg command")
+@StackTrace(false)
+final class HgCommandEvent extends Event {
+  @Label("Operation")
+  String operation;
+
+  @Label("Subsystem")
+  String subsystem;
+
+  @Label("Repository")
+  String repository;
+
+  @Label("Command Server")
+  @Description("The command was executed by a pooled command server instead of a new process")
+  boolean commandServer;
+
+  @Label("Queue Wait")
+  @Timespan(Timespan.NANOSECONDS)
+  long queueWait;
+
+  @Label("Spawn Time")
+  @Timespan(Timespan.NANOSECONDS)
+  long spawnTime;
+
+  @Label("Stdout Size")
+  @DataAmount
+  long stdoutSize;
+
+  @Label("Stderr Size")
+  @DataAmount
+  long stderrSize;
+
+  @Label("Exit Code")
+  int exitCode;
+}
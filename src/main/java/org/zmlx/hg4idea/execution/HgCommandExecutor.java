@@ -16,9 +16,11 @@
 package org.zmlx.hg4idea.execution;
 
 import consulo.application.ApplicationManager;
+import consulo.application.progress.ProgressManager;
 import consulo.application.progress.Task;
 import consulo.execution.ui.console.ConsoleViewContentType;
 import consulo.logging.Logger;
+import consulo.process.util.ProcessOutput;
 import consulo.project.Project;
 import consulo.util.lang.StringUtil;
 import consulo.versionControlSystem.util.VcsUtil;
@@ -33,10 +35,14 @@ import org.zmlx.hg4idea.util.HgErrorUtil;
 import org.zmlx.hg4idea.util.HgUtil;
 
 import java.io.File;
+import java.io.IOException;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 /**
  * <p>Executes an hg external command synchronously or asynchronously with the consequent call of {@link HgCommandResultHandler}</p>
@@ -64,6 +70,8 @@ public class HgCommandExecutor {
   private boolean myIsBinary = false;
 
   private boolean myOutputAlwaysSuppressed = false;    //for command with enormous output, like log or cat
+  @Nullable private HgCommandPriority myPriority;      // null means the default priority of the operation
+  @Nullable private HgCommandCoalescer.InFlight<?> myInFlight; // notified when the process of a shared command is started
 
   public HgCommandExecutor(Project project) {
     this(project, null);
@@ -82,6 +90,16 @@ public class HgCommandExecutor {
     }
   }
 
+  /**
+   * @return the charset the next command will be run with, which files with arguments for it must be written in;
+   * it is UTF-8 instead of the default one if the hg executable is known to reject the default one
+   */
+  @Nonnull
+  public Charset getCharset() {
+    useUtf8IfEncodingRejected();
+    return myCharset;
+  }
+
   public void setSilent(boolean isSilent) {
     myIsSilent = isSilent;
   }
@@ -98,12 +116,22 @@ public class HgCommandExecutor {
     myOutputAlwaysSuppressed = outputAlwaysSuppressed;
   }
 
+  /**
+   * Overrides the {@link HgCommandPriority#forOperation default priority} of the commands run by this executor.
+   */
+  public void setPriority(@Nullable HgCommandPriority priority) {
+    myPriority = priority;
+  }
+
   public void execute(@Nullable final VirtualFile repo, @Nonnull final String operation, @Nullable final List<String> arguments,
                       @Nullable final HgCommandResultHandler handler) {
+    final HgCommandSubsystem subsystem = HgCommandSubsystem.getCurrent();
     Task.Backgroundable.queue(myProject, operation, indicator -> {
-      HgCommandResult result = executeInCurrentThread(repo, operation, arguments);
-      if (handler != null) {
-        handler.process(result);
+      try (HgCommandSubsystem.Scope ignored = subsystem.enter()) {
+        HgCommandResult result = executeInCurrentThread(repo, operation, arguments);
+        if (handler != null) {
+          handler.process(result);
+        }
       }
     });
   }
@@ -111,26 +139,132 @@ public class HgCommandExecutor {
   public HgCommandResult executeInCurrentThread(@Nullable final VirtualFile repo,
                                                 @Nonnull final String operation,
                                                 @Nullable final List<String> arguments) {
-    HgCommandResult result = executeInCurrentThreadAndLog(repo, operation, arguments);
+    if (repo == null || myIsBinary || myInFlight != null || !isCommandServerAllowed() ||
+        !HgCommandCoalescer.isCoalescable(operation, arguments)) {
+      return executeInCurrentThread(repo, operation, arguments, null);
+    }
+    String key = myCharset.name() + '\0' + operation + '\0' + (arguments == null ? "" : StringUtil.join(arguments, "\0"));
+    return myVcs.getCommandCoalescer().execute(repo.getPath(), operation, arguments, key,
+                                               ProgressManager.getInstance().getProgressIndicator(),
+                                               result -> result != HgCommandResult.CANCELLED,
+                                               inFlight -> {
+                                                 setInFlight(inFlight);
+                                                 try {
+                                                   return executeInCurrentThread(repo, operation, arguments, null);
+                                                 }
+                                                 finally {
+                                                   setInFlight(null);
+                                                 }
+                                               });
+  }
+
+  /**
+   * Used when the result of a command is shared via the {@link HgCommandCoalescer} by a caller, which runs the command itself.
+   */
+  public void setInFlight(@Nullable HgCommandCoalescer.InFlight<?> inFlight) {
+    myInFlight = inFlight;
+  }
+
+  /**
+   * Executes the command and passes its output to the consumer record by record as it is produced, so the whole output is never kept
+   * in memory. Records are separated by the given character, e.g. by {@link org.zmlx.hg4idea.util.HgChangesetUtil#CHANGESET_SEPARATOR}
+   * or by a newline. The consumer is called in the current thread; while it is busy, hg output is not read.
+   *
+   * @return the result with exit code and errors only, its stdout is always empty
+   */
+  @Nullable
+  public HgCommandResult executeStreaming(@Nullable final VirtualFile repo,
+                                          @Nonnull final String operation,
+                                          @Nullable final List<String> arguments,
+                                          char separator,
+                                          @Nonnull HgOutputRecordConsumer consumer) {
+    return executeInCurrentThread(repo, operation, arguments, new StreamingOutput(separator, consumer));
+  }
+
+  @Nullable
+  private HgCommandResult executeInCurrentThread(@Nullable final VirtualFile repo,
+                                                 @Nonnull final String operation,
+                                                 @Nullable final List<String> arguments,
+                                                 @Nullable StreamingOutput streamingOutput) {
+    useUtf8IfEncodingRejected();
+    String executable = myVcs != null ? myVcs.getGlobalSettings().getHgExecutable() : null;
+    HgCommandResult result = executeInCurrentThreadAndLog(repo, operation, arguments, streamingOutput);
     if (HgErrorUtil.isUnknownEncodingError(result)) {
-      setCharset(Charset.forName("utf8"));
-      result = executeInCurrentThreadAndLog(repo, operation, arguments);
+      if (executable != null) {
+        myVcs.getGlobalSettings().rememberRejectedEncoding(executable, myCharset);
+      }
+      setCharset(StandardCharsets.UTF_8);
+      result = executeInCurrentThreadAndLog(repo, operation, arguments, streamingOutput);
     }
     return result;
   }
 
+  /**
+   * hg which is known to reject the encoding is called with utf8 at once, instead of failing and re-running the command.
+   */
+  private void useUtf8IfEncodingRejected() {
+    String executable = myVcs != null ? myVcs.getGlobalSettings().getHgExecutable() : null;
+    if (executable != null && myVcs.getGlobalSettings().isEncodingRejected(executable, myCharset)) {
+      setCharset(StandardCharsets.UTF_8);
+    }
+  }
+
   @Nullable
   private HgCommandResult executeInCurrentThreadAndLog(@Nullable final VirtualFile repo,
                                                        @Nonnull final String operation,
-                                                       @Nullable final List<String> arguments) {
+                                                       @Nullable final List<String> arguments,
+                                                       @Nullable StreamingOutput streamingOutput) {
     if (myProject == null || myProject.isDisposed() || myVcs == null) return null;
 
-    ShellCommand shellCommand = createShellCommandWithArgs(repo, operation, arguments);
+    logCommand(operation, arguments);
+    HgCommandScheduler scheduler = myVcs.getCommandScheduler();
+    HgCommandScheduler.Permit permit = null;
+    Execution execution = new Execution();
+    HgCommandEvent event = new HgCommandEvent();
+    event.begin();
+    HgCommandResult result = null;
     try {
-      long startTime = System.currentTimeMillis();
+      if (repo != null) {
+        HgCommandPriority priority = myPriority != null ? myPriority : HgCommandPriority.forOperation(operation);
+        permit = scheduler.acquire(repo.getPath(), priority, ProgressManager.getInstance().getProgressIndicator());
+        if (permit == null) {
+          result = HgCommandResult.CANCELLED;
+          return result;
+        }
+      }
+      execution.myQueueWaitNanos = System.nanoTime() - execution.myStartNanos;
+      if (myInFlight != null) {
+        myInFlight.markStarted();
+      }
+      if (streamingOutput != null) {
+        StreamingOutput original = streamingOutput;
+        HgCommandScheduler.Permit runningPermit = permit;
+        streamingOutput = new StreamingOutput(original.mySeparator, record -> {
+          execution.myStdoutSize += record.length() + 1;
+          if (runningPermit == null) {
+            return original.myConsumer.consume(record);
+          }
+          // the consumer may run commands of the same root itself, see HgCommandScheduler#suspend
+          scheduler.suspend(runningPermit);
+          try {
+            return original.myConsumer.consume(record);
+          }
+          finally {
+            scheduler.resume(runningPermit);
+          }
+        });
+      }
       LOG.debug(String.format("hg %s started", operation));
-      HgCommandResult result = shellCommand.execute(myShowOutput, myIsBinary);
-      LOG.debug(String.format("hg %s finished. Took %s ms", operation, System.currentTimeMillis() - startTime));
+      result = executeInCommandServer(repo, operation, arguments, streamingOutput, execution);
+      if (result == null) {
+        ShellCommand shellCommand = createShellCommandWithArgs(repo, operation, arguments);
+        result = streamingOutput != null
+                 ? shellCommand.executeStreaming(streamingOutput.mySeparator, streamingOutput.myConsumer)
+                 : shellCommand.execute(myShowOutput, myIsBinary);
+        execution.mySpawnNanos = shellCommand.getSpawnNanos();
+      }
+      LOG.debug(String.format("hg %s finished. Took %s ms", operation,
+                              TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - execution.myStartNanos)));
       logResult(result);
       return result;
     }
@@ -142,6 +276,48 @@ public class HgCommandExecutor {
       LOG.info(e.getMessage(), e);
       return null;
     }
+    finally {
+      if (permit != null) {
+        scheduler.release(permit);
+        if (!HgCommandCoalescer.isReadOnly(operation, arguments)) {
+          // don't let the next callers share results read before the change, the repository updater would notice it too late
+          myVcs.getCommandCoalescer().invalidate(repo.getPath());
+        }
+      }
+      recordExecution(repo, operation, execution, result, event);
+    }
+  }
+
+  private void recordExecution(@Nullable VirtualFile repo,
+                               @Nonnull String operation,
+                               @Nonnull Execution execution,
+                               @Nullable HgCommandResult result,
+                               @Nonnull HgCommandEvent event) {
+    long wallNanos = System.nanoTime() - execution.myStartNanos;
+    HgCommandSubsystem subsystem = HgCommandSubsystem.getCurrent();
+    long stdoutSize = execution.myStdoutSize;
+    long stderrSize = 0;
+    int exitCode = -1;
+    if (result != null) {
+      stdoutSize += result.getRawOutput().length() + result.getBytesOutput().length;
+      stderrSize = result.getRawError().length();
+      exitCode = result.getExitValue();
+    }
+    myVcs.getCommandStatistics().record(operation, subsystem, execution.myQueueWaitNanos, execution.mySpawnNanos, wallNanos,
+                                        stdoutSize, stderrSize, exitCode);
+    event.end();
+    if (event.shouldCommit()) {
+      event.operation = operation;
+      event.subsystem = subsystem.name();
+      event.repository = repo != null ? repo.getPath() : null;
+      event.commandServer = execution.myCommandServer;
+      event.queueWait = execution.myQueueWaitNanos;
+      event.spawnTime = execution.mySpawnNanos;
+      event.stdoutSize = stdoutSize;
+      event.stderrSize = stderrSize;
+      event.exitCode = exitCode;
+      event.commit();
+    }
   }
 
   private void processError(@Nonnull ShellCommandException e) {
@@ -152,11 +328,64 @@ public class HgCommandExecutor {
     }
   }
 
-  @Nonnull
-  private ShellCommand createShellCommandWithArgs(@Nullable VirtualFile repo, @Nonnull String operation, @Nullable List<String> arguments) {
+  /**
+   * Runs the command in a pooled command server process, if it is enabled and possible for this command.
+   *
+   * @return null if the command should be executed in a separate process instead
+   */
+  @Nullable
+  private HgCommandResult executeInCommandServer(@Nullable VirtualFile repo,
+                                                 @Nonnull String operation,
+                                                 @Nullable List<String> arguments,
+                                                 @Nullable StreamingOutput streamingOutput,
+                                                 @Nonnull Execution execution) {
+    HgCommandServerPool pool = myVcs.getCommandServerPool();
+    if (repo == null || pool == null || !isCommandServerAllowed() || !myVcs.getGlobalSettings().isCommandServerEnabled()) {
+      return null;
+    }
+    long acquireStart = System.nanoTime();
+    HgCommandServer server = pool.acquire(repo.getPath(), myCharset);
+    if (server == null) {
+      return null;
+    }
+    execution.mySpawnNanos = System.nanoTime() - acquireStart;
+    execution.myCommandServer = true;
+    try {
+      List<String> serverArgs = new ArrayList<>(DEFAULT_OPTIONS);
+      serverArgs.add(operation);
+      if (arguments != null) {
+        serverArgs.addAll(arguments);
+      }
+      HgOutputSplitter splitter =
+        streamingOutput != null ? new HgOutputSplitter(streamingOutput.mySeparator, streamingOutput.myConsumer) : null;
+      return server.execute(serverArgs, myIsBinary, myShowOutput, splitter, ProgressManager.getInstance().getProgressIndicator());
+    }
+    catch (HgCommandServer.CommandNotStartedException e) {
+      LOG.info("hg command server is not available, running hg " + operation + " in a separate process", e);
+      server.close();
+      return null;
+    }
+    catch (IOException e) {
+      LOG.info("hg command server failed during hg " + operation, e);
+      server.close();
+      ProcessOutput output = new ProcessOutput(255);
+      output.appendStderr(e.getMessage());
+      return new HgCommandResult(output);
+    }
+    finally {
+      pool.release(repo.getPath(), server);
+    }
+  }
 
-    logCommand(operation, arguments);
+  /**
+   * Commands which need prompts or authentication via the socket-based python extension, can't be run in the shared command server.
+   */
+  protected boolean isCommandServerAllowed() {
+    return true;
+  }
 
+  @Nonnull
+  private ShellCommand createShellCommandWithArgs(@Nullable VirtualFile repo, @Nonnull String operation, @Nullable List<String> arguments) {
     final List<String> cmdLine = new LinkedList<>();
     cmdLine.add(myVcs.getGlobalSettings().getHgExecutable());
     if (repo != null) {
@@ -245,6 +474,28 @@ public class HgCommandExecutor {
     }
   }
 
+  /**
+   * Timings and sizes of one command execution, collected for {@link HgCommandStatistics}.
+   */
+  private static final class Execution {
+    private final long myStartNanos = System.nanoTime();
+    private long myQueueWaitNanos;
+    private long mySpawnNanos;
+    private long myStdoutSize;
+    private boolean myCommandServer;
+  }
+
+  private static final class StreamingOutput {
+    private final char mySeparator;
+    @Nonnull
+    private final HgOutputRecordConsumer myConsumer;
+
+    private StreamingOutput(char separator, @Nonnull HgOutputRecordConsumer consumer) {
+      mySeparator = separator;
+      myConsumer = consumer;
+    }
+  }
+
   protected void showError(Exception e) {
     final HgVcs vcs = HgVcs.getInstance(myProject);
     if (vcs == null) return;
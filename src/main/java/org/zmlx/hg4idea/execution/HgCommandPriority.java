@@ -0,0 +1,54 @@
+/*
+ * Copyright 2013-2025 consulo.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zmlx.hg4idea.execution;
+
+import jakarta.annotation.Nonnull;
+
+/**
+ * Priority class of an hg command in the {@link HgCommandScheduler}, in descending order of priority.
+ */
+public enum HgCommandPriority {
+  /**
+   * The user waits for the result, e.g. file content or annotations for an open editor.
+   */
+  INTERACTIVE,
+  /**
+   * Refresh of the working copy and repository state, e.g. status or branches.
+   */
+  REFRESH,
+  /**
+   * Periodic or long work nobody waits for, e.g. incoming/outgoing checks or the ignored files rescan.
+   * Background commands never take the last free process slot of a repository.
+   */
+  BACKGROUND;
+
+  /**
+   * @return the priority used for the operation if the caller didn't specify it explicitly
+   */
+  @Nonnull
+  public static HgCommandPriority forOperation(@Nonnull String operation) {
+    switch (operation) {
+      case "cat":
+      case "annotate":
+        return INTERACTIVE;
+      case "incoming":
+      case "outgoing":
+        return BACKGROUND;
+      default:
+        return REFRESH;
+    }
+  }
+}
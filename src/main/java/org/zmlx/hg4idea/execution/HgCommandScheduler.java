@@ -0,0 +1,274 @@
+/*
+ * Copyright 2013-2025 consulo.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zmlx.hg4idea.execution;
+
+import consulo.application.progress.ProgressIndicator;
+import consulo.logging.Logger;
+import jakarta.annotation.Nonnull;
+import jakarta.annotation.Nullable;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>Decides when an hg command of a project may start its process.</p>
+ * <p>Commands of one repository root run at most {@link #MAX_PROCESSES_PER_ROOT} at once, non-interactive commands of all roots
+ * are limited by {@link #MAX_PROCESSES}, and background commands may use only a half of it and never the last slot of a root.
+ * Waiting commands are started by priority; within a priority the root which was served least recently goes first,
+ * so one busy root can't starve the others; commands of the same root and priority start in arrival order.</p>
+ */
+public final class HgCommandScheduler {
+  private static final Logger LOG = Logger.getInstance(HgCommandScheduler.class);
+
+  private static final int MAX_PROCESSES_PER_ROOT = 3;
+  private static final int MAX_PROCESSES = Math.max(4, Runtime.getRuntime().availableProcessors());
+  private static final int MAX_BACKGROUND_PROCESSES = Math.max(1, MAX_PROCESSES / 2);
+  private static final long SLOW_WAIT_MS = 1000;
+
+  private final Object myLock = new Object();
+  private final List<Permit> myWaiting = new ArrayList<>();
+  private final Map<String, RootState> myRoots = new HashMap<>();
+  private final int[] myRunning = new int[HgCommandPriority.values().length];
+  private long myServedCount;
+
+  // statistics per priority
+  private final int[] myMaxQueueDepth = new int[HgCommandPriority.values().length];
+  private final long[] myStartedCount = new long[HgCommandPriority.values().length];
+  private final long[] myTotalWaitNanos = new long[HgCommandPriority.values().length];
+  private final long[] myMaxWaitNanos = new long[HgCommandPriority.values().length];
+
+  /**
+   * Waits until the command may be started.
+   *
+   * @param indicator the indicator checked for cancellation while waiting
+   * @return the permit which must be given back via {@link #release}, or null if the command was cancelled while waiting
+   */
+  @Nullable
+  Permit acquire(@Nonnull String root, @Nonnull HgCommandPriority priority, @Nullable ProgressIndicator indicator)
+    throws InterruptedException {
+    Permit permit = new Permit(root, priority);
+    synchronized (myLock) {
+      myWaiting.add(permit);
+      int ordinal = priority.ordinal();
+      myMaxQueueDepth[ordinal] = Math.max(myMaxQueueDepth[ordinal], getQueueDepthLocked(priority));
+      dispatch();
+    }
+    // the lock is woken up by a release or by the cancellation, there is no need to wake up periodically
+    Runnable stopWatching = HgCancellationWatcher.watch(indicator, () -> {
+      synchronized (myLock) {
+        myLock.notifyAll();
+      }
+    });
+    try {
+      synchronized (myLock) {
+        try {
+          while (!permit.myStarted) {
+            if (indicator != null && indicator.isCanceled()) {
+              myWaiting.remove(permit);
+              return null;
+            }
+            myLock.wait();
+          }
+        }
+        catch (InterruptedException e) {
+          if (permit.myStarted) {
+            releaseLocked(permit);
+          }
+          else {
+            myWaiting.remove(permit);
+          }
+          throw e;
+        }
+      }
+    }
+    finally {
+      stopWatching.run();
+    }
+    long waitMs = TimeUnit.NANOSECONDS.toMillis(permit.myStartNanos - permit.myEnqueueNanos);
+    if (waitMs > SLOW_WAIT_MS) {
+      LOG.debug(String.format("%s hg command in %s waited %s ms to start", priority, root, waitMs));
+    }
+    return permit;
+  }
+
+  void release(@Nonnull Permit permit) {
+    synchronized (myLock) {
+      releaseLocked(permit);
+    }
+  }
+
+  /**
+   * Stops counting the running command against the limits while it calls back user code, e.g. a consumer of the streamed output.
+   * Such code may run other commands of the same root and wait for them; if the commands calling it back took all slots of the root,
+   * they would wait for each other forever. The command is counted again by {@link #resume}, which never waits, so the limits
+   * may be exceeded for a short time.
+   */
+  void suspend(@Nonnull Permit permit) {
+    synchronized (myLock) {
+      myRunning[permit.myPriority.ordinal()]--;
+      myRoots.get(permit.myRoot).myRunning--;
+      if (!myWaiting.isEmpty()) {
+        dispatch();
+      }
+    }
+  }
+
+  void resume(@Nonnull Permit permit) {
+    synchronized (myLock) {
+      myRunning[permit.myPriority.ordinal()]++;
+      myRoots.get(permit.myRoot).myRunning++;
+    }
+  }
+
+  private void releaseLocked(@Nonnull Permit permit) {
+    myRunning[permit.myPriority.ordinal()]--;
+    // the state is kept for idle roots too: otherwise a root which has just been served would look never served
+    myRoots.get(permit.myRoot).myRunning--;
+    dispatch();
+  }
+
+  private void dispatch() {
+    boolean started = false;
+    while (true) {
+      Permit next = null;
+      for (Permit candidate : myWaiting) {
+        if (!canStart(candidate)) {
+          continue;
+        }
+        if (next == null ||
+            candidate.myPriority.compareTo(next.myPriority) < 0 ||
+            candidate.myPriority == next.myPriority && getLastServed(candidate.myRoot) < getLastServed(next.myRoot)) {
+          next = candidate;
+        }
+      }
+      if (next == null) {
+        break;
+      }
+      start(next);
+      started = true;
+    }
+    if (started) {
+      myLock.notifyAll();
+    }
+  }
+
+  private void start(@Nonnull Permit permit) {
+    myWaiting.remove(permit);
+    permit.myStarted = true;
+    permit.myStartNanos = System.nanoTime();
+    RootState state = myRoots.computeIfAbsent(permit.myRoot, root -> new RootState());
+    state.myRunning++;
+    state.myLastServed = ++myServedCount;
+
+    int ordinal = permit.myPriority.ordinal();
+    myRunning[ordinal]++;
+    myStartedCount[ordinal]++;
+    long wait = permit.myStartNanos - permit.myEnqueueNanos;
+    myTotalWaitNanos[ordinal] += wait;
+    myMaxWaitNanos[ordinal] = Math.max(myMaxWaitNanos[ordinal], wait);
+  }
+
+  private boolean canStart(@Nonnull Permit permit) {
+    RootState state = myRoots.get(permit.myRoot);
+    int runningInRoot = state == null ? 0 : state.myRunning;
+    int nonInteractive = myRunning[HgCommandPriority.REFRESH.ordinal()] + myRunning[HgCommandPriority.BACKGROUND.ordinal()];
+    switch (permit.myPriority) {
+      case INTERACTIVE:
+        return runningInRoot < MAX_PROCESSES_PER_ROOT;
+      case REFRESH:
+        return runningInRoot < MAX_PROCESSES_PER_ROOT && nonInteractive < MAX_PROCESSES;
+      default:
+        return runningInRoot < MAX_PROCESSES_PER_ROOT - 1 &&
+               nonInteractive < MAX_PROCESSES &&
+               myRunning[HgCommandPriority.BACKGROUND.ordinal()] < MAX_BACKGROUND_PROCESSES;
+    }
+  }
+
+  private long getLastServed(@Nonnull String root) {
+    RootState state = myRoots.get(root);
+    return state == null ? 0 : state.myLastServed;
+  }
+
+  private int getQueueDepthLocked(@Nonnull HgCommandPriority priority) {
+    int depth = 0;
+    for (Permit permit : myWaiting) {
+      if (permit.myPriority == priority) {
+        depth++;
+      }
+    }
+    return depth;
+  }
+
+  /**
+   * @return number of commands of the given priority waiting to be started now
+   */
+  public int getQueueDepth(@Nonnull HgCommandPriority priority) {
+    synchronized (myLock) {
+      return getQueueDepthLocked(priority);
+    }
+  }
+
+  public int getMaxQueueDepth(@Nonnull HgCommandPriority priority) {
+    synchronized (myLock) {
+      return myMaxQueueDepth[priority.ordinal()];
+    }
+  }
+
+  public int getRunningCount(@Nonnull HgCommandPriority priority) {
+    synchronized (myLock) {
+      return myRunning[priority.ordinal()];
+    }
+  }
+
+  public long getStartedCount(@Nonnull HgCommandPriority priority) {
+    synchronized (myLock) {
+      return myStartedCount[priority.ordinal()];
+    }
+  }
+
+  public long getAverageWaitMillis(@Nonnull HgCommandPriority priority) {
+    synchronized (myLock) {
+      long started = myStartedCount[priority.ordinal()];
+      return started == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(myTotalWaitNanos[priority.ordinal()] / started);
+    }
+  }
+
+  public long getMaxWaitMillis(@Nonnull HgCommandPriority priority) {
+    synchronized (myLock) {
+      return TimeUnit.NANOSECONDS.toMillis(myMaxWaitNanos[priority.ordinal()]);
+    }
+  }
+
+  static final class Permit {
+    @Nonnull
+    private final String myRoot;
+    @Nonnull
+    private final HgCommandPriority myPriority;
+    private final long myEnqueueNanos = System.nanoTime();
+    private long myStartNanos;
+    private boolean myStarted;
+
+    private Permit(@Nonnull String root, @Nonnull HgCommandPriority priority) {
+      myRoot = root;
+      myPriority = priority;
+    }
+  }
+
+  private static final class RootState {
+    private int myRunning;
+    private long myLastServed;
+  }
+}
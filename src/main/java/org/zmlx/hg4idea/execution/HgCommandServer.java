@@ -0,0 +1,334 @@
+/*
+ * Copyright 2013-2025 consulo.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zmlx.hg4idea.execution;
+
+import consulo.application.ApplicationManager;
+import consulo.application.progress.ProgressIndicator;
+import consulo.logging.Logger;
+import consulo.process.util.ProcessOutput;
+import consulo.versionControlSystem.VcsLocaleHelper;
+import jakarta.annotation.Nonnull;
+import jakarta.annotation.Nullable;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>A single long-lived {@code hg serve --cmdserver pipe} process bound to one repository.</p>
+ * <p>Speaks the Mercurial command server channel protocol: every message from the server is a channel byte followed by
+ * a big-endian 32-bit length and the payload; a command is sent as {@code runcommand\n} followed by the length-prefixed,
+ * NUL-separated argument list. The instance is not thread-safe, {@link HgCommandServerPool} hands it out to one caller at a time.</p>
+ */
+final class HgCommandServer {
+  private static final Logger LOG = Logger.getInstance(HgCommandServer.class);
+
+  private static final char OUTPUT_CHANNEL = 'o';
+  private static final char ERROR_CHANNEL = 'e';
+  private static final char RESULT_CHANNEL = 'r';
+  private static final char DEBUG_CHANNEL = 'd';
+  private static final char INPUT_CHANNEL = 'I';
+  private static final char LINE_INPUT_CHANNEL = 'L';
+
+  private static final String RUN_COMMAND = "runcommand\n";
+
+  @Nonnull
+  private final Process myProcess;
+  @Nonnull
+  private final DataInputStream myInput;
+  @Nonnull
+  private final DataOutputStream myOutput;
+  @Nonnull
+  private final Charset myCharset;
+  private volatile long myLastUsed = System.currentTimeMillis();
+  private volatile boolean myClosed;
+
+  private HgCommandServer(@Nonnull Process process, @Nonnull Charset charset) {
+    myProcess = process;
+    myCharset = charset;
+    myInput = new DataInputStream(new BufferedInputStream(process.getInputStream()));
+    myOutput = new DataOutputStream(new BufferedOutputStream(process.getOutputStream()));
+  }
+
+  /**
+   * Starts the server and reads its hello message.
+   *
+   * @param serverCommandLine full command line, i.e. executable, global options and {@code serve --cmdserver pipe}
+   */
+  @Nonnull
+  static HgCommandServer start(@Nonnull List<String> serverCommandLine, @Nonnull String workingDir, @Nonnull Charset charset)
+    throws IOException {
+    ProcessBuilder builder = new ProcessBuilder(serverCommandLine);
+    builder.directory(new File(workingDir));
+    builder.environment().putAll(VcsLocaleHelper.getDefaultLocaleEnvironmentVars("hg"));
+    if (ApplicationManager.getApplication().isUnitTestMode()) {
+      //ignore all hg config files except current repository config
+      builder.environment().put("HGRCPATH", "");
+    }
+    Process process = builder.start();
+    drainErrorStream(process, workingDir);
+    HgCommandServer server = new HgCommandServer(process, charset);
+    try {
+      server.readHello();
+    }
+    catch (IOException e) {
+      server.close();
+      throw e;
+    }
+    return server;
+  }
+
+  /**
+   * Errors of commands come via the error channel, the process stderr only gets messages of the server itself, e.g. tracebacks.
+   * It must be read all the time, otherwise the server blocks as soon as the pipe buffer is full.
+   */
+  private static void drainErrorStream(@Nonnull Process process, @Nonnull String workingDir) {
+    Thread thread = new Thread(() -> {
+      try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getErrorStream()))) {
+        String line;
+        while ((line = reader.readLine()) != null) {
+          LOG.info("hg command server for " + workingDir + ": " + line);
+        }
+      }
+      catch (IOException e) {
+        LOG.debug(e);
+      }
+    }, "Hg command server stderr reader");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  private void readHello() throws IOException {
+    int channel = myInput.read();
+    if (channel != OUTPUT_CHANNEL) {
+      throw new IOException("Unexpected command server hello on channel " + channel);
+    }
+    String hello = new String(readBlock(myInput.readInt()), myCharset);
+    if (!hello.contains("runcommand")) {
+      throw new IOException("Command server doesn't support runcommand: " + hello);
+    }
+  }
+
+  /**
+   * Runs one hg command in the server process.
+   *
+   * @param arguments operation with its arguments, global options which may be changed per command included
+   * @param indicator the indicator to check for cancellation, the server is killed on cancel
+   */
+  @Nonnull
+  HgCommandResult execute(@Nonnull List<String> arguments, boolean isBinary, @Nullable ProgressIndicator indicator)
+    throws IOException {
+    return execute(arguments, isBinary, false, null, indicator);
+  }
+
+  /**
+   * @param showTextOnIndicator whether to show stdout lines on the indicator as they come, like {@link ShellCommand#execute} does
+   * @param splitter            if not null, stdout is passed to it as soon as it is received instead of being collected;
+   *                            if the consumer stops the processing, the server is closed, because a running command can't be interrupted
+   */
+  @Nonnull
+  HgCommandResult execute(@Nonnull List<String> arguments,
+                          boolean isBinary,
+                          boolean showTextOnIndicator,
+                          @Nullable HgOutputSplitter splitter,
+                          @Nullable ProgressIndicator indicator) throws IOException {
+    myLastUsed = System.currentTimeMillis();
+    try {
+      sendCommand(arguments);
+    }
+    catch (IOException e) {
+      throw new CommandNotStartedException(e);
+    }
+
+    // a blocking read can't check the indicator, so the server is killed on cancel and the read fails
+    Runnable stopWatching = HgCancellationWatcher.watch(indicator, this::close);
+    try {
+      return readResult(isBinary, showTextOnIndicator && !isBinary && splitter == null, splitter, indicator);
+    }
+    catch (IOException e) {
+      if (indicator != null && indicator.isCanceled()) {
+        return new HgCommandResult(new ProcessOutput(255));
+      }
+      throw e;
+    }
+    finally {
+      stopWatching.run();
+    }
+  }
+
+  @Nonnull
+  private HgCommandResult readResult(boolean isBinary,
+                                     boolean showTextOnIndicator,
+                                     @Nullable HgOutputSplitter splitter,
+                                     @Nullable ProgressIndicator indicator) throws IOException {
+    ByteArrayOutputStream stdout = new ByteArrayOutputStream();
+    ByteArrayOutputStream stderr = new ByteArrayOutputStream();
+    while (true) {
+      if (indicator != null && indicator.isCanceled()) {
+        close();
+        ProcessOutput output = new ProcessOutput(255);
+        output.appendStderr(stderr.toString(myCharset.name()));
+        return new HgCommandResult(output);
+      }
+      int channel = myInput.read();
+      if (channel < 0) {
+        throw new EOFException("Command server terminated unexpectedly");
+      }
+      int length = myInput.readInt();
+      switch (channel) {
+        case OUTPUT_CHANNEL:
+          byte[] block = readBlock(length);
+          stdout.write(block);
+          if (showTextOnIndicator && indicator != null) {
+            showLastLine(block, indicator);
+          }
+          if (splitter != null && !feedCompleteRecords(stdout, splitter)) {
+            close();
+            return createResult(new ByteArrayOutputStream(), stderr, 0, false);
+          }
+          break;
+        case ERROR_CHANNEL:
+          stderr.write(readBlock(length));
+          break;
+        case DEBUG_CHANNEL:
+          readBlock(length);
+          break;
+        case INPUT_CHANNEL:
+        case LINE_INPUT_CHANNEL:
+          // nobody can answer: report end of input, prompting commands must be run via a one-shot process
+          myOutput.writeInt(0);
+          myOutput.flush();
+          break;
+        case RESULT_CHANNEL:
+          int exitCode = new DataInputStream(new ByteArrayInputStream(readBlock(length))).readInt();
+          myLastUsed = System.currentTimeMillis();
+          if (splitter != null) {
+            splitter.feed(stdout.toString(myCharset.name()));
+            splitter.finish();
+            stdout.reset();
+          }
+          return createResult(stdout, stderr, exitCode, isBinary);
+        default:
+          if (Character.isUpperCase(channel)) {
+            close();
+            throw new IOException("Unsupported required command server channel " + (char)channel);
+          }
+          readBlock(length);
+      }
+    }
+  }
+
+  private void showLastLine(@Nonnull byte[] block, @Nonnull ProgressIndicator indicator) {
+    String text = new String(block, myCharset).trim();
+    if (!text.isEmpty()) {
+      indicator.setText2(text.substring(text.lastIndexOf('\n') + 1));
+    }
+  }
+
+  @Nonnull
+  private HgCommandResult createResult(@Nonnull ByteArrayOutputStream stdout,
+                                       @Nonnull ByteArrayOutputStream stderr,
+                                       int exitCode,
+                                       boolean isBinary) throws UnsupportedEncodingException {
+    ProcessOutput output = new ProcessOutput(exitCode);
+    output.appendStderr(stderr.toString(myCharset.name()));
+    if (isBinary) {
+      return new HgCommandResult(output, stdout.toByteArray());
+    }
+    output.appendStdout(stdout.toString(myCharset.name()));
+    return new HgCommandResult(output);
+  }
+
+  /**
+   * Decodes and passes to the splitter the buffered output up to the last record separator, the incomplete tail stays in the buffer.
+   * Separators are ASCII characters, so a multi-byte character is never cut.
+   */
+  private boolean feedCompleteRecords(@Nonnull ByteArrayOutputStream stdout, @Nonnull HgOutputSplitter splitter) throws IOException {
+    byte[] data = stdout.toByteArray();
+    int end = data.length - 1;
+    while (end >= 0 && data[end] != splitter.getSeparator()) {
+      end--;
+    }
+    if (end < 0) {
+      return true;
+    }
+    stdout.reset();
+    stdout.write(data, end + 1, data.length - end - 1);
+    return splitter.feed(new String(data, 0, end + 1, myCharset));
+  }
+
+  private void sendCommand(@Nonnull List<String> arguments) throws IOException {
+    List<byte[]> encoded = new ArrayList<>(arguments.size());
+    int length = 0;
+    for (String argument : arguments) {
+      byte[] bytes = argument.getBytes(myCharset);
+      encoded.add(bytes);
+      length += bytes.length;
+    }
+    length += Math.max(0, arguments.size() - 1);
+
+    myOutput.write(RUN_COMMAND.getBytes(myCharset));
+    myOutput.writeInt(length);
+    for (int i = 0; i < encoded.size(); i++) {
+      if (i > 0) {
+        myOutput.write(0);
+      }
+      myOutput.write(encoded.get(i));
+    }
+    myOutput.flush();
+  }
+
+  @Nonnull
+  private byte[] readBlock(int length) throws IOException {
+    byte[] data = new byte[length];
+    myInput.readFully(data);
+    return data;
+  }
+
+  /**
+   * Thrown if the server died before it received the command, so the command may be safely re-run in a separate process.
+   */
+  static final class CommandNotStartedException extends IOException {
+    CommandNotStartedException(@Nonnull IOException cause) {
+      super(cause);
+    }
+  }
+
+  @Nonnull
+  Charset getCharset() {
+    return myCharset;
+  }
+
+  long getLastUsed() {
+    return myLastUsed;
+  }
+
+  boolean isAlive() {
+    return !myClosed && myProcess.isAlive();
+  }
+
+  void close() {
+    myClosed = true;
+    try {
+      myOutput.close();
+    }
+    catch (IOException e) {
+      LOG.debug(e);
+    }
+    myProcess.destroy();
+  }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright 2013-2025 consulo.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zmlx.hg4idea.execution;
+
+import consulo.logging.Logger;
+import jakarta.annotation.Nonnull;
+import jakarta.annotation.Nullable;
+import org.zmlx.hg4idea.HgVcs;
+import org.zmlx.hg4idea.util.HgEncodingUtil;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.*;
+
+/**
+ * <p>Keeps a small number of long-lived {@link HgCommandServer command server} processes per repository,
+ * so that short read-only commands don't pay the interpreter and extension startup on each call.</p>
+ * <p>If all servers of a repository are busy, {@link #acquire} returns {@code null} and the caller falls back to a one-shot process.</p>
+ */
+public final class HgCommandServerPool {
+  private static final Logger LOG = Logger.getInstance(HgCommandServerPool.class);
+
+  private static final int MAX_SERVERS_PER_ROOT = 2;
+  private static final long IDLE_TIMEOUT_MS = 5 * 60 * 1000;
+
+  @Nonnull
+  private final HgVcs myVcs;
+  private final Map<String, Deque<HgCommandServer>> myIdleServers = new HashMap<>();
+  private final Map<String, Integer> myServerCounts = new HashMap<>();
+  private boolean myDisposed;
+
+  public HgCommandServerPool(@Nonnull HgVcs vcs) {
+    myVcs = vcs;
+  }
+
+  /**
+   * @return an exclusively owned server for the given repository, or null if the pool is exhausted or the server couldn't be started.
+   * The server must be given back via {@link #release}.
+   */
+  @Nullable
+  HgCommandServer acquire(@Nonnull String repoPath, @Nonnull Charset charset) {
+    String key = key(repoPath, charset);
+    synchronized (this) {
+      if (myDisposed) {
+        return null;
+      }
+      closeExpiredServers();
+      Deque<HgCommandServer> idle = myIdleServers.get(key);
+      while (idle != null && !idle.isEmpty()) {
+        HgCommandServer server = idle.pollFirst();
+        if (server.isAlive()) {
+          return server;
+        }
+        decrementCount(key);
+      }
+      int count = myServerCounts.getOrDefault(key, 0);
+      if (count >= MAX_SERVERS_PER_ROOT) {
+        return null;
+      }
+      myServerCounts.put(key, count + 1);
+    }
+
+    try {
+      return HgCommandServer.start(createServerCommandLine(repoPath, charset), repoPath, charset);
+    }
+    catch (IOException e) {
+      LOG.info("Couldn't start hg command server for " + repoPath, e);
+      synchronized (this) {
+        decrementCount(key);
+      }
+      return null;
+    }
+  }
+
+  void release(@Nonnull String repoPath, @Nonnull HgCommandServer server) {
+    String key = key(repoPath, server.getCharset());
+    synchronized (this) {
+      if (!myDisposed && server.isAlive()) {
+        myIdleServers.computeIfAbsent(key, k -> new ArrayDeque<>()).addFirst(server);
+        return;
+      }
+      decrementCount(key);
+    }
+    server.close();
+  }
+
+  /**
+   * Stops all idle servers; servers which are busy now are stopped on release.
+   */
+  public void dispose() {
+    List<HgCommandServer> toClose = new ArrayList<>();
+    synchronized (this) {
+      myDisposed = true;
+      for (Deque<HgCommandServer> servers : myIdleServers.values()) {
+        toClose.addAll(servers);
+      }
+      myIdleServers.clear();
+      myServerCounts.clear();
+    }
+    for (HgCommandServer server : toClose) {
+      server.close();
+    }
+  }
+
+  private void closeExpiredServers() {
+    long now = System.currentTimeMillis();
+    for (Map.Entry<String, Deque<HgCommandServer>> entry : myIdleServers.entrySet()) {
+      Iterator<HgCommandServer> iterator = entry.getValue().iterator();
+      while (iterator.hasNext()) {
+        HgCommandServer server = iterator.next();
+        if (now - server.getLastUsed() > IDLE_TIMEOUT_MS) {
+          iterator.remove();
+          decrementCount(entry.getKey());
+          server.close();
+        }
+      }
+    }
+  }
+
+  private void decrementCount(@Nonnull String key) {
+    myServerCounts.computeIfPresent(key, (k, count) -> count > 1 ? count - 1 : null);
+  }
+
+  @Nonnull
+  private List<String> createServerCommandLine(@Nonnull String repoPath, @Nonnull Charset charset) {
+    List<String> cmdLine = new ArrayList<>();
+    cmdLine.add(myVcs.getGlobalSettings().getHgExecutable());
+    cmdLine.add("--repository");
+    cmdLine.add(repoPath);
+    // extensions are loaded once on server start, they can't be enabled per command
+    cmdLine.add("--config");
+    cmdLine.add("extensions.mq=");
+    cmdLine.add("--config");
+    cmdLine.add("ui.interactive=False");
+    if (HgVcs.HGENCODING == null) {
+      cmdLine.add("--encoding");
+      cmdLine.add(HgEncodingUtil.getNameFor(charset));
+    }
+    cmdLine.add("serve");
+    cmdLine.add("--cmdserver");
+    cmdLine.add("pipe");
+    return cmdLine;
+  }
+
+  @Nonnull
+  private static String key(@Nonnull String repoPath, @Nonnull Charset charset) {
+    return repoPath + "|" + charset.name();
+  }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2013-2025 consulo.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zmlx.hg4idea.execution;
+
+import jakarta.annotation.Nonnull;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>Aggregated counters and wall time histograms of the hg commands executed in a project, per operation and per calling subsystem.</p>
+ * <p>Output sizes are counted in characters for text output and in bytes for binary output.</p>
+ */
+public final class HgCommandStatistics {
+  // upper bounds of the wall time histogram buckets, the last bucket is unbounded
+  private static final long[] BUCKET_BOUNDS_MS = {10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000};
+
+  private final Map<String, OperationStatistics> myOperations = new TreeMap<>();
+
+  void record(@Nonnull String operation,
+              @Nonnull HgCommandSubsystem subsystem,
+              long queueWaitNanos,
+              long spawnNanos,
+              long wallNanos,
+              long stdoutSize,
+              long stderrSize,
+              int exitCode) {
+    synchronized (myOperations) {
+      OperationStatistics statistics = myOperations.computeIfAbsent(operation, op -> new OperationStatistics());
+      statistics.myCount++;
+      if (exitCode != 0) {
+        statistics.myFailedCount++;
+      }
+      statistics.myQueueWaitNanos += queueWaitNanos;
+      statistics.mySpawnNanos += spawnNanos;
+      statistics.myWallNanos += wallNanos;
+      statistics.myMaxWallNanos = Math.max(statistics.myMaxWallNanos, wallNanos);
+      statistics.myStdoutSize += stdoutSize;
+      statistics.myStderrSize += stderrSize;
+      statistics.myHistogram[bucket(TimeUnit.NANOSECONDS.toMillis(wallNanos))]++;
+      statistics.mySubsystemCounts.merge(subsystem, 1L, Long::sum);
+    }
+  }
+
+  private static int bucket(long wallMs) {
+    for (int i = 0; i < BUCKET_BOUNDS_MS.length; i++) {
+      if (wallMs < BUCKET_BOUNDS_MS[i]) {
+        return i;
+      }
+    }
+    return BUCKET_BOUNDS_MS.length;
+  }
+
+  public void reset() {
+    synchronized (myOperations) {
+      myOperations.clear();
+    }
+  }
+
+  /**
+   * @return number of executed commands per calling subsystem
+   */
+  @Nonnull
+  public Map<HgCommandSubsystem, Long> getCountsBySubsystem() {
+    Map<HgCommandSubsystem, Long> result = new EnumMap<>(HgCommandSubsystem.class);
+    synchronized (myOperations) {
+      for (OperationStatistics statistics : myOperations.values()) {
+        statistics.mySubsystemCounts.forEach((subsystem, count) -> result.merge(subsystem, count, Long::sum));
+      }
+    }
+    return result;
+  }
+
+  /**
+   * @return human-readable report, one block per operation
+   */
+  @Nonnull
+  public String getReport() {
+    StringBuilder report = new StringBuilder();
+    synchronized (myOperations) {
+      long total = 0;
+      for (OperationStatistics statistics : myOperations.values()) {
+        total += statistics.myCount;
+      }
+      report.append("hg commands executed: ").append(total).append('\n');
+      for (Map.Entry<String, OperationStatistics> entry : myOperations.entrySet()) {
+        OperationStatistics statistics = entry.getValue();
+        long count = statistics.myCount;
+        report.append('\n').append(entry.getKey()).append(": ").append(count).append(" runs, ")
+          .append(statistics.myFailedCount).append(" failed\n");
+        report.append("  avg queue wait ").append(averageMs(statistics.myQueueWaitNanos, count)).append(" ms, avg spawn ")
+          .append(averageMs(statistics.mySpawnNanos, count)).append(" ms, avg wall ")
+          .append(averageMs(statistics.myWallNanos, count)).append(" ms, max wall ")
+          .append(TimeUnit.NANOSECONDS.toMillis(statistics.myMaxWallNanos)).append(" ms\n");
+        report.append("  stdout ").append(statistics.myStdoutSize).append(", stderr ").append(statistics.myStderrSize).append('\n');
+        report.append("  wall time histogram:");
+        for (int i = 0; i < statistics.myHistogram.length; i++) {
+          if (statistics.myHistogram[i] == 0) {
+            continue;
+          }
+          report.append(' ').append(i < BUCKET_BOUNDS_MS.length ? "<" + BUCKET_BOUNDS_MS[i] : ">=" + BUCKET_BOUNDS_MS[i - 1])
+            .append("ms=").append(statistics.myHistogram[i]);
+        }
+        report.append("\n  by subsystem:");
+        statistics.mySubsystemCounts.forEach((subsystem, subsystemCount) -> report.append(' ').append(subsystem).append('=')
+          .append(subsystemCount));
+        report.append('\n');
+      }
+    }
+    return report.toString();
+  }
+
+  private static long averageMs(long totalNanos, long count) {
+    return count == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(totalNanos / count);
+  }
+
+  private static final class OperationStatistics {
+    private long myCount;
+    private long myFailedCount;
+    private long myQueueWaitNanos;
+    private long mySpawnNanos;
+    private long myWallNanos;
+    private long myMaxWallNanos;
+    private long myStdoutSize;
+    private long myStderrSize;
+    private final long[] myHistogram = new long[BUCKET_BOUNDS_MS.length + 1];
+    private final Map<HgCommandSubsystem, Long> mySubsystemCounts = new EnumMap<>(HgCommandSubsystem.class);
+  }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2013-2025 consulo.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zmlx.hg4idea.execution;
+
+import jakarta.annotation.Nonnull;
+
+/**
+ * <p>The feature on whose behalf hg commands are executed, used to attribute commands in {@link HgCommandStatistics}.</p>
+ * <p>The subsystem is bound to the current thread by {@link #enter()}:</p>
+ * <pre>
+ * try (HgCommandSubsystem.Scope ignored = HgCommandSubsystem.LOG.enter()) {
+ *   ...
+ * }
+ * </pre>
+ */
+public enum HgCommandSubsystem {
+  CHANGE_PROVIDER,
+  LOG,
+  HISTORY,
+  ANNOTATE,
+  REMOTE_UPDATER,
+  REPOSITORY_STATE,
+  IGNORED_FILES,
+  OTHER;
+
+  private static final ThreadLocal<HgCommandSubsystem> ourCurrent = new ThreadLocal<>();
+
+  /**
+   * @return the subsystem of the innermost scope entered in the current thread, or {@link #OTHER}
+   */
+  @Nonnull
+  public static HgCommandSubsystem getCurrent() {
+    HgCommandSubsystem current = ourCurrent.get();
+    return current != null ? current : OTHER;
+  }
+
+  /**
+   * Attributes all hg commands executed in the current thread to this subsystem until the returned scope is closed.
+   */
+  @Nonnull
+  public Scope enter() {
+    Scope scope = new Scope(ourCurrent.get());
+    ourCurrent.set(this);
+    return scope;
+  }
+
+  public static final class Scope implements AutoCloseable {
+    private final HgCommandSubsystem myPrevious;
+
+    private Scope(HgCommandSubsystem previous) {
+      myPrevious = previous;
+    }
+
+    @Override
+    public void close() {
+      if (myPrevious == null) {
+        ourCurrent.remove();
+      }
+      else {
+        ourCurrent.set(myPrevious);
+      }
+    }
+  }
+}
@@ -0,0 +1,33 @@
+/*
+ * Copyright 2013-2025 consulo.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zmlx.hg4idea.execution;
+
+import jakarta.annotation.Nonnull;
+
+/**
+ * Receives the output of a streamed hg command record by record, as soon as each record is read from the process.
+ *
+ * @see HgCommandExecutor#executeStreaming
+ */
+public interface HgOutputRecordConsumer {
+
+  /**
+   * @param record output record without the trailing separator, never empty
+   * @return false to stop reading: the command is terminated and the rest of its output is discarded
+   */
+  boolean consume(@Nonnull String record);
+
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2013-2025 consulo.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zmlx.hg4idea.execution;
+
+import jakarta.annotation.Nonnull;
+
+/**
+ * Cuts a stream of text chunks into records ended by the given separator and passes non-empty records to the consumer.
+ * Only the current incomplete record is kept in memory.
+ */
+final class HgOutputSplitter {
+  @Nonnull
+  private final HgOutputRecordConsumer myConsumer;
+  private final char mySeparator;
+  private final StringBuilder myCurrent = new StringBuilder();
+  private boolean myStopped;
+
+  HgOutputSplitter(char separator, @Nonnull HgOutputRecordConsumer consumer) {
+    mySeparator = separator;
+    myConsumer = consumer;
+  }
+
+  /**
+   * @return false if the consumer doesn't want to receive more records
+   */
+  boolean feed(@Nonnull CharSequence text) {
+    if (myStopped) {
+      return false;
+    }
+    int start = 0;
+    for (int i = 0; i < text.length(); i++) {
+      if (text.charAt(i) == mySeparator) {
+        myCurrent.append(text, start, i);
+        start = i + 1;
+        if (!flushRecord()) {
+          return false;
+        }
+      }
+    }
+    myCurrent.append(text, start, text.length());
+    return true;
+  }
+
+  /**
+   * Passes the rest of the output, which isn't ended by the separator, as the last record.
+   */
+  boolean finish() {
+    return myStopped ? false : flushRecord();
+  }
+
+  char getSeparator() {
+    return mySeparator;
+  }
+
+  private boolean flushRecord() {
+    int length = myCurrent.length();
+    if (mySeparator == '\n' && length > 0 && myCurrent.charAt(length - 1) == '\r') {
+      myCurrent.setLength(length - 1);
+    }
+    if (myCurrent.length() == 0) {
+      return true;
+    }
+    String record = myCurrent.toString();
+    myCurrent.setLength(0);
+    if (!myConsumer.consume(record)) {
+      myStopped = true;
+      return false;
+    }
+    return true;
+  }
+}
@@ -57,6 +57,12 @@ public class HgPromptCommandExecutor extends HgCommandExecutor {
     }
   }
 
+  @Override
+  protected boolean isCommandServerAllowed() {
+    // the prompt extension has to be loaded into the hg process
+    return false;
+  }
+
   private List<String> prepareArguments(List<String> arguments, int port) {
     List<String> cmdArguments = ContainerUtil.newArrayList();
     cmdArguments.add("--config");
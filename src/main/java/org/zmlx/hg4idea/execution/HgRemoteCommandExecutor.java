@@ -93,6 +93,13 @@ public class HgRemoteCommandExecutor extends HgCommandExecutor
 		}
 	}
 
+	@Override
+	protected boolean isCommandServerAllowed()
+	{
+		// the authentication extension has to be loaded into the hg process
+		return false;
+	}
+
 	private List<String> prepareArguments(List<String> arguments, int port)
 	{
 		List<String> cmdArguments = ContainerUtil.newArrayList();
@@ -30,9 +30,20 @@ import java.nio.charset.Charset;
 import java.nio.file.Path;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public final class ShellCommand {
+  // records read from the process, but not yet consumed; when the queue is full, output reading waits for the consumer
+  private static final int MAX_PENDING_RECORDS = 1024;
+  // records are never empty, so an empty string can mark the end of the output
+  private static final String END_OF_OUTPUT = "";
+
   private final GeneralCommandLine myCommandLine;
+  private volatile long mySpawnNanos;
 
   public ShellCommand(@Nonnull List<String> commandLine, @Nullable String dir, @Nullable Charset charset) {
     if (commandLine.isEmpty()) {
@@ -52,16 +63,47 @@ public final class ShellCommand {
     myCommandLine.withEnvironment(VcsLocaleHelper.getDefaultLocaleEnvironmentVars("hg"));
   }
 
+  /**
+   * Runs the command and waits for the {@link #executeAsync result}; if the calling thread is interrupted, the process is killed.
+   */
+  @Nonnull
+  public HgCommandResult execute(final boolean showTextOnIndicator, final boolean isBinary)
+    throws ShellCommandException, InterruptedException {
+    CompletableFuture<HgCommandResult> result = executeAsync(showTextOnIndicator, isBinary);
+    try {
+      return result.get();
+    }
+    catch (InterruptedException e) {
+      result.cancel(false);
+      throw e;
+    }
+    catch (java.util.concurrent.ExecutionException e) {
+      throw new ShellCommandException(e.getCause());
+    }
+  }
+
+  /**
+   * Starts the process and returns at once: the result is completed by the termination event of the process, no thread waits for it.
+   * If the current progress indicator is cancelled, the process is killed and the result has exit code 255.
+   * Cancelling the returned future kills the process too.
+   */
   @Nonnull
-  public HgCommandResult execute(final boolean showTextOnIndicator, boolean isBinary) throws ShellCommandException, InterruptedException {
+  public CompletableFuture<HgCommandResult> executeAsync(final boolean showTextOnIndicator, final boolean isBinary)
+    throws ShellCommandException {
     final ProgressIndicator indicator = ProgressManager.getInstance().getProgressIndicator();
+    long spawnStart = System.nanoTime();
     try {
-      ProcessHandler processHandler;
       ProcessHandlerBuilder builder = ProcessHandlerBuilder.create(myCommandLine);
       if (isBinary) {
         builder = builder.binary();
       }
-      processHandler = builder.build();
+      final ProcessHandler processHandler = builder.build();
+      final CompletableFuture<HgCommandResult> result = new CompletableFuture<>();
+      final AtomicBoolean cancelled = new AtomicBoolean();
+      final Runnable stopWatching = HgCancellationWatcher.watch(indicator, () -> {
+        cancelled.set(true);
+        processHandler.destroyProcess();
+      });
       CapturingProcessAdapter outputAdapter = new CapturingProcessAdapter() {
 
         @Override
@@ -80,21 +122,145 @@ public final class ShellCommand {
             super.onTextAvailable(event, outputType);
           }
         }
+
+        @Override
+        public void processTerminated(ProcessEvent event) {
+          super.processTerminated(event);
+          stopWatching.run();
+          ProcessOutput output = getOutput();
+          if (cancelled.get()) {
+            output.setExitCode(255);
+          }
+          result.complete(isBinary ? new HgCommandResult(output, ((BinaryProcessHandler)processHandler).getOutput())
+                                   : new HgCommandResult(output));
+        }
+      };
+      processHandler.addProcessListener(outputAdapter);
+      result.whenComplete((r, e) -> {
+        if (result.isCancelled()) {
+          stopWatching.run();
+          processHandler.destroyProcess();
+        }
+      });
+      try {
+        processHandler.startNotify();
+      }
+      catch (RuntimeException e) {
+        stopWatching.run();
+        throw e;
+      }
+      mySpawnNanos = System.nanoTime() - spawnStart;
+      return result;
+    }
+    catch (ExecutionException e) {
+      throw new ShellCommandException(e);
+    }
+  }
+
+  /**
+   * Runs the command and passes its stdout to the consumer record by record in the calling thread, instead of collecting it.
+   * The returned result contains only the exit code and stderr. If the consumer stops the processing, the process is killed
+   * and the result has zero exit code; if the progress indicator is cancelled, the exit code is 255.
+   */
+  @Nonnull
+  public HgCommandResult executeStreaming(char separator, @Nonnull HgOutputRecordConsumer consumer)
+    throws ShellCommandException, InterruptedException {
+    final ProgressIndicator indicator = ProgressManager.getInstance().getProgressIndicator();
+    final BlockingQueue<String> records = new ArrayBlockingQueue<>(MAX_PENDING_RECORDS);
+    final AtomicBoolean stopped = new AtomicBoolean();
+    final HgOutputSplitter splitter = new HgOutputSplitter(separator, record -> enqueue(records, record, stopped));
+    Runnable stopWatching = () -> {
+    };
+    long spawnStart = System.nanoTime();
+    ProcessHandler processHandler = null;
+    try {
+      processHandler = ProcessHandlerBuilder.create(myCommandLine).build();
+      // on cancel the process is killed, its termination wakes up the consumer thread
+      stopWatching = HgCancellationWatcher.watch(indicator, processHandler::destroyProcess);
+      CapturingProcessAdapter outputAdapter = new CapturingProcessAdapter() {
+
+        @Override
+        public void onTextAvailable(ProcessEvent event, Key outputType) {
+          if (ProcessOutputTypes.STDOUT == outputType) {
+            splitter.feed(event.getText());
+          }
+          else {
+            super.onTextAvailable(event, outputType);
+          }
+        }
+
+        @Override
+        public void processTerminated(ProcessEvent event) {
+          splitter.finish();
+          super.processTerminated(event);
+          enqueue(records, END_OF_OUTPUT, stopped);
+        }
       };
       processHandler.addProcessListener(outputAdapter);
       processHandler.startNotify();
-      while (!processHandler.waitFor(300)) {
+      mySpawnNanos = System.nanoTime() - spawnStart;
+      while (true) {
         if (indicator != null && indicator.isCanceled()) {
-          processHandler.destroyProcess();
+          stop(processHandler, records, stopped);
           outputAdapter.getOutput().setExitCode(255);
           break;
         }
+        String record = records.take();
+        if (record.isEmpty()) {
+          if (indicator != null && indicator.isCanceled()) {
+            outputAdapter.getOutput().setExitCode(255);
+          }
+          break;
+        }
+        if (!consumer.consume(record)) {
+          stop(processHandler, records, stopped);
+          outputAdapter.getOutput().setExitCode(0);
+          break;
+        }
       }
-      ProcessOutput output = outputAdapter.getOutput();
-      return isBinary ? new HgCommandResult(output, ((BinaryProcessHandler)processHandler).getOutput()) : new HgCommandResult(output);
+      return new HgCommandResult(outputAdapter.getOutput());
     }
     catch (ExecutionException e) {
       throw new ShellCommandException(e);
     }
+    finally {
+      stopped.set(true);
+      stopWatching.run();
+      // e.g. if the thread was interrupted while waiting for a record or the consumer threw, don't leave the process running
+      if (processHandler != null && !processHandler.isProcessTerminated()) {
+        processHandler.destroyProcess();
+      }
+    }
+  }
+
+  /**
+   * @return time spent to start the process of the last execution
+   */
+  public long getSpawnNanos() {
+    return mySpawnNanos;
+  }
+
+  private static void stop(@Nonnull ProcessHandler processHandler, @Nonnull BlockingQueue<String> records, @Nonnull AtomicBoolean stopped) {
+    stopped.set(true);
+    records.clear();
+    processHandler.destroyProcess();
+    processHandler.waitFor();
+  }
+
+  /**
+   * Called from the output reading thread, waits while the consumer is behind.
+   */
+  private static boolean enqueue(@Nonnull BlockingQueue<String> records, @Nonnull String record, @Nonnull AtomicBoolean stopped) {
+    try {
+      while (!stopped.get()) {
+        if (records.offer(record, 100, TimeUnit.MILLISECONDS)) {
+          return true;
+        }
+      }
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    return false;
   }
 }
\ No newline at end of file
@@ -0,0 +1,425 @@
+/*
+ * Copyright 2013-2025 consulo.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zmlx.hg4idea.log;
+
+import com.google.common.io.BaseEncoding;
+import consulo.logging.Logger;
+import consulo.util.lang.Couple;
+import consulo.versionControlSystem.log.*;
+import consulo.virtualFileSystem.VirtualFile;
+import jakarta.annotation.Nonnull;
+import jakarta.annotation.Nullable;
+import org.zmlx.hg4idea.util.HgUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+
+/**
+ * <p>Reads commits of a repository directly from its changelog revlog, without running hg.</p>
+ * <p>Only plain local repositories are supported: {@link #open} returns null if the repository has requirements
+ * the reader doesn't know or obsolescence markers, which hide commits from {@code hg log}.
+ * An {@link IOException} from any read means the changelog has an unsupported format, and the caller should fall back to hg.</p>
+ */
+final class HgChangelogReader implements AutoCloseable {
+  private static final Logger LOG = Logger.getInstance(HgChangelogReader.class);
+
+  private static final BaseEncoding HEX = BaseEncoding.base16().lowerCase();
+
+  // requirements which don't change the changelog format or the set of visible commits
+  private static final Set<String> SUPPORTED_REQUIREMENTS = new HashSet<>(Arrays.asList(
+    "revlogv1", "store", "fncache", "dotencode", "generaldelta", "sparserevlog", "share-safe", "shared", "relshared",
+    "persistent-nodemap", "treemanifest", "largefiles", "lfs", "dirstate-v2", "bookmarksinstore", "exp-sparse"));
+
+  @Nonnull
+  private final HgRevlog myRevlog;
+  @Nonnull
+  private final VirtualFile myRoot;
+  @Nonnull
+  private final VcsLogObjectsFactory myFactory;
+  // open addressing table of revision + 1 by the node prefix, built on the first lookup
+  @Nullable
+  private int[] myNodeTable;
+
+  private HgChangelogReader(@Nonnull HgRevlog revlog, @Nonnull VirtualFile root, @Nonnull VcsLogObjectsFactory factory) {
+    myRevlog = revlog;
+    myRoot = root;
+    myFactory = factory;
+  }
+
+  /**
+   * @return null if the repository can't be read without hg
+   */
+  @Nullable
+  static HgChangelogReader open(@Nonnull VirtualFile root, @Nonnull VcsLogObjectsFactory factory) throws IOException {
+    File changelog = findChangelog(new File(root.getPath(), HgUtil.DOT_HG));
+    return changelog == null ? null : new HgChangelogReader(HgRevlog.open(changelog), root, factory);
+  }
+
+  @Nullable
+  private static File findChangelog(@Nonnull File hgDir) throws IOException {
+    Set<String> requirements = new HashSet<>();
+    File storeDir = findStoreDir(hgDir, requirements);
+    for (String requirement : requirements) {
+      if (!SUPPORTED_REQUIREMENTS.contains(requirement)) {
+        LOG.debug("Changelog is read by hg because of repository requirement " + requirement);
+        return null;
+      }
+    }
+    if (getObsoleteMarkersFile(storeDir).length() > 0) {
+      LOG.debug("Changelog is read by hg because the repository has obsolete changesets");
+      return null;
+    }
+    return new File(storeDir, "00changelog.i");
+  }
+
+  /**
+   * @return the store directory of the repository, taking shared repositories into account
+   */
+  @Nonnull
+  static File findStoreDir(@Nonnull File hgDir) throws IOException {
+    return findStoreDir(hgDir, new HashSet<>());
+  }
+
+  @Nonnull
+  private static File findStoreDir(@Nonnull File hgDir, @Nonnull Set<String> requirements) throws IOException {
+    File sourceHgDir = hgDir;
+    File sharedPath = new File(hgDir, "sharedpath");
+    if (sharedPath.exists()) {
+      File source = new File(new String(Files.readAllBytes(sharedPath.toPath()), StandardCharsets.UTF_8).trim());
+      sourceHgDir = source.isAbsolute() ? source : new File(hgDir, source.getPath());
+    }
+    requirements.addAll(readRequirements(hgDir));
+    if (sourceHgDir != hgDir) {
+      requirements.addAll(readRequirements(sourceHgDir));
+    }
+    File storeDir = requirements.contains("store") ? new File(sourceHgDir, "store") : sourceHgDir;
+    requirements.addAll(readRequirements(storeDir));
+    return storeDir;
+  }
+
+  /**
+   * @return a value which changes whenever commits are added, stripped or hidden
+   */
+  static long getChangelogStamp(@Nonnull File hgDir) throws IOException {
+    File storeDir = findStoreDir(hgDir);
+    long stamp = 17;
+    for (File file : new File[]{new File(storeDir, "00changelog.i"), new File(storeDir, "00changelog.d"), getObsoleteMarkersFile(storeDir)}) {
+      stamp = stamp * 31 + file.length();
+      stamp = stamp * 31 + file.lastModified();
+    }
+    return stamp;
+  }
+
+  /**
+   * @return a value which changes whenever obsolescence markers are added, e.g. by prune, amend or rebase with evolve,
+   * which may hide commits anywhere in the history, not only above the tip
+   */
+  static long getObsoleteMarkersStamp(@Nonnull File hgDir) throws IOException {
+    File markers = getObsoleteMarkersFile(findStoreDir(hgDir));
+    return (17 * 31 + markers.length()) * 31 + markers.lastModified();
+  }
+
+  /**
+   * Obsolescence markers hide commits from {@code hg log}, so the set of visible commits changes with this file.
+   */
+  @Nonnull
+  static File getObsoleteMarkersFile(@Nonnull File storeDir) {
+    return new File(storeDir, "obsstore");
+  }
+
+  @Nonnull
+  private static List<String> readRequirements(@Nonnull File dir) throws IOException {
+    File requires = new File(dir, "requires");
+    if (!requires.exists()) {
+      return Collections.emptyList();
+    }
+    List<String> requirements = new ArrayList<>();
+    for (String line : Files.readAllLines(requires.toPath(), StandardCharsets.UTF_8)) {
+      if (!line.trim().isEmpty()) {
+        requirements.add(line.trim());
+      }
+    }
+    return requirements;
+  }
+
+  boolean isRevision(int revision, @Nonnull byte[] node) {
+    return revision < myRevlog.getRevisionCount() && myRevlog.isNode(revision, node);
+  }
+
+  /**
+   * Passes revisions starting from the given one to the consumer in ascending order.
+   * The node array is reused for all revisions, the consumer must copy it.
+   */
+  void readRevisions(int from, @Nonnull RevisionConsumer consumer) throws IOException {
+    int count = myRevlog.getRevisionCount();
+    byte[] node = new byte[HgRevlog.NODE_SIZE];
+    for (int revision = from; revision < count; revision++) {
+      int parent1 = myRevlog.getParent1(revision);
+      int parent2 = myRevlog.getParent2(revision);
+      if (parent1 >= revision || parent2 >= revision) {
+        throw new IOException("Broken parents of revision " + revision);
+      }
+      myRevlog.getNode(revision, node, 0);
+      Entry entry = Entry.parse(myRevlog.readRevision(revision), false);
+      consumer.accept(revision, node, parent1, parent2, entry.myTime, entry.myAuthor);
+    }
+  }
+
+  /**
+   * Passes descriptions and changed files of the revisions in the given range to the consumer, in ascending order.
+   */
+  void readTexts(int from, int to, @Nonnull TextConsumer consumer) throws IOException {
+    int count = Math.min(to, myRevlog.getRevisionCount());
+    for (int revision = from; revision < count; revision++) {
+      Entry entry = Entry.parse(myRevlog.readRevision(revision), true, true);
+      consumer.accept(revision, entry.myDescription, entry.myFiles);
+    }
+  }
+
+  interface TextConsumer {
+    /**
+     * @param files paths of the changed files relative to the repository root
+     */
+    void accept(int revision, @Nonnull String description, @Nonnull List<String> files);
+  }
+
+  interface RevisionConsumer {
+    /**
+     * @param parent1 revision number of the first parent or {@link HgRevlog#NULL_REVISION}
+     * @param time    commit time in milliseconds
+     */
+    void accept(int revision, @Nonnull byte[] node, int parent1, int parent2, long time, @Nonnull String author) throws IOException;
+  }
+
+  /**
+   * @param limit maximum number of the latest commits to read, or a negative number to read all commits
+   * @return commits from the tip down
+   */
+  @Nonnull
+  List<VcsCommitMetadata> readMetadata(int limit) throws IOException {
+    int count = myRevlog.getRevisionCount();
+    return readMetadataFrom(limit < 0 ? 0 : Math.max(0, count - limit));
+  }
+
+  /**
+   * @return commits above the given revision, from the tip down
+   */
+  @Nonnull
+  List<VcsCommitMetadata> readMetadataAfter(int revision) throws IOException {
+    return readMetadataFrom(revision + 1);
+  }
+
+  int getTipRevision() {
+    return myRevlog.getRevisionCount() - 1;
+  }
+
+  @Nonnull
+  private List<VcsCommitMetadata> readMetadataFrom(int first) throws IOException {
+    int count = myRevlog.getRevisionCount();
+    List<VcsCommitMetadata> commits = new ArrayList<>(count - first);
+    // ascending order reuses the delta chain of the previous revision
+    for (int revision = first; revision < count; revision++) {
+      commits.add(createMetadata(revision, Entry.parse(myRevlog.readRevision(revision), true)));
+    }
+    Collections.reverse(commits);
+    return commits;
+  }
+
+  /**
+   * @return details in the order of the given hashes, or null if some of the hashes are not full hashes of known commits
+   */
+  @Nullable
+  List<VcsShortCommitDetails> readShortDetails(@Nonnull List<String> hashes) throws IOException {
+    int[] revisions = new int[hashes.size()];
+    Integer[] order = new Integer[hashes.size()];
+    for (int i = 0; i < hashes.size(); i++) {
+      revisions[i] = findRevision(hashes.get(i));
+      if (revisions[i] == HgRevlog.NULL_REVISION) {
+        return null;
+      }
+      order[i] = i;
+    }
+    Arrays.sort(order, Comparator.comparingInt(i -> revisions[i]));
+
+    VcsShortCommitDetails[] details = new VcsShortCommitDetails[hashes.size()];
+    for (int i : order) {
+      details[i] = createMetadata(revisions[i], Entry.parse(myRevlog.readRevision(revisions[i]), true));
+    }
+    return Arrays.asList(details);
+  }
+
+  /**
+   * @return the revision number of the commit, or {@link HgRevlog#NULL_REVISION} if the hash is not a full hash of a known commit
+   */
+  int findRevision(@Nonnull String hash) {
+    if (hash.length() != HgRevlog.NODE_SIZE * 2) {
+      return HgRevlog.NULL_REVISION;
+    }
+    byte[] node;
+    try {
+      node = HEX.decode(hash.toLowerCase(Locale.ROOT));
+    }
+    catch (IllegalArgumentException e) {
+      return HgRevlog.NULL_REVISION;
+    }
+    int[] table = getNodeTable();
+    int mask = table.length - 1;
+    int prefix = ((node[0] & 0xFF) << 24) | ((node[1] & 0xFF) << 16) | ((node[2] & 0xFF) << 8) | (node[3] & 0xFF);
+    for (int slot = prefix & mask; table[slot] != 0; slot = (slot + 1) & mask) {
+      int revision = table[slot] - 1;
+      if (myRevlog.isNode(revision, node)) {
+        return revision;
+      }
+    }
+    return HgRevlog.NULL_REVISION;
+  }
+
+  @Nonnull
+  private int[] getNodeTable() {
+    if (myNodeTable == null) {
+      int count = myRevlog.getRevisionCount();
+      int[] table = new int[Integer.highestOneBit(Math.max(1, count) * 2) * 2];
+      int mask = table.length - 1;
+      for (int revision = 0; revision < count; revision++) {
+        int slot = myRevlog.getNodePrefix(revision) & mask;
+        while (table[slot] != 0) {
+          slot = (slot + 1) & mask;
+        }
+        table[slot] = revision + 1;
+      }
+      myNodeTable = table;
+    }
+    return myNodeTable;
+  }
+
+  @Nonnull
+  private VcsCommitMetadata createMetadata(int revision, @Nonnull Entry entry) {
+    Couple<String> authorAndEmail = HgUtil.parseUserNameAndEmail(entry.myAuthor);
+    String message = entry.myDescription;
+    return myFactory.createCommitMetadata(getHash(revision), getParents(revision), entry.myTime, myRoot,
+                                          HgBaseLogParser.extractSubject(message), authorAndEmail.first, authorAndEmail.second, message,
+                                          authorAndEmail.first, authorAndEmail.second, entry.myTime);
+  }
+
+  @Nonnull
+  private Hash getHash(int revision) {
+    byte[] node = new byte[HgRevlog.NODE_SIZE];
+    myRevlog.getNode(revision, node, 0);
+    return myFactory.createHash(HEX.encode(node));
+  }
+
+  @Nonnull
+  private List<Hash> getParents(int revision) {
+    int parent1 = myRevlog.getParent1(revision);
+    int parent2 = myRevlog.getParent2(revision);
+    List<Hash> parents = new ArrayList<>(2);
+    if (parent1 != HgRevlog.NULL_REVISION) {
+      parents.add(getHash(parent1));
+    }
+    if (parent2 != HgRevlog.NULL_REVISION) {
+      parents.add(getHash(parent2));
+    }
+    return parents;
+  }
+
+  @Override
+  public void close() {
+    myRevlog.close();
+  }
+
+  /**
+   * A changelog revision is {@code manifest\nauthor\ntime timezone[ extra]\nfile\n...\n\ndescription}.
+   */
+  private static final class Entry {
+    @Nonnull
+    private final String myAuthor;
+    private final long myTime;
+    @Nonnull
+    private final String myDescription;
+    @Nonnull
+    private final List<String> myFiles;
+
+    private Entry(@Nonnull String author, long time, @Nonnull String description, @Nonnull List<String> files) {
+      myAuthor = author;
+      myTime = time;
+      myDescription = description;
+      myFiles = files;
+    }
+
+    @Nonnull
+    static Entry parse(@Nonnull byte[] text, boolean withDescription) throws IOException {
+      return parse(text, withDescription, false);
+    }
+
+    @Nonnull
+    static Entry parse(@Nonnull byte[] text, boolean withDescription, boolean withFiles) throws IOException {
+      int authorStart = indexOf(text, (byte)'\n', 0) + 1;
+      int dateStart = indexOf(text, (byte)'\n', authorStart) + 1;
+      int dateEnd = indexOf(text, (byte)'\n', dateStart);
+      if (authorStart == 0 || dateStart == 0 || dateEnd < 0) {
+        throw new IOException("Malformed changelog entry");
+      }
+      String author = new String(text, authorStart, dateStart - authorStart - 1, StandardCharsets.UTF_8);
+      int timeEnd = indexOf(text, (byte)' ', dateStart);
+      String time = new String(text, dateStart, (timeEnd < 0 || timeEnd > dateEnd ? dateEnd : timeEnd) - dateStart,
+                               StandardCharsets.US_ASCII);
+      long seconds;
+      try {
+        // old clients wrote the time as a float
+        seconds = time.indexOf('.') < 0 ? Long.parseLong(time) : (long)Double.parseDouble(time);
+      }
+      catch (NumberFormatException e) {
+        throw new IOException("Malformed changelog date " + time);
+      }
+
+      String description = "";
+      List<String> files = Collections.emptyList();
+      if (withDescription) {
+        // changed files are listed one per line between the date and the empty line before the description
+        int descriptionStart = dateEnd;
+        while (descriptionStart + 1 < text.length && !(text[descriptionStart] == '\n' && text[descriptionStart + 1] == '\n')) {
+          int fileStart = descriptionStart + 1;
+          descriptionStart = indexOf(text, (byte)'\n', fileStart);
+          if (descriptionStart < 0) {
+            throw new IOException("Malformed changelog entry");
+          }
+          if (withFiles) {
+            if (files.isEmpty()) {
+              files = new ArrayList<>();
+            }
+            files.add(new String(text, fileStart, descriptionStart - fileStart, StandardCharsets.UTF_8));
+          }
+        }
+        description = descriptionStart + 2 <= text.length
+                      ? new String(text, descriptionStart + 2, text.length - descriptionStart - 2, StandardCharsets.UTF_8)
+                      : "";
+      }
+      return new Entry(author, seconds * 1000, description, files);
+    }
+
+    private static int indexOf(@Nonnull byte[] text, byte b, int from) {
+      for (int i = from; i < text.length; i++) {
+        if (text[i] == b) {
+          return i;
+        }
+      }
+      return -1;
+    }
+  }
+}
@@ -0,0 +1,246 @@
+/*
+ * Copyright 2013-2025 consulo.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zmlx.hg4idea.log;
+
+import com.google.common.io.BaseEncoding;
+import consulo.util.collection.ArrayUtil;
+import consulo.util.lang.Couple;
+import consulo.versionControlSystem.log.Hash;
+import consulo.versionControlSystem.log.TimedVcsCommit;
+import consulo.versionControlSystem.log.VcsLogObjectsFactory;
+import consulo.versionControlSystem.log.VcsUser;
+import jakarta.annotation.Nonnull;
+import org.zmlx.hg4idea.util.HgUtil;
+
+import java.util.*;
+import java.util.function.Consumer;
+
+/**
+ * <p>Commit graph of a repository in primitive arrays: revision numbers, packed 20-byte nodes, parent revision numbers, times
+ * and ids of authors from a pool. Commits are kept in ascending revision order.</p>
+ * <p>Objects of the log API are created only when commits are {@link #readAllCommits passed to the log}.
+ * The graph is not thread-safe.</p>
+ */
+final class HgCommitGraph {
+  private static final BaseEncoding HEX = BaseEncoding.base16().lowerCase();
+
+  private int mySize;
+  @Nonnull
+  private int[] myRevisions = ArrayUtil.EMPTY_INT_ARRAY;
+  @Nonnull
+  private byte[] myNodes = ArrayUtil.EMPTY_BYTE_ARRAY;
+  @Nonnull
+  private int[] myParents1 = ArrayUtil.EMPTY_INT_ARRAY;
+  @Nonnull
+  private int[] myParents2 = ArrayUtil.EMPTY_INT_ARRAY;
+  @Nonnull
+  private long[] myTimes = ArrayUtil.EMPTY_LONG_ARRAY;
+  @Nonnull
+  private int[] myAuthors = ArrayUtil.EMPTY_INT_ARRAY;
+  private final List<String> myAuthorNames = new ArrayList<>();
+  private final Map<String, Integer> myAuthorIds = new HashMap<>();
+
+  int size() {
+    return mySize;
+  }
+
+  int getRevision(int index) {
+    return myRevisions[index];
+  }
+
+  int getParent1(int index) {
+    return myParents1[index];
+  }
+
+  int getParent2(int index) {
+    return myParents2[index];
+  }
+
+  long getTime(int index) {
+    return myTimes[index];
+  }
+
+  int getAuthor(int index) {
+    return myAuthors[index];
+  }
+
+  @Nonnull
+  String getAuthorName(int author) {
+    return myAuthorNames.get(author);
+  }
+
+  int getAuthorCount() {
+    return myAuthorNames.size();
+  }
+
+  /**
+   * Copies the node of the commit to the destination.
+   */
+  void getNode(int index, @Nonnull byte[] destination, int offset) {
+    System.arraycopy(myNodes, index * HgRevlog.NODE_SIZE, destination, offset, HgRevlog.NODE_SIZE);
+  }
+
+  boolean isNode(int index, @Nonnull byte[] node) {
+    int start = index * HgRevlog.NODE_SIZE;
+    for (int i = 0; i < HgRevlog.NODE_SIZE; i++) {
+      if (myNodes[start + i] != node[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @Nonnull
+  String getNodeHex(int index) {
+    return HEX.encode(myNodes, index * HgRevlog.NODE_SIZE, HgRevlog.NODE_SIZE);
+  }
+
+  /**
+   * @return revision numbers of all commits in ascending order
+   */
+  @Nonnull
+  int[] getRevisions() {
+    return Arrays.copyOf(myRevisions, mySize);
+  }
+
+  /**
+   * @return position of the revision in the graph, or a negative number if the graph doesn't contain it
+   */
+  int indexOf(int revision) {
+    // without hidden commits revision numbers are positions
+    if (revision >= 0 && revision < mySize && myRevisions[revision] == revision) {
+      return revision;
+    }
+    return Arrays.binarySearch(myRevisions, 0, mySize, revision);
+  }
+
+  /**
+   * @param node   array containing the 20-byte node at the given offset
+   * @param author id from {@link #internAuthor}
+   */
+  void add(int revision, @Nonnull byte[] node, int nodeOffset, int parent1, int parent2, long time, int author) {
+    ensureCapacity(mySize + 1);
+    myRevisions[mySize] = revision;
+    System.arraycopy(node, nodeOffset, myNodes, mySize * HgRevlog.NODE_SIZE, HgRevlog.NODE_SIZE);
+    myParents1[mySize] = parent1;
+    myParents2[mySize] = parent2;
+    myTimes[mySize] = time;
+    myAuthors[mySize] = author;
+    mySize++;
+  }
+
+  /**
+   * @return id of the author in the pool, the author is added if it is new
+   */
+  int internAuthor(@Nonnull String author) {
+    Integer id = myAuthorIds.get(author);
+    if (id != null) {
+      return id;
+    }
+    myAuthorNames.add(author);
+    myAuthorIds.put(author, myAuthorNames.size() - 1);
+    return myAuthorNames.size() - 1;
+  }
+
+  void ensureCapacity(int capacity) {
+    if (capacity <= myRevisions.length) {
+      return;
+    }
+    int newCapacity = Math.max(capacity, myRevisions.length + (myRevisions.length >> 1) + 16);
+    myRevisions = Arrays.copyOf(myRevisions, newCapacity);
+    myNodes = Arrays.copyOf(myNodes, newCapacity * HgRevlog.NODE_SIZE);
+    myParents1 = Arrays.copyOf(myParents1, newCapacity);
+    myParents2 = Arrays.copyOf(myParents2, newCapacity);
+    myTimes = Arrays.copyOf(myTimes, newCapacity);
+    myAuthors = Arrays.copyOf(myAuthors, newCapacity);
+  }
+
+  /**
+   * Drops commits starting from the given position, authors stay in the pool.
+   */
+  void truncate(int size) {
+    mySize = Math.min(mySize, size);
+  }
+
+  void clear() {
+    mySize = 0;
+    myRevisions = ArrayUtil.EMPTY_INT_ARRAY;
+    myNodes = ArrayUtil.EMPTY_BYTE_ARRAY;
+    myParents1 = ArrayUtil.EMPTY_INT_ARRAY;
+    myParents2 = ArrayUtil.EMPTY_INT_ARRAY;
+    myTimes = ArrayUtil.EMPTY_LONG_ARRAY;
+    myAuthors = ArrayUtil.EMPTY_INT_ARRAY;
+    myAuthorNames.clear();
+    myAuthorIds.clear();
+  }
+
+  /**
+   * Passes all commits to the consumer from the newest revision down, as {@code hg log} does.
+   * A hash is created once per commit: it is kept from the first child until the commit itself is passed.
+   */
+  void readAllCommits(@Nonnull VcsLogObjectsFactory factory,
+                      @Nonnull Consumer<VcsUser> userRegistry,
+                      @Nonnull Consumer<TimedVcsCommit> commitConsumer) {
+    for (String author : myAuthorNames) {
+      Couple<String> authorAndEmail = HgUtil.parseUserNameAndEmail(author);
+      userRegistry.accept(factory.createUser(authorAndEmail.first, authorAndEmail.second));
+    }
+    Hash[] hashes = new Hash[mySize];
+    for (int i = mySize - 1; i >= 0; i--) {
+      Hash hash = getHash(factory, hashes, i);
+      hashes[i] = null;
+      int parent1 = myParents1[i] == HgRevlog.NULL_REVISION ? -1 : indexOf(myParents1[i]);
+      int parent2 = myParents2[i] == HgRevlog.NULL_REVISION ? -1 : indexOf(myParents2[i]);
+      // a parent hidden by obsolescence markers is not in the graph
+      List<Hash> parents;
+      if (parent1 >= 0 && parent2 >= 0) {
+        parents = Arrays.asList(getHash(factory, hashes, parent1), getHash(factory, hashes, parent2));
+      }
+      else if (parent1 >= 0 || parent2 >= 0) {
+        parents = Collections.singletonList(getHash(factory, hashes, Math.max(parent1, parent2)));
+      }
+      else {
+        parents = Collections.emptyList();
+      }
+      commitConsumer.accept(factory.createTimedCommit(hash, parents, myTimes[i]));
+    }
+  }
+
+  /**
+   * Creates the log object of one commit, parents which are not in the graph are skipped.
+   */
+  @Nonnull
+  TimedVcsCommit createCommit(@Nonnull VcsLogObjectsFactory factory, int index) {
+    List<Hash> parents = new ArrayList<>(2);
+    for (int parent : new int[]{myParents1[index], myParents2[index]}) {
+      int parentIndex = parent == HgRevlog.NULL_REVISION ? -1 : indexOf(parent);
+      if (parentIndex >= 0) {
+        parents.add(factory.createHash(getNodeHex(parentIndex)));
+      }
+    }
+    return factory.createTimedCommit(factory.createHash(getNodeHex(index)), parents, myTimes[index]);
+  }
+
+  @Nonnull
+  private Hash getHash(@Nonnull VcsLogObjectsFactory factory, @Nonnull Hash[] hashes, int index) {
+    Hash hash = hashes[index];
+    if (hash == null) {
+      hash = factory.createHash(getNodeHex(index));
+      hashes[index] = hash;
+    }
+    return hash;
+  }
+}
@@ -0,0 +1,491 @@
+/*
+ * Copyright 2013-2025 consulo.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zmlx.hg4idea.log;
+
+import com.google.common.io.BaseEncoding;
+import consulo.container.boot.ContainerPathManager;
+import consulo.logging.Logger;
+import consulo.project.Project;
+import consulo.util.collection.ArrayUtil;
+import consulo.util.collection.SmartList;
+import consulo.versionControlSystem.log.TimedVcsCommit;
+import consulo.versionControlSystem.log.VcsLogObjectsFactory;
+import consulo.versionControlSystem.log.VcsUser;
+import consulo.virtualFileSystem.VirtualFile;
+import jakarta.annotation.Nonnull;
+import jakarta.annotation.Nullable;
+import org.zmlx.hg4idea.HgRevisionNumber;
+import org.zmlx.hg4idea.HgVcs;
+import org.zmlx.hg4idea.execution.HgCommandResult;
+import org.zmlx.hg4idea.execution.HgOutputRecordConsumer;
+import org.zmlx.hg4idea.util.HgChangesetUtil;
+import org.zmlx.hg4idea.util.HgUtil;
+import org.zmlx.hg4idea.util.HgVersion;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * <p>Persistent index of the {@link HgCommitGraph commit graph} of one repository.</p>
+ * <p>Revision numbers of Mercurial are append-only, so {@link #update} reads only revisions above the last indexed one.
+ * A strip or a rollback is detected by the node of the last indexed revision, a change of obsolescence markers by their file stamp;
+ * both rebuild the index from scratch.</p>
+ * <p>The index file is a header followed by fixed-size commit records; authors are stored in a separate file.
+ * Both files are only appended to, the header with the counts is written last.</p>
+ */
+final class HgCommitIndex {
+  private static final Logger LOG = Logger.getInstance(HgCommitIndex.class);
+
+  private static final BaseEncoding HEX = BaseEncoding.base16().lowerCase();
+  private static final int MAGIC = 0x4867_4349;
+  private static final int VERSION = 1;
+  // magic, version, commit count, author count, authors file length, visibility stamp
+  private static final int HEADER_SIZE = 4 + 4 + 4 + 4 + 8 + 8;
+  // revision, node, parent revisions, time, author
+  private static final int RECORD_SIZE = 4 + HgRevlog.NODE_SIZE + 4 + 4 + 8 + 4;
+  private static final String[] GRAPH_TEMPLATE = {"{rev}", "{node}", "{p1rev} {p2rev}", "{date|hgdate}", "{author}"};
+
+  @Nonnull
+  private final File myIndexFile;
+  @Nonnull
+  private final File myAuthorsFile;
+  private final HgCommitGraph myGraph = new HgCommitGraph();
+  private final HgReachabilityIndex myReachability = new HgReachabilityIndex();
+  private final HgCommitTextStore myTexts = new HgCommitTextStore();
+  private long myVisibilityStamp;
+
+  // what is already written to disk
+  private int myPersistedCount;
+  private int myPersistedAuthorCount;
+  private long myPersistedAuthorsLength;
+
+  private HgCommitIndex(@Nonnull File indexFile, @Nonnull File authorsFile) {
+    myIndexFile = indexFile;
+    myAuthorsFile = authorsFile;
+  }
+
+  /**
+   * Loads the index of the repository from the system directory, an absent or broken index is loaded as empty.
+   */
+  @Nonnull
+  static HgCommitIndex load(@Nonnull VirtualFile root) {
+    File dir = new File(ContainerPathManager.get().getSystemPath(), "hg4idea/log");
+    String name = root.getName().replaceAll("[^\\w.-]", "_") + "." + Integer.toHexString(root.getPath().hashCode());
+    return load(new File(dir, name + ".index"), new File(dir, name + ".authors"));
+  }
+
+  @Nonnull
+  static HgCommitIndex load(@Nonnull File indexFile, @Nonnull File authorsFile) {
+    HgCommitIndex index = new HgCommitIndex(indexFile, authorsFile);
+    try {
+      index.read();
+    }
+    catch (IOException e) {
+      LOG.info("Couldn't load the commit index " + indexFile + ", it will be rebuilt", e);
+      index.clear();
+    }
+    return index;
+  }
+
+  private void read() throws IOException {
+    if (!myIndexFile.exists()) {
+      return;
+    }
+    try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(myIndexFile)))) {
+      if (input.readInt() != MAGIC || input.readInt() != VERSION) {
+        throw new IOException("Unknown index format");
+      }
+      int count = input.readInt();
+      int authorCount = input.readInt();
+      long authorsLength = input.readLong();
+      long visibilityStamp = input.readLong();
+      if (count < 0 || authorCount < 0 || myIndexFile.length() < HEADER_SIZE + (long)count * RECORD_SIZE) {
+        throw new IOException("Truncated index");
+      }
+      readAuthors(authorCount, authorsLength);
+      myGraph.ensureCapacity(count);
+      byte[] record = new byte[RECORD_SIZE];
+      ByteBuffer buffer = ByteBuffer.wrap(record);
+      int previous = HgRevlog.NULL_REVISION;
+      for (int i = 0; i < count; i++) {
+        input.readFully(record);
+        buffer.clear();
+        int revision = buffer.getInt();
+        buffer.position(buffer.position() + HgRevlog.NODE_SIZE);
+        int parent1 = buffer.getInt();
+        int parent2 = buffer.getInt();
+        long time = buffer.getLong();
+        int author = buffer.getInt();
+        if (author < 0 || author >= authorCount || revision <= previous) {
+          throw new IOException("Broken index record " + i);
+        }
+        myGraph.add(revision, record, 4, parent1, parent2, time, author);
+        previous = revision;
+      }
+      myVisibilityStamp = visibilityStamp;
+      myPersistedCount = count;
+      myPersistedAuthorCount = authorCount;
+      myPersistedAuthorsLength = authorsLength;
+    }
+  }
+
+  private void readAuthors(int authorCount, long authorsLength) throws IOException {
+    if (myAuthorsFile.length() < authorsLength) {
+      throw new IOException("Truncated authors");
+    }
+    try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(myAuthorsFile)))) {
+      for (int i = 0; i < authorCount; i++) {
+        myGraph.internAuthor(input.readUTF());
+      }
+    }
+  }
+
+  /**
+   * Reads the commits which are not indexed yet and saves the index.
+   *
+   * @return false if the repository couldn't be read, the index is unusable then
+   */
+  synchronized boolean update(@Nonnull Project project, @Nonnull VirtualFile root, @Nonnull VcsLogObjectsFactory factory) {
+    File hgDir = new File(root.getPath(), HgUtil.DOT_HG);
+    try {
+      long visibilityStamp = getVisibilityStamp(hgDir);
+      if (visibilityStamp != myVisibilityStamp) {
+        clear();
+        myVisibilityStamp = visibilityStamp;
+      }
+    }
+    catch (IOException e) {
+      LOG.info("Couldn't read the store of " + root.getPath(), e);
+      return false;
+    }
+
+    boolean updated;
+    try (HgChangelogReader reader = HgChangelogReader.open(root, factory)) {
+      updated = reader != null && updateFromChangelog(reader);
+    }
+    catch (IOException | IndexOutOfBoundsException e) {
+      LOG.info("Couldn't read the changelog of " + root.getPath() + ", reading it by hg", e);
+      updated = false;
+    }
+    if (!updated && !updateByHg(project, root)) {
+      return false;
+    }
+
+    try {
+      save();
+    }
+    catch (IOException e) {
+      LOG.warn("Couldn't save the commit index of " + root.getPath(), e);
+      myPersistedCount = 0;
+    }
+    return true;
+  }
+
+  private boolean updateFromChangelog(@Nonnull HgChangelogReader reader) throws IOException {
+    int size = myGraph.size();
+    if (size > 0 && (myGraph.getRevision(size - 1) != size - 1 || !reader.isRevision(size - 1, getNode(size - 1)))) {
+      LOG.debug("Indexed commits were stripped, rebuilding the commit index");
+      clear();
+    }
+    int indexed = myGraph.size();
+    try {
+      reader.readRevisions(indexed, (revision, node, parent1, parent2, time, author) ->
+        myGraph.add(revision, node, 0, parent1, parent2, time, myGraph.internAuthor(author)));
+    }
+    catch (IOException e) {
+      // don't keep a part of new revisions, hg will read them again
+      truncate(indexed);
+      throw e;
+    }
+    return true;
+  }
+
+  private boolean updateByHg(@Nonnull Project project, @Nonnull VirtualFile root) {
+    HgVcs hgvcs = HgVcs.getInstance(project);
+    if (hgvcs == null) {
+      return false;
+    }
+    HgVersion version = hgvcs.getVersion();
+    int size = myGraph.size();
+    if (size > 0) {
+      // the range starts from the last indexed revision to check that it wasn't stripped
+      int last = myGraph.getRevision(size - 1);
+      if (readByHg(project, root, version, last + ":tip", getNode(size - 1), true)) {
+        return true;
+      }
+      LOG.debug("Indexed commits were stripped, rebuilding the commit index");
+      clear();
+    }
+    return readByHg(project, root, version, "all()", null, false);
+  }
+
+  /**
+   * Adds commits printed by hg log for the revset to the graph.
+   *
+   * @param expectedFirst node of the first printed commit, which is already indexed and is not added, or null to add all commits
+   * @return false if the log failed or the first commit is not the expected one
+   */
+  private boolean readByHg(@Nonnull Project project,
+                           @Nonnull VirtualFile root,
+                           @Nonnull HgVersion version,
+                           @Nonnull String revset,
+                           @Nullable byte[] expectedFirst,
+                           boolean silent) {
+    int indexed = myGraph.size();
+    // whether the expected first commit is still awaited, and whether another commit came instead
+    boolean[] awaitingFirst = {expectedFirst != null};
+    boolean[] mismatch = {false};
+    HgOutputRecordConsumer consumer = createGraphRecordConsumer(version, (revision, node, parent1, parent2, time, author) -> {
+      if (awaitingFirst[0]) {
+        awaitingFirst[0] = false;
+        mismatch[0] = !Arrays.equals(node, expectedFirst);
+        return !mismatch[0];
+      }
+      myGraph.add(revision, node, 0, parent1, parent2, time, myGraph.internAuthor(author));
+      return true;
+    });
+    String template = version.isParentRevisionTemplateSupported()
+                      ? HgChangesetUtil.makeTemplate(GRAPH_TEMPLATE)
+                      : HgChangesetUtil.makeTemplate(ArrayUtil.toStringArray(HgBaseLogParser.constructDefaultTemplate(version)));
+    HgCommandResult result = HgHistoryUtil.streamLog(project, root, version, -1, Arrays.asList("-r", revset), template, consumer);
+    if (result == null || result.getExitValue() != 0 || awaitingFirst[0] || mismatch[0]) {
+      if (!silent && result != null && !result.getErrorLines().isEmpty()) {
+        LOG.warn(result.getRawError());
+      }
+      truncate(indexed);
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Creates the parser of records printed with {@link #GRAPH_TEMPLATE}, which reads fields by separator positions without
+   * creating intermediate objects per field. Old hg versions can't print parent revisions, their records are parsed by
+   * {@link HgBaseLogParser}.
+   */
+  @Nonnull
+  private static HgOutputRecordConsumer createGraphRecordConsumer(@Nonnull HgVersion version, @Nonnull GraphRecordConsumer consumer) {
+    if (!version.isParentRevisionTemplateSupported()) {
+      HgBaseLogParser<Boolean> parser = new HgBaseLogParser<Boolean>() {
+        @Override
+        protected Boolean convertDetails(@Nonnull String rev,
+                                         @Nonnull String changeset,
+                                         @Nonnull SmartList<HgRevisionNumber> parents,
+                                         @Nonnull Date revisionDate,
+                                         @Nonnull String author,
+                                         @Nonnull String email,
+                                         @Nonnull List<String> attributes) {
+          int parent1 = parents.size() > 0 ? (int)parents.get(0).getRevisionAsLong() : HgRevlog.NULL_REVISION;
+          int parent2 = parents.size() > 1 ? (int)parents.get(1).getRevisionAsLong() : HgRevlog.NULL_REVISION;
+          String fullAuthor = email.isEmpty() ? author : author.isEmpty() ? email : author + " <" + email + ">";
+          return consumer.accept(Integer.parseInt(rev), HEX.decode(changeset), parent1, parent2, revisionDate.getTime(), fullAuthor);
+        }
+      };
+      return record -> !Boolean.FALSE.equals(parser.convert(record));
+    }
+    char separator = HgChangesetUtil.ITEM_SEPARATOR.charAt(0);
+    return record -> {
+      int revisionEnd = record.indexOf(separator);
+      int nodeEnd = record.indexOf(separator, revisionEnd + 1);
+      int parentsSplit = record.indexOf(' ', nodeEnd + 1);
+      int parentsEnd = record.indexOf(separator, nodeEnd + 1);
+      int timeEnd = record.indexOf(' ', parentsEnd + 1);
+      int dateEnd = record.indexOf(separator, parentsEnd + 1);
+      int authorEnd = record.indexOf(separator, dateEnd + 1);
+      if (revisionEnd < 0 || nodeEnd < 0 || parentsEnd < 0 || dateEnd < 0 || authorEnd < 0 ||
+          parentsSplit < 0 || parentsSplit > parentsEnd || timeEnd < 0 || timeEnd > dateEnd) {
+        LOG.warn("Couldn't parse hg log record " + record);
+        return true;
+      }
+      try {
+        return consumer.accept(Integer.parseInt(record, 0, revisionEnd, 10),
+                               HEX.decode(record.substring(revisionEnd + 1, nodeEnd)),
+                               Integer.parseInt(record, nodeEnd + 1, parentsSplit, 10),
+                               Integer.parseInt(record, parentsSplit + 1, parentsEnd, 10),
+                               Long.parseLong(record, parentsEnd + 1, timeEnd, 10) * 1000,
+                               record.substring(dateEnd + 1, authorEnd));
+      }
+      catch (IllegalArgumentException e) {
+        LOG.warn("Couldn't parse hg log record " + record, e);
+        return true;
+      }
+    };
+  }
+
+  private interface GraphRecordConsumer {
+    /**
+     * @return false to stop reading
+     */
+    boolean accept(int revision, @Nonnull byte[] node, int parent1, int parent2, long time, @Nonnull String author);
+  }
+
+  /**
+   * Passes all indexed commits to the consumer from the newest revision down, as {@code hg log} does.
+   */
+  synchronized void readAllCommits(@Nonnull VcsLogObjectsFactory factory,
+                                   @Nonnull Consumer<VcsUser> userRegistry,
+                                   @Nonnull Consumer<TimedVcsCommit> commitConsumer) {
+    myGraph.readAllCommits(factory, userRegistry, commitConsumer);
+  }
+
+  /**
+   * @return indexed revision numbers in ascending order
+   */
+  @Nonnull
+  synchronized int[] getRevisions() {
+    return myGraph.getRevisions();
+  }
+
+  /**
+   * @param targets branch heads and bookmarks by the nodes they point to
+   * @return names of the targets containing the commit, or null if the commit is not indexed
+   */
+  @Nullable
+  synchronized Collection<String> getContainingLabels(@Nonnull String node, @Nonnull Map<String, ? extends Collection<String>> targets) {
+    myReachability.update(myGraph, targets);
+    return myReachability.getContainingLabels(myGraph, node);
+  }
+
+  /**
+   * @param reader the changelog to read descriptions and changed files from if the filter needs them,
+   *               null if the changelog can't be read directly
+   * @return matching commits from the newest down, or null if the filter can't be evaluated here
+   */
+  @Nullable
+  synchronized List<TimedVcsCommit> filter(@Nonnull HgLocalLogFilter filter,
+                                           @Nullable HgChangelogReader reader,
+                                           @Nonnull VcsLogObjectsFactory factory,
+                                           int maxCount) {
+    if (filter.needsTexts()) {
+      try {
+        if (reader == null || !updateTexts(reader)) {
+          return null;
+        }
+      }
+      catch (IOException | IndexOutOfBoundsException e) {
+        LOG.info("Couldn't read commit texts from the changelog", e);
+        return null;
+      }
+    }
+    return filter.filter(myGraph, filter.needsTexts() ? myTexts : null, factory, maxCount);
+  }
+
+  private boolean updateTexts(@Nonnull HgChangelogReader reader) throws IOException {
+    int size = myGraph.size();
+    // texts are read by revision numbers, which are graph positions only if no commits are hidden
+    if (size > 0 && (myGraph.getRevision(size - 1) != size - 1 || !reader.isRevision(size - 1, getNode(size - 1)))) {
+      return false;
+    }
+    // a failure leaves a consistent prefix, the rest is read next time
+    reader.readTexts(myTexts.size(), size, (revision, description, files) -> myTexts.add(description, files));
+    return true;
+  }
+
+  @Nullable
+  synchronized String getTipNode() {
+    return myGraph.size() == 0 ? null : myGraph.getNodeHex(myGraph.size() - 1);
+  }
+
+  @Nonnull
+  private byte[] getNode(int index) {
+    byte[] node = new byte[HgRevlog.NODE_SIZE];
+    myGraph.getNode(index, node, 0);
+    return node;
+  }
+
+  private void truncate(int count) {
+    myGraph.truncate(count);
+    myReachability.clear();
+    myTexts.clear();
+    myPersistedCount = Math.min(myPersistedCount, count);
+  }
+
+  private void clear() {
+    myGraph.clear();
+    myReachability.clear();
+    myTexts.clear();
+    myPersistedCount = 0;
+    myPersistedAuthorCount = 0;
+    myPersistedAuthorsLength = 0;
+  }
+
+  private void save() throws IOException {
+    File dir = myIndexFile.getParentFile();
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      throw new IOException("Couldn't create " + dir);
+    }
+    try (RandomAccessFile authors = new RandomAccessFile(myAuthorsFile, "rw")) {
+      // drop what could be left by an interrupted save
+      authors.setLength(myPersistedAuthorsLength);
+      authors.seek(myPersistedAuthorsLength);
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream output = new DataOutputStream(bytes);
+      for (int i = myPersistedAuthorCount; i < myGraph.getAuthorCount(); i++) {
+        output.writeUTF(myGraph.getAuthorName(i));
+      }
+      authors.write(bytes.toByteArray());
+      myPersistedAuthorsLength = authors.length();
+      myPersistedAuthorCount = myGraph.getAuthorCount();
+    }
+
+    try (RandomAccessFile index = new RandomAccessFile(myIndexFile, "rw")) {
+      if (myPersistedCount == 0) {
+        // an interrupted rebuild must not leave the old header over new records
+        index.write(createHeader(0));
+      }
+      index.setLength(HEADER_SIZE + (long)myPersistedCount * RECORD_SIZE);
+      index.seek(HEADER_SIZE + (long)myPersistedCount * RECORD_SIZE);
+      ByteBuffer records = ByteBuffer.allocate(64 * RECORD_SIZE);
+      byte[] node = new byte[HgRevlog.NODE_SIZE];
+      for (int i = myPersistedCount; i < myGraph.size(); i++) {
+        myGraph.getNode(i, node, 0);
+        records.putInt(myGraph.getRevision(i));
+        records.put(node);
+        records.putInt(myGraph.getParent1(i));
+        records.putInt(myGraph.getParent2(i));
+        records.putLong(myGraph.getTime(i));
+        records.putInt(myGraph.getAuthor(i));
+        if (!records.hasRemaining()) {
+          index.write(records.array(), 0, records.position());
+          records.clear();
+        }
+      }
+      index.write(records.array(), 0, records.position());
+      index.seek(0);
+      index.write(createHeader(myGraph.size()));
+      myPersistedCount = myGraph.size();
+    }
+  }
+
+  @Nonnull
+  private byte[] createHeader(int count) {
+    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+    header.putInt(MAGIC).putInt(VERSION).putInt(count).putInt(myPersistedAuthorCount)
+      .putLong(myPersistedAuthorsLength).putLong(myVisibilityStamp);
+    return header.array();
+  }
+
+  private static long getVisibilityStamp(@Nonnull File hgDir) throws IOException {
+    File markers = HgChangelogReader.getObsoleteMarkersFile(HgChangelogReader.findStoreDir(hgDir));
+    return markers.length() * 31 + markers.lastModified();
+  }
+}
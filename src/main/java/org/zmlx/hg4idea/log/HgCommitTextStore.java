@@ -0,0 +1,128 @@
+/*
+ * Copyright 2013-2025 consulo.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zmlx.hg4idea.log;
+
+import consulo.util.collection.ArrayUtil;
+import jakarta.annotation.Nonnull;
+
+import java.nio.CharBuffer;
+import java.util.*;
+
+/**
+ * <p>Descriptions and changed files of the commits of a {@link HgCommitGraph graph}, in the same positions, for filtering the log in-process.</p>
+ * <p>Descriptions are kept in one char array with end offsets, changed files as ids of paths from a pool,
+ * so a filter scans flat arrays instead of objects of the log API. The store is filled on the first text or structure filter
+ * and only grows afterwards. The store is not thread-safe.</p>
+ */
+final class HgCommitTextStore {
+  private int mySize;
+  @Nonnull
+  private char[] myMessages = new char[0];
+  private int myMessagesLength;
+  @Nonnull
+  private int[] myMessageEnds = ArrayUtil.EMPTY_INT_ARRAY;
+  @Nonnull
+  private int[] myFiles = ArrayUtil.EMPTY_INT_ARRAY;
+  private int myFilesLength;
+  @Nonnull
+  private int[] myFileEnds = ArrayUtil.EMPTY_INT_ARRAY;
+  private final List<String> myPaths = new ArrayList<>();
+  private final Map<String, Integer> myPathIds = new HashMap<>();
+
+  int size() {
+    return mySize;
+  }
+
+  /**
+   * @return the description of the commit, backed by the store
+   */
+  @Nonnull
+  CharSequence getMessage(int index) {
+    int start = index == 0 ? 0 : myMessageEnds[index - 1];
+    return CharBuffer.wrap(myMessages, start, myMessageEnds[index] - start);
+  }
+
+  int getFilesStart(int index) {
+    return index == 0 ? 0 : myFileEnds[index - 1];
+  }
+
+  int getFilesEnd(int index) {
+    return myFileEnds[index];
+  }
+
+  /**
+   * @param offset offset between {@link #getFilesStart} and {@link #getFilesEnd} of a commit
+   * @return id of the changed file in the path pool
+   */
+  int getFile(int offset) {
+    return myFiles[offset];
+  }
+
+  @Nonnull
+  String getPath(int id) {
+    return myPaths.get(id);
+  }
+
+  int getPathCount() {
+    return myPaths.size();
+  }
+
+  void add(@Nonnull String message, @Nonnull List<String> files) {
+    if (mySize == myMessageEnds.length) {
+      int capacity = mySize + (mySize >> 1) + 16;
+      myMessageEnds = Arrays.copyOf(myMessageEnds, capacity);
+      myFileEnds = Arrays.copyOf(myFileEnds, capacity);
+    }
+
+    if (myMessagesLength + message.length() > myMessages.length) {
+      myMessages = Arrays.copyOf(myMessages, Math.max(myMessagesLength + message.length(), myMessages.length + (myMessages.length >> 1) + 1024));
+    }
+    message.getChars(0, message.length(), myMessages, myMessagesLength);
+    myMessagesLength += message.length();
+    myMessageEnds[mySize] = myMessagesLength;
+
+    if (myFilesLength + files.size() > myFiles.length) {
+      myFiles = Arrays.copyOf(myFiles, Math.max(myFilesLength + files.size(), myFiles.length + (myFiles.length >> 1) + 256));
+    }
+    for (String file : files) {
+      myFiles[myFilesLength++] = internPath(file);
+    }
+    myFileEnds[mySize] = myFilesLength;
+    mySize++;
+  }
+
+  private int internPath(@Nonnull String path) {
+    Integer id = myPathIds.get(path);
+    if (id != null) {
+      return id;
+    }
+    myPaths.add(path);
+    myPathIds.put(path, myPaths.size() - 1);
+    return myPaths.size() - 1;
+  }
+
+  void clear() {
+    mySize = 0;
+    myMessages = new char[0];
+    myMessagesLength = 0;
+    myMessageEnds = ArrayUtil.EMPTY_INT_ARRAY;
+    myFiles = ArrayUtil.EMPTY_INT_ARRAY;
+    myFilesLength = 0;
+    myFileEnds = ArrayUtil.EMPTY_INT_ARRAY;
+    myPaths.clear();
+    myPathIds.clear();
+  }
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright 2013-2025 consulo.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zmlx.hg4idea.log;
+
+import consulo.application.util.concurrent.AppExecutorUtil;
+import consulo.logging.Logger;
+import consulo.project.Project;
+import consulo.versionControlSystem.VcsException;
+import consulo.versionControlSystem.log.VcsFullCommitDetails;
+import consulo.versionControlSystem.log.VcsLogObjectsFactory;
+import consulo.virtualFileSystem.VirtualFile;
+import jakarta.annotation.Nonnull;
+import jakarta.annotation.Nullable;
+import org.zmlx.hg4idea.execution.HgCommandResult;
+import org.zmlx.hg4idea.util.HgVersion;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * <p>Reads full details of all commits of a repository for the log index.</p>
+ * <p>History is read by ranges of {@link #BATCH_SIZE} revisions from the tip down, one hg log process per range. Records are parsed
+ * by chunks on the application pool while hg keeps printing, and commits are passed to the consumer in the calling thread
+ * in the log order.</p>
+ * <p>After each range the next one is remembered as a checkpoint, so if indexing is interrupted, the next run for the same tip
+ * continues from the checkpoint. This relies on the platform keeping the commits delivered before the run was interrupted
+ * by cancellation of hg or by an error of it. If the consumer itself throws, it may not have stored them, so the checkpoint
+ * is dropped and the next run reads everything again. The checkpoint is kept in memory only, because after a restart
+ * the platform index could have lost unsaved commits.</p>
+ */
+final class HgFullDetailsLoader {
+  private static final Logger LOG = Logger.getInstance(HgFullDetailsLoader.class);
+
+  private static final int BATCH_SIZE = 2000;
+  private static final int CHUNK_SIZE = 100;
+  private static final int MAX_PENDING_CHUNKS = Math.max(2, Runtime.getRuntime().availableProcessors() * 2);
+
+  @Nonnull
+  private final Project myProject;
+  @Nonnull
+  private final VcsLogObjectsFactory myFactory;
+  // root path -> checkpoint of an interrupted run
+  private final Map<String, Checkpoint> myCheckpoints = new ConcurrentHashMap<>();
+
+  HgFullDetailsLoader(@Nonnull Project project, @Nonnull VcsLogObjectsFactory factory) {
+    myProject = project;
+    myFactory = factory;
+  }
+
+  /**
+   * @param revisions visible revision numbers of the repository in ascending order
+   * @param tipNode   node of the tip revision, a checkpoint made for another tip is ignored
+   */
+  void readAllFullDetails(@Nonnull VirtualFile root,
+                          @Nonnull HgVersion version,
+                          @Nonnull int[] revisions,
+                          @Nonnull String tipNode,
+                          @Nonnull Consumer<VcsFullCommitDetails> commitConsumer) throws VcsException {
+    int high = revisions.length - 1;
+    Checkpoint checkpoint = myCheckpoints.get(root.getPath());
+    if (checkpoint != null && checkpoint.myNextIndex >= 0 &&
+        checkpoint.myTipNode.equals(tipNode) && checkpoint.myRevisionCount == revisions.length) {
+      LOG.debug("Resuming reading of full details of " + root.getPath() + " from revision " + revisions[checkpoint.myNextIndex]);
+      high = checkpoint.myNextIndex;
+    }
+
+    String template = HgHistoryUtil.getFullDetailsTemplate(version);
+    Function<String, VcsFullCommitDetails> converter = HgHistoryUtil.createFullDetailsConverter(myProject, root, version, myFactory);
+    Consumer<VcsFullCommitDetails> consumer = commit -> {
+      try {
+        commitConsumer.accept(commit);
+      }
+      catch (RuntimeException | Error e) {
+        myCheckpoints.remove(root.getPath());
+        throw e;
+      }
+    };
+    while (high >= 0) {
+      int low = Math.max(0, high - BATCH_SIZE + 1);
+      // range ends are visible revisions: hg refuses a range ending with a hidden one
+      List<String> range = Arrays.asList("-r", revisions[high] + ":" + revisions[low]);
+      Pipeline pipeline = new Pipeline(converter, consumer);
+      try {
+        HgCommandResult result = HgHistoryUtil.streamLog(myProject, root, version, -1, range, template, pipeline::add);
+        pipeline.finish();
+        if (result == null) {
+          throw new VcsException("Couldn't read full details of commits: log command execution error.");
+        }
+        if (result.getExitValue() != 0) {
+          throw new VcsException(result.getRawError());
+        }
+      }
+      finally {
+        pipeline.cancel();
+      }
+      high = low - 1;
+      myCheckpoints.put(root.getPath(), new Checkpoint(tipNode, revisions.length, high));
+    }
+    myCheckpoints.remove(root.getPath());
+  }
+
+  /**
+   * Parses chunks of records on the application pool, keeping at most {@link #MAX_PENDING_CHUNKS} of them in memory.
+   */
+  private static final class Pipeline {
+    @Nonnull
+    private final Function<String, VcsFullCommitDetails> myConverter;
+    @Nonnull
+    private final Consumer<VcsFullCommitDetails> myConsumer;
+    private final Deque<Future<List<VcsFullCommitDetails>>> myPending = new ArrayDeque<>();
+    @Nonnull
+    private List<String> myChunk = new ArrayList<>(CHUNK_SIZE);
+    @Nullable
+    private VcsException myError;
+
+    private Pipeline(@Nonnull Function<String, VcsFullCommitDetails> converter, @Nonnull Consumer<VcsFullCommitDetails> consumer) {
+      myConverter = converter;
+      myConsumer = consumer;
+    }
+
+    /**
+     * @return false to stop reading if a chunk couldn't be parsed, the error is thrown by {@link #finish}
+     */
+    private boolean add(@Nonnull String record) {
+      myChunk.add(record);
+      if (myChunk.size() == CHUNK_SIZE) {
+        submitChunk();
+      }
+      try {
+        deliver(myPending.size() >= MAX_PENDING_CHUNKS);
+        return true;
+      }
+      catch (VcsException e) {
+        myError = e;
+        return false;
+      }
+    }
+
+    private void finish() throws VcsException {
+      if (myError != null) {
+        throw myError;
+      }
+      submitChunk();
+      while (!myPending.isEmpty()) {
+        deliver(true);
+      }
+    }
+
+    private void submitChunk() {
+      if (myChunk.isEmpty()) {
+        return;
+      }
+      List<String> chunk = myChunk;
+      myChunk = new ArrayList<>(CHUNK_SIZE);
+      myPending.addLast(AppExecutorUtil.getAppExecutorService().submit(() -> {
+        List<VcsFullCommitDetails> details = new ArrayList<>(chunk.size());
+        for (String record : chunk) {
+          VcsFullCommitDetails commit = myConverter.apply(record);
+          if (commit != null) {
+            details.add(commit);
+          }
+        }
+        return details;
+      }));
+    }
+
+    /**
+     * Passes parsed chunks to the consumer in the order of submission.
+     *
+     * @param waitForFirst whether to wait for the first pending chunk if it is not parsed yet
+     */
+    private void deliver(boolean waitForFirst) throws VcsException {
+      while (!myPending.isEmpty() && (waitForFirst || myPending.peekFirst().isDone())) {
+        waitForFirst = false;
+        List<VcsFullCommitDetails> details;
+        try {
+          details = myPending.pollFirst().get();
+        }
+        catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new VcsException(e);
+        }
+        catch (ExecutionException e) {
+          throw new VcsException(e.getCause());
+        }
+        details.forEach(myConsumer);
+      }
+    }
+
+    private void cancel() {
+      for (Future<?> future : myPending) {
+        future.cancel(false);
+      }
+      myPending.clear();
+    }
+  }
+
+  private static final class Checkpoint {
+    @Nonnull
+    private final String myTipNode;
+    private final int myRevisionCount;
+    // index of the highest revision which is not read yet
+    private final int myNextIndex;
+
+    private Checkpoint(@Nonnull String tipNode, int revisionCount, int nextIndex) {
+      myTipNode = tipNode;
+      myRevisionCount = revisionCount;
+      myNextIndex = nextIndex;
+    }
+  }
+}
@@ -30,7 +30,6 @@ import consulo.versionControlSystem.change.ChangeListManager;
 import consulo.versionControlSystem.change.ContentRevision;
 import consulo.versionControlSystem.change.CurrentContentRevision;
 import consulo.versionControlSystem.log.*;
-import consulo.versionControlSystem.util.VcsFileUtil;
 import consulo.versionControlSystem.util.VcsUtil;
 import consulo.virtualFileSystem.VirtualFile;
 import consulo.virtualFileSystem.status.FileStatus;
@@ -39,6 +38,7 @@ import jakarta.annotation.Nullable;
 import org.zmlx.hg4idea.*;
 import org.zmlx.hg4idea.command.HgLogCommand;
 import org.zmlx.hg4idea.execution.HgCommandResult;
+import org.zmlx.hg4idea.execution.HgOutputRecordConsumer;
 import org.zmlx.hg4idea.provider.HgChangeProvider;
 import org.zmlx.hg4idea.util.HgChangesetUtil;
 import org.zmlx.hg4idea.util.HgUtil;
@@ -48,10 +48,15 @@ import java.io.File;
 import java.util.*;
 import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.function.ObjIntConsumer;
+import java.util.function.Predicate;
 
 public class HgHistoryUtil {
 
   private static final Logger LOG = Logger.getInstance(HgHistoryUtil.class);
+  // a 40-character hash with a separator takes 41 characters, so a batch holds about 190 commits
+  private static final int MAX_REVSET_LENGTH = 8000;
+  private static final int FULL_HASH_LENGTH = 40;
 
   private HgHistoryUtil() {
   }
@@ -60,6 +65,18 @@ public class HgHistoryUtil {
   public static List<VcsCommitMetadata> loadMetadata(@Nonnull final Project project,
                                                      @Nonnull final VirtualFile root, int limit,
                                                      @Nonnull List<String> parameters) throws VcsException {
+    return loadMetadata(project, root, limit, parameters, (commit, revision) -> {
+    });
+  }
+
+  /**
+   * Same as {@link #loadMetadata(Project, VirtualFile, int, List)}, but also passes each commit with its revision number to the consumer.
+   */
+  @Nonnull
+  public static List<VcsCommitMetadata> loadMetadata(@Nonnull final Project project,
+                                                     @Nonnull final VirtualFile root, int limit,
+                                                     @Nonnull List<String> parameters,
+                                                     @Nonnull ObjIntConsumer<VcsCommitMetadata> revisionConsumer) throws VcsException {
 
     final VcsLogObjectsFactory factory = getObjectsFactoryWithDisposeCheck(project);
     if (factory == null) {
@@ -71,7 +88,6 @@ public class HgHistoryUtil {
     List<String> templateList = HgBaseLogParser.constructDefaultTemplate(version);
     templateList.add("{desc}");
     String[] templates = ArrayUtil.toStringArray(templateList);
-    HgCommandResult result = getLogResult(project, root, version, limit, parameters, HgChangesetUtil.makeTemplate(templates));
     HgBaseLogParser<VcsCommitMetadata> baseParser = new HgBaseLogParser<VcsCommitMetadata>() {
 
       @Override
@@ -88,11 +104,13 @@ public class HgHistoryUtil {
         for (HgRevisionNumber parent : parents) {
           parentsHash.add(factory.createHash(parent.getChangeset()));
         }
-        return factory.createCommitMetadata(factory.createHash(changeset), parentsHash, revisionDate.getTime(), root,
-                                            subject, author, email, message, author, email, revisionDate.getTime());
+        VcsCommitMetadata metadata = factory.createCommitMetadata(factory.createHash(changeset), parentsHash, revisionDate.getTime(), root,
+                                                                  subject, author, email, message, author, email, revisionDate.getTime());
+        revisionConsumer.accept(metadata, Integer.parseInt(rev));
+        return metadata;
       }
     };
-    return getCommitRecords(project, result, baseParser);
+    return readCommitRecords(project, root, version, limit, parameters, HgChangesetUtil.makeTemplate(templates), baseParser, false);
   }
 
   @Nonnull
@@ -107,8 +125,8 @@ public class HgHistoryUtil {
    * <p>Get & parse hg log detailed output with commits, their parents and their changes.
    * For null destination return log command result</p>
    * <p/>
-   * <p>Warning: this is method is efficient by speed, but don't query too much, because the whole log output is retrieved at once,
-   * and it can occupy too much memory. The estimate is ~600Kb for 1000 commits.</p>
+   * <p>The log output is parsed changeset by changeset while it is read, but all parsed commits are returned at once,
+   * so don't query too much: the estimate is ~600Kb for 1000 commits. Use {@link #readFullDetails} to process commits one by one.</p>
    */
   @Nonnull
   public static List<? extends VcsFullCommitDetails> history(@Nonnull final Project project,
@@ -118,16 +136,117 @@ public class HgHistoryUtil {
     HgVcs hgvcs = HgVcs.getInstance(project);
     assert hgvcs != null;
     final HgVersion version = hgvcs.getVersion();
-    final String[] templates = HgBaseLogParser.constructFullTemplateArgument(true, version);
 
-    return VcsFileUtil.foreachChunk(hashParameters, 2,
-                                    strings -> {
-                                      HgCommandResult logResult =
-                                        getLogResult(project, root, version, limit, strings, HgChangesetUtil.makeTemplate(templates));
-                                      if (logResult == null) return Collections.emptyList();
-                                      if (!logResult.getErrorLines().isEmpty()) throw new VcsException(logResult.getRawError());
-                                      return createFullCommitsFromResult(project, root, logResult, version, silent);
-                                    });
+    List<VcsFullCommitDetails> details = new ArrayList<>();
+    readFullDetails(project, root, version, limit, hashParameters, details::add);
+    return details;
+  }
+
+  /**
+   * Reads full details of the given commits with as few hg processes as possible, see {@link #prepareRevisionBatches}.
+   *
+   * @return details in the order of the given hashes
+   */
+  @Nonnull
+  public static List<? extends VcsFullCommitDetails> readFullDetails(@Nonnull Project project,
+                                                                     @Nonnull VirtualFile root,
+                                                                     @Nonnull List<String> hashes) throws VcsException {
+    HgVcs hgvcs = HgVcs.getInstance(project);
+    assert hgvcs != null;
+    HgVersion version = hgvcs.getVersion();
+
+    List<VcsFullCommitDetails> details = new ArrayList<>(hashes.size());
+    readFullDetails(project, root, version, hashes, details::add);
+    return orderByHashes(details, hashes);
+  }
+
+  /**
+   * Reads full details of the given commits batch by batch, see {@link #prepareRevisionBatches}. If hg still rejects a batch,
+   * e.g. an old hg which doesn't tolerate an unknown hash in {@code id()}, the hashes of the batch are read one by one
+   * and the ones hg can't find are skipped. hg looks up the whole revset before printing anything, so no commit is passed twice.
+   *
+   * @throws VcsException if no commit of a failed batch could be read
+   */
+  public static void readFullDetails(@Nonnull Project project,
+                                     @Nonnull VirtualFile root,
+                                     @Nonnull HgVersion version,
+                                     @Nonnull List<String> hashes,
+                                     @Nonnull Consumer<VcsFullCommitDetails> commitConsumer) throws VcsException {
+    for (List<String> batch : splitIntoBatches(hashes)) {
+      try {
+        readFullDetails(project, root, version, -1, toRevisionArguments(batch), commitConsumer);
+      }
+      catch (VcsException e) {
+        if (batch.size() == 1) {
+          throw e;
+        }
+        LOG.info("Couldn't read a batch of " + batch.size() + " commits, reading them one by one", e);
+        boolean anyRead = false;
+        for (String hash : batch) {
+          try {
+            readFullDetails(project, root, version, -1, toRevisionArguments(Collections.singletonList(hash)), commitConsumer);
+            anyRead = true;
+          }
+          catch (VcsException singleError) {
+            LOG.info("Couldn't read commit " + hash, singleError);
+          }
+        }
+        if (!anyRead) {
+          throw e;
+        }
+      }
+    }
+  }
+
+  /**
+   * Reads commits with their changes and passes them to the consumer one by one, as soon as each of them is read from hg log.
+   *
+   * @throws VcsException if hg reported any error; the commits read before the error could be already passed to the consumer
+   */
+  public static void readFullDetails(@Nonnull Project project,
+                                     @Nonnull VirtualFile root,
+                                     @Nonnull HgVersion version,
+                                     int limit,
+                                     @Nonnull List<String> parameters,
+                                     @Nonnull Consumer<VcsFullCommitDetails> commitConsumer) throws VcsException {
+    final VcsLogObjectsFactory factory = getObjectsFactoryWithDisposeCheck(project);
+    if (factory == null) {
+      return;
+    }
+    Function<String, VcsFullCommitDetails> converter = createFullDetailsConverter(project, root, version, factory);
+    HgCommandResult logResult =
+      streamLog(project, root, version, limit, parameters, getFullDetailsTemplate(version), record -> {
+        VcsFullCommitDetails details = converter.apply(record);
+        if (details != null) {
+          commitConsumer.accept(details);
+        }
+        return true;
+      });
+    if (logResult != null && !logResult.getErrorLines().isEmpty()) throw new VcsException(logResult.getRawError());
+  }
+
+  /**
+   * @return the log template of commits with their changed files, see {@link #createFullDetailsConverter}
+   */
+  @Nonnull
+  public static String getFullDetailsTemplate(@Nonnull HgVersion version) {
+    return HgChangesetUtil.makeTemplate(HgBaseLogParser.constructFullTemplateArgument(true, version));
+  }
+
+  /**
+   * @return converter of a log record printed with {@link #getFullDetailsTemplate} to commit details, it returns null for a broken record.
+   * The converter is stateless and may be used from several threads at once.
+   */
+  @Nonnull
+  public static Function<String, VcsFullCommitDetails> createFullDetailsConverter(@Nonnull Project project,
+                                                                                @Nonnull VirtualFile root,
+                                                                                @Nonnull HgVersion version,
+                                                                                @Nonnull VcsLogObjectsFactory factory) {
+    HgFileRevisionLogParser parser = new HgFileRevisionLogParser(project, getOriginalHgFile(project, root), version);
+    return record -> {
+      HgFileRevision revision = parser.apply(record);
+      return revision != null ? createFullDetails(project, root, factory, revision) : null;
+    };
   }
 
   public static List<? extends VcsFullCommitDetails> createFullCommitsFromResult(@Nonnull Project project,
@@ -142,42 +261,48 @@ public class HgHistoryUtil {
       getCommitRecords(project, result, new HgFileRevisionLogParser(project, getOriginalHgFile(project, root), version), silent);
     List<VcsFullCommitDetails> vcsFullCommitDetailsList = new ArrayList<>();
     for (HgFileRevision revision : hgRevisions) {
-
-      HgRevisionNumber vcsRevisionNumber = revision.getRevisionNumber();
-      List<HgRevisionNumber> parents = vcsRevisionNumber.getParents();
-      HgRevisionNumber firstParent = parents.isEmpty() ? null : parents.get(0); // can have no parents if it is a root
-      List<Hash> parentsHash = new SmartList<>();
-      for (HgRevisionNumber parent : parents) {
-        parentsHash.add(factory.createHash(parent.getChangeset()));
-      }
-
-      final Collection<Change> changes = new ArrayList<>();
-      for (String file : revision.getModifiedFiles()) {
-        changes.add(createChange(project, root, file, firstParent, file, vcsRevisionNumber, FileStatus.MODIFIED));
-      }
-      for (String file : revision.getAddedFiles()) {
-        changes.add(createChange(project, root, null, null, file, vcsRevisionNumber, FileStatus.ADDED));
-      }
-      for (String file : revision.getDeletedFiles()) {
-        changes.add(createChange(project, root, file, firstParent, null, vcsRevisionNumber, FileStatus.DELETED));
-      }
-      for (Map.Entry<String, String> copiedFile : revision.getMovedFiles().entrySet()) {
-        changes.add(createChange(project, root, copiedFile.getKey(), firstParent, copiedFile.getValue(), vcsRevisionNumber,
-                                 HgChangeProvider.RENAMED));
-      }
-
-      vcsFullCommitDetailsList.add(factory.createFullDetails(factory.createHash(vcsRevisionNumber.getChangeset()), parentsHash,
-                                                             revision.getRevisionDate().getTime(), root,
-                                                             vcsRevisionNumber.getSubject(),
-                                                             vcsRevisionNumber.getName(), vcsRevisionNumber.getEmail(),
-                                                             vcsRevisionNumber.getCommitMessage(), vcsRevisionNumber.getName(),
-                                                             vcsRevisionNumber.getEmail(), revision.getRevisionDate().getTime(),
-                                                             () -> changes
-      ));
+      vcsFullCommitDetailsList.add(createFullDetails(project, root, factory, revision));
     }
     return vcsFullCommitDetailsList;
   }
 
+  @Nonnull
+  private static VcsFullCommitDetails createFullDetails(@Nonnull Project project,
+                                                        @Nonnull VirtualFile root,
+                                                        @Nonnull VcsLogObjectsFactory factory,
+                                                        @Nonnull HgFileRevision revision) {
+    HgRevisionNumber vcsRevisionNumber = revision.getRevisionNumber();
+    List<HgRevisionNumber> parents = vcsRevisionNumber.getParents();
+    HgRevisionNumber firstParent = parents.isEmpty() ? null : parents.get(0); // can have no parents if it is a root
+    List<Hash> parentsHash = new SmartList<>();
+    for (HgRevisionNumber parent : parents) {
+      parentsHash.add(factory.createHash(parent.getChangeset()));
+    }
+
+    final Collection<Change> changes = new ArrayList<>();
+    for (String file : revision.getModifiedFiles()) {
+      changes.add(createChange(project, root, file, firstParent, file, vcsRevisionNumber, FileStatus.MODIFIED));
+    }
+    for (String file : revision.getAddedFiles()) {
+      changes.add(createChange(project, root, null, null, file, vcsRevisionNumber, FileStatus.ADDED));
+    }
+    for (String file : revision.getDeletedFiles()) {
+      changes.add(createChange(project, root, file, firstParent, null, vcsRevisionNumber, FileStatus.DELETED));
+    }
+    for (Map.Entry<String, String> copiedFile : revision.getMovedFiles().entrySet()) {
+      changes.add(createChange(project, root, copiedFile.getKey(), firstParent, copiedFile.getValue(), vcsRevisionNumber,
+                               HgChangeProvider.RENAMED));
+    }
+
+    return factory.createFullDetails(factory.createHash(vcsRevisionNumber.getChangeset()), parentsHash,
+                                     revision.getRevisionDate().getTime(), root,
+                                     vcsRevisionNumber.getSubject(),
+                                     vcsRevisionNumber.getName(), vcsRevisionNumber.getEmail(),
+                                     vcsRevisionNumber.getCommitMessage(), vcsRevisionNumber.getName(),
+                                     vcsRevisionNumber.getEmail(), revision.getRevisionDate().getTime(),
+                                     () -> changes
+    );
+  }
 
   @Nullable
   public static HgCommandResult getLogResult(@Nonnull final Project project,
@@ -193,6 +318,24 @@ public class HgHistoryUtil {
     return hgLogCommand.execute(root, template, limit, originalHgFile, args);
   }
 
+  /**
+   * Same as {@link #getLogResult}, but passes the output to the consumer changeset by changeset.
+   */
+  @Nullable
+  public static HgCommandResult streamLog(@Nonnull final Project project,
+                                          @Nonnull final VirtualFile root, @Nonnull HgVersion version, int limit,
+                                          @Nonnull List<String> parameters, @Nonnull String template,
+                                          @Nonnull HgOutputRecordConsumer consumer) {
+    HgFile originalHgFile = getOriginalHgFile(project, root);
+    HgLogCommand hgLogCommand = new HgLogCommand(project);
+    List<String> args = new ArrayList<>(parameters);
+    hgLogCommand.setLogFile(false);
+    if (!version.isParentRevisionTemplateSupported()) {
+      args.add("--debug");
+    }
+    return hgLogCommand.executeStreaming(root, template, limit, originalHgFile, args, consumer);
+  }
+
   public static HgFile getOriginalHgFile(Project project, VirtualFile root) {
     HgFile hgFile = new HgFile(root, VcsUtil.getFilePath(root.getPath()));
     if (project.isDisposed()) {
@@ -213,9 +356,67 @@ public class HgHistoryUtil {
   public static <CommitInfo> List<CommitInfo> getCommitRecords(@Nonnull Project project,
                                                                @Nullable HgCommandResult result,
                                                                @Nonnull Function<String, CommitInfo> converter, boolean silent) {
-    final List<CommitInfo> revisions = new LinkedList<>();
+    if (!isLogSucceeded(project, result, silent)) {
+      return Collections.emptyList();
+    }
+    String output = result.getRawOutput();
+    List<String> changeSets = StringUtil.split(output, HgChangesetUtil.CHANGESET_SEPARATOR);
+    return ContainerUtil.mapNotNull(changeSets, converter);
+  }
+
+  /**
+   * Runs hg log with the given template and converts its output changeset by changeset while it is read,
+   * so the raw output of the whole log is never kept in memory.
+   */
+  @Nonnull
+  public static <CommitInfo> List<CommitInfo> readCommitRecords(@Nonnull Project project,
+                                                                @Nonnull VirtualFile root,
+                                                                @Nonnull HgVersion version,
+                                                                int limit,
+                                                                @Nonnull List<String> parameters,
+                                                                @Nonnull String template,
+                                                                @Nonnull Function<String, CommitInfo> converter,
+                                                                boolean silent) {
+    return readCommitRecords(project, silent, converter,
+                             consumer -> streamLog(project, root, version, limit, parameters, template, consumer));
+  }
+
+  /**
+   * @param logCommand runs the log command passing its output to the given consumer
+   */
+  @Nonnull
+  public static <CommitInfo> List<CommitInfo> readCommitRecords(@Nonnull Project project,
+                                                                boolean silent,
+                                                                @Nonnull Function<String, CommitInfo> converter,
+                                                                @Nonnull Function<HgOutputRecordConsumer, HgCommandResult> logCommand) {
+    final List<CommitInfo> revisions = new ArrayList<>();
+    if (!streamCommitRecords(project, silent, converter, revisions::add, logCommand)) {
+      return Collections.emptyList();
+    }
+    return revisions;
+  }
+
+  /**
+   * Same as {@link #readCommitRecords(Project, boolean, Function, Function)}, but passes each converted record to the consumer
+   * as soon as it is read; the log is stopped if the consumer returns false.
+   *
+   * @return false if the log failed, the consumer may have received a part of the records then
+   */
+  public static <CommitInfo> boolean streamCommitRecords(@Nonnull Project project,
+                                                         boolean silent,
+                                                         @Nonnull Function<String, CommitInfo> converter,
+                                                         @Nonnull Predicate<CommitInfo> consumer,
+                                                         @Nonnull Function<HgOutputRecordConsumer, HgCommandResult> logCommand) {
+    HgCommandResult result = logCommand.apply(record -> {
+      CommitInfo revision = converter.apply(record);
+      return revision == null || consumer.test(revision);
+    });
+    return isLogSucceeded(project, result, silent);
+  }
+
+  private static boolean isLogSucceeded(@Nonnull Project project, @Nullable HgCommandResult result, boolean silent) {
     if (result == null) {
-      return revisions;
+      return false;
     }
 
     List<String> errors = result.getErrorLines();
@@ -228,13 +429,11 @@ public class HgHistoryUtil {
           VcsNotifier.getInstance(project)
                      .notifyError(HgVcsMessages.message("hg4idea.error.log.command.execution"), errors.toString());
         }
-        return Collections.emptyList();
+        return false;
       }
       LOG.warn(errors.toString());
     }
-    String output = result.getRawOutput();
-    List<String> changeSets = StringUtil.split(output, HgChangesetUtil.CHANGESET_SEPARATOR);
-    return ContainerUtil.mapNotNull(changeSets, converter);
+    return true;
   }
 
   @Nonnull
@@ -254,49 +453,60 @@ public class HgHistoryUtil {
     templateList.add("{desc}");
     final String[] templates = ArrayUtil.toStringArray(templateList);
 
-    return VcsFileUtil.foreachChunk(prepareHashes(hashes), 2,
-                                    strings -> {
-                                      HgCommandResult logResult =
-                                        getLogResult(project, root, version, -1, strings, HgChangesetUtil.makeTemplate(templates));
-
-                                      return getCommitRecords(project, logResult, new HgBaseLogParser<VcsShortCommitDetails>() {
-                                        @Override
-                                        protected VcsShortCommitDetails convertDetails(@Nonnull String rev,
-                                                                                       @Nonnull String changeset,
-                                                                                       @Nonnull SmartList<HgRevisionNumber> parents,
-                                                                                       @Nonnull Date revisionDate,
-                                                                                       @Nonnull String author,
-                                                                                       @Nonnull String email,
-                                                                                       @Nonnull List<String> attributes) {
-                                          String message = parseAdditionalStringAttribute(attributes, MESSAGE_INDEX);
-                                          String subject = extractSubject(message);
-                                          List<Hash> parentsHash = new SmartList<>();
-                                          for (HgRevisionNumber parent : parents) {
-                                            parentsHash.add(factory.createHash(parent.getChangeset()));
-                                          }
-                                          return factory
-                                            .createShortDetails(factory.createHash(changeset), parentsHash, revisionDate.getTime(), root,
-                                                                subject, author, email, author, email, revisionDate.getTime());
-                                        }
-                                      });
-                                    });
+    String template = HgChangesetUtil.makeTemplate(templates);
+    HgBaseLogParser<VcsShortCommitDetails> parser = new HgBaseLogParser<VcsShortCommitDetails>() {
+      @Override
+      protected VcsShortCommitDetails convertDetails(@Nonnull String rev,
+                                                     @Nonnull String changeset,
+                                                     @Nonnull SmartList<HgRevisionNumber> parents,
+                                                     @Nonnull Date revisionDate,
+                                                     @Nonnull String author,
+                                                     @Nonnull String email,
+                                                     @Nonnull List<String> attributes) {
+        String message = parseAdditionalStringAttribute(attributes, MESSAGE_INDEX);
+        String subject = extractSubject(message);
+        List<Hash> parentsHash = new SmartList<>();
+        for (HgRevisionNumber parent : parents) {
+          parentsHash.add(factory.createHash(parent.getChangeset()));
+        }
+        return factory
+          .createShortDetails(factory.createHash(changeset), parentsHash, revisionDate.getTime(), root,
+                              subject, author, email, author, email, revisionDate.getTime());
+      }
+    };
+    List<VcsShortCommitDetails> details = new ArrayList<>(hashes.size());
+    for (List<String> batch : prepareRevisionBatches(hashes)) {
+      details.addAll(readCommitRecords(project, root, version, -1, batch, template, parser, false));
+    }
+    return orderByHashes(details, hashes);
   }
 
   @Nonnull
   public static List<TimedVcsCommit> readAllHashes(@Nonnull Project project, @Nonnull VirtualFile root,
                                                    @Nonnull final Consumer<VcsUser> userRegistry, @Nonnull List<String> params)
     throws VcsException {
+    List<TimedVcsCommit> commits = new ArrayList<>();
+    readAllHashes(project, root, userRegistry, params, commits::add);
+    return commits;
+  }
 
+  /**
+   * Passes commits to the consumer as soon as hg prints them, so neither the log output nor the list of commits is kept in memory.
+   * If the log fails, commits read before the failure are already passed to the consumer.
+   */
+  public static void readAllHashes(@Nonnull Project project, @Nonnull VirtualFile root,
+                                   @Nonnull final Consumer<VcsUser> userRegistry, @Nonnull List<String> params,
+                                   @Nonnull Consumer<TimedVcsCommit> commitConsumer) throws VcsException {
     final VcsLogObjectsFactory factory = getObjectsFactoryWithDisposeCheck(project);
     if (factory == null) {
-      return Collections.emptyList();
+      return;
     }
     HgVcs hgvcs = HgVcs.getInstance(project);
     assert hgvcs != null;
     HgVersion version = hgvcs.getVersion();
     String[] templates = ArrayUtil.toStringArray(HgBaseLogParser.constructDefaultTemplate(version));
-    HgCommandResult result = getLogResult(project, root, version, -1, params, HgChangesetUtil.makeTemplate(templates));
-    return getCommitRecords(project, result, new HgBaseLogParser<TimedVcsCommit>() {
+    String template = HgChangesetUtil.makeTemplate(templates);
+    HgBaseLogParser<TimedVcsCommit> parser = new HgBaseLogParser<TimedVcsCommit>() {
 
       @Override
       protected TimedVcsCommit convertDetails(@Nonnull String rev,
@@ -314,7 +524,15 @@ public class HgHistoryUtil {
         return factory.createTimedCommit(factory.createHash(changeset),
                                          parentsHash, revisionDate.getTime());
       }
+    };
+    HgCommandResult result = streamLog(project, root, version, -1, params, template, record -> {
+      TimedVcsCommit commit = parser.convert(record);
+      if (commit != null) {
+        commitConsumer.accept(commit);
+      }
+      return true;
     });
+    isLogSucceeded(project, result, false);
   }
 
   private static VcsLogObjectsFactory getObjectsFactoryWithDisposeCheck(Project project) {
@@ -352,14 +570,80 @@ public class HgHistoryUtil {
     return new Change(beforeRevision, afterRevision, aStatus);
   }
 
+  /**
+   * Groups the hashes into revsets {@code id(h1)+id(h2)+...}, so that one hg log process reads a whole batch of commits.
+   * A batch is limited by the length of the revset, which keeps it below the command line limit and the revset parser recursion depth.
+   * A bare hash which hg doesn't know, e.g. of a stripped or hidden commit, aborts the whole log, while {@code id()} of a full hash
+   * just selects nothing, so full hashes are wrapped in it; short hashes are passed as they are.
+   *
+   * @return the arguments of one log command per batch
+   */
   @Nonnull
-  public static List<String> prepareHashes(@Nonnull List<String> hashes) {
-    List<String> hashArgs = new ArrayList<>();
+  public static List<List<String>> prepareRevisionBatches(@Nonnull List<String> hashes) {
+    List<List<String>> batches = new ArrayList<>();
+    for (List<String> batch : splitIntoBatches(hashes)) {
+      batches.add(toRevisionArguments(batch));
+    }
+    return batches;
+  }
+
+  @Nonnull
+  private static List<List<String>> splitIntoBatches(@Nonnull List<String> hashes) {
+    List<List<String>> batches = new ArrayList<>();
+    List<String> batch = new ArrayList<>();
+    int length = 0;
     for (String hash : hashes) {
-      hashArgs.add("-r");
-      hashArgs.add(hash);
+      int revsetLength = toRevset(hash).length();
+      if (!batch.isEmpty() && length + revsetLength + 1 > MAX_REVSET_LENGTH) {
+        batches.add(batch);
+        batch = new ArrayList<>();
+        length = 0;
+      }
+      length += batch.isEmpty() ? revsetLength : revsetLength + 1;
+      batch.add(hash);
+    }
+    if (!batch.isEmpty()) {
+      batches.add(batch);
+    }
+    return batches;
+  }
+
+  @Nonnull
+  private static List<String> toRevisionArguments(@Nonnull List<String> batch) {
+    StringBuilder revset = new StringBuilder();
+    for (String hash : batch) {
+      if (revset.length() > 0) {
+        revset.append('+');
+      }
+      revset.append(toRevset(hash));
+    }
+    return Arrays.asList("-r", revset.toString());
+  }
+
+  @Nonnull
+  private static String toRevset(@Nonnull String hash) {
+    return hash.length() == FULL_HASH_LENGTH ? "id(" + hash + ")" : hash;
+  }
+
+  /**
+   * hg prints a revset in its own order, so the read commits are put into the order of the requested hashes.
+   * Commits which can't be matched with a requested hash, e.g. requested by a short hash, are added to the end.
+   */
+  @Nonnull
+  private static <T extends VcsShortCommitDetails> List<T> orderByHashes(@Nonnull List<T> details, @Nonnull List<String> hashes) {
+    Map<String, T> byHash = new LinkedHashMap<>();
+    for (T detail : details) {
+      byHash.put(detail.getId().asString(), detail);
+    }
+    List<T> ordered = new ArrayList<>(details.size());
+    for (String hash : hashes) {
+      T detail = byHash.remove(hash);
+      if (detail != null) {
+        ordered.add(detail);
+      }
     }
-    return hashArgs;
+    ordered.addAll(byHash.values());
+    return ordered;
   }
 
   @Nonnull
@@ -0,0 +1,217 @@
+/*
+ * Copyright 2013-2025 consulo.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zmlx.hg4idea.log;
+
+import consulo.util.collection.ContainerUtil;
+import consulo.util.lang.StringUtil;
+import consulo.versionControlSystem.FilePath;
+import consulo.versionControlSystem.log.*;
+import consulo.versionControlSystem.log.util.UserNameRegex;
+import consulo.versionControlSystem.log.util.VcsUserUtil;
+import consulo.virtualFileSystem.VirtualFile;
+import jakarta.annotation.Nonnull;
+import jakarta.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * <p>Filters of the log evaluated in-process over the {@link HgCommitIndex commit index}, with the semantics of the hg options
+ * they replace: {@code user('re:...')} for users, {@code -d} with minute precision for dates, {@code grep()} or {@code --keyword}
+ * over changed files, the author and the description for text, changed files under the given paths for structure.</p>
+ * <p>A branch filter depends on named branches of commits, which the index doesn't keep, so such filters are left to hg.</p>
+ */
+final class HgLocalLogFilter {
+  private static final long MINUTE = 60 * 1000;
+  private static final byte UNKNOWN = 0;
+  private static final byte MATCH = 1;
+  private static final byte MISMATCH = 2;
+
+  @Nullable
+  private final Pattern myUserPattern;
+  private final long myAfter;
+  private final long myBefore;
+  @Nullable
+  private final Pattern myTextPattern;
+  // relative to the root, "" stands for the root itself
+  @Nullable
+  private final List<String> myPaths;
+
+  private HgLocalLogFilter(@Nullable Pattern userPattern, long after, long before, @Nullable Pattern textPattern, @Nullable List<String> paths) {
+    myUserPattern = userPattern;
+    myAfter = after;
+    myBefore = before;
+    myTextPattern = textPattern;
+    myPaths = paths;
+  }
+
+  /**
+   * @return the filter, or null if it can't be evaluated in-process
+   */
+  @Nullable
+  static HgLocalLogFilter create(@Nonnull VirtualFile root, @Nonnull VcsLogFilterCollection filters) {
+    if (filters.getBranchFilter() != null) {
+      return null;
+    }
+    try {
+      Pattern userPattern = null;
+      VcsLogUserFilter userFilter = filters.getUserFilter();
+      if (userFilter != null) {
+        userPattern = Pattern.compile(StringUtil.join(ContainerUtil.map(ContainerUtil.map(userFilter.getUsers(root), VcsUserUtil::toExactString),
+                                                                        UserNameRegex.EXTENDED_INSTANCE), "|"));
+      }
+
+      long after = Long.MIN_VALUE;
+      long before = Long.MAX_VALUE;
+      VcsLogDateFilter dateFilter = filters.getDateFilter();
+      if (dateFilter != null) {
+        // hg gets the dates formatted to minutes and takes the whole minutes in
+        if (dateFilter.getAfter() != null) {
+          after = Math.floorDiv(dateFilter.getAfter().getTime(), MINUTE) * MINUTE;
+        }
+        if (dateFilter.getBefore() != null) {
+          before = Math.floorDiv(dateFilter.getBefore().getTime(), MINUTE) * MINUTE + MINUTE - 1;
+        }
+      }
+
+      Pattern textPattern = null;
+      VcsLogTextFilter textFilter = filters.getTextFilter();
+      if (textFilter != null) {
+        if (textFilter.isRegex()) {
+          textPattern = Pattern.compile(textFilter.getText());
+        }
+        else if (textFilter.matchesCase()) {
+          textPattern = Pattern.compile(textFilter.getText(), Pattern.LITERAL);
+        }
+        else {
+          textPattern = Pattern.compile(textFilter.getText(), Pattern.LITERAL | Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE);
+        }
+      }
+
+      List<String> paths = null;
+      VcsLogStructureFilter structureFilter = filters.getStructureFilter();
+      if (structureFilter != null) {
+        paths = new ArrayList<>();
+        String rootPath = root.getPath();
+        for (FilePath file : structureFilter.getFiles()) {
+          String path = file.getPath();
+          if (path.equals(rootPath)) {
+            paths.add("");
+          }
+          else if (path.startsWith(rootPath + "/")) {
+            paths.add(path.substring(rootPath.length() + 1));
+          }
+          else {
+            return null;
+          }
+        }
+      }
+      return new HgLocalLogFilter(userPattern, after, before, textPattern, paths);
+    }
+    catch (PatternSyntaxException e) {
+      // let hg report the pattern
+      return null;
+    }
+  }
+
+  /**
+   * @return true if the filter needs descriptions or changed files, which only the {@link HgCommitTextStore text store} has
+   */
+  boolean needsTexts() {
+    return myTextPattern != null || myPaths != null;
+  }
+
+  /**
+   * @param texts descriptions and changed files in the positions of the graph, required if {@link #needsTexts()}
+   * @param maxCount maximum number of commits to return, or a non-positive number to return all of them
+   * @return matching commits from the newest down
+   */
+  @Nonnull
+  List<TimedVcsCommit> filter(@Nonnull HgCommitGraph graph,
+                              @Nullable HgCommitTextStore texts,
+                              @Nonnull VcsLogObjectsFactory factory,
+                              int maxCount) {
+    // results for authors and paths of the pools are computed once per filter
+    byte[] userMatches = new byte[graph.getAuthorCount()];
+    byte[] authorTextMatches = new byte[graph.getAuthorCount()];
+    byte[] pathMatches = new byte[texts == null ? 0 : texts.getPathCount()];
+    byte[] pathTextMatches = new byte[pathMatches.length];
+
+    List<TimedVcsCommit> commits = new ArrayList<>();
+    for (int i = graph.size() - 1; i >= 0 && (maxCount <= 0 || commits.size() < maxCount); i--) {
+      long time = graph.getTime(i);
+      if (time < myAfter || time > myBefore) {
+        continue;
+      }
+      int author = graph.getAuthor(i);
+      if (myUserPattern != null && !matches(myUserPattern, userMatches, author, graph.getAuthorName(author))) {
+        continue;
+      }
+      if (myPaths != null && !touchesPaths(texts, i, pathMatches)) {
+        continue;
+      }
+      if (myTextPattern != null &&
+          !matches(myTextPattern, authorTextMatches, author, graph.getAuthorName(author)) &&
+          !myTextPattern.matcher(texts.getMessage(i)).find() &&
+          !hasMatchingFile(texts, i, pathTextMatches)) {
+        continue;
+      }
+      commits.add(graph.createCommit(factory, i));
+    }
+    return commits;
+  }
+
+  private boolean touchesPaths(@Nonnull HgCommitTextStore texts, int index, @Nonnull byte[] memo) {
+    for (int offset = texts.getFilesStart(index); offset < texts.getFilesEnd(index); offset++) {
+      int id = texts.getFile(offset);
+      if (memo[id] == UNKNOWN) {
+        memo[id] = isUnderPaths(texts.getPath(id)) ? MATCH : MISMATCH;
+      }
+      if (memo[id] == MATCH) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private boolean isUnderPaths(@Nonnull String file) {
+    for (String path : myPaths) {
+      if (path.isEmpty() || file.equals(path) || file.startsWith(path) && file.charAt(path.length()) == '/') {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private boolean hasMatchingFile(@Nonnull HgCommitTextStore texts, int index, @Nonnull byte[] memo) {
+    for (int offset = texts.getFilesStart(index); offset < texts.getFilesEnd(index); offset++) {
+      int id = texts.getFile(offset);
+      if (matches(myTextPattern, memo, id, texts.getPath(id))) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static boolean matches(@Nonnull Pattern pattern, @Nonnull byte[] memo, int id, @Nonnull String value) {
+    if (memo[id] == UNKNOWN) {
+      memo[id] = pattern.matcher(value).find() ? MATCH : MISMATCH;
+    }
+    return memo[id] == MATCH;
+  }
+}
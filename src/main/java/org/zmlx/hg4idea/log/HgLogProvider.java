@@ -37,16 +37,19 @@ import jakarta.inject.Inject;
 import org.zmlx.hg4idea.HgNameWithHashInfo;
 import org.zmlx.hg4idea.HgStatusUpdater;
 import org.zmlx.hg4idea.HgVcs;
-import org.zmlx.hg4idea.execution.HgCommandResult;
+import org.zmlx.hg4idea.execution.HgCommandSubsystem;
 import org.zmlx.hg4idea.repo.HgConfig;
+import org.zmlx.hg4idea.repo.HgRefsStamp;
 import org.zmlx.hg4idea.repo.HgRepository;
 import org.zmlx.hg4idea.repo.HgRepositoryManager;
-import org.zmlx.hg4idea.util.HgChangesetUtil;
 import org.zmlx.hg4idea.util.HgUtil;
 import org.zmlx.hg4idea.util.HgVersion;
 
+import java.io.File;
+import java.io.IOException;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Consumer;
 
 import static org.zmlx.hg4idea.util.HgUtil.HEAD_REFERENCE;
@@ -57,6 +60,8 @@ public class HgLogProvider implements VcsLogProvider {
 
   private static final Logger LOG = Logger.getInstance(HgLogProvider.class);
 
+  private static final HgLogRefreshCache.Block NOT_CONNECTED = new HgLogRefreshCache.Block(Collections.emptyList(), HgRevlog.NULL_REVISION);
+
   @Nonnull
   private final Project myProject;
   @Nonnull
@@ -65,6 +70,12 @@ public class HgLogProvider implements VcsLogProvider {
   private final VcsLogRefManager myRefSorter;
   @Nonnull
   private final VcsLogObjectsFactory myVcsObjectsFactory;
+  private final Map<String, HgCommitIndex> myCommitIndexes = new ConcurrentHashMap<>();
+  private final Map<String, HgLogRefreshCache> myRefreshCaches = new ConcurrentHashMap<>();
+  // repositories are recreated when roots change, so the snapshots are bound to the repository objects
+  private final Map<HgRepository, RefsSnapshot> myRefsSnapshots = Collections.synchronizedMap(new WeakHashMap<>());
+  @Nonnull
+  private final HgFullDetailsLoader myFullDetailsLoader;
 
   @Inject
   public HgLogProvider(@Nonnull Project project, @Nonnull VcsLogObjectsFactory factory) {
@@ -72,30 +83,74 @@ public class HgLogProvider implements VcsLogProvider {
     myRepositoryManager = HgRepositoryManager.getInstance(project);
     myRefSorter = new HgRefManager();
     myVcsObjectsFactory = factory;
+    myFullDetailsLoader = new HgFullDetailsLoader(project, factory);
   }
 
   @Nonnull
   @Override
   public DetailedLogData readFirstBlock(@Nonnull VirtualFile root,
                                         @Nonnull Requirements requirements) throws VcsException {
-    List<VcsCommitMetadata> commits = HgHistoryUtil.loadMetadata(myProject, root, requirements.getCommitCount(),
-                                                                 Collections.<String>emptyList());
-    return new LogDataImpl(readAllRefs(root), commits);
+    try (HgCommandSubsystem.Scope ignored = HgCommandSubsystem.LOG.enter()) {
+      int count = requirements.getCommitCount();
+      List<VcsCommitMetadata> commits;
+      try {
+        File hgDir = getHgDir(root);
+        long changelogStamp = HgChangelogReader.getChangelogStamp(hgDir);
+        long obsoleteMarkersStamp = HgChangelogReader.getObsoleteMarkersStamp(hgDir);
+        commits = getRefreshCache(root).readLatestCommits(count, changelogStamp, obsoleteMarkersStamp, new HgLogRefreshCache.CommitsLoader() {
+          @Nonnull
+          @Override
+          public HgLogRefreshCache.Block load(int count) throws VcsException {
+            return readLatestCommits(root, count);
+          }
+
+          @Nullable
+          @Override
+          public HgLogRefreshCache.Block loadAfter(@Nonnull Hash tip, int tipRevision) throws VcsException {
+            return readCommitsAfter(root, tip, tipRevision);
+          }
+        });
+      }
+      catch (IOException e) {
+        LOG.info("Couldn't read the store of " + root.getPath(), e);
+        commits = readLatestCommits(root, count).getCommits();
+      }
+      return new LogDataImpl(readAllRefs(root), commits);
+    }
   }
 
   @Override
   @Nonnull
   public LogData readAllHashes(@Nonnull VirtualFile root, @Nonnull final Consumer<TimedVcsCommit> commitConsumer) throws VcsException {
-    Set<VcsUser> userRegistry = new HashSet<>();
-    List<TimedVcsCommit> commits = HgHistoryUtil.readAllHashes(myProject, root, userRegistry::add, Collections.<String>emptyList());
-    for (TimedVcsCommit commit : commits) {
-      commitConsumer.accept(commit);
+    try (HgCommandSubsystem.Scope ignored = HgCommandSubsystem.LOG.enter()) {
+      Set<VcsUser> userRegistry = new HashSet<>();
+      HgCommitIndex index = getCommitIndex(root);
+      if (index.update(myProject, root, myVcsObjectsFactory)) {
+        index.readAllCommits(myVcsObjectsFactory, userRegistry::add, commitConsumer);
+      }
+      else {
+        HgHistoryUtil.readAllHashes(myProject, root, userRegistry::add, Collections.<String>emptyList(), commitConsumer);
+      }
+      return new LogDataImpl(readAllRefs(root), userRegistry);
     }
-    return new LogDataImpl(readAllRefs(root), userRegistry);
   }
 
   @Override
   public void readAllFullDetails(@Nonnull VirtualFile root, @Nonnull Consumer<VcsFullCommitDetails> commitConsumer) throws VcsException {
+    try (HgCommandSubsystem.Scope ignored = HgCommandSubsystem.LOG.enter()) {
+      HgCommitIndex index = getCommitIndex(root);
+      if (index.update(myProject, root, myVcsObjectsFactory)) {
+        int[] revisions = index.getRevisions();
+        String tipNode = index.getTipNode();
+        if (tipNode == null) {
+          return;
+        }
+        HgVcs hgvcs = HgVcs.getInstance(myProject);
+        assert hgvcs != null;
+        myFullDetailsLoader.readAllFullDetails(root, hgvcs.getVersion(), revisions, tipNode, commitConsumer);
+        return;
+      }
+    }
     readFullDetails(root, ContainerUtil.newArrayList(), commitConsumer);
   }
 
@@ -104,33 +159,131 @@ public class HgLogProvider implements VcsLogProvider {
                               @Nonnull List<String> hashes,
                               @Nonnull Consumer<VcsFullCommitDetails> commitConsumer)
     throws VcsException {
-    // this method currently is very slow and time consuming
-    // so indexing is not to be used for mercurial for now
-    HgVcs hgvcs = HgVcs.getInstance(myProject);
-    assert hgvcs != null;
-    final HgVersion version = hgvcs.getVersion();
-    final String[] templates = HgBaseLogParser.constructFullTemplateArgument(true, version);
-
-    HgCommandResult logResult = HgHistoryUtil.getLogResult(myProject, root, version, -1,
-                                                           HgHistoryUtil.prepareHashes(hashes), HgChangesetUtil.makeTemplate(templates));
-    if (logResult == null) return;
-    if (!logResult.getErrorLines().isEmpty()) throw new VcsException(logResult.getRawError());
-    HgHistoryUtil.createFullCommitsFromResult(myProject, root, logResult, version, false).forEach(commitConsumer::accept);
+    try (HgCommandSubsystem.Scope ignored = HgCommandSubsystem.LOG.enter()) {
+      HgVcs hgvcs = HgVcs.getInstance(myProject);
+      assert hgvcs != null;
+      final HgVersion version = hgvcs.getVersion();
+
+      if (hashes.isEmpty()) {
+        HgHistoryUtil.readFullDetails(myProject, root, version, -1, Collections.emptyList(), commitConsumer);
+        return;
+      }
+      HgHistoryUtil.readFullDetails(myProject, root, version, hashes, commitConsumer);
+    }
   }
 
   @Nonnull
   @Override
   public List<? extends VcsShortCommitDetails> readShortDetails(@Nonnull VirtualFile root, @Nonnull List<String> hashes)
     throws VcsException {
-    return HgHistoryUtil.readMiniDetails(myProject, root, hashes);
+    try (HgCommandSubsystem.Scope ignored = HgCommandSubsystem.LOG.enter()) {
+      List<VcsShortCommitDetails> details = readChangelog(root, reader -> reader.readShortDetails(hashes));
+      return details != null ? details : HgHistoryUtil.readMiniDetails(myProject, root, hashes);
+    }
   }
 
   @Nonnull
   @Override
   public List<? extends VcsFullCommitDetails> readFullDetails(@Nonnull VirtualFile root, @Nonnull List<String> hashes) throws VcsException {
-    return HgHistoryUtil.history(myProject, root, -1, HgHistoryUtil.prepareHashes(hashes));
+    try (HgCommandSubsystem.Scope ignored = HgCommandSubsystem.LOG.enter()) {
+      return HgHistoryUtil.readFullDetails(myProject, root, hashes);
+    }
+  }
+
+  @Nonnull
+  private HgLogRefreshCache.Block readLatestCommits(@Nonnull VirtualFile root, int count) throws VcsException {
+    HgLogRefreshCache.Block block =
+      readChangelog(root, reader -> new HgLogRefreshCache.Block(reader.readMetadata(count), reader.getTipRevision()));
+    if (block != null) {
+      return block;
+    }
+    int[] tipRevision = {HgRevlog.NULL_REVISION};
+    List<VcsCommitMetadata> commits = HgHistoryUtil.loadMetadata(myProject, root, count, Collections.<String>emptyList(),
+                                                                 (commit, revision) -> tipRevision[0] = Math.max(tipRevision[0], revision));
+    return new HgLogRefreshCache.Block(commits, tipRevision[0]);
+  }
+
+  /**
+   * Reads commits added after the given tip with one read of the changelog or one hg process.
+   *
+   * @return null if the tip is not at the given revision anymore, i.e. history was stripped
+   */
+  @Nullable
+  private HgLogRefreshCache.Block readCommitsAfter(@Nonnull VirtualFile root, @Nonnull Hash tip, int tipRevision) throws VcsException {
+    HgLogRefreshCache.Block block = readChangelog(root, reader -> {
+      if (reader.findRevision(tip.asString()) != tipRevision) {
+        return NOT_CONNECTED;
+      }
+      return new HgLogRefreshCache.Block(reader.readMetadataAfter(tipRevision), reader.getTipRevision());
+    });
+    if (block != null) {
+      return block == NOT_CONNECTED ? null : block;
+    }
+
+    // tip:<old tip> is the old tip with everything added after it, the old tip comes last
+    int[] revisions = {HgRevlog.NULL_REVISION, HgRevlog.NULL_REVISION};
+    List<VcsCommitMetadata> commits =
+      HgHistoryUtil.loadMetadata(myProject, root, -1, Arrays.asList("-r", "tip:" + tip.asString()), (commit, revision) -> {
+        revisions[0] = Math.max(revisions[0], revision);
+        revisions[1] = revision;
+      });
+    if (commits.isEmpty() || !commits.get(commits.size() - 1).getId().equals(tip) || revisions[1] != tipRevision) {
+      return null;
+    }
+    return new HgLogRefreshCache.Block(commits.subList(0, commits.size() - 1), revisions[0]);
+  }
+
+  @Nonnull
+  private HgLogRefreshCache getRefreshCache(@Nonnull VirtualFile root) {
+    return myRefreshCaches.computeIfAbsent(root.getPath(), path -> new HgLogRefreshCache());
+  }
+
+  @Nonnull
+  private static File getHgDir(@Nonnull VirtualFile root) {
+    return new File(root.getPath(), HgUtil.DOT_HG);
+  }
+
+  @Nonnull
+  private HgCommitIndex getCommitIndex(@Nonnull VirtualFile root) {
+    return myCommitIndexes.computeIfAbsent(root.getPath(), path -> HgCommitIndex.load(root));
+  }
+
+  /**
+   * Reads commits directly from the changelog if the repository format allows it, see {@link HgChangelogReader}.
+   *
+   * @return null if the commits should be read by hg
+   */
+  @Nullable
+  private <T> T readChangelog(@Nonnull VirtualFile root, @Nonnull ChangelogReading<T> reading) {
+    try (HgChangelogReader reader = HgChangelogReader.open(root, myVcsObjectsFactory)) {
+      return reader == null ? null : reading.read(reader);
+    }
+    catch (IOException | IndexOutOfBoundsException e) {
+      LOG.info("Couldn't read the changelog of " + root.getPath() + ", reading it by hg", e);
+      return null;
+    }
   }
 
+  private interface ChangelogReading<T> {
+    @Nullable
+    T read(@Nonnull HgChangelogReader reader) throws IOException;
+  }
+
+  private static final class RefsSnapshot {
+    @Nonnull
+    private final HgRefsStamp myStamp;
+    @Nonnull
+    private final Set<VcsRef> myRefs;
+
+    private RefsSnapshot(@Nonnull HgRefsStamp stamp, @Nonnull Set<VcsRef> refs) {
+      myStamp = stamp;
+      myRefs = refs;
+    }
+  }
+
+  /**
+   * Refs are served from the snapshot of the repository until any file they are read from changes.
+   */
   @Nonnull
   private Set<VcsRef> readAllRefs(@Nonnull VirtualFile root) throws VcsException {
     if (myProject.isDisposed()) {
@@ -142,6 +295,33 @@ public class HgLogProvider implements VcsLogProvider {
       return Collections.emptySet();
     }
 
+    // the stamp is taken before reading, so a change made meanwhile is noticed on the next call
+    HgRefsStamp stamp = readRefsStamp(root);
+    RefsSnapshot snapshot = myRefsSnapshots.get(repository);
+    if (stamp != null && snapshot != null && snapshot.myStamp.equals(stamp)) {
+      return snapshot.myRefs;
+    }
+    Set<VcsRef> refs = Collections.unmodifiableSet(computeAllRefs(root, repository));
+    if (stamp != null) {
+      myRefsSnapshots.put(repository, new RefsSnapshot(stamp, refs));
+    }
+    return refs;
+  }
+
+  @Nullable
+  private static HgRefsStamp readRefsStamp(@Nonnull VirtualFile root) {
+    File hgDir = getHgDir(root);
+    try {
+      return HgRefsStamp.read(hgDir, HgChangelogReader.getChangelogStamp(hgDir));
+    }
+    catch (IOException e) {
+      LOG.debug(e);
+      return null;
+    }
+  }
+
+  @Nonnull
+  private Set<VcsRef> computeAllRefs(@Nonnull VirtualFile root, @Nonnull HgRepository repository) {
     repository.update();
     Map<String, LinkedHashSet<Hash>> branches = repository.getBranches();
     Set<String> openedBranchNames = repository.getOpenedBranches();
@@ -215,6 +395,23 @@ public class HgLogProvider implements VcsLogProvider {
   public List<TimedVcsCommit> getCommitsMatchingFilter(@Nonnull final VirtualFile root,
                                                        @Nonnull VcsLogFilterCollection filterCollection,
                                                        int maxCount) throws VcsException {
+    try (HgCommandSubsystem.Scope ignored = HgCommandSubsystem.LOG.enter()) {
+      return readCommitsMatchingFilter(root, filterCollection, maxCount);
+    }
+  }
+
+  @Nonnull
+  private List<TimedVcsCommit> readCommitsMatchingFilter(@Nonnull final VirtualFile root,
+                                                         @Nonnull VcsLogFilterCollection filterCollection,
+                                                         int maxCount) throws VcsException {
+    HgLocalLogFilter localFilter = HgLocalLogFilter.create(root, filterCollection);
+    if (localFilter != null) {
+      List<TimedVcsCommit> commits = filterLocally(root, localFilter, maxCount);
+      if (commits != null) {
+        return commits;
+      }
+    }
+
     List<String> filterParameters = ContainerUtil.newArrayList();
 
     // branch filter and user filter may be used several times without delimiter
@@ -303,6 +500,23 @@ public class HgLogProvider implements VcsLogProvider {
     }, filterParameters);
   }
 
+  /**
+   * Evaluates the filter over the commit index instead of running hg log over the whole history.
+   *
+   * @return null if the filter should be evaluated by hg
+   */
+  @Nullable
+  private List<TimedVcsCommit> filterLocally(@Nonnull VirtualFile root, @Nonnull HgLocalLogFilter filter, int maxCount) {
+    HgCommitIndex index = getCommitIndex(root);
+    if (!index.update(myProject, root, myVcsObjectsFactory)) {
+      return null;
+    }
+    if (!filter.needsTexts()) {
+      return index.filter(filter, null, myVcsObjectsFactory, maxCount);
+    }
+    return readChangelog(root, reader -> index.filter(filter, reader, myVcsObjectsFactory, maxCount));
+  }
+
   @Nullable
   @Override
   public VcsUser getCurrentUser(@Nonnull VirtualFile root) throws VcsException {
@@ -327,7 +541,31 @@ public class HgLogProvider implements VcsLogProvider {
   @Nonnull
   @Override
   public Collection<String> getContainingBranches(@Nonnull VirtualFile root, @Nonnull Hash commitHash) throws VcsException {
-    return HgHistoryUtil.getDescendingHeadsOfBranches(myProject, root, commitHash);
+    try (HgCommandSubsystem.Scope ignored = HgCommandSubsystem.LOG.enter()) {
+      HgCommitIndex index = getCommitIndex(root);
+      if (index.update(myProject, root, myVcsObjectsFactory)) {
+        Collection<String> branches = index.getContainingLabels(commitHash.asString(), getBranchTargets(readAllRefs(root)));
+        if (branches != null) {
+          return branches;
+        }
+      }
+      return HgHistoryUtil.getDescendingHeadsOfBranches(myProject, root, commitHash);
+    }
+  }
+
+  /**
+   * @return names of branch heads and bookmarks by the nodes they point to
+   */
+  @Nonnull
+  private static Map<String, List<String>> getBranchTargets(@Nonnull Collection<VcsRef> refs) {
+    Map<String, List<String>> targets = new HashMap<>();
+    for (VcsRef ref : refs) {
+      VcsRefType type = ref.getType();
+      if (type == HgRefManager.BRANCH || type == HgRefManager.CLOSED_BRANCH || type == HgRefManager.BOOKMARK) {
+        targets.computeIfAbsent(ref.getCommitHash().asString(), hash -> new ArrayList<>()).add(ref.getName());
+      }
+    }
+    return targets;
   }
 
   @Nullable
@@ -344,6 +582,9 @@ public class HgLogProvider implements VcsLogProvider {
     if (property == VcsLogProperties.CASE_INSENSITIVE_REGEX) {
       return (T)Boolean.FALSE;
     }
+    if (property == VcsLogProperties.SUPPORTS_INDEXING) {
+      return (T)Boolean.TRUE;
+    }
     return null;
   }
 }
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2013-2025 consulo.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zmlx.hg4idea.log;
+
+import consulo.versionControlSystem.VcsException;
+import consulo.versionControlSystem.log.Hash;
+import consulo.versionControlSystem.log.VcsCommitMetadata;
+import jakarta.annotation.Nonnull;
+import jakarta.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * <p>The latest commits of one repository shown by the log, kept between refreshes.</p>
+ * <p>They are reloaded only if the changelog has changed, and then only the commits above the remembered tip are read.
+ * If the remembered tip is gone or got another revision number, history was stripped, and the commits are read from scratch.
+ * So are they if obsolescence markers were added, because they may hide commits below the remembered tip.</p>
+ */
+final class HgLogRefreshCache {
+  private boolean myCommitsLoaded;
+  private long myChangelogStamp;
+  private long myObsoleteMarkersStamp;
+  // number of the latest commits which were requested, the cache can't serve more
+  private int myLoadedCount;
+  @Nonnull
+  private List<VcsCommitMetadata> myCommits = Collections.emptyList();
+  private int myTipRevision = HgRevlog.NULL_REVISION;
+
+  /**
+   * @param changelogStamp       stamp of the changelog files taken before reading
+   * @param obsoleteMarkersStamp stamp of the obsolescence markers taken before reading
+   * @return up to count latest commits, from the tip down
+   */
+  @Nonnull
+  synchronized List<VcsCommitMetadata> readLatestCommits(int count,
+                                                         long changelogStamp,
+                                                         long obsoleteMarkersStamp,
+                                                         @Nonnull CommitsLoader loader) throws VcsException {
+    if (myCommitsLoaded && count <= myLoadedCount) {
+      if (changelogStamp == myChangelogStamp) {
+        return latest(count);
+      }
+      if (!myCommits.isEmpty() && obsoleteMarkersStamp == myObsoleteMarkersStamp) {
+        Block delta = loader.loadAfter(myCommits.get(0).getId(), myTipRevision);
+        if (delta != null) {
+          List<VcsCommitMetadata> commits = new ArrayList<>(delta.myCommits);
+          commits.addAll(myCommits.subList(0, Math.min(myCommits.size(), Math.max(0, myLoadedCount - commits.size()))));
+          remember(commits, delta.myTipRevision, changelogStamp, obsoleteMarkersStamp, myLoadedCount);
+          return latest(count);
+        }
+      }
+    }
+    Block block = loader.load(count);
+    remember(block.myCommits, block.myTipRevision, changelogStamp, obsoleteMarkersStamp, count);
+    return latest(count);
+  }
+
+  private void remember(@Nonnull List<VcsCommitMetadata> commits,
+                        int tipRevision,
+                        long changelogStamp,
+                        long obsoleteMarkersStamp,
+                        int loadedCount) {
+    myCommits = commits;
+    myTipRevision = tipRevision;
+    myChangelogStamp = changelogStamp;
+    myObsoleteMarkersStamp = obsoleteMarkersStamp;
+    myLoadedCount = loadedCount;
+    myCommitsLoaded = true;
+  }
+
+  @Nonnull
+  private List<VcsCommitMetadata> latest(int count) {
+    return new ArrayList<>(myCommits.subList(0, Math.min(count, myCommits.size())));
+  }
+
+  interface CommitsLoader {
+    /**
+     * @return up to count latest commits
+     */
+    @Nonnull
+    Block load(int count) throws VcsException;
+
+    /**
+     * @return commits above the given tip, or null if the tip is not at the given revision anymore
+     */
+    @Nullable
+    Block loadAfter(@Nonnull Hash tip, int tipRevision) throws VcsException;
+  }
+
+  /**
+   * Commits from the tip down with the revision number of the tip.
+   */
+  static final class Block {
+    @Nonnull
+    private final List<VcsCommitMetadata> myCommits;
+    private final int myTipRevision;
+
+    Block(@Nonnull List<VcsCommitMetadata> commits, int tipRevision) {
+      myCommits = commits;
+      myTipRevision = tipRevision;
+    }
+
+    @Nonnull
+    List<VcsCommitMetadata> getCommits() {
+      return myCommits;
+    }
+  }
+}
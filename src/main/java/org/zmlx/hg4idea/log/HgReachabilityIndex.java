@@ -0,0 +1,351 @@
+/*
+ * Copyright 2013-2025 consulo.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zmlx.hg4idea.log;
+
+import com.google.common.io.BaseEncoding;
+import consulo.util.collection.ArrayUtil;
+import jakarta.annotation.Nonnull;
+import jakarta.annotation.Nullable;
+
+import java.util.*;
+
+/**
+ * <p>Answers which labels (branch heads and bookmarks) contain a commit, i.e. point to the commit or to one of its descendants,
+ * without running {@code hg log -r "descendants(X) and head()"}.</p>
+ * <p>Every commit of the {@link HgCommitGraph graph} gets the id of its set of labels. Sets are interned: along linear history
+ * and below the points where branches fork most commits share a few sets, so the index costs about an int per commit.</p>
+ * <p>The index is updated incrementally: labels of new targets are propagated down from them until the sets don't change.
+ * A label which moved to a descendant of its old target, like a branch head after a commit, doesn't invalidate anything;
+ * any other removal, e.g. a deleted bookmark or a head moved back, rebuilds the index with one pass over the graph.</p>
+ * <p>The index is not thread-safe, it is guarded by the owning {@link HgCommitIndex}.</p>
+ */
+final class HgReachabilityIndex {
+  private static final BaseEncoding HEX = BaseEncoding.base16().lowerCase();
+  private static final int EMPTY_SET = 0;
+  // the walk checking that a label moved to a descendant gives up after this number of commits
+  private static final int MAX_MOVE_CHECK_COMMITS = 10000;
+
+  // graph positions covered by the index
+  private int mySize;
+  @Nonnull
+  private int[] mySetIds = ArrayUtil.EMPTY_INT_ARRAY;
+  // positions + 1 by node, open addressing
+  @Nonnull
+  private int[] myNodeTable = ArrayUtil.EMPTY_INT_ARRAY;
+  private final byte[] myNodeBuffer = new byte[HgRevlog.NODE_SIZE];
+
+  private final List<String> myLabels = new ArrayList<>();
+  private final Map<String, Integer> myLabelIds = new HashMap<>();
+  private final List<BitSet> mySets = new ArrayList<>();
+  private final Map<BitSet, Integer> mySetIdsByValue = new HashMap<>();
+  private final Map<Long, Integer> myUnions = new HashMap<>();
+  // position << 32 | label id
+  @Nonnull
+  private Set<Long> myTargets = Collections.emptySet();
+
+  HgReachabilityIndex() {
+    resetSets();
+  }
+
+  /**
+   * Brings the index up to date with the graph and the current targets.
+   *
+   * @param targets labels by the nodes they point to; nodes which are not in the graph are ignored
+   */
+  void update(@Nonnull HgCommitGraph graph, @Nonnull Map<String, ? extends Collection<String>> targets) {
+    int oldSize = mySize;
+    extend(graph);
+
+    Set<Long> newTargets = new HashSet<>();
+    for (Map.Entry<String, ? extends Collection<String>> entry : targets.entrySet()) {
+      int position = indexOfNode(graph, entry.getKey());
+      if (position < 0) {
+        continue;
+      }
+      for (String label : entry.getValue()) {
+        newTargets.add(pack(position, internLabel(label)));
+      }
+    }
+
+    if (!isGrowing(graph, newTargets, oldSize)) {
+      rebuild(graph, newTargets);
+      return;
+    }
+    Map<Integer, Integer> seeds = new HashMap<>();
+    for (long target : newTargets) {
+      if (!myTargets.contains(target)) {
+        seeds.merge(position(target), singletonSet(label(target)), this::union);
+      }
+    }
+    propagate(graph, seeds);
+    myTargets = newTargets;
+  }
+
+  /**
+   * @return labels containing the commit, or null if the commit is not indexed
+   */
+  @Nullable
+  Collection<String> getContainingLabels(@Nonnull HgCommitGraph graph, @Nonnull String node) {
+    int position = indexOfNode(graph, node);
+    if (position < 0) {
+      return null;
+    }
+    BitSet set = mySets.get(mySetIds[position]);
+    List<String> labels = new ArrayList<>(set.cardinality());
+    for (int label = set.nextSetBit(0); label >= 0; label = set.nextSetBit(label + 1)) {
+      labels.add(myLabels.get(label));
+    }
+    return labels;
+  }
+
+  /**
+   * Forgets everything, must be called whenever commits are removed from the graph.
+   */
+  void clear() {
+    mySize = 0;
+    mySetIds = ArrayUtil.EMPTY_INT_ARRAY;
+    myNodeTable = ArrayUtil.EMPTY_INT_ARRAY;
+    myLabels.clear();
+    myLabelIds.clear();
+    myTargets = Collections.emptySet();
+    resetSets();
+  }
+
+  private void extend(@Nonnull HgCommitGraph graph) {
+    int size = graph.size();
+    if (size == mySize) {
+      return;
+    }
+    mySetIds = Arrays.copyOf(mySetIds, size);
+    if (myNodeTable.length < size * 2) {
+      myNodeTable = new int[Integer.highestOneBit(Math.max(16, size * 4 - 1))];
+      for (int i = 0; i < mySize; i++) {
+        putNode(graph, i);
+      }
+    }
+    for (int i = mySize; i < size; i++) {
+      putNode(graph, i);
+    }
+    mySize = size;
+  }
+
+  /**
+   * @return true if no label was removed from a commit which it still contains through its old target,
+   * so the new targets can be propagated over the old sets
+   */
+  private boolean isGrowing(@Nonnull HgCommitGraph graph, @Nonnull Set<Long> newTargets, int oldSize) {
+    if (oldSize == 0 && mySize > 0) {
+      return false;
+    }
+    Map<Integer, List<Integer>> newPositionsByLabel = new HashMap<>();
+    for (long target : newTargets) {
+      newPositionsByLabel.computeIfAbsent(label(target), label -> new ArrayList<>()).add(position(target));
+    }
+    for (long target : myTargets) {
+      if (newTargets.contains(target)) {
+        continue;
+      }
+      List<Integer> candidates = newPositionsByLabel.get(label(target));
+      if (candidates == null || !isAncestorOfAny(graph, position(target), candidates)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static boolean isAncestorOfAny(@Nonnull HgCommitGraph graph, int ancestor, @Nonnull List<Integer> descendants) {
+    int ancestorRevision = graph.getRevision(ancestor);
+    Deque<Integer> queue = new ArrayDeque<>();
+    Set<Integer> visited = new HashSet<>();
+    for (int descendant : descendants) {
+      if (descendant >= ancestor && visited.add(descendant)) {
+        queue.add(descendant);
+      }
+    }
+    while (!queue.isEmpty()) {
+      int position = queue.poll();
+      if (position == ancestor) {
+        return true;
+      }
+      if (visited.size() > MAX_MOVE_CHECK_COMMITS) {
+        return false;
+      }
+      for (int parent : getParents(graph, position)) {
+        // parents have lower revisions, so nothing below the ancestor can lead to it
+        if (parent >= 0 && graph.getRevision(parent) >= ancestorRevision && visited.add(parent)) {
+          queue.add(parent);
+        }
+      }
+    }
+    return false;
+  }
+
+  private void rebuild(@Nonnull HgCommitGraph graph, @Nonnull Set<Long> targets) {
+    resetSets();
+    Arrays.fill(mySetIds, 0, mySize, EMPTY_SET);
+    for (long target : targets) {
+      int position = position(target);
+      mySetIds[position] = union(mySetIds[position], singletonSet(label(target)));
+    }
+    // parents always precede children, so one pass from the top finishes every commit before its parents
+    for (int position = mySize - 1; position >= 0; position--) {
+      int set = mySetIds[position];
+      if (set == EMPTY_SET) {
+        continue;
+      }
+      for (int parent : getParents(graph, position)) {
+        if (parent >= 0) {
+          mySetIds[parent] = union(mySetIds[parent], set);
+        }
+      }
+    }
+    myTargets = targets;
+  }
+
+  /**
+   * Adds the seed sets to their commits and to all ancestors, going from the highest position down.
+   */
+  private void propagate(@Nonnull HgCommitGraph graph, @Nonnull Map<Integer, Integer> seeds) {
+    PriorityQueue<Integer> queue = new PriorityQueue<>(Math.max(1, seeds.size()), Comparator.reverseOrder());
+    Map<Integer, Integer> pending = new HashMap<>(seeds);
+    queue.addAll(seeds.keySet());
+    while (!queue.isEmpty()) {
+      int position = queue.poll();
+      int added = pending.remove(position);
+      int set = union(mySetIds[position], added);
+      if (set == mySetIds[position]) {
+        // the ancestors already have these labels as well
+        continue;
+      }
+      mySetIds[position] = set;
+      for (int parent : getParents(graph, position)) {
+        if (parent < 0) {
+          continue;
+        }
+        Integer parentPending = pending.get(parent);
+        if (parentPending == null) {
+          pending.put(parent, added);
+          queue.add(parent);
+        }
+        else {
+          pending.put(parent, union(parentPending, added));
+        }
+      }
+    }
+  }
+
+  @Nonnull
+  private static int[] getParents(@Nonnull HgCommitGraph graph, int position) {
+    int parent1 = graph.getParent1(position);
+    int parent2 = graph.getParent2(position);
+    // a parent hidden by obsolescence markers is not in the graph
+    return new int[]{parent1 == HgRevlog.NULL_REVISION ? -1 : graph.indexOf(parent1),
+      parent2 == HgRevlog.NULL_REVISION ? -1 : graph.indexOf(parent2)};
+  }
+
+  private int union(int set1, int set2) {
+    if (set1 == set2 || set2 == EMPTY_SET) {
+      return set1;
+    }
+    if (set1 == EMPTY_SET) {
+      return set2;
+    }
+    long key = set1 < set2 ? pack(set1, set2) : pack(set2, set1);
+    Integer union = myUnions.get(key);
+    if (union == null) {
+      BitSet bits = (BitSet)mySets.get(set1).clone();
+      bits.or(mySets.get(set2));
+      union = internSet(bits);
+      myUnions.put(key, union);
+    }
+    return union;
+  }
+
+  private int singletonSet(int label) {
+    BitSet bits = new BitSet();
+    bits.set(label);
+    return internSet(bits);
+  }
+
+  private int internSet(@Nonnull BitSet bits) {
+    Integer id = mySetIdsByValue.get(bits);
+    if (id == null) {
+      id = mySets.size();
+      mySets.add(bits);
+      mySetIdsByValue.put(bits, id);
+    }
+    return id;
+  }
+
+  private void resetSets() {
+    mySets.clear();
+    mySetIdsByValue.clear();
+    myUnions.clear();
+    internSet(new BitSet());
+  }
+
+  private int internLabel(@Nonnull String label) {
+    Integer id = myLabelIds.get(label);
+    if (id == null) {
+      id = myLabels.size();
+      myLabels.add(label);
+      myLabelIds.put(label, id);
+    }
+    return id;
+  }
+
+  private void putNode(@Nonnull HgCommitGraph graph, int position) {
+    graph.getNode(position, myNodeBuffer, 0);
+    int mask = myNodeTable.length - 1;
+    int slot = hashNode(myNodeBuffer) & mask;
+    while (myNodeTable[slot] != 0) {
+      slot = (slot + 1) & mask;
+    }
+    myNodeTable[slot] = position + 1;
+  }
+
+  private int indexOfNode(@Nonnull HgCommitGraph graph, @Nonnull String hex) {
+    if (myNodeTable.length == 0 || hex.length() != HgRevlog.NODE_SIZE * 2 || !HEX.canDecode(hex)) {
+      return -1;
+    }
+    byte[] node = HEX.decode(hex);
+    int mask = myNodeTable.length - 1;
+    for (int slot = hashNode(node) & mask; myNodeTable[slot] != 0; slot = (slot + 1) & mask) {
+      int position = myNodeTable[slot] - 1;
+      if (graph.isNode(position, node)) {
+        return position;
+      }
+    }
+    return -1;
+  }
+
+  private static int hashNode(@Nonnull byte[] node) {
+    // nodes are SHA-1 hashes, so their first bytes are spread uniformly
+    return (node[0] & 0xFF) << 24 | (node[1] & 0xFF) << 16 | (node[2] & 0xFF) << 8 | (node[3] & 0xFF);
+  }
+
+  private static long pack(int high, int low) {
+    return ((long)high << 32) | (low & 0xFFFFFFFFL);
+  }
+
+  private static int position(long target) {
+    return (int)(target >>> 32);
+  }
+
+  private static int label(long target) {
+    return (int)target;
+  }
+}
@@ -0,0 +1,379 @@
+/*
+ * Copyright 2013-2025 consulo.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zmlx.hg4idea.log;
+
+import jakarta.annotation.Nonnull;
+import jakarta.annotation.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * <p>Read-only reader of a Mercurial revlog ({@code *.i} index with an optional {@code *.d} data file) in the RevlogNG format.</p>
+ * <p>The index is read into memory, as hg itself does; revision data is read from the data file with positional reads.
+ * Nothing is memory-mapped: a mapped view lives until it's collected, and on Windows it keeps hg from truncating or replacing
+ * the files, e.g. on strip, rollback or when an inline revlog is split. Revision texts are decompressed and restored from their
+ * delta chains on request; the last restored text is cached, so reading revisions in ascending order applies one delta per
+ * revision.</p>
+ * <p>Anything the reader doesn't know (another revlog version, unknown index or revision flags, a compression engine other
+ * than zlib) is reported by an {@link IOException}, so the caller can fall back to the hg command line.
+ * The reader is not thread-safe.</p>
+ */
+final class HgRevlog implements AutoCloseable {
+  private static final int ENTRY_SIZE = 64;
+  private static final int NODE_OFFSET = 32;
+  static final int NODE_SIZE = 20;
+  static final int NULL_REVISION = -1;
+
+  private static final int VERSION_NG = 1;
+  private static final int FLAG_INLINE_DATA = 1 << 16;
+  private static final int FLAG_GENERAL_DELTA = 1 << 17;
+  private static final int KNOWN_FLAGS = FLAG_INLINE_DATA | FLAG_GENERAL_DELTA;
+
+  @Nonnull
+  private final ByteBuffer myIndex;
+  // the data file of a split revlog, closed by close()
+  @Nullable
+  private final FileChannel myData;
+  private final long myDataSize;
+  private final boolean myInline;
+  private final boolean myGeneralDelta;
+  private final int myRevisionCount;
+  // position of each index entry in the index file, only for an inline revlog where data follows each entry
+  @Nullable
+  private final int[] myEntryPositions;
+
+  private final Inflater myInflater = new Inflater();
+  private int myCachedRevision = NULL_REVISION;
+  @Nullable
+  private byte[] myCachedText;
+
+  private HgRevlog(@Nonnull ByteBuffer index,
+                   @Nullable FileChannel data,
+                   long dataSize,
+                   boolean inline,
+                   boolean generalDelta,
+                   int revisionCount,
+                   @Nullable int[] entryPositions) {
+    myIndex = index;
+    myData = data;
+    myDataSize = dataSize;
+    myInline = inline;
+    myGeneralDelta = generalDelta;
+    myRevisionCount = revisionCount;
+    myEntryPositions = entryPositions;
+  }
+
+  /**
+   * @param indexFile the {@code .i} file; a missing file is an empty revlog
+   */
+  @Nonnull
+  static HgRevlog open(@Nonnull File indexFile) throws IOException {
+    ByteBuffer index = read(indexFile);
+    if (index.limit() == 0) {
+      return new HgRevlog(index, null, 0, true, false, 0, new int[0]);
+    }
+    int header = index.getInt(0);
+    int version = header & 0xFFFF;
+    int flags = header & ~0xFFFF;
+    if (version != VERSION_NG) {
+      throw new IOException("Unsupported revlog version " + version + " of " + indexFile);
+    }
+    if ((flags & ~KNOWN_FLAGS) != 0) {
+      throw new IOException("Unsupported revlog flags " + Integer.toHexString(flags) + " of " + indexFile);
+    }
+    boolean inline = (flags & FLAG_INLINE_DATA) != 0;
+    boolean generalDelta = (flags & FLAG_GENERAL_DELTA) != 0;
+    if (!inline) {
+      File dataFile = new File(indexFile.getParentFile(), indexFile.getName().replaceFirst("\\.i$", ".d"));
+      if (!dataFile.exists()) {
+        return new HgRevlog(index, null, 0, false, generalDelta, index.limit() / ENTRY_SIZE, null);
+      }
+      FileChannel data = FileChannel.open(dataFile.toPath(), StandardOpenOption.READ);
+      try {
+        // a revision being appended by hg may be not complete yet, such a tail is ignored
+        return new HgRevlog(index, data, data.size(), false, generalDelta, index.limit() / ENTRY_SIZE, null);
+      }
+      catch (IOException e) {
+        data.close();
+        throw e;
+      }
+    }
+
+    int[] positions = new int[Math.max(16, index.limit() / (ENTRY_SIZE * 4))];
+    int count = 0;
+    long position = 0;
+    while (position + ENTRY_SIZE <= index.limit()) {
+      int compressedLength = index.getInt((int)position + 8);
+      if (compressedLength < 0 || position + ENTRY_SIZE + compressedLength > index.limit()) {
+        break;
+      }
+      if (count == positions.length) {
+        positions = Arrays.copyOf(positions, positions.length * 2);
+      }
+      positions[count++] = (int)position;
+      position += ENTRY_SIZE + compressedLength;
+    }
+    return new HgRevlog(index, null, index.limit(), true, generalDelta, count, Arrays.copyOf(positions, count));
+  }
+
+  @Nonnull
+  private static ByteBuffer read(@Nonnull File file) throws IOException {
+    if (!file.exists()) {
+      return ByteBuffer.allocate(0);
+    }
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      long size = channel.size();
+      if (size > Integer.MAX_VALUE) {
+        throw new IOException("Revlog index is too large to be read: " + file);
+      }
+      ByteBuffer buffer = ByteBuffer.allocate((int)size);
+      // the file may be truncated meanwhile, then only the part which is still there is read
+      while (buffer.hasRemaining()) {
+        if (channel.read(buffer, buffer.position()) < 0) {
+          break;
+        }
+      }
+      buffer.flip();
+      return buffer;
+    }
+  }
+
+  int getRevisionCount() {
+    return myRevisionCount;
+  }
+
+  int getParent1(int revision) {
+    return myIndex.getInt(entryPosition(revision) + 24);
+  }
+
+  int getParent2(int revision) {
+    return myIndex.getInt(entryPosition(revision) + 28);
+  }
+
+  /**
+   * Copies the 20-byte node id of the revision to the given array.
+   */
+  void getNode(int revision, @Nonnull byte[] destination, int offset) {
+    int position = entryPosition(revision) + NODE_OFFSET;
+    for (int i = 0; i < NODE_SIZE; i++) {
+      destination[offset + i] = myIndex.get(position + i);
+    }
+  }
+
+  /**
+   * @return the first 4 bytes of the node id, which are random enough to be used as a hash code
+   */
+  int getNodePrefix(int revision) {
+    return myIndex.getInt(entryPosition(revision) + NODE_OFFSET);
+  }
+
+  boolean isNode(int revision, @Nonnull byte[] node) {
+    int position = entryPosition(revision) + NODE_OFFSET;
+    for (int i = 0; i < NODE_SIZE; i++) {
+      if (myIndex.get(position + i) != node[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return the full text of the revision
+   */
+  @Nonnull
+  byte[] readRevision(int revision) throws IOException {
+    if (revision == myCachedRevision && myCachedText != null) {
+      return myCachedText;
+    }
+    int flags = myIndex.getShort(entryPosition(revision) + 6) & 0xFFFF;
+    if (flags != 0) {
+      throw new IOException("Unsupported flags " + Integer.toHexString(flags) + " of revision " + revision);
+    }
+
+    // walk the delta chain down to the full text or to the cached revision
+    int[] chain = new int[8];
+    int length = 0;
+    int current = revision;
+    byte[] text = null;
+    while (true) {
+      if (current == myCachedRevision && myCachedText != null) {
+        text = myCachedText;
+        break;
+      }
+      if (length == chain.length) {
+        chain = Arrays.copyOf(chain, length * 2);
+      }
+      chain[length++] = current;
+      int base = getBase(current);
+      if (base == current) {
+        break;
+      }
+      if (base < 0 || base > current) {
+        throw new IOException("Broken delta chain of revision " + revision);
+      }
+      current = myGeneralDelta ? base : current - 1;
+    }
+
+    for (int i = length - 1; i >= 0; i--) {
+      int rev = chain[i];
+      byte[] chunk = readChunk(rev);
+      text = text == null ? chunk : applyDelta(text, chunk, getTextLength(rev));
+    }
+    myCachedRevision = revision;
+    myCachedText = text;
+    return text;
+  }
+
+  @Override
+  public void close() {
+    myInflater.end();
+    myCachedText = null;
+    if (myData != null) {
+      try {
+        myData.close();
+      }
+      catch (IOException ignored) {
+        // the channel is read-only, nothing is lost
+      }
+    }
+  }
+
+  private int getBase(int revision) {
+    return myIndex.getInt(entryPosition(revision) + 16);
+  }
+
+  private int getTextLength(int revision) {
+    return myIndex.getInt(entryPosition(revision) + 12);
+  }
+
+  private int entryPosition(int revision) {
+    if (revision < 0 || revision >= myRevisionCount) {
+      throw new IndexOutOfBoundsException("Revision " + revision + " of " + myRevisionCount);
+    }
+    return myEntryPositions != null ? myEntryPositions[revision] : revision * ENTRY_SIZE;
+  }
+
+  @Nonnull
+  private byte[] readChunk(int revision) throws IOException {
+    int entry = entryPosition(revision);
+    long start;
+    if (myInline) {
+      start = entry + ENTRY_SIZE;
+    }
+    else {
+      // the offset of the first revision shares bytes with the revlog header
+      start = revision == 0 ? 0 : myIndex.getLong(entry) >>> 16;
+    }
+    int compressedLength = myIndex.getInt(entry + 8);
+    if (compressedLength == 0) {
+      return new byte[0];
+    }
+    if (compressedLength < 0 || start + compressedLength > myDataSize) {
+      throw new IOException("Revision " + revision + " is beyond the end of the revlog data");
+    }
+    byte[] chunk = new byte[compressedLength];
+    if (myData == null) {
+      for (int i = 0; i < compressedLength; i++) {
+        chunk[i] = myIndex.get((int)start + i);
+      }
+    }
+    else {
+      ByteBuffer buffer = ByteBuffer.wrap(chunk);
+      while (buffer.hasRemaining()) {
+        if (myData.read(buffer, start + buffer.position()) < 0) {
+          throw new IOException("Revision " + revision + " is beyond the end of the revlog data");
+        }
+      }
+    }
+    switch (chunk[0]) {
+      case 0:
+        return chunk;
+      case 'u':
+        return Arrays.copyOfRange(chunk, 1, chunk.length);
+      case 'x':
+        return inflate(chunk, getTextLength(revision));
+      default:
+        throw new IOException("Unsupported compression of revision " + revision + ": " + (chunk[0] & 0xFF));
+    }
+  }
+
+  @Nonnull
+  private byte[] inflate(@Nonnull byte[] chunk, int expectedLength) throws IOException {
+    myInflater.reset();
+    myInflater.setInput(chunk);
+    // a delta is usually smaller than the text, a full text has exactly the expected length
+    byte[] result = new byte[Math.max(64, expectedLength)];
+    int length = 0;
+    try {
+      while (!myInflater.finished()) {
+        if (length == result.length) {
+          result = Arrays.copyOf(result, result.length * 2);
+        }
+        int inflated = myInflater.inflate(result, length, result.length - length);
+        if (inflated == 0 && (myInflater.needsInput() || myInflater.needsDictionary())) {
+          throw new IOException("Truncated compressed revision data");
+        }
+        length += inflated;
+      }
+    }
+    catch (DataFormatException e) {
+      throw new IOException(e);
+    }
+    return length == result.length ? result : Arrays.copyOf(result, length);
+  }
+
+  /**
+   * A delta is a list of hunks {@code start, end, length, data}: each hunk replaces bytes {@code [start, end)} of the base.
+   */
+  @Nonnull
+  private static byte[] applyDelta(@Nonnull byte[] base, @Nonnull byte[] delta, int textLength) throws IOException {
+    byte[] result = new byte[textLength];
+    ByteBuffer hunks = ByteBuffer.wrap(delta);
+    int basePosition = 0;
+    int resultPosition = 0;
+    try {
+      while (hunks.remaining() > 0) {
+        int start = hunks.getInt();
+        int end = hunks.getInt();
+        int length = hunks.getInt();
+        if (start < basePosition || end < start || end > base.length) {
+          throw new IOException("Malformed delta hunk " + start + ":" + end);
+        }
+        System.arraycopy(base, basePosition, result, resultPosition, start - basePosition);
+        resultPosition += start - basePosition;
+        hunks.get(result, resultPosition, length);
+        resultPosition += length;
+        basePosition = end;
+      }
+      System.arraycopy(base, basePosition, result, resultPosition, base.length - basePosition);
+      resultPosition += base.length - basePosition;
+    }
+    catch (RuntimeException e) {
+      throw new IOException("Malformed delta", e);
+    }
+    if (resultPosition != textLength) {
+      throw new IOException("Delta produced " + resultPosition + " bytes instead of " + textLength);
+    }
+    return result;
+  }
+}
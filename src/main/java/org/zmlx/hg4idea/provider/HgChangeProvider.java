@@ -36,6 +36,7 @@ import org.zmlx.hg4idea.command.HgResolveCommand;
 import org.zmlx.hg4idea.command.HgResolveStatusEnum;
 import org.zmlx.hg4idea.command.HgStatusCommand;
 import org.zmlx.hg4idea.command.HgWorkingCopyRevisionsCommand;
+import org.zmlx.hg4idea.execution.HgCommandSubsystem;
 import org.zmlx.hg4idea.repo.HgRepository;
 import org.zmlx.hg4idea.util.HgUtil;
 
@@ -79,11 +80,13 @@ public class HgChangeProvider implements ChangeProvider
   public void getChanges(@Nonnull VcsDirtyScope dirtyScope, @Nonnull ChangelistBuilder builder,
 						 @Nonnull ProgressIndicator progress, @Nonnull ChangeListManagerGate addGate) throws VcsException
   {
-    if (myProject.isDisposed()) return;
-    final Collection<HgChange> changes = new HashSet<>();
-    changes.addAll(process(builder, dirtyScope.getRecursivelyDirtyDirectories()));
-    changes.addAll(process(builder, dirtyScope.getDirtyFiles()));
-    processUnsavedChanges(builder, dirtyScope.getDirtyFilesNoExpand(), changes);
+    try (HgCommandSubsystem.Scope ignored = HgCommandSubsystem.CHANGE_PROVIDER.enter()) {
+      if (myProject.isDisposed()) return;
+      final Collection<HgChange> changes = new HashSet<>();
+      changes.addAll(process(builder, dirtyScope.getRecursivelyDirtyDirectories()));
+      changes.addAll(process(builder, dirtyScope.getDirtyFiles()));
+      processUnsavedChanges(builder, dirtyScope.getDirtyFilesNoExpand(), changes);
+    }
   }
 
   private Collection<HgChange> process(ChangelistBuilder builder, Collection<FilePath> files) {
@@ -12,6 +12,8 @@
 // limitations under the License.
 package org.zmlx.hg4idea.provider;
 
+import consulo.application.progress.ProgressIndicator;
+import consulo.application.progress.ProgressManager;
 import consulo.project.Project;
 import consulo.ui.ex.action.ActionManager;
 import consulo.ui.ex.action.AnAction;
@@ -32,7 +34,7 @@ import org.zmlx.hg4idea.HgFileRevision;
 import org.zmlx.hg4idea.HgRevisionNumber;
 import org.zmlx.hg4idea.command.HgLogCommand;
 import org.zmlx.hg4idea.command.HgWorkingCopyRevisionsCommand;
-import org.zmlx.hg4idea.execution.HgCommandResult;
+import org.zmlx.hg4idea.execution.HgCommandSubsystem;
 import org.zmlx.hg4idea.log.HgBaseLogParser;
 import org.zmlx.hg4idea.log.HgFileRevisionLogParser;
 import org.zmlx.hg4idea.log.HgHistoryUtil;
@@ -44,6 +46,7 @@ import javax.swing.*;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.function.Predicate;
 
 public class HgHistoryProvider implements VcsHistoryProvider {
     private final Project myProject;
@@ -81,31 +84,42 @@ public class HgHistoryProvider implements VcsHistoryProvider {
 
     @Override
     public VcsHistorySession createSessionFor(FilePath filePath) throws VcsException {
-        final VirtualFile vcsRoot = VcsUtil.getVcsRootFor(myProject, filePath);
-        if (vcsRoot == null) {
-            return null;
+        try (HgCommandSubsystem.Scope ignored = HgCommandSubsystem.HISTORY.enter()) {
+            final VirtualFile vcsRoot = VcsUtil.getVcsRootFor(myProject, filePath);
+            if (vcsRoot == null) {
+                return null;
+            }
+            final List<VcsFileRevision> revisions = new ArrayList<>();
+            revisions.addAll(getHistory(filePath, vcsRoot, myProject));
+            return createAppendableSession(vcsRoot, revisions, null);
         }
-        final List<VcsFileRevision> revisions = new ArrayList<>();
-        revisions.addAll(getHistory(filePath, vcsRoot, myProject));
-        return createAppendableSession(vcsRoot, revisions, null);
     }
 
     @Override
     public void reportAppendableHistory(FilePath filePath, final VcsAppendableHistorySessionPartner partner) throws VcsException {
-        final VirtualFile vcsRoot = HgUtil.getHgRootOrThrow(myProject, filePath);
-
-        final List<HgFileRevision> history = getHistory(filePath, vcsRoot, myProject);
-        if (history.size() == 0) {
-            return;
-        }
+        try (HgCommandSubsystem.Scope ignored = HgCommandSubsystem.HISTORY.enter()) {
+            final VirtualFile vcsRoot = HgUtil.getHgRootOrThrow(myProject, filePath);
 
-        final VcsAbstractHistorySession emptySession = createAppendableSession(vcsRoot, Collections.emptyList(), null);
-        partner.reportCreatedEmptySession(emptySession);
-
-        for (HgFileRevision hgFileRevision : history) {
-            partner.acceptRevision(hgFileRevision);
+            // revisions reach the partner while hg log is still running, the session is created with the first of them
+            final ProgressIndicator indicator = ProgressManager.getInstance().getProgressIndicator();
+            final boolean[] sessionReported = {false};
+            VcsConfiguration vcsConfiguration = VcsConfiguration.getInstance(myProject);
+            int limit = vcsConfiguration.LIMIT_HISTORY ? vcsConfiguration.MAXIMUM_HISTORY_ROWS : -1;
+            streamHistory(filePath, vcsRoot, myProject, null, limit, revision -> {
+                if (indicator != null && indicator.isCanceled()) {
+                    return false;
+                }
+                if (!sessionReported[0]) {
+                    partner.reportCreatedEmptySession(createAppendableSession(vcsRoot, Collections.emptyList(), null));
+                    sessionReported[0] = true;
+                }
+                partner.acceptRevision(revision);
+                return true;
+            });
+            if (sessionReported[0]) {
+                partner.finished();
+            }
         }
-        partner.finished();
     }
 
     private VcsAbstractHistorySession createAppendableSession(
@@ -146,6 +160,23 @@ public class HgHistoryProvider implements VcsHistoryProvider {
         @Nonnull VirtualFile vcsRoot,
         @Nonnull Project project,
         @Nullable HgRevisionNumber revisionNumber, int limit
+    ) {
+        List<HgFileRevision> revisions = new ArrayList<>();
+        return streamHistory(filePath, vcsRoot, project, revisionNumber, limit, revisions::add) ? revisions : Collections.emptyList();
+    }
+
+    /**
+     * Same as {@link #getHistory(FilePath, VirtualFile, Project, HgRevisionNumber, int)}, but passes each revision to the consumer
+     * as soon as it is parsed. hg log is killed if the consumer returns false or the progress indicator is cancelled.
+     *
+     * @return false if the log failed
+     */
+    public static boolean streamHistory(
+        @Nonnull FilePath filePath,
+        @Nonnull VirtualFile vcsRoot,
+        @Nonnull Project project,
+        @Nullable HgRevisionNumber revisionNumber, int limit,
+        @Nonnull Predicate<HgFileRevision> consumer
     ) {
         /*
          * The standard way to get history following renames is to call hg log --follow. However:
@@ -162,7 +193,7 @@ public class HgHistoryProvider implements VcsHistoryProvider {
         FilePath originalFilePath = HgUtil.getOriginalFileName(filePath, ChangeListManager.getInstance(project));
         if (revisionNumber == null && !filePath.isDirectory() && !filePath.equals(originalFilePath)) {
             // uncommitted renames detected
-            return getHistoryForUncommittedRenamed(originalFilePath, vcsRoot, project, limit);
+            return streamHistoryForUncommittedRenamed(originalFilePath, vcsRoot, project, limit, consumer);
         }
         final HgLogCommand logCommand = new HgLogCommand(project);
         logCommand.setFollowCopies(!filePath.isDirectory());
@@ -172,16 +203,43 @@ public class HgHistoryProvider implements VcsHistoryProvider {
             args.add("--rev");
             args.add("reverse(0::" + revisionNumber.getChangeset() + ")");
         }
-        return logCommand.execute(new HgFile(vcsRoot, filePath), limit, false, args);
+        return logCommand.execute(new HgFile(vcsRoot, filePath), limit, false, args, consumer);
+    }
+
+    /**
+     * Reads only the revisions of the file with the given changesets, e.g. the ones an annotation refers to,
+     * instead of the whole history: the changesets are passed to hg log as revsets, one hg process per batch.
+     *
+     * @return the revisions in the order hg prints them, which is not necessarily the order of the changesets
+     */
+    @Nonnull
+    public static List<HgFileRevision> getRevisions(
+        @Nonnull FilePath filePath,
+        @Nonnull VirtualFile vcsRoot,
+        @Nonnull Project project,
+        @Nonnull List<String> changesets
+    ) {
+        final HgLogCommand logCommand = new HgLogCommand(project);
+        // the revset selects the revisions, the file argument would drop the ones made under another name of the file
+        logCommand.setLogFile(false);
+        HgFile hgFile = new HgFile(vcsRoot, filePath);
+        List<HgFileRevision> revisions = new ArrayList<>(changesets.size());
+        for (List<String> batch : HgHistoryUtil.prepareRevisionBatches(changesets)) {
+            if (!logCommand.execute(hgFile, -1, false, batch, revisions::add)) {
+                break;
+            }
+        }
+        return revisions;
     }
 
     /**
      * Workaround for getting follow file history in case of uncommitted move/rename change
      */
-    private static List<HgFileRevision> getHistoryForUncommittedRenamed(
+    private static boolean streamHistoryForUncommittedRenamed(
         @Nonnull FilePath originalHgFilePath,
         @Nonnull VirtualFile vcsRoot,
-        @Nonnull Project project, int limit
+        @Nonnull Project project, int limit,
+        @Nonnull Predicate<HgFileRevision> consumer
     ) {
         HgFile originalHgFile = new HgFile(vcsRoot, originalHgFilePath);
         final HgLogCommand logCommand = new HgLogCommand(project);
@@ -197,8 +255,14 @@ public class HgHistoryProvider implements VcsHistoryProvider {
                 "reverse(follow(%s))",
                 relativePath != null ? "'" + FileUtil.toSystemIndependentName(relativePath) + "'" : ""
             ));
-        HgCommandResult result = logCommand.execute(vcsRoot, template, limit, relativePath != null ? null : originalHgFile, argsForCmd);
-        return HgHistoryUtil.getCommitRecords(project, result, new HgFileRevisionLogParser(project, originalHgFile, version));
+        HgFile logFile = relativePath != null ? null : originalHgFile;
+        return HgHistoryUtil.streamCommitRecords(
+            project,
+            false,
+            new HgFileRevisionLogParser(project, originalHgFile, version),
+            consumer,
+            recordConsumer -> logCommand.executeStreaming(vcsRoot, template, limit, logFile, argsForCmd, recordConsumer)
+        );
     }
 
     @Override
@@ -27,6 +27,8 @@ import consulo.ui.ex.awt.util.MergingUpdateQueue;
 import consulo.ui.ex.awt.util.Update;
 import consulo.disposer.Disposable;
 import org.zmlx.hg4idea.command.HgStatusCommand;
+import org.zmlx.hg4idea.execution.HgCommandPriority;
+import org.zmlx.hg4idea.execution.HgCommandSubsystem;
 import org.zmlx.hg4idea.repo.HgRepository;
 
 import jakarta.annotation.Nonnull;
@@ -88,22 +90,25 @@ public class HgLocalIgnoredHolder implements Disposable {
   }
 
   private void rescanAllIgnored() {
-    Set<VirtualFile> ignored = new HashSet<>();
-    try {
-      ignored.addAll(new HgStatusCommand.Builder(false).ignored(true).build(myRepository.getProject())
-                       .getFiles(myRepository.getRoot(), null));
-    }
-    catch (VcsException e) {
-      LOG.error("Can't reload ignored files for: " + myRepository.getPresentableUrl(), e);
-      return;
-    }
-    try {
-      SET_LOCK.writeLock().lock();
-      myIgnoredSet.clear();
-      myIgnoredSet.addAll(ignored);
-    }
-    finally {
-      SET_LOCK.writeLock().unlock();
+    try (HgCommandSubsystem.Scope scope = HgCommandSubsystem.IGNORED_FILES.enter()) {
+      Set<VirtualFile> ignored = new HashSet<>();
+      try {
+        ignored.addAll(new HgStatusCommand.Builder(false).ignored(true).priority(HgCommandPriority.BACKGROUND)
+                         .build(myRepository.getProject())
+                         .getFiles(myRepository.getRoot(), null));
+      }
+      catch (VcsException e) {
+        LOG.error("Can't reload ignored files for: " + myRepository.getPresentableUrl(), e);
+        return;
+      }
+      try {
+        SET_LOCK.writeLock().lock();
+        myIgnoredSet.clear();
+        myIgnoredSet.addAll(ignored);
+      }
+      finally {
+        SET_LOCK.writeLock().unlock();
+      }
     }
   }
 
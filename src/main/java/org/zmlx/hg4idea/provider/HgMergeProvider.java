@@ -130,7 +130,7 @@ public class HgMergeProvider implements MergeProvider
         if (baseRevisionNumber != null) {
           final HgContentRevision base = HgContentRevision.create(myProject, hgFile, baseRevisionNumber);
           //if file doesn't exist in ancestor revision the base revision should be empty
-          mergeData.ORIGINAL = base.getContent() != null ? base.getContentAsBytes() : ArrayUtil.EMPTY_BYTE_ARRAY;
+          mergeData.ORIGINAL = base.getContentAsBytes();
         }
         else { // no base revision means that the file was added simultaneously with different content in both repositories
           mergeData.ORIGINAL = ArrayUtil.EMPTY_BYTE_ARRAY;
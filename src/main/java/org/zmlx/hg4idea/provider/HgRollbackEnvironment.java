@@ -129,26 +129,28 @@ public class HgRollbackEnvironment implements RollbackEnvironment {
       final Collection<FilePath> files = entry.getValue();
 
       HgRevisionNumber revisionNumber = new HgWorkingCopyRevisionsCommand(project).firstParent(repo);
-      for (List<String> chunk : VcsFileUtil.chunkPaths(repo, files)) {
-        HgCommandResult revertResult = new HgRevertCommand(project).execute(repo, chunk, revisionNumber, false);
-        if (HgErrorUtil.hasUncommittedChangesConflict(revertResult)) {
-
-          String message = String.format("<html>Revert failed due to uncommitted merge.<br>" +
-                                         "Would you like to discard all changes for repository <it><b>%s</b></it>?</html>",
-                                         repo.getPresentableName());
-
-          int exitCode = HgUpdateCommand.showDiscardChangesConfirmation(project, message);
-          if (exitCode == Messages.OK) {
-            //discard all changes for this repository//
-            HgUpdateCommand updateCommand = new HgUpdateCommand(project, repo);
-            updateCommand.setClean(true);
-            updateCommand.setRevision(".");
-            updateCommand.execute();
-          }
-          break;
+      List<String> paths = new ArrayList<>(files.size());
+      for (FilePath file : files) {
+        paths.add(VcsFileUtil.relativePath(repo, file));
+      }
+      HgCommandResult revertResult = new HgRevertCommand(project).execute(repo, paths, revisionNumber, false);
+      if (HgErrorUtil.hasUncommittedChangesConflict(revertResult)) {
+
+        String message = String.format("<html>Revert failed due to uncommitted merge.<br>" +
+                                       "Would you like to discard all changes for repository <it><b>%s</b></it>?</html>",
+                                       repo.getPresentableName());
+
+        int exitCode = HgUpdateCommand.showDiscardChangesConfirmation(project, message);
+        if (exitCode == Messages.OK) {
+          //discard all changes for this repository//
+          HgUpdateCommand updateCommand = new HgUpdateCommand(project, repo);
+          updateCommand.setClean(true);
+          updateCommand.setRevision(".");
+          updateCommand.execute();
         }
-        new HgResolveCommand(project).markResolved(repo, files);
+        continue;
       }
+      new HgResolveCommand(project).markResolved(repo, files);
     }
   }
 
@@ -32,11 +32,10 @@ import jakarta.annotation.Nonnull;
 import jakarta.annotation.Nullable;
 import org.zmlx.hg4idea.HgFile;
 import org.zmlx.hg4idea.HgFileRevision;
+import org.zmlx.hg4idea.HgRevisionNumber;
 import org.zmlx.hg4idea.HgVcs;
 
-import java.util.Date;
-import java.util.LinkedList;
-import java.util.List;
+import java.util.*;
 
 public class HgAnnotation extends FileAnnotation {
     private StringBuilder myContentBuffer;
@@ -56,9 +55,13 @@ public class HgAnnotation extends FileAnnotation {
     @Nonnull
     private final Project myProject;
     @Nonnull
-    private final List<HgAnnotationLine> myLines;
+    private final HgAnnotationLines myLines;
+    // revisions the annotation refers to, loaded alongside annotate; tooltips and getRevisions are served from them
     @Nonnull
     private final List<HgFileRevision> myFileRevisions;
+    // file revisions by the index of the annotated revision, looked up once on the first tooltip
+    @Nullable
+    private volatile HgFileRevision[] myRevisionMetadata;
     @Nonnull
     private final HgFile myFile;
     private final VcsRevisionNumber myCurrentRevision;
@@ -66,7 +69,7 @@ public class HgAnnotation extends FileAnnotation {
     public HgAnnotation(
         @Nonnull Project project,
         @Nonnull HgFile hgFile,
-        @Nonnull List<HgAnnotationLine> lines,
+        @Nonnull HgAnnotationLines lines,
         @Nonnull List<HgFileRevision> vcsFileRevisions,
         VcsRevisionNumber revision
     ) {
@@ -80,7 +83,7 @@ public class HgAnnotation extends FileAnnotation {
 
     @Override
     public int getLineCount() {
-        return myLines.size();
+        return myLines.getLineCount();
     }
 
     @Override
@@ -100,34 +103,45 @@ public class HgAnnotation extends FileAnnotation {
     @Nonnull
     @Override
     public LocalizeValue getToolTipValue(int lineNumber) {
-        if (myLines.size() <= lineNumber || lineNumber < 0) {
+        if (myLines.getLineCount() <= lineNumber || lineNumber < 0) {
             return LocalizeValue.empty();
         }
-        HgAnnotationLine info = myLines.get(lineNumber);
-        if (info == null) {
+        HgFileRevision revision = getRevisionMetadata()[myLines.getRevisionIndex(lineNumber)];
+        if (revision == null) {
             return LocalizeValue.empty();
         }
+        return HgLocalize.hg4ideaAnnotationToolTip(
+            revision.getRevisionNumber().asString(),
+            revision.getAuthor(),
+            revision.getRevisionDate(),
+            revision.getCommitMessage()
+        );
+    }
 
-        for (HgFileRevision revision : myFileRevisions) {
-            if (revision.getRevisionNumber().equals(info.getVcsRevisionNumber())) {
-                return HgLocalize.hg4ideaAnnotationToolTip(
-                    revision.getRevisionNumber().asString(),
-                    revision.getAuthor(),
-                    revision.getRevisionDate(),
-                    revision.getCommitMessage()
-                );
+    @Nonnull
+    private HgFileRevision[] getRevisionMetadata() {
+        HgFileRevision[] metadata = myRevisionMetadata;
+        if (metadata == null) {
+            // revision numbers are equal and have equal hashes for short and full changesets
+            Map<HgRevisionNumber, HgFileRevision> revisions = new HashMap<>(myFileRevisions.size() * 2);
+            for (HgFileRevision revision : myFileRevisions) {
+                revisions.putIfAbsent(revision.getRevisionNumber(), revision);
             }
+            metadata = new HgFileRevision[myLines.getRevisionCount()];
+            for (int i = 0; i < metadata.length; i++) {
+                metadata[i] = revisions.get(myLines.getRevisionAt(i));
+            }
+            myRevisionMetadata = metadata;
         }
-
-        return LocalizeValue.empty();
+        return metadata;
     }
 
     @Override
     public String getAnnotatedContent() {
         if (myContentBuffer == null) {
             myContentBuffer = new StringBuilder();
-            for (HgAnnotationLine line : myLines) {
-                myContentBuffer.append(line.get(FIELD.CONTENT));
+            for (int i = 0; i < myLines.getLineCount(); i++) {
+                myContentBuffer.append(myLines.getContent(i));
             }
         }
         return myContentBuffer.toString();
@@ -136,30 +150,26 @@ public class HgAnnotation extends FileAnnotation {
     @Override
     @Nullable
     public VcsRevisionNumber getLineRevisionNumber(int lineNumber) {
-        if (lineNumber >= myLines.size() || lineNumber < 0) {
+        if (lineNumber >= myLines.getLineCount() || lineNumber < 0) {
             return null;
         }
-        HgAnnotationLine annotationLine = myLines.get(lineNumber);
-        return annotationLine.getVcsRevisionNumber();
+        return myLines.getRevision(lineNumber);
     }
 
     @Override
     @Nullable
     public Date getLineDate(int lineNumber) {
-        if (lineNumber >= myLines.size() || lineNumber < 0) {
+        if (lineNumber >= myLines.getLineCount() || lineNumber < 0) {
             return null;
         }
-        //lines.get(lineNumber).get(HgAnnotation.FIELD.DATE)
-        // todo : parse date
-        return null;
+        return myLines.getDate(lineNumber);
     }
 
     @Override
     @Nullable
     public List<VcsFileRevision> getRevisions() {
-        List<VcsFileRevision> result = new LinkedList<>();
-        result.addAll(myFileRevisions);
-        return result;
+        // the getter may be called on the UI thread, so the whole file history is never read here
+        return new LinkedList<>(myFileRevisions);
     }
 
     @Nullable
@@ -190,22 +200,27 @@ public class HgAnnotation extends FileAnnotation {
 
         @Override
         public String getValue(int lineNumber) {
-            if (lineNumber >= myLines.size() || lineNumber < 0) {
+            if (lineNumber >= myLines.getLineCount() || lineNumber < 0) {
                 return "";
             }
-            HgAnnotationLine annotationLine = myLines.get(lineNumber);
-            return myAspectType == FIELD.REVISION
-                ? annotationLine.getVcsRevisionNumber().asString()
-                : annotationLine.get(myAspectType).toString();
+            switch (myAspectType) {
+                case REVISION:
+                    return myLines.getRevision(lineNumber).asString();
+                case DATE:
+                    return myLines.getPresentableDate(lineNumber);
+                case USER:
+                    return myLines.getUser(lineNumber);
+                default:
+                    return "";
+            }
         }
 
         @Override
         protected void showAffectedPaths(int lineNum) {
-            if (lineNum >= 0 && lineNum < myLines.size()) {
-                HgAnnotationLine line = myLines.get(lineNum);
+            if (lineNum >= 0 && lineNum < myLines.getLineCount()) {
                 VirtualFile file = myFile.toFilePath().getVirtualFile();
-                if (line != null && file != null) {
-                    AbstractVcsHelper.getInstance(myProject).showSubmittedFiles(line.getVcsRevisionNumber(), file, HgVcs.getKey());
+                if (file != null) {
+                    AbstractVcsHelper.getInstance(myProject).showSubmittedFiles(myLines.getRevision(lineNum), file, HgVcs.getKey());
                 }
             }
         }
@@ -0,0 +1,403 @@
+/*
+ * Copyright 2013-2025 consulo.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zmlx.hg4idea.provider.annotate;
+
+import consulo.container.boot.ContainerPathManager;
+import consulo.logging.Logger;
+import consulo.project.Project;
+import consulo.util.io.FileUtil;
+import consulo.virtualFileSystem.VirtualFile;
+import jakarta.annotation.Nonnull;
+import jakarta.annotation.Nullable;
+import org.zmlx.hg4idea.HgFile;
+import org.zmlx.hg4idea.HgFileRevision;
+import org.zmlx.hg4idea.HgRevisionNumber;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * <p>Disk cache of annotations, which survives restarts: the annotate lines together with the file revisions used for tooltips.</p>
+ * <p>An entry is keyed by the repository, the changeset and path of the annotated file, the path the file revisions are read for
+ * and the whitespace mode; a committed revision never changes, so entries are never invalidated, only evicted.
+ * The cache is bounded by the total size of entries, the least recently used entries are evicted first.</p>
+ * <p>An entry is a gzipped binary file: a pool of strings, then the annotated revisions, lines and file revisions
+ * referring to the pool by index.</p>
+ * <p>Entries are read and written without locking: an entry is written to a temporary file of its own and atomically moved
+ * in place, so a reader sees either the old or the new one. Only eviction, which scans the whole directory, is serialized.</p>
+ */
+final class HgAnnotationCache {
+  private static final Logger LOG = Logger.getInstance(HgAnnotationCache.class);
+
+  private static final int MAGIC = 0x4867_4143;
+  private static final int VERSION = 2;
+  private static final long MAX_TOTAL_SIZE = 64L * 1024 * 1024;
+  private static final String ENTRY_EXTENSION = ".annotation";
+  private static final int NO_STRING = -1;
+  private static final long NO_DATE = Long.MIN_VALUE;
+
+  @Nonnull
+  private final File myDir;
+
+  HgAnnotationCache(@Nonnull File dir) {
+    myDir = dir;
+  }
+
+  @Nonnull
+  static HgAnnotationCache getInstance() {
+    return InstanceHolder.ourInstance;
+  }
+
+  private static final class InstanceHolder {
+    private static final HgAnnotationCache ourInstance =
+      new HgAnnotationCache(new File(ContainerPathManager.get().getSystemPath(), "hg4idea/annotate"));
+  }
+
+  /**
+   * @param changeset     full or short hash of the annotated revision
+   * @param annotatedPath path of the annotated file in that revision, relative to the root
+   * @param historyPath   path the file revisions are read for, relative to the root
+   */
+  @Nonnull
+  static String createKey(@Nonnull VirtualFile root,
+                          @Nonnull String changeset,
+                          @Nonnull String annotatedPath,
+                          @Nonnull String historyPath,
+                          boolean whitespaceIgnored) {
+    return root.getPath() + "\n" + changeset + "\n" + annotatedPath + "\n" + historyPath + "\n" + (whitespaceIgnored ? "w" : "");
+  }
+
+  /**
+   * @return the cached annotation, or null if there is no entry for the key or it can't be read
+   */
+  @Nullable
+  Annotation get(@Nonnull String key, @Nonnull Project project, @Nonnull VirtualFile root) {
+    File file = getEntryFile(key);
+    if (!file.isFile()) {
+      return null;
+    }
+    try (DataInputStream input = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(file))))) {
+      Annotation annotation = read(input, key, project, root);
+      if (annotation != null) {
+        // the modification time orders entries for eviction
+        file.setLastModified(System.currentTimeMillis());
+      }
+      return annotation;
+    }
+    catch (IOException | RuntimeException e) {
+      LOG.info("Couldn't read the cached annotation " + file, e);
+      FileUtil.delete(file);
+      return null;
+    }
+  }
+
+  void put(@Nonnull String key, @Nonnull HgAnnotationLines lines, @Nonnull List<HgFileRevision> revisions) {
+    if (!isCacheable(revisions) || !myDir.isDirectory() && !myDir.mkdirs()) {
+      return;
+    }
+    File file = getEntryFile(key);
+    File temp = null;
+    try {
+      // the same entry may be written by several threads at once
+      temp = File.createTempFile(file.getName(), ".tmp", myDir);
+      try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(temp))))) {
+        write(output, key, lines, revisions);
+      }
+      Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+    catch (IOException e) {
+      LOG.info("Couldn't cache the annotation in " + file, e);
+      if (temp != null) {
+        FileUtil.delete(temp);
+      }
+      return;
+    }
+    evict();
+  }
+
+  private static boolean isCacheable(@Nonnull List<HgFileRevision> revisions) {
+    for (HgFileRevision revision : revisions) {
+      if (revision.getFile().getRelativePath() == null) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private synchronized void evict() {
+    File[] entries = myDir.listFiles((dir, name) -> name.endsWith(ENTRY_EXTENSION));
+    if (entries == null) {
+      return;
+    }
+    long total = 0;
+    for (File entry : entries) {
+      total += entry.length();
+    }
+    if (total <= MAX_TOTAL_SIZE) {
+      return;
+    }
+    Arrays.sort(entries, Comparator.comparingLong(File::lastModified));
+    for (File entry : entries) {
+      if (total <= MAX_TOTAL_SIZE) {
+        break;
+      }
+      long length = entry.length();
+      if (entry.delete()) {
+        total -= length;
+      }
+    }
+  }
+
+  @Nonnull
+  private File getEntryFile(@Nonnull String key) {
+    try {
+      byte[] digest = MessageDigest.getInstance("SHA-1").digest(key.getBytes(StandardCharsets.UTF_8));
+      StringBuilder name = new StringBuilder(digest.length * 2 + ENTRY_EXTENSION.length());
+      for (byte b : digest) {
+        name.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+      }
+      return new File(myDir, name.append(ENTRY_EXTENSION).toString());
+    }
+    catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static void write(@Nonnull DataOutputStream output,
+                            @Nonnull String key,
+                            @Nonnull HgAnnotationLines lines,
+                            @Nonnull List<HgFileRevision> revisions) throws IOException {
+    StringPool pool = new StringPool();
+    ByteArrayOutputStream records = new ByteArrayOutputStream();
+    DataOutputStream recordOutput = new DataOutputStream(records);
+
+    // lines refer to the table of annotated revisions, user and date belong to the revision
+    recordOutput.writeInt(lines.getRevisionCount());
+    for (int i = 0; i < lines.getRevisionCount(); i++) {
+      HgRevisionNumber revision = lines.getRevisionAt(i);
+      recordOutput.writeInt(pool.id(revision.getRevision()));
+      recordOutput.writeInt(pool.id(revision.getChangeset()));
+      recordOutput.writeInt(pool.id(lines.getRevisionUser(i)));
+      writeDate(recordOutput, lines.getRevisionDate(i));
+    }
+    recordOutput.writeInt(lines.getLineCount());
+    for (int i = 0; i < lines.getLineCount(); i++) {
+      recordOutput.writeInt(lines.getRevisionIndex(i));
+      recordOutput.writeInt(lines.getLineNumber(i));
+      writeString(recordOutput, lines.getContent(i));
+    }
+
+    recordOutput.writeInt(revisions.size());
+    for (HgFileRevision revision : revisions) {
+      HgRevisionNumber number = revision.getRevisionNumber();
+      writeRevisionNumber(recordOutput, pool, number);
+      writeString(recordOutput, number.getCommitMessage());
+      recordOutput.writeInt(number.getParents().size());
+      for (HgRevisionNumber parent : number.getParents()) {
+        writeRevisionNumber(recordOutput, pool, parent);
+      }
+      recordOutput.writeInt(pool.id(revision.getFile().getRelativePath()));
+      recordOutput.writeInt(pool.id(revision.getBranchName()));
+      writeDate(recordOutput, revision.getRevisionDate());
+      recordOutput.writeInt(pool.id(revision.getAuthor()));
+      writeString(recordOutput, revision.getCommitMessage());
+      writeStrings(recordOutput, pool, revision.getModifiedFiles());
+      writeStrings(recordOutput, pool, revision.getAddedFiles());
+      writeStrings(recordOutput, pool, revision.getDeletedFiles());
+      recordOutput.writeInt(revision.getMovedFiles().size());
+      for (Map.Entry<String, String> moved : revision.getMovedFiles().entrySet()) {
+        recordOutput.writeInt(pool.id(moved.getKey()));
+        recordOutput.writeInt(pool.id(moved.getValue()));
+      }
+    }
+    recordOutput.flush();
+
+    output.writeInt(MAGIC);
+    output.writeInt(VERSION);
+    writeString(output, key);
+    output.writeInt(pool.myStrings.size());
+    for (String string : pool.myStrings) {
+      writeString(output, string);
+    }
+    records.writeTo(output);
+  }
+
+  @Nullable
+  private static Annotation read(@Nonnull DataInputStream input, @Nonnull String key, @Nonnull Project project, @Nonnull VirtualFile root)
+    throws IOException {
+    if (input.readInt() != MAGIC || input.readInt() != VERSION || !key.equals(readString(input))) {
+      return null;
+    }
+    String[] pool = new String[input.readInt()];
+    for (int i = 0; i < pool.length; i++) {
+      pool[i] = readString(input);
+    }
+
+    HgAnnotationLines.Builder builder = new HgAnnotationLines.Builder();
+    int[] annotatedRevisions = new int[input.readInt()];
+    for (int i = 0; i < annotatedRevisions.length; i++) {
+      HgRevisionNumber revision = HgRevisionNumber.getInstance(pool[input.readInt()], pool[input.readInt()]);
+      annotatedRevisions[i] = builder.addRevision(revision, pool[input.readInt()], readDate(input));
+    }
+    int lineCount = input.readInt();
+    for (int i = 0; i < lineCount; i++) {
+      int revision = annotatedRevisions[input.readInt()];
+      int lineNumber = input.readInt();
+      builder.addLine(revision, lineNumber, readString(input));
+    }
+    HgAnnotationLines lines = builder.build();
+
+    int revisionCount = input.readInt();
+    List<HgFileRevision> revisions = new ArrayList<>(revisionCount);
+    for (int i = 0; i < revisionCount; i++) {
+      String[] number = readRevisionNumber(input, pool);
+      String numberMessage = readString(input);
+      int parentCount = input.readInt();
+      List<HgRevisionNumber> parents = new ArrayList<>(parentCount);
+      for (int j = 0; j < parentCount; j++) {
+        String[] parent = readRevisionNumber(input, pool);
+        parents.add(new HgRevisionNumber(parent[0], parent[1], parent[2], parent[3], "", Collections.emptyList()));
+      }
+      HgRevisionNumber revisionNumber =
+        new HgRevisionNumber(number[0], number[1], number[2], number[3], numberMessage == null ? "" : numberMessage, parents);
+      HgFile file = new HgFile(root, new File(root.getPath(), pool[input.readInt()]));
+      String branch = get(pool, input.readInt());
+      Date date = readDate(input);
+      String author = get(pool, input.readInt());
+      String message = readString(input);
+      Set<String> modified = readStrings(input, pool);
+      Set<String> added = readStrings(input, pool);
+      Set<String> deleted = readStrings(input, pool);
+      Map<String, String> moved = new HashMap<>();
+      int movedCount = input.readInt();
+      for (int j = 0; j < movedCount; j++) {
+        moved.put(pool[input.readInt()], pool[input.readInt()]);
+      }
+      revisions.add(new HgFileRevision(project, file, revisionNumber, branch, date, author, message, modified, added, deleted, moved));
+    }
+    return new Annotation(lines, revisions);
+  }
+
+  private static void writeRevisionNumber(@Nonnull DataOutputStream output, @Nonnull StringPool pool, @Nonnull HgRevisionNumber number)
+    throws IOException {
+    output.writeInt(pool.id(number.getRevision()));
+    output.writeInt(pool.id(number.getChangeset()));
+    output.writeInt(pool.id(number.getName()));
+    output.writeInt(pool.id(number.getEmail()));
+  }
+
+  /**
+   * @return revision, changeset, author name and email
+   */
+  @Nonnull
+  private static String[] readRevisionNumber(@Nonnull DataInputStream input, @Nonnull String[] pool) throws IOException {
+    return new String[]{pool[input.readInt()], pool[input.readInt()], pool[input.readInt()], pool[input.readInt()]};
+  }
+
+  private static void writeStrings(@Nonnull DataOutputStream output, @Nonnull StringPool pool, @Nonnull Collection<String> strings)
+    throws IOException {
+    output.writeInt(strings.size());
+    for (String string : strings) {
+      output.writeInt(pool.id(string));
+    }
+  }
+
+  @Nonnull
+  private static Set<String> readStrings(@Nonnull DataInputStream input, @Nonnull String[] pool) throws IOException {
+    int count = input.readInt();
+    Set<String> strings = new HashSet<>(count);
+    for (int i = 0; i < count; i++) {
+      strings.add(pool[input.readInt()]);
+    }
+    return strings;
+  }
+
+  private static void writeDate(@Nonnull DataOutputStream output, @Nullable Date date) throws IOException {
+    output.writeLong(date == null ? NO_DATE : date.getTime());
+  }
+
+  @Nullable
+  private static Date readDate(@Nonnull DataInputStream input) throws IOException {
+    long time = input.readLong();
+    return time == NO_DATE ? null : new Date(time);
+  }
+
+  /**
+   * Strings are written as UTF-8 with an int length, {@link DataOutputStream#writeUTF} is limited to 64K.
+   */
+  private static void writeString(@Nonnull DataOutputStream output, @Nullable String string) throws IOException {
+    if (string == null) {
+      output.writeInt(-1);
+      return;
+    }
+    byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+    output.writeInt(bytes.length);
+    output.write(bytes);
+  }
+
+  @Nullable
+  private static String readString(@Nonnull DataInputStream input) throws IOException {
+    int length = input.readInt();
+    if (length < 0) {
+      return null;
+    }
+    byte[] bytes = new byte[length];
+    input.readFully(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  @Nullable
+  private static String get(@Nonnull String[] pool, int id) {
+    return id == NO_STRING ? null : pool[id];
+  }
+
+  private static final class StringPool {
+    private final List<String> myStrings = new ArrayList<>();
+    private final Map<String, Integer> myIds = new HashMap<>();
+
+    int id(@Nullable String string) {
+      if (string == null) {
+        return NO_STRING;
+      }
+      Integer id = myIds.get(string);
+      if (id == null) {
+        id = myStrings.size();
+        myStrings.add(string);
+        myIds.put(string, id);
+      }
+      return id;
+    }
+  }
+
+  static final class Annotation {
+    @Nonnull
+    final HgAnnotationLines myLines;
+    @Nonnull
+    final List<HgFileRevision> myRevisions;
+
+    Annotation(@Nonnull HgAnnotationLines lines, @Nonnull List<HgFileRevision> revisions) {
+      myLines = lines;
+      myRevisions = revisions;
+    }
+  }
+}
@@ -0,0 +1,233 @@
+/*
+ * Copyright 2013-2025 consulo.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zmlx.hg4idea.provider.annotate;
+
+import consulo.application.util.DateFormatUtil;
+import jakarta.annotation.Nonnull;
+import jakarta.annotation.Nullable;
+import org.zmlx.hg4idea.HgRevisionNumber;
+
+import java.util.*;
+
+/**
+ * <p>Annotation of a file stored by columns: the revisions the lines come from are kept once in a table together with their
+ * author and date, and each line only refers to its revision by index.</p>
+ * <p>Authors are interned, dates are kept as timestamps and formatted for presentation on first request, once per revision.</p>
+ * <p>Instances are immutable and are built via {@link Builder}.</p>
+ */
+public final class HgAnnotationLines {
+  private static final long NO_DATE = Long.MIN_VALUE;
+
+  @Nonnull
+  private final HgRevisionNumber[] myRevisions;
+  @Nonnull
+  private final String[] myUsers;
+  @Nonnull
+  private final int[] myRevisionUsers;
+  @Nonnull
+  private final long[] myRevisionDates;
+  @Nonnull
+  private final String[] myPresentableDates;
+
+  @Nonnull
+  private final int[] myLineRevisions;
+  @Nonnull
+  private final int[] myLineNumbers;
+  @Nonnull
+  private final String[] myContents;
+
+  private HgAnnotationLines(@Nonnull Builder builder) {
+    myRevisions = builder.myRevisions.toArray(new HgRevisionNumber[0]);
+    myUsers = builder.myUsers.toArray(new String[0]);
+    myRevisionUsers = Arrays.copyOf(builder.myRevisionUsers, myRevisions.length);
+    myRevisionDates = Arrays.copyOf(builder.myRevisionDates, myRevisions.length);
+    myPresentableDates = new String[myRevisions.length];
+    myLineRevisions = Arrays.copyOf(builder.myLineRevisions, builder.myLineCount);
+    myLineNumbers = Arrays.copyOf(builder.myLineNumbers, builder.myLineCount);
+    myContents = Arrays.copyOf(builder.myContents, builder.myLineCount);
+  }
+
+  public int getLineCount() {
+    return myContents.length;
+  }
+
+  public boolean isEmpty() {
+    return myContents.length == 0;
+  }
+
+  /**
+   * @return index of the revision of the given line in the revision table
+   */
+  public int getRevisionIndex(int line) {
+    return myLineRevisions[line];
+  }
+
+  @Nonnull
+  public HgRevisionNumber getRevision(int line) {
+    return myRevisions[myLineRevisions[line]];
+  }
+
+  @Nonnull
+  public String getUser(int line) {
+    return getRevisionUser(myLineRevisions[line]);
+  }
+
+  @Nullable
+  public Date getDate(int line) {
+    return getRevisionDate(myLineRevisions[line]);
+  }
+
+  /**
+   * @return the pretty date of the line, or an empty string if hg printed a date which couldn't be parsed
+   */
+  @Nonnull
+  public String getPresentableDate(int line) {
+    int revision = myLineRevisions[line];
+    String date = myPresentableDates[revision];
+    if (date == null) {
+      // a race only formats the same date twice
+      long time = myRevisionDates[revision];
+      date = time == NO_DATE ? "" : DateFormatUtil.formatPrettyDate(new Date(time));
+      myPresentableDates[revision] = date;
+    }
+    return date;
+  }
+
+  /**
+   * @return number of the line in the revision it comes from
+   */
+  public int getLineNumber(int line) {
+    return myLineNumbers[line];
+  }
+
+  @Nonnull
+  public String getContent(int line) {
+    return myContents[line];
+  }
+
+  public int getRevisionCount() {
+    return myRevisions.length;
+  }
+
+  @Nonnull
+  public HgRevisionNumber getRevisionAt(int revision) {
+    return myRevisions[revision];
+  }
+
+  @Nonnull
+  public String getRevisionUser(int revision) {
+    return myUsers[myRevisionUsers[revision]];
+  }
+
+  @Nullable
+  public Date getRevisionDate(int revision) {
+    long time = myRevisionDates[revision];
+    return time == NO_DATE ? null : new Date(time);
+  }
+
+  public static final class Builder {
+    private final List<HgRevisionNumber> myRevisions = new ArrayList<>();
+    private final Map<String, Integer> myRevisionIndices = new HashMap<>();
+    private final List<String> myUsers = new ArrayList<>();
+    private final Map<String, Integer> myUserIndices = new HashMap<>();
+    private int[] myRevisionUsers = new int[16];
+    private long[] myRevisionDates = new long[16];
+
+    private int myLineCount;
+    private int[] myLineRevisions = new int[256];
+    private int[] myLineNumbers = new int[256];
+    private String[] myContents = new String[256];
+
+    /**
+     * @return index of the revision with the given changeset, or -1 if it hasn't been added yet
+     */
+    public int findRevision(@Nonnull String changeset) {
+      Integer index = myRevisionIndices.get(changeset);
+      return index != null ? index : -1;
+    }
+
+    /**
+     * Adds the revision to the table unless a revision with the same changeset is already there.
+     *
+     * @return index of the revision
+     */
+    public int addRevision(@Nonnull HgRevisionNumber revision, @Nonnull String user, @Nullable Date date) {
+      int index = findRevision(revision.getChangeset());
+      if (index >= 0) {
+        return index;
+      }
+      index = myRevisions.size();
+      if (index == myRevisionUsers.length) {
+        myRevisionUsers = Arrays.copyOf(myRevisionUsers, index * 2);
+        myRevisionDates = Arrays.copyOf(myRevisionDates, index * 2);
+      }
+      myRevisions.add(revision);
+      myRevisionIndices.put(revision.getChangeset(), index);
+      Integer userIndex = myUserIndices.get(user);
+      if (userIndex == null) {
+        userIndex = myUsers.size();
+        myUsers.add(user);
+        myUserIndices.put(user, userIndex);
+      }
+      myRevisionUsers[index] = userIndex;
+      myRevisionDates[index] = date == null ? NO_DATE : date.getTime();
+      return index;
+    }
+
+    public int getRevisionCount() {
+      return myRevisions.size();
+    }
+
+    @Nonnull
+    public HgRevisionNumber getRevision(int revision) {
+      return myRevisions.get(revision);
+    }
+
+    /**
+     * @param revision index of the revision returned by {@link #addRevision}
+     */
+    public void addLine(int revision, int lineNumber, @Nonnull String content) {
+      if (myLineCount == myContents.length) {
+        int capacity = myLineCount * 2;
+        myLineRevisions = Arrays.copyOf(myLineRevisions, capacity);
+        myLineNumbers = Arrays.copyOf(myLineNumbers, capacity);
+        myContents = Arrays.copyOf(myContents, capacity);
+      }
+      myLineRevisions[myLineCount] = revision;
+      myLineNumbers[myLineCount] = lineNumber;
+      myContents[myLineCount] = content;
+      myLineCount++;
+    }
+
+    /**
+     * Adds a line of another annotation together with its revision.
+     */
+    public void addLine(@Nonnull HgAnnotationLines source, int line) {
+      int sourceRevision = source.getRevisionIndex(line);
+      HgRevisionNumber number = source.getRevisionAt(sourceRevision);
+      int revision = findRevision(number.getChangeset());
+      if (revision < 0) {
+        revision = addRevision(number, source.getRevisionUser(sourceRevision), source.getRevisionDate(sourceRevision));
+      }
+      addLine(revision, source.getLineNumber(line), source.getContent(line));
+    }
+
+    @Nonnull
+    public HgAnnotationLines build() {
+      return new HgAnnotationLines(this);
+    }
+  }
+}
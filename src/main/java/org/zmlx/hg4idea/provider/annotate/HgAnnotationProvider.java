@@ -12,32 +12,44 @@
 // limitations under the License.
 package org.zmlx.hg4idea.provider.annotate;
 
+import consulo.document.Document;
+import consulo.document.FileDocumentManager;
 import consulo.project.Project;
+import consulo.util.io.CharsetToolkit;
+import consulo.util.lang.StringUtil;
 import consulo.versionControlSystem.FilePath;
 import consulo.versionControlSystem.VcsException;
 import consulo.versionControlSystem.annotate.AnnotationProviderEx;
 import consulo.versionControlSystem.annotate.FileAnnotation;
 import consulo.versionControlSystem.change.ChangeListManager;
+import consulo.versionControlSystem.distributed.repository.Repository;
 import consulo.versionControlSystem.history.VcsFileRevision;
 import consulo.versionControlSystem.history.VcsRevisionNumber;
 import consulo.versionControlSystem.util.VcsUtil;
 import consulo.virtualFileSystem.VirtualFile;
+import consulo.virtualFileSystem.status.FileStatus;
 import consulo.virtualFileSystem.util.VirtualFileUtil;
 import jakarta.annotation.Nonnull;
+import jakarta.annotation.Nullable;
 import org.zmlx.hg4idea.HgFile;
 import org.zmlx.hg4idea.HgFileRevision;
 import org.zmlx.hg4idea.HgRevisionNumber;
 import org.zmlx.hg4idea.command.HgAnnotateCommand;
 import org.zmlx.hg4idea.command.HgWorkingCopyRevisionsCommand;
-import org.zmlx.hg4idea.provider.HgHistoryProvider;
+import org.zmlx.hg4idea.execution.HgCommandSubsystem;
+import org.zmlx.hg4idea.repo.HgRepository;
 import org.zmlx.hg4idea.util.HgUtil;
 
-import java.util.List;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class HgAnnotationProvider implements AnnotationProviderEx {
 
   @Nonnull
   private final Project myProject;
+  private final Map<VirtualFile, HgRevisionNumber> myParentRevisions = new ConcurrentHashMap<>();
+  private final Map<VirtualFile, HgRevisionNumber> myTipRevisions = new ConcurrentHashMap<>();
 
   public HgAnnotationProvider(@Nonnull Project project) {
     myProject = project;
@@ -50,35 +62,232 @@ public class HgAnnotationProvider implements AnnotationProviderEx {
 
   @Nonnull
   public FileAnnotation annotate(@Nonnull VirtualFile file, VcsFileRevision revision) throws VcsException {
-    final VirtualFile vcsRoot = VcsUtil.getVcsRootFor(myProject, VcsUtil.getFilePath(file.getPath()));
-    if (vcsRoot == null) {
-      throw new VcsException("vcs root is null for " + file);
-    }
-    HgRevisionNumber revisionNumber = revision != null ? (HgRevisionNumber)revision.getRevisionNumber() : null;
-    final HgFile hgFile = new HgFile(vcsRoot, VirtualFileUtil.virtualToIoFile(file));
-    HgFile fileToAnnotate = revision instanceof HgFileRevision
-                            ? HgUtil.getFileNameInTargetRevision(myProject, revisionNumber, hgFile)
-                            : new HgFile(vcsRoot,
-                                         HgUtil.getOriginalFileName(hgFile.toFilePath(), ChangeListManager.getInstance(myProject)));
-    final List<HgAnnotationLine> annotationResult = (new HgAnnotateCommand(myProject)).execute(fileToAnnotate, revisionNumber);
-    //for uncommitted renamed file we should provide local name otherwise --follow will fail
-    final List<HgFileRevision> logResult =
-      HgHistoryProvider.getHistory(revision == null ? hgFile.toFilePath() : fileToAnnotate.toFilePath(), vcsRoot, myProject, null, -1);
-    return new HgAnnotation(myProject, hgFile, annotationResult, logResult,
-                            revisionNumber != null ? revisionNumber : new HgWorkingCopyRevisionsCommand(myProject).tip(vcsRoot));
+    try (HgCommandSubsystem.Scope ignored = HgCommandSubsystem.ANNOTATE.enter()) {
+      final VirtualFile vcsRoot = VcsUtil.getVcsRootFor(myProject, VcsUtil.getFilePath(file.getPath()));
+      if (vcsRoot == null) {
+        throw new VcsException("vcs root is null for " + file);
+      }
+      HgRevisionNumber revisionNumber = revision != null ? (HgRevisionNumber)revision.getRevisionNumber() : null;
+      final HgFile hgFile = new HgFile(vcsRoot, VirtualFileUtil.virtualToIoFile(file));
+      HgFile fileToAnnotate = revision instanceof HgFileRevision
+                              ? HgUtil.getFileNameInTargetRevision(myProject, revisionNumber, hgFile)
+                              : new HgFile(vcsRoot,
+                                           HgUtil.getOriginalFileName(hgFile.toFilePath(), ChangeListManager.getInstance(myProject)));
+      //for uncommitted renamed file we should provide local name otherwise --follow will fail
+      HgFile historyFile = revision == null ? hgFile : fileToAnnotate;
+      HgRevisionNumber currentRevision = revisionNumber != null ? revisionNumber : getTipRevision(vcsRoot);
+      HgAnnotateCommand annotateCommand = new HgAnnotateCommand(myProject);
+      // the working copy is annotated as of its parent only if it has no local changes
+      String parent = getWorkingCopyParent(vcsRoot);
+      FileStatus status = ChangeListManager.getInstance(myProject).getStatus(file);
+      if (revisionNumber == null && status == FileStatus.MODIFIED) {
+        HgAnnotation annotation = annotateLocalChanges(file, vcsRoot, hgFile, fileToAnnotate, parent, annotateCommand, currentRevision);
+        if (annotation != null) {
+          return annotation;
+        }
+      }
+      String changeset = revisionNumber != null ? revisionNumber.getChangeset() : status == FileStatus.NOT_CHANGED ? parent : null;
+      String key = createCacheKey(vcsRoot, changeset, fileToAnnotate, historyFile, annotateCommand);
+      HgAnnotationCache.Annotation cached = key != null ? HgAnnotationCache.getInstance().get(key, myProject, vcsRoot) : null;
+      if (cached != null) {
+        return new HgAnnotation(myProject, hgFile, cached.myLines, cached.myRevisions, currentRevision);
+      }
+      // the unchanged working copy has the annotated content, its lines are checked before the annotation is cached
+      CharSequence content = key != null && revisionNumber == null ? loadContent(file) : null;
+      HgAnnotationCache.Annotation result = annotate(annotateCommand, vcsRoot, fileToAnnotate, revisionNumber, historyFile, key, content);
+      return new HgAnnotation(myProject, hgFile, result.myLines, result.myRevisions, currentRevision);
+    }
   }
 
   @Nonnull
   @Override
   public FileAnnotation annotate(@Nonnull FilePath path, @Nonnull VcsRevisionNumber revision) throws VcsException {
-    final VirtualFile vcsRoot = VcsUtil.getVcsRootFor(myProject, path);
-    if (vcsRoot == null) {
-      throw new VcsException("vcs root is null for " + path);
-    }
-    final HgFile hgFile = new HgFile(vcsRoot, path);
-    final List<HgAnnotationLine> annotationResult = (new HgAnnotateCommand(myProject)).execute(hgFile, (HgRevisionNumber)revision);
-    final List<HgFileRevision> logResult = HgHistoryProvider
-      .getHistory(hgFile.toFilePath(), vcsRoot, myProject, (HgRevisionNumber)revision, -1);
-    return new HgAnnotation(myProject, hgFile, annotationResult, logResult, revision);
+    try (HgCommandSubsystem.Scope ignored = HgCommandSubsystem.ANNOTATE.enter()) {
+      final VirtualFile vcsRoot = VcsUtil.getVcsRootFor(myProject, path);
+      if (vcsRoot == null) {
+        throw new VcsException("vcs root is null for " + path);
+      }
+      final HgFile hgFile = new HgFile(vcsRoot, path);
+      HgAnnotateCommand annotateCommand = new HgAnnotateCommand(myProject);
+      String changeset = ((HgRevisionNumber)revision).getChangeset();
+      String key = createCacheKey(vcsRoot, changeset, hgFile, hgFile, annotateCommand);
+      HgAnnotationCache.Annotation cached = key != null ? HgAnnotationCache.getInstance().get(key, myProject, vcsRoot) : null;
+      if (cached != null) {
+        return new HgAnnotation(myProject, hgFile, cached.myLines, cached.myRevisions, revision);
+      }
+      HgAnnotationCache.Annotation result = annotate(annotateCommand, vcsRoot, hgFile, (HgRevisionNumber)revision, hgFile, key, null);
+      return new HgAnnotation(myProject, hgFile, result.myLines, result.myRevisions, revision);
+    }
+  }
+
+  /**
+   * Runs hg annotate and reads the file revisions it refers to at the same time, instead of the whole file history.
+   * The annotation is served from these revisions only, the whole file history is never read for it.
+   *
+   * @param historyFile the file revisions are created for
+   * @param key         the key to cache the annotation under, or null if it can't be cached
+   * @param content     the annotated content if it's known without hg, its lines must match the annotated ones to be cached
+   */
+  @Nonnull
+  private HgAnnotationCache.Annotation annotate(@Nonnull HgAnnotateCommand annotateCommand,
+                                                @Nonnull VirtualFile vcsRoot,
+                                                @Nonnull HgFile fileToAnnotate,
+                                                @Nullable HgRevisionNumber revision,
+                                                @Nonnull HgFile historyFile,
+                                                @Nullable String key,
+                                                @Nullable CharSequence content) throws VcsException {
+    HgAnnotationRevisionsLoader loader = new HgAnnotationRevisionsLoader(myProject, vcsRoot, historyFile.toFilePath());
+    HgAnnotateCommand.Result result;
+    try {
+      result = annotateCommand.execute(fileToAnnotate, revision, loader::revisionFound);
+    }
+    catch (Throwable e) {
+      loader.cancel();
+      throw e;
+    }
+    HgAnnotationCache.Annotation annotation = new HgAnnotationCache.Annotation(result.getLines(), loader.finish());
+    if (key != null && isComplete(result, annotation, content)) {
+      HgAnnotationCache.getInstance().put(key, annotation.myLines, annotation.myRevisions);
+    }
+    return annotation;
+  }
+
+  /**
+   * Annotates the working copy parent, cached the same way as the unmodified file would be, and maps the current content onto it,
+   * so that editing the file doesn't re-run {@code hg annotate} over the whole history.
+   *
+   * @param originalFile the file in the working copy parent, it differs from hgFile if the file was moved
+   * @return null if the file can't be annotated incrementally, e.g. during a merge, when lines may come from both parents,
+   * or if the file was moved and doesn't exist in the parent under its current name
+   */
+  @Nullable
+  private HgAnnotation annotateLocalChanges(@Nonnull VirtualFile file,
+                                            @Nonnull VirtualFile vcsRoot,
+                                            @Nonnull HgFile hgFile,
+                                            @Nonnull HgFile originalFile,
+                                            @Nullable String parent,
+                                            @Nonnull HgAnnotateCommand annotateCommand,
+                                            @Nullable HgRevisionNumber currentRevision) throws VcsException {
+    if (!hgFile.equals(originalFile)) {
+      return null;
+    }
+    HgRepository repository = HgUtil.getRepositoryManager(myProject).getRepositoryForRoot(vcsRoot);
+    if (parent == null || repository == null || repository.getState() == Repository.State.MERGING) {
+      return null;
+    }
+    HgRevisionNumber parentRevision = getParentRevision(vcsRoot, parent);
+    CharSequence content = loadContent(file);
+    if (parentRevision == null || content == null) {
+      return null;
+    }
+
+    String key = createCacheKey(vcsRoot, parent, hgFile, hgFile, annotateCommand);
+    HgAnnotationCache.Annotation parentAnnotation = key != null ? HgAnnotationCache.getInstance().get(key, myProject, vcsRoot) : null;
+    if (parentAnnotation == null) {
+      parentAnnotation = annotate(annotateCommand, vcsRoot, hgFile, parentRevision, hgFile, key, null);
+    }
+    HgAnnotationLines parentLines = parentAnnotation.myLines;
+    if (parentLines.isEmpty()) {
+      return null;
+    }
+
+    // hg attributes uncommitted lines to the parent revision marked with '+'
+    HgRevisionNumber workingRevision =
+      HgRevisionNumber.getInstance(parentRevision.getRevision() + "+", parentRevision.getChangeset() + "+");
+    String user = StringUtil.notNullize(repository.getRepositoryConfig().getNamedConfig("ui", "username"));
+    HgAnnotationLines lines =
+      HgWorkingCopyAnnotator.annotate(parentLines, content, workingRevision, user, annotateCommand.isWhitespaceIgnored());
+    return new HgAnnotation(myProject, hgFile, lines, parentAnnotation.myRevisions, currentRevision);
+  }
+
+  /**
+   * @return the local number and hash of the working copy parent, which is asked from hg only when the parent changes
+   */
+  @Nullable
+  private HgRevisionNumber getParentRevision(@Nonnull VirtualFile vcsRoot, @Nonnull String parent) {
+    HgRevisionNumber revision = myParentRevisions.get(vcsRoot);
+    if (revision != null && parent.startsWith(revision.getChangeset())) {
+      return revision;
+    }
+    revision = new HgWorkingCopyRevisionsCommand(myProject).firstParent(vcsRoot);
+    if (revision == null || revision.getRevision().isEmpty() || revision.getChangeset().isEmpty() ||
+        !parent.startsWith(revision.getChangeset())) {
+      return null;
+    }
+    myParentRevisions.put(vcsRoot, revision);
+    return revision;
+  }
+
+  /**
+   * @return the local number and hash of the tip, which is asked from hg only when the tip known to the repository changes
+   */
+  @Nonnull
+  private HgRevisionNumber getTipRevision(@Nonnull VirtualFile vcsRoot) {
+    HgRepository repository = HgUtil.getRepositoryManager(myProject).getRepositoryForRoot(vcsRoot);
+    String tip = repository != null ? repository.getTipRevision() : null;
+    HgRevisionNumber revision = myTipRevisions.get(vcsRoot);
+    if (tip != null && revision != null && tip.startsWith(revision.getChangeset())) {
+      return revision;
+    }
+    revision = new HgWorkingCopyRevisionsCommand(myProject).tip(vcsRoot);
+    if (tip != null && !revision.getChangeset().isEmpty() && tip.startsWith(revision.getChangeset())) {
+      myTipRevisions.put(vcsRoot, revision);
+    }
+    return revision;
+  }
+
+  /**
+   * @return the text of the file as it is edited, unsaved changes included
+   */
+  @Nullable
+  private static CharSequence loadContent(@Nonnull VirtualFile file) {
+    Document document = FileDocumentManager.getInstance().getCachedDocument(file);
+    if (document != null) {
+      return document.getImmutableCharSequence();
+    }
+    try {
+      return CharsetToolkit.bytesToString(file.contentsToByteArray(), file.getCharset());
+    }
+    catch (IOException e) {
+      // the file is annotated by hg then
+      return null;
+    }
+  }
+
+  @Nullable
+  private String getWorkingCopyParent(@Nonnull VirtualFile vcsRoot) {
+    HgRepository repository = HgUtil.getRepositoryManager(myProject).getRepositoryForRoot(vcsRoot);
+    return repository != null ? repository.getCurrentRevision() : null;
+  }
+
+  /**
+   * @return the key of the annotation in the persistent cache, or null if the annotation can't be cached
+   */
+  @Nullable
+  private static String createCacheKey(@Nonnull VirtualFile vcsRoot,
+                                       @Nullable String changeset,
+                                       @Nonnull HgFile annotatedFile,
+                                       @Nonnull HgFile historyFile,
+                                       @Nonnull HgAnnotateCommand annotateCommand) {
+    String annotatedPath = annotatedFile.getRelativePath();
+    String historyPath = historyFile.getRelativePath();
+    if (StringUtil.isEmpty(changeset) || annotatedPath == null || historyPath == null) {
+      return null;
+    }
+    return HgAnnotationCache.createKey(vcsRoot, changeset, annotatedPath, historyPath, annotateCommand.isWhitespaceIgnored());
+  }
+
+  /**
+   * A failed or cancelled hg annotate still returns the lines printed before it stopped, and their revisions are all resolved,
+   * so only an annotation of a command which finished normally is complete.
+   */
+  private static boolean isComplete(@Nonnull HgAnnotateCommand.Result result,
+                                    @Nonnull HgAnnotationCache.Annotation annotation,
+                                    @Nullable CharSequence content) {
+    HgAnnotationLines lines = annotation.myLines;
+    return result.isComplete() &&
+           !lines.isEmpty() &&
+           annotation.myRevisions.size() == lines.getRevisionCount() &&
+           (content == null || HgWorkingCopyAnnotator.countLines(content) == lines.getLineCount());
   }
 }
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2013-2025 consulo.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zmlx.hg4idea.provider.annotate;
+
+import consulo.application.util.concurrent.AppExecutorUtil;
+import consulo.project.Project;
+import consulo.versionControlSystem.FilePath;
+import consulo.versionControlSystem.VcsException;
+import consulo.virtualFileSystem.VirtualFile;
+import jakarta.annotation.Nonnull;
+import org.zmlx.hg4idea.HgFileRevision;
+import org.zmlx.hg4idea.HgRevisionNumber;
+import org.zmlx.hg4idea.execution.HgCommandSubsystem;
+import org.zmlx.hg4idea.provider.HgHistoryProvider;
+
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * <p>Loads the file revisions an annotation is served from, e.g. in tooltips, while {@code hg annotate} is still running.</p>
+ * <p>Only the revisions the annotation refers to are read: they are reported by the annotate command as soon as their first
+ * line is printed, and are passed in batches to {@code hg log -r h1+h2+...} on the application pool.</p>
+ * <p>This is deliberately not a single revset: the changesets are known only when annotate finishes, so one query would run
+ * after it instead of alongside. Batches grow, so that the first details are requested early and a long annotation
+ * doesn't start too many processes.</p>
+ */
+final class HgAnnotationRevisionsLoader {
+  private static final int FIRST_BATCH_SIZE = 16;
+  private static final int MAX_BATCH_SIZE = 1024;
+
+  @Nonnull
+  private final Project myProject;
+  @Nonnull
+  private final VirtualFile myRoot;
+  @Nonnull
+  private final FilePath myPath;
+  private final List<Future<List<HgFileRevision>>> myPending = new ArrayList<>();
+  @Nonnull
+  private List<String> myBatch = new ArrayList<>();
+  private int myBatchSize = FIRST_BATCH_SIZE;
+
+  HgAnnotationRevisionsLoader(@Nonnull Project project, @Nonnull VirtualFile root, @Nonnull FilePath path) {
+    myProject = project;
+    myRoot = root;
+    myPath = path;
+  }
+
+  synchronized void revisionFound(@Nonnull HgRevisionNumber revision) {
+    myBatch.add(revision.getChangeset());
+    if (myBatch.size() >= myBatchSize) {
+      submitBatch();
+      myBatchSize = Math.min(myBatchSize * 2, MAX_BATCH_SIZE);
+    }
+  }
+
+  /**
+   * Waits for all requested revisions.
+   *
+   * @return the revisions, newest first, as the file history is ordered
+   */
+  @Nonnull
+  synchronized List<HgFileRevision> finish() throws VcsException {
+    submitBatch();
+    List<HgFileRevision> revisions = new ArrayList<>();
+    try {
+      for (Future<List<HgFileRevision>> future : myPending) {
+        revisions.addAll(future.get());
+      }
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new VcsException(e);
+    }
+    catch (ExecutionException e) {
+      throw new VcsException(e.getCause());
+    }
+    finally {
+      cancel();
+    }
+    revisions.sort(Comparator.comparingLong((HgFileRevision revision) -> revision.getRevisionNumber().getRevisionAsLong()).reversed());
+    return revisions;
+  }
+
+  /**
+   * Drops the requests which haven't started yet, e.g. if the annotation failed.
+   */
+  synchronized void cancel() {
+    for (Future<?> future : myPending) {
+      future.cancel(false);
+    }
+    myPending.clear();
+  }
+
+  private void submitBatch() {
+    if (myBatch.isEmpty()) {
+      return;
+    }
+    List<String> batch = myBatch;
+    myBatch = new ArrayList<>();
+    myPending.add(AppExecutorUtil.getAppExecutorService().submit(() -> {
+      try (HgCommandSubsystem.Scope ignored = HgCommandSubsystem.ANNOTATE.enter()) {
+        return HgHistoryProvider.getRevisions(myPath, myRoot, myProject, batch);
+      }
+    }));
+  }
+}
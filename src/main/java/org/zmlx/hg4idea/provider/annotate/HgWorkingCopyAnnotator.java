@@ -0,0 +1,210 @@
+/*
+ * Copyright 2013-2025 consulo.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zmlx.hg4idea.provider.annotate;
+
+import jakarta.annotation.Nonnull;
+import org.zmlx.hg4idea.HgRevisionNumber;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * <p>Annotates a locally modified file without running {@code hg annotate} on the working copy: the annotation of the parent
+ * revision is mapped onto the current content by a line diff, lines which aren't found in the parent are attributed to the
+ * working revision, as {@code hg annotate} does itself.</p>
+ * <p>The diff is Myers' algorithm applied after the common prefix and suffix are stripped; if the rest differs too much,
+ * it is considered changed as a whole, so the cost stays bounded for any edit.</p>
+ */
+final class HgWorkingCopyAnnotator {
+  private static final int MAX_EDIT_DISTANCE = 2000;
+
+  private HgWorkingCopyAnnotator() {
+  }
+
+  /**
+   * @param parentLines       annotation of the file in the working copy parent
+   * @param content           current content of the file
+   * @param workingRevision   revision modified lines are attributed to
+   * @param user              author of modified lines
+   * @param whitespaceIgnored true if lines differing only in whitespace are considered equal
+   */
+  @Nonnull
+  static HgAnnotationLines annotate(@Nonnull HgAnnotationLines parentLines,
+                                    @Nonnull CharSequence content,
+                                    @Nonnull HgRevisionNumber workingRevision,
+                                    @Nonnull String user,
+                                    boolean whitespaceIgnored) {
+    String[] lines = splitLines(content);
+    String[] before = new String[parentLines.getLineCount()];
+    for (int i = 0; i < before.length; i++) {
+      before[i] = toKey(parentLines.getContent(i), whitespaceIgnored);
+    }
+    String[] after = new String[lines.length];
+    for (int i = 0; i < after.length; i++) {
+      after[i] = toKey(lines[i], whitespaceIgnored);
+    }
+
+    int[] origins = matchLines(before, after);
+    HgAnnotationLines.Builder result = new HgAnnotationLines.Builder();
+    int working = -1;
+    for (int i = 0; i < lines.length; i++) {
+      if (origins[i] >= 0) {
+        result.addLine(parentLines, origins[i]);
+      }
+      else {
+        if (working < 0) {
+          working = result.addRevision(workingRevision, user, null);
+        }
+        result.addLine(working, i + 1, lines[i]);
+      }
+    }
+    return result.build();
+  }
+
+  /**
+   * Splits the content the way {@code hg annotate} does: a trailing line separator doesn't start a new line.
+   */
+  @Nonnull
+  private static String[] splitLines(@Nonnull CharSequence content) {
+    List<String> lines = new ArrayList<>();
+    int start = 0;
+    int length = content.length();
+    while (start < length) {
+      int end = start;
+      while (end < length && content.charAt(end) != '\n') {
+        end++;
+      }
+      int lineEnd = end > start && content.charAt(end - 1) == '\r' ? end - 1 : end;
+      lines.add(content.subSequence(start, lineEnd).toString());
+      start = end + 1;
+    }
+    return lines.toArray(new String[0]);
+  }
+
+  /**
+   * @return the number of lines {@code hg annotate} prints for the content
+   */
+  static int countLines(@Nonnull CharSequence content) {
+    int count = 0;
+    int length = content.length();
+    for (int i = 0; i < length; i++) {
+      if (content.charAt(i) == '\n') {
+        count++;
+      }
+    }
+    return length > 0 && content.charAt(length - 1) != '\n' ? count + 1 : count;
+  }
+
+  @Nonnull
+  private static String toKey(@Nonnull String line, boolean whitespaceIgnored) {
+    if (!line.isEmpty() && line.charAt(line.length() - 1) == '\r') {
+      line = line.substring(0, line.length() - 1);
+    }
+    if (!whitespaceIgnored) {
+      return line;
+    }
+    StringBuilder key = new StringBuilder(line.length());
+    for (int i = 0; i < line.length(); i++) {
+      char c = line.charAt(i);
+      if (!Character.isWhitespace(c)) {
+        key.append(c);
+      }
+    }
+    return key.toString();
+  }
+
+  /**
+   * @return for each line of {@code after} the index of the same line in {@code before}, or -1 if the line is new
+   */
+  @Nonnull
+  static int[] matchLines(@Nonnull String[] before, @Nonnull String[] after) {
+    int[] result = new int[after.length];
+    Arrays.fill(result, -1);
+
+    int prefix = 0;
+    while (prefix < before.length && prefix < after.length && before[prefix].equals(after[prefix])) {
+      result[prefix] = prefix;
+      prefix++;
+    }
+    int suffix = 0;
+    while (suffix < before.length - prefix && suffix < after.length - prefix &&
+           before[before.length - 1 - suffix].equals(after[after.length - 1 - suffix])) {
+      result[after.length - 1 - suffix] = before.length - 1 - suffix;
+      suffix++;
+    }
+    matchMiddle(before, prefix, before.length - suffix, after, prefix, after.length - suffix, result);
+    return result;
+  }
+
+  private static void matchMiddle(@Nonnull String[] before, int beforeStart, int beforeEnd,
+                                  @Nonnull String[] after, int afterStart, int afterEnd,
+                                  @Nonnull int[] result) {
+    int n = beforeEnd - beforeStart;
+    int m = afterEnd - afterStart;
+    if (n == 0 || m == 0) {
+      return;
+    }
+    int max = Math.min(n + m, MAX_EDIT_DISTANCE);
+    int offset = max + 1;
+    int[] v = new int[2 * max + 3];
+    // the furthest reaching x per diagonal after each step, only diagonals [-d, d] are kept
+    List<int[]> trace = new ArrayList<>();
+    for (int d = 0; d <= max; d++) {
+      for (int k = -d; k <= d; k += 2) {
+        int x = k == -d || k != d && v[offset + k - 1] < v[offset + k + 1] ? v[offset + k + 1] : v[offset + k - 1] + 1;
+        int y = x - k;
+        while (x < n && y < m && before[beforeStart + x].equals(after[afterStart + y])) {
+          x++;
+          y++;
+        }
+        v[offset + k] = x;
+        if (x >= n && y >= m) {
+          backtrack(trace, d, n, m, beforeStart, afterStart, result);
+          return;
+        }
+      }
+      trace.add(Arrays.copyOfRange(v, offset - d, offset + d + 1));
+    }
+    // too different: the middle part stays unmatched
+  }
+
+  private static void backtrack(@Nonnull List<int[]> trace, int distance, int n, int m, int beforeStart, int afterStart,
+                                @Nonnull int[] result) {
+    int x = n;
+    int y = m;
+    for (int d = distance; d > 0; d--) {
+      int[] previous = trace.get(d - 1);
+      int k = x - y;
+      boolean down = k == -d || k != d && previous[k - 1 + d - 1] < previous[k + 1 + d - 1];
+      int previousK = down ? k + 1 : k - 1;
+      int previousX = previous[previousK + d - 1];
+      int previousY = previousX - previousK;
+      while (x > previousX && y > previousY) {
+        x--;
+        y--;
+        result[afterStart + y] = beforeStart + x;
+      }
+      x = previousX;
+      y = previousY;
+    }
+    while (x > 0 && y > 0) {
+      x--;
+      y--;
+      result[afterStart + y] = beforeStart + x;
+    }
+  }
+}
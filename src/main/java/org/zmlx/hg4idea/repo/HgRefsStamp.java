@@ -0,0 +1,120 @@
+/*
+ * Copyright 2013-2025 consulo.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zmlx.hg4idea.repo;
+
+import com.google.common.io.BaseEncoding;
+import jakarta.annotation.Nonnull;
+import jakarta.annotation.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * <p>Stamp of the files the refs of a repository are read from: the branch heads caches, bookmarks, tags, local tags and MQ status,
+ * together with the working directory parent and the changelog. Equal stamps mean that re-reading the files would give the same refs.
+ * The changelog is needed because the branch heads caches are not always rewritten when commits are added,
+ * e.g. by {@code hg commit --secret}, which the served caches don't show.</p>
+ * <p>A file is stamped by its size, modification time and file key (the inode where the file system has one),
+ * so that a file replaced by a rename within the timestamp granularity is noticed as well.</p>
+ */
+public final class HgRefsStamp {
+  private static final String[] REF_FILES = {"bookmarks", "localtags", "patches/status"};
+  private static final String TAGS_FILE = ".hgtags";
+  private static final String DIRSTATE_FILE = "dirstate";
+  private static final int HASH_SIZE = 20;
+
+  @Nonnull
+  private final List<Object> myStamps;
+
+  private HgRefsStamp(@Nonnull List<Object> stamps) {
+    myStamps = stamps;
+  }
+
+  /**
+   * @param hgDir          the .hg directory of the repository
+   * @param changelogStamp the stamp of the changelog files, which the log reads
+   * @return the current stamp, or null if the files couldn't be stamped and the refs should be read anyway
+   */
+  @Nullable
+  public static HgRefsStamp read(@Nonnull File hgDir, long changelogStamp) {
+    List<Object> stamps = new ArrayList<>();
+    stamps.add(changelogStamp);
+    try {
+      // branchheads <2.5; branchheads-served >= 2.5 and <2.9; branch2-served and other filters >= 2.9
+      File cacheDir = new File(hgDir, "cache");
+      String[] branchCaches = cacheDir.list((dir, name) -> name.startsWith("branch"));
+      if (branchCaches != null) {
+        Arrays.sort(branchCaches);
+        for (String name : branchCaches) {
+          addFileStamp(new File(cacheDir, name), stamps);
+        }
+      }
+      for (String path : REF_FILES) {
+        addFileStamp(new File(hgDir, path), stamps);
+      }
+      addFileStamp(new File(hgDir.getParentFile(), TAGS_FILE), stamps);
+      // the dirstate is rewritten by many commands, so only its first parent is compared
+      stamps.add(readWorkingDirectoryParent(new File(hgDir, DIRSTATE_FILE)));
+    }
+    catch (IOException e) {
+      return null;
+    }
+    return new HgRefsStamp(stamps);
+  }
+
+  private static void addFileStamp(@Nonnull File file, @Nonnull List<Object> stamps) throws IOException {
+    stamps.add(file.getPath());
+    try {
+      BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+      stamps.add(attributes.size());
+      stamps.add(attributes.lastModifiedTime());
+      stamps.add(attributes.fileKey());
+    }
+    catch (NoSuchFileException e) {
+      stamps.add(null);
+    }
+  }
+
+  @Nonnull
+  private static String readWorkingDirectoryParent(@Nonnull File dirstate) throws IOException {
+    try (InputStream stream = Files.newInputStream(dirstate.toPath())) {
+      byte[] hash = stream.readNBytes(HASH_SIZE);
+      return BaseEncoding.base16().lowerCase().encode(hash);
+    }
+    catch (NoSuchFileException e) {
+      return "";
+    }
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) return true;
+    if (o == null || getClass() != o.getClass()) return false;
+    return myStamps.equals(((HgRefsStamp)o).myStamps);
+  }
+
+  @Override
+  public int hashCode() {
+    return myStamps.hashCode();
+  }
+}
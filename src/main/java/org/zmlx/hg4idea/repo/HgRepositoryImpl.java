@@ -37,6 +37,7 @@ import org.zmlx.hg4idea.HgStatusUpdater;
 import org.zmlx.hg4idea.HgVcs;
 import org.zmlx.hg4idea.command.HgBranchesCommand;
 import org.zmlx.hg4idea.execution.HgCommandResult;
+import org.zmlx.hg4idea.execution.HgCommandSubsystem;
 import org.zmlx.hg4idea.provider.AsyncFilesManagerListener;
 import org.zmlx.hg4idea.provider.HgLocalIgnoredHolder;
 import org.zmlx.hg4idea.util.HgUtil;
@@ -230,26 +231,28 @@ public class HgRepositoryImpl extends RepositoryImpl implements HgRepository {
 
     @Override
     public void update() {
-        HgRepoInfo currentInfo = readRepoInfo();
-        // update only if something changed!!!   if update every time - new log will be refreshed every time, too.
-        // Then blinking and do not work properly;
-        final Project project = getProject();
-        if (!project.isDisposed() && !currentInfo.equals(myInfo)) {
-            myInfo = currentInfo;
-            HgCommandResult branchCommandResult = new HgBranchesCommand(project, getRoot()).collectBranches();
-            if (branchCommandResult == null || branchCommandResult.getExitValue() != 0) {
-                LOG.warn("Could not collect hg opened branches."); // hg executable is not valid
-                myOpenedBranches = myInfo.getBranches().keySet();
-            }
-            else {
-                myOpenedBranches = HgBranchesCommand.collectNames(branchCommandResult);
-            }
-
-            Application.get().executeOnPooledThread(() -> {
-                if (!project.isDisposed()) {
-                    project.getMessageBus().syncPublisher(HgStatusUpdater.class).update(project, getRoot());
+        try (HgCommandSubsystem.Scope ignored = HgCommandSubsystem.REPOSITORY_STATE.enter()) {
+            HgRepoInfo currentInfo = readRepoInfo();
+            // update only if something changed!!!   if update every time - new log will be refreshed every time, too.
+            // Then blinking and do not work properly;
+            final Project project = getProject();
+            if (!project.isDisposed() && !currentInfo.equals(myInfo)) {
+                myInfo = currentInfo;
+                HgCommandResult branchCommandResult = new HgBranchesCommand(project, getRoot()).collectBranches();
+                if (branchCommandResult == null || branchCommandResult.getExitValue() != 0) {
+                    LOG.warn("Could not collect hg opened branches."); // hg executable is not valid
+                    myOpenedBranches = myInfo.getBranches().keySet();
                 }
-            });
+                else {
+                    myOpenedBranches = HgBranchesCommand.collectNames(branchCommandResult);
+                }
+
+                Application.get().executeOnPooledThread(() -> {
+                    if (!project.isDisposed()) {
+                        project.getMessageBus().syncPublisher(HgStatusUpdater.class).update(project, getRoot());
+                    }
+                });
+            }
         }
     }
 
@@ -37,6 +37,7 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.*;
+import java.util.function.Function;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -197,25 +198,30 @@ public class HgRepositoryReader {
 
   @Nonnull
   public Map<String, LinkedHashSet<Hash>> readBranches() {
-    Map<String, LinkedHashSet<Hash>> branchesWithHashes = new HashMap<>();
-    // Set<String> branchNames = new HashSet<String>();
-    if (isBranchInfoAvailable()) {
-      Pattern activeBranchPattern = myStatusInBranchFile ? HASH_STATUS_NAME : HASH_NAME;
-      String[] branchesWithHeads = DvcsUtil.tryLoadFileOrReturn(myBranchHeadsFile, "").split("\n");
-      // first one - is a head revision: head hash + head number;
-      for (int i = 1; i < branchesWithHeads.length; ++i) {
-        Matcher matcher = activeBranchPattern.matcher(branchesWithHeads[i]);
-        if (matcher.matches()) {
-          String name = matcher.group(2);
-          if (branchesWithHashes.containsKey(name)) {
-            branchesWithHashes.get(name).add(myVcsObjectsFactory.createHash(matcher.group(1)));
-          }
-          else {
-            LinkedHashSet<Hash> hashes = new LinkedHashSet<>();
-            hashes.add(myVcsObjectsFactory.createHash(matcher.group(1)));
-            branchesWithHashes.put(name, hashes);
-          }
-        }
+    if (!isBranchInfoAvailable()) {
+      return new HashMap<>();
+    }
+    return parseBranchHeads(DvcsUtil.tryLoadFileOrReturn(myBranchHeadsFile, ""), myStatusInBranchFile, myVcsObjectsFactory::createHash);
+  }
+
+  /**
+   * Parses the content of the branch heads cache file.
+   *
+   * @param statusInBranchFile whether each line contains the open/closed status between the hash and the branch name
+   * @param hashFactory        creates a hash object from its string representation
+   */
+  @Nonnull
+  static <H> Map<String, LinkedHashSet<H>> parseBranchHeads(@Nonnull String content,
+                                                            boolean statusInBranchFile,
+                                                            @Nonnull Function<String, H> hashFactory) {
+    Map<String, LinkedHashSet<H>> branchesWithHashes = new HashMap<>();
+    Pattern activeBranchPattern = statusInBranchFile ? HASH_STATUS_NAME : HASH_NAME;
+    String[] branchesWithHeads = content.split("\n");
+    // first one - is a head revision: head hash + head number;
+    for (int i = 1; i < branchesWithHeads.length; ++i) {
+      Matcher matcher = activeBranchPattern.matcher(branchesWithHeads[i]);
+      if (matcher.matches()) {
+        branchesWithHashes.computeIfAbsent(matcher.group(2), name -> new LinkedHashSet<>()).add(hashFactory.apply(matcher.group(1)));
       }
     }
     return branchesWithHashes;
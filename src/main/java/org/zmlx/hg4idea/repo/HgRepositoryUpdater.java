@@ -31,6 +31,7 @@ import consulo.virtualFileSystem.event.VFileEvent;
 import jakarta.annotation.Nonnull;
 import jakarta.annotation.Nullable;
 import org.zmlx.hg4idea.HgRemoteUpdater;
+import org.zmlx.hg4idea.HgVcs;
 
 import java.util.List;
 
@@ -56,11 +57,14 @@ final class HgRepositoryUpdater implements Disposable, BulkFileListener {
   private final MergingUpdateQueue myUpdateConfigQueue;
   private final HgRepository myRepository;
   private final VcsDirtyScopeManager myDirtyScopeManager;
+  @Nonnull
+  private final String myHgDirPrefix;
 
 
   HgRepositoryUpdater(@Nonnull final HgRepository repository) {
     myRepository = repository;
     VirtualFile hgDir = myRepository.getHgDir();
+    myHgDirPrefix = hgDir.getPath() + "/";
     myWatchRequest = LocalFileSystem.getInstance().addRootToWatch(hgDir.getPath(), true);
     myRepositoryFiles = HgRepositoryFiles.getInstance(hgDir);
     DvcsUtil.visitVcsDirVfs(hgDir, HgRepositoryFiles.getSubDirRelativePaths());
@@ -114,11 +118,15 @@ final class HgRepositoryUpdater implements Disposable, BulkFileListener {
     boolean hgIgnoreChanged = false;
 
     boolean configHgrcChanged = false;
+    boolean hgDirChanged = false;
     for (VFileEvent event : events) {
       String filePath = event.getPath();
       if (filePath == null) {
         continue;
       }
+      if (filePath.startsWith(myHgDirPrefix)) {
+        hgDirChanged = true;
+      }
       if (myRepositoryFiles.isbranchHeadsFile(filePath)) {
         branchHeadsChanged = true;
       }
@@ -162,6 +170,13 @@ final class HgRepositoryUpdater implements Disposable, BulkFileListener {
       }
     }
 
+    if (hgDirChanged) {
+      // results of hg commands which are running now can't be shared anymore
+      HgVcs vcs = HgVcs.getInstance(myProject);
+      if (vcs != null) {
+        vcs.getCommandCoalescer().invalidate(myRepository.getRoot().getPath());
+      }
+    }
     if (branchHeadsChanged || branchFileChanged || dirstateFileChanged || mergeFileChanged || rebaseFileChanged ||
       bookmarksFileChanged || currentBookmarkFileChanged || tagsFileChanged || localTagsFileChanged ||
       mqChanged) {
@@ -30,6 +30,7 @@ import jakarta.annotation.Nullable;
 import org.zmlx.hg4idea.*;
 import org.zmlx.hg4idea.command.HgIncomingCommand;
 import org.zmlx.hg4idea.command.HgOutgoingCommand;
+import org.zmlx.hg4idea.execution.HgCommandSubsystem;
 import org.zmlx.hg4idea.status.ui.HgWidgetUpdater;
 
 import java.util.LinkedList;
@@ -73,8 +74,10 @@ public class HgRemoteStatusUpdater implements HgRemoteUpdater {
             }
             final VirtualFile[] roots =
               root != null ? new VirtualFile[]{root} : ProjectLevelVcsManager.getInstance(project).getRootsUnderVcs(myVcs);
-            updateChangesStatusSynchronously(project, roots, myIncomingStatus, true);
-            updateChangesStatusSynchronously(project, roots, myOutgoingStatus, false);
+            try (HgCommandSubsystem.Scope ignored = HgCommandSubsystem.REMOTE_UPDATER.enter()) {
+              updateChangesStatusSynchronously(project, roots, myIncomingStatus, true);
+              updateChangesStatusSynchronously(project, roots, myOutgoingStatus, false);
+            }
 
             project.getMessageBus().syncPublisher(HgWidgetUpdater.class).update();
 
@@ -0,0 +1,214 @@
+/*
+ * Copyright 2013-2025 consulo.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zmlx.hg4idea.util;
+
+import consulo.application.util.SystemInfo;
+import consulo.util.lang.StringUtil;
+import jakarta.annotation.Nonnull;
+import jakarta.annotation.Nullable;
+import org.zmlx.hg4idea.execution.HgCommandResult;
+import org.zmlx.hg4idea.execution.ShellCommandException;
+
+import java.io.File;
+import java.nio.charset.Charset;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * <p>Facts about an hg executable which are found out by running it: the version, the extensions which fail to load,
+ * the encodings hg doesn't accept, and whether {@code chg} and {@code rhg} are installed next to it.</p>
+ * <p>The record is persisted in {@link org.zmlx.hg4idea.HgGlobalSettings} and reused while the executable file and the global
+ * hg configuration files (which define the enabled extensions) keep their modification time and size.
+ * Supported templates and features are derived from the version.</p>
+ * <p>Public fields are serialized with the settings; the record is replaced, not modified, when it changes.</p>
+ */
+public class HgExecutableCapabilities {
+  public String myExecutable;
+  public String myResolvedPath;
+  public long myLastModified;
+  public long myLength;
+  public long myConfigStamp;
+  public String myVersion;
+  public List<String> myUnsupportedExtensions = new ArrayList<>();
+  public List<String> myRejectedEncodings = new ArrayList<>();
+  public boolean myChgAvailable;
+  public boolean myRhgAvailable;
+
+  /**
+   * Runs {@code hg version} and records the result together with the current stamps of the executable.
+   */
+  @Nonnull
+  public static HgExecutableCapabilities probe(@Nonnull String executable)
+    throws ShellCommandException, InterruptedException, ParseException {
+    HgCommandResult versionResult = HgUtil.getVersionOutput(executable);
+    HgVersion version = HgVersion.parseVersionAndExtensionInfo(versionResult.getRawOutput(), versionResult.getErrorLines());
+
+    HgExecutableCapabilities capabilities = new HgExecutableCapabilities();
+    capabilities.myExecutable = executable;
+    capabilities.myVersion = version.toString();
+    capabilities.myUnsupportedExtensions = new ArrayList<>(version.getUnsupportedExtensions());
+    File file = resolveExecutable(executable);
+    if (file != null) {
+      capabilities.myResolvedPath = file.getPath();
+      capabilities.myLastModified = file.lastModified();
+      capabilities.myLength = file.length();
+      capabilities.myConfigStamp = getConfigStamp(file);
+      capabilities.myChgAvailable = isSiblingExecutable(file, "chg");
+      capabilities.myRhgAvailable = isSiblingExecutable(file, "rhg");
+    }
+    return capabilities;
+  }
+
+  /**
+   * @return true if the record was created for the given executable, and neither the executable nor the global configuration
+   * were changed since then; an executable which can't be found on disk is never considered up to date
+   */
+  public boolean isUpToDate(@Nonnull String executable) {
+    if (!executable.equals(myExecutable) || myResolvedPath == null || myVersion == null) {
+      return false;
+    }
+    File file = resolveExecutable(executable);
+    return file != null &&
+           file.getPath().equals(myResolvedPath) &&
+           file.lastModified() == myLastModified &&
+           file.length() == myLength &&
+           getConfigStamp(file) == myConfigStamp;
+  }
+
+  @Nonnull
+  public HgVersion getVersion() {
+    List<String> parts = StringUtil.split(StringUtil.notNullize(myVersion), ".");
+    return new HgVersion(getPart(parts, 0), getPart(parts, 1), getPart(parts, 2), new HashSet<>(myUnsupportedExtensions));
+  }
+
+  public boolean isEncodingRejected(@Nonnull Charset charset) {
+    return myRejectedEncodings.contains(charset.name());
+  }
+
+  /**
+   * @return a copy of this record with the given encoding marked as not accepted by hg
+   */
+  @Nonnull
+  public HgExecutableCapabilities withRejectedEncoding(@Nonnull Charset charset) {
+    HgExecutableCapabilities copy = new HgExecutableCapabilities();
+    copy.myExecutable = myExecutable;
+    copy.myResolvedPath = myResolvedPath;
+    copy.myLastModified = myLastModified;
+    copy.myLength = myLength;
+    copy.myConfigStamp = myConfigStamp;
+    copy.myVersion = myVersion;
+    copy.myUnsupportedExtensions = new ArrayList<>(myUnsupportedExtensions);
+    copy.myRejectedEncodings = new ArrayList<>(myRejectedEncodings);
+    copy.myRejectedEncodings.add(charset.name());
+    copy.myChgAvailable = myChgAvailable;
+    copy.myRhgAvailable = myRhgAvailable;
+    return copy;
+  }
+
+  public boolean isChgAvailable() {
+    return myChgAvailable;
+  }
+
+  public boolean isRhgAvailable() {
+    return myRhgAvailable;
+  }
+
+  private static int getPart(@Nonnull List<String> parts, int index) {
+    if (parts.size() <= index) {
+      return 0;
+    }
+    try {
+      return Integer.parseInt(parts.get(index));
+    }
+    catch (NumberFormatException e) {
+      return 0;
+    }
+  }
+
+  /**
+   * Finds the executable file the same way the system does: as is if the path points to a file, otherwise in the PATH directories.
+   */
+  @Nullable
+  static File resolveExecutable(@Nonnull String executable) {
+    String path = executable.trim();
+    File file = new File(path);
+    if (file.isAbsolute() || path.contains(File.separator)) {
+      return file.isFile() ? file : null;
+    }
+    String systemPath = System.getenv("PATH");
+    if (systemPath == null) {
+      return null;
+    }
+    for (String dir : StringUtil.split(systemPath, File.pathSeparator)) {
+      File candidate = new File(dir, path);
+      if (candidate.isFile()) {
+        return candidate;
+      }
+      if (SystemInfo.isWindows) {
+        for (String extension : new String[]{".exe", ".bat", ".cmd"}) {
+          candidate = new File(dir, path + extension);
+          if (candidate.isFile()) {
+            return candidate;
+          }
+        }
+      }
+    }
+    return null;
+  }
+
+  private static boolean isSiblingExecutable(@Nonnull File hg, @Nonnull String name) {
+    File dir = hg.getParentFile();
+    return dir != null && (new File(dir, name).isFile() || SystemInfo.isWindows && new File(dir, name + ".exe").isFile());
+  }
+
+  /**
+   * Combines modification times and sizes of the global and user configuration files, which hg reads for any repository.
+   */
+  private static long getConfigStamp(@Nonnull File hg) {
+    List<File> files = new ArrayList<>();
+    String hgrcPath = System.getenv("HGRCPATH");
+    if (hgrcPath != null) {
+      for (String path : StringUtil.split(hgrcPath, File.pathSeparator)) {
+        files.add(new File(path));
+      }
+    }
+    else {
+      String home = System.getProperty("user.home");
+      files.add(new File(home, ".hgrc"));
+      if (SystemInfo.isWindows) {
+        files.add(new File(home, "mercurial.ini"));
+        File installDir = hg.getParentFile();
+        if (installDir != null) {
+          files.add(new File(installDir, "mercurial.ini"));
+          files.add(new File(installDir, "hgrc.d"));
+        }
+      }
+      else {
+        files.add(new File(home, ".config/hg/hgrc"));
+        files.add(new File("/etc/mercurial/hgrc"));
+        files.add(new File("/etc/mercurial/hgrc.d"));
+      }
+    }
+    long stamp = 17;
+    for (File file : files) {
+      stamp = stamp * 31 + file.lastModified();
+      stamp = stamp * 31 + file.length();
+    }
+    return stamp;
+  }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2013-2025 consulo.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zmlx.hg4idea.util;
+
+import consulo.logging.Logger;
+import consulo.util.io.FileUtil;
+import jakarta.annotation.Nonnull;
+import jakarta.annotation.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * <p>File arguments of one hg command. A few paths are passed on the command line as is; a larger set is written to a temporary file,
+ * which is passed as a single {@code listfile0:} pattern, so that any number of files is handled by one hg process
+ * instead of a process per command line sized chunk.</p>
+ * <p>Must be closed after the command has finished to delete the temporary file.</p>
+ */
+public final class HgPathArguments implements AutoCloseable {
+  private static final Logger LOG = Logger.getInstance(HgPathArguments.class);
+
+  // total length of paths which are still passed on the command line, it is below the limits of all platforms
+  private static final int MAX_INLINE_LENGTH = 4096;
+
+  @Nonnull private final List<String> myArguments;
+  @Nullable private final File myListFile;
+
+  private HgPathArguments(@Nonnull List<String> arguments, @Nullable File listFile) {
+    myArguments = arguments;
+    myListFile = listFile;
+  }
+
+  /**
+   * @param relativePaths paths relative to the repository root, separated by '/'
+   * @param charset       the encoding hg is called with, see {@link org.zmlx.hg4idea.execution.HgCommandExecutor#getCharset()};
+   *                      file names in the list file are written in it
+   */
+  @Nonnull
+  public static HgPathArguments create(@Nonnull Collection<String> relativePaths, @Nonnull Charset charset) {
+    int length = 0;
+    for (String path : relativePaths) {
+      length += path.length() + 1;
+    }
+    if (length <= MAX_INLINE_LENGTH) {
+      return new HgPathArguments(List.copyOf(relativePaths), null);
+    }
+    try {
+      File listFile = FileUtil.createTempFile("hg-files", ".lst");
+      ByteArrayOutputStream content = new ByteArrayOutputStream(length * 2);
+      for (String path : relativePaths) {
+        // 'path:' patterns are relative to the repository root and never interpreted as globs or regexps
+        content.write(("path:" + path).getBytes(charset));
+        content.write(0);
+      }
+      FileUtil.writeToFile(listFile, content.toByteArray());
+      return new HgPathArguments(Collections.singletonList("listfile0:" + listFile.getPath()), listFile);
+    }
+    catch (IOException e) {
+      LOG.warn("Couldn't write the list of files for hg, passing them on the command line", e);
+      return new HgPathArguments(List.copyOf(relativePaths), null);
+    }
+  }
+
+  /**
+   * @return either the paths themselves or one {@code listfile0:} pattern
+   */
+  @Nonnull
+  public List<String> getArguments() {
+    return myArguments;
+  }
+
+  @Override
+  public void close() {
+    if (myListFile != null) {
+      FileUtil.delete(myListFile);
+    }
+  }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2013-2025 consulo.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zmlx.hg4idea.execution;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class HgOutputSplitterTest {
+  private static final char SEPARATOR = '\u0003';
+
+  @Test
+  public void testRecordsSplitAcrossChunks() {
+    List<String> records = new ArrayList<>();
+    HgOutputSplitter splitter = new HgOutputSplitter(SEPARATOR, records::add);
+    assertTrue(splitter.feed("first\u0003sec"));
+    assertEquals(Collections.singletonList("first"), records);
+    assertTrue(splitter.feed("ond"));
+    assertTrue(splitter.feed("\u0003third\u0003fou"));
+    assertTrue(splitter.finish());
+    assertEquals(Arrays.asList("first", "second", "third", "fou"), records);
+  }
+
+  @Test
+  public void testEmptyRecordsAreSkipped() {
+    List<String> records = new ArrayList<>();
+    HgOutputSplitter splitter = new HgOutputSplitter(SEPARATOR, records::add);
+    assertTrue(splitter.feed("\u0003\u0003a\u0003"));
+    assertTrue(splitter.feed(""));
+    assertTrue(splitter.feed("\u0003b\u0003"));
+    assertTrue(splitter.finish());
+    assertEquals(Arrays.asList("a", "b"), records);
+  }
+
+  @Test
+  public void testLineSeparators() {
+    List<String> records = new ArrayList<>();
+    HgOutputSplitter splitter = new HgOutputSplitter('\n', records::add);
+    assertTrue(splitter.feed("windows\r"));
+    assertTrue(splitter.feed("\nunix\n\r\nlast\r"));
+    assertTrue(splitter.finish());
+    assertEquals(Arrays.asList("windows", "unix", "last"), records);
+  }
+
+  @Test
+  public void testCarriageReturnIsKeptForOtherSeparators() {
+    List<String> records = new ArrayList<>();
+    HgOutputSplitter splitter = new HgOutputSplitter(SEPARATOR, records::add);
+    splitter.feed("line\r\n\u0003");
+    assertEquals(Collections.singletonList("line\r\n"), records);
+  }
+
+  @Test
+  public void testConsumerStopsReading() {
+    List<String> records = new ArrayList<>();
+    HgOutputSplitter splitter = new HgOutputSplitter(SEPARATOR, record -> {
+      records.add(record);
+      return records.size() < 2;
+    });
+    assertTrue(splitter.feed("a\u0003"));
+    assertFalse(splitter.feed("b\u0003c\u0003"));
+    assertFalse(splitter.feed("d\u0003"));
+    assertFalse(splitter.finish());
+    assertEquals(Arrays.asList("a", "b"), records);
+  }
+
+  @Test
+  public void testNothingToFinish() {
+    List<String> records = new ArrayList<>();
+    HgOutputSplitter splitter = new HgOutputSplitter(SEPARATOR, records::add);
+    assertTrue(splitter.feed("a\u0003"));
+    assertTrue(splitter.finish());
+    assertEquals(Collections.singletonList("a"), records);
+    assertEquals(SEPARATOR, splitter.getSeparator());
+  }
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright 2013-2025 consulo.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zmlx.hg4idea.log;
+
+import consulo.versionControlSystem.log.VcsLogObjectsFactory;
+import consulo.virtualFileSystem.VirtualFile;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class HgChangelogReaderTest {
+  private static final int NULL = HgRevlog.NULL_REVISION;
+
+  @Rule
+  public TemporaryFolder myTempDir = new TemporaryFolder();
+
+  private File myRootDir;
+  private VirtualFile myRoot;
+
+  @Before
+  public void setUp() {
+    myRootDir = myTempDir.getRoot();
+    myRoot = mock(VirtualFile.class);
+    when(myRoot.getPath()).thenReturn(myRootDir.getPath());
+  }
+
+  @Test
+  public void testReadRevisions() throws IOException {
+    checkReadRevisions(new HgRevlogWriter(true, false));
+  }
+
+  @Test
+  public void testReadRevisionsSplitGeneralDelta() throws IOException {
+    checkReadRevisions(new HgRevlogWriter(false, true));
+  }
+
+  @Test
+  public void testReadTexts() throws IOException {
+    HgRevlogWriter writer = createHistory(new HgRevlogWriter(false, false));
+    writer.writeRepository(myRootDir);
+
+    List<String> texts = new ArrayList<>();
+    try (HgChangelogReader reader = open()) {
+      reader.readTexts(1, 10, (revision, description, files) -> texts.add(revision + ": " + description + " " + files));
+    }
+    assertEquals(Arrays.asList("1: Add b\n\nwith a body [b.txt, dir/c.txt]",
+                               "2: Branch [a.txt]",
+                               "3: Merge []"), texts);
+  }
+
+  @Test
+  public void testFloatTime() throws IOException {
+    HgRevlogWriter writer = new HgRevlogWriter(true, false);
+    byte[] text = "0000000000000000000000000000000000000000\nold <old@example.com>\n1100000000.50 -3600\na.txt\n\nOld commit"
+      .getBytes(StandardCharsets.UTF_8);
+    writer.addText(text, NULL, NULL, HgRevlogWriter.Compression.MARKER);
+    writer.writeRepository(myRootDir);
+
+    long[] time = new long[1];
+    try (HgChangelogReader reader = open()) {
+      reader.readRevisions(0, (revision, node, parent1, parent2, commitTime, author) -> time[0] = commitTime);
+    }
+    assertEquals(1100000000000L, time[0]);
+  }
+
+  @Test
+  public void testFindRevision() throws IOException {
+    HgRevlogWriter writer = createHistory(new HgRevlogWriter(true, true));
+    writer.writeRepository(myRootDir);
+
+    try (HgChangelogReader reader = open()) {
+      for (int revision = 0; revision < writer.getRevisionCount(); revision++) {
+        assertEquals(revision, reader.findRevision(writer.getNodeHex(revision)));
+        assertEquals(revision, reader.findRevision(writer.getNodeHex(revision).toUpperCase()));
+        assertTrue(reader.isRevision(revision, writer.getNode(revision)));
+      }
+      assertEquals(3, reader.getTipRevision());
+      assertEquals(NULL, reader.findRevision(writer.getNodeHex(0).substring(0, 12)));
+      assertEquals(NULL, reader.findRevision("0123456789abcdef0123456789abcdef01234567"));
+      assertEquals(NULL, reader.findRevision("not a hash, but forty characters long..."));
+      assertFalse(reader.isRevision(4, writer.getNode(3)));
+      assertFalse(reader.isRevision(2, writer.getNode(3)));
+      // details are read only for known full hashes
+      assertNull(reader.readShortDetails(Arrays.asList(writer.getNodeHex(1), writer.getNodeHex(2).substring(0, 12))));
+    }
+  }
+
+  @Test
+  public void testSharedRepository() throws IOException {
+    File source = myTempDir.newFolder("source");
+    createHistory(new HgRevlogWriter(true, false)).writeRepository(source);
+    File hgDir = new File(myRootDir, ".hg");
+    assertTrue(hgDir.mkdirs());
+    Files.write(new File(hgDir, "requires").toPath(), "shared\n".getBytes(StandardCharsets.US_ASCII));
+    Files.write(new File(hgDir, "sharedpath").toPath(), new File(source, ".hg").getPath().getBytes(StandardCharsets.UTF_8));
+
+    assertEquals(new File(source, ".hg/store"), HgChangelogReader.findStoreDir(hgDir));
+    try (HgChangelogReader reader = open()) {
+      assertNotNull(reader);
+      assertEquals(3, reader.getTipRevision());
+    }
+  }
+
+  @Test
+  public void testUnknownRequirement() throws IOException {
+    createHistory(new HgRevlogWriter(true, false)).writeRepository(myRootDir);
+    Files.write(new File(myRootDir, ".hg/requires").toPath(), "revlogv1\nstore\nrevlog-compression-zstd\n".getBytes(StandardCharsets.US_ASCII));
+
+    assertNull(open());
+  }
+
+  @Test
+  public void testObsoleteMarkers() throws IOException {
+    File storeDir = createHistory(new HgRevlogWriter(true, false)).writeRepository(myRootDir);
+    File hgDir = new File(myRootDir, ".hg");
+    long changelogStamp = HgChangelogReader.getChangelogStamp(hgDir);
+    long markersStamp = HgChangelogReader.getObsoleteMarkersStamp(hgDir);
+    try (HgChangelogReader reader = open()) {
+      assertNotNull(reader);
+    }
+
+    Files.write(HgChangelogReader.getObsoleteMarkersFile(storeDir).toPath(), new byte[]{1, 2, 3});
+    assertNull(open());
+    assertNotEquals(changelogStamp, HgChangelogReader.getChangelogStamp(hgDir));
+    assertNotEquals(markersStamp, HgChangelogReader.getObsoleteMarkersStamp(hgDir));
+  }
+
+  @Test
+  public void testBrokenParents() throws IOException {
+    HgRevlogWriter writer = new HgRevlogWriter(true, false);
+    writer.addCommit(NULL, NULL, "a", 1, Collections.emptyList(), "first");
+    // a revision can't be a parent of itself
+    writer.addCommit(1, NULL, "a", 2, Collections.emptyList(), "second");
+    writer.writeRepository(myRootDir);
+
+    try (HgChangelogReader reader = open()) {
+      reader.readRevisions(0, (revision, node, parent1, parent2, time, author) -> {
+      });
+      fail("IOException expected");
+    }
+    catch (IOException expected) {
+    }
+  }
+
+  private void checkReadRevisions(HgRevlogWriter writer) throws IOException {
+    createHistory(writer).writeRepository(myRootDir);
+
+    List<String> revisions = new ArrayList<>();
+    try (HgChangelogReader reader = open()) {
+      assertNotNull(reader);
+      reader.readRevisions(1, (revision, node, parent1, parent2, time, author) -> {
+        assertArrayEquals(writer.getNode(revision), node);
+        revisions.add(revision + " " + parent1 + " " + parent2 + " " + time + " " + author);
+      });
+    }
+    assertEquals(Arrays.asList("1 0 -1 1400000060000 John Doe <john@example.com>",
+                               "2 0 -1 1400000120000 Jane Roe <jane@example.com>",
+                               "3 1 2 1400000180000 John Doe <john@example.com>"), revisions);
+  }
+
+  /**
+   * 0 - 1 - 3
+   *  \     /
+   *   - 2 -
+   */
+  private static HgRevlogWriter createHistory(HgRevlogWriter writer) {
+    String john = "John Doe <john@example.com>";
+    writer.addCommit(NULL, NULL, john, 1400000000, Collections.singletonList("a.txt"), "Initial");
+    writer.addCommit(0, NULL, john, 1400000060, Arrays.asList("b.txt", "dir/c.txt"), "Add b\n\nwith a body");
+    writer.addCommit(0, NULL, "Jane Roe <jane@example.com>", 1400000120, Collections.singletonList("a.txt"), "Branch");
+    writer.addCommit(1, 2, john, 1400000180, Collections.emptyList(), "Merge");
+    return writer;
+  }
+
+  private HgChangelogReader open() throws IOException {
+    return HgChangelogReader.open(myRoot, mock(VcsLogObjectsFactory.class));
+  }
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright 2013-2025 consulo.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zmlx.hg4idea.log;
+
+import consulo.project.Project;
+import consulo.versionControlSystem.log.VcsLogObjectsFactory;
+import consulo.virtualFileSystem.VirtualFile;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class HgCommitIndexTest {
+  private static final int NULL = HgRevlog.NULL_REVISION;
+
+  @Rule
+  public TemporaryFolder myTempDir = new TemporaryFolder();
+
+  private File myRootDir;
+  private VirtualFile myRoot;
+  private File myIndexFile;
+  private File myAuthorsFile;
+
+  @Before
+  public void setUp() throws IOException {
+    myRootDir = myTempDir.newFolder("repository");
+    myRoot = mock(VirtualFile.class);
+    when(myRoot.getPath()).thenReturn(myRootDir.getPath());
+    File indexDir = myTempDir.newFolder("index");
+    myIndexFile = new File(indexDir, "repository.index");
+    myAuthorsFile = new File(indexDir, "repository.authors");
+  }
+
+  @Test
+  public void testEmptyIndex() {
+    HgCommitIndex index = load();
+    assertEquals(0, index.getRevisions().length);
+    assertNull(index.getTipNode());
+  }
+
+  @Test
+  public void testIndexIsPersisted() throws IOException {
+    HgRevlogWriter writer = new HgRevlogWriter(true, true);
+    addCommits(writer, 3);
+    writer.writeRepository(myRootDir);
+    assertTrue(update(load()));
+
+    HgCommitIndex loaded = load();
+    assertArrayEquals(new int[]{0, 1, 2}, loaded.getRevisions());
+    assertEquals(writer.getNodeHex(2), loaded.getTipNode());
+  }
+
+  @Test
+  public void testNewCommitsAreAppended() throws IOException {
+    HgRevlogWriter writer = new HgRevlogWriter(false, false);
+    addCommits(writer, 3);
+    writer.writeRepository(myRootDir);
+    HgCommitIndex index = load();
+    assertTrue(update(index));
+    long indexLength = myIndexFile.length();
+
+    addCommits(writer, 2);
+    writer.writeRepository(myRootDir);
+    assertTrue(update(index));
+    assertArrayEquals(new int[]{0, 1, 2, 3, 4}, index.getRevisions());
+    assertTrue(myIndexFile.length() > indexLength);
+
+    HgCommitIndex loaded = load();
+    assertArrayEquals(new int[]{0, 1, 2, 3, 4}, loaded.getRevisions());
+    assertEquals(writer.getNodeHex(4), loaded.getTipNode());
+    // parents are restored as well: the commit below the tip is reachable from it
+    assertEquals(Collections.singletonList("tip"),
+                 loaded.getContainingLabels(writer.getNodeHex(3), Collections.singletonMap(writer.getNodeHex(4), Collections.singletonList("tip"))));
+  }
+
+  @Test
+  public void testStripOfIndexedCommits() throws IOException {
+    HgRevlogWriter writer = new HgRevlogWriter(true, false);
+    addCommits(writer, 4);
+    writer.writeRepository(myRootDir);
+    HgCommitIndex index = load();
+    assertTrue(update(index));
+
+    // the last two commits are stripped, another one is committed instead, so the count is lower and the tip differs
+    HgRevlogWriter stripped = new HgRevlogWriter(true, false);
+    addCommits(stripped, 2);
+    stripped.addCommit(1, NULL, "Jane Roe <jane@example.com>", 1500000000, Collections.singletonList("c.txt"), "Another");
+    assertEquals(writer.getNodeHex(1), stripped.getNodeHex(1));
+    stripped.writeRepository(myRootDir);
+
+    assertTrue(update(index));
+    assertArrayEquals(new int[]{0, 1, 2}, index.getRevisions());
+    assertEquals(stripped.getNodeHex(2), index.getTipNode());
+    assertNull(index.getContainingLabels(writer.getNodeHex(3), Collections.emptyMap()));
+
+    HgCommitIndex loaded = load();
+    assertArrayEquals(new int[]{0, 1, 2}, loaded.getRevisions());
+    assertEquals(stripped.getNodeHex(2), loaded.getTipNode());
+  }
+
+  @Test
+  public void testStripWithTheSameCount() throws IOException {
+    HgRevlogWriter writer = new HgRevlogWriter(true, true);
+    addCommits(writer, 3);
+    writer.writeRepository(myRootDir);
+    HgCommitIndex index = load();
+    assertTrue(update(index));
+
+    // a rollback and a new commit: the tip is at the same revision, but it is another commit
+    HgRevlogWriter rewritten = new HgRevlogWriter(true, true);
+    addCommits(rewritten, 2);
+    rewritten.addCommit(1, NULL, "John Doe <john@example.com>", 1500000000, Collections.emptyList(), "Amended");
+    rewritten.writeRepository(myRootDir);
+
+    assertTrue(update(index));
+    assertArrayEquals(new int[]{0, 1, 2}, index.getRevisions());
+    assertEquals(rewritten.getNodeHex(2), index.getTipNode());
+    assertEquals(rewritten.getNodeHex(2), load().getTipNode());
+  }
+
+  @Test
+  public void testBrokenIndexIsRebuilt() throws IOException {
+    HgRevlogWriter writer = new HgRevlogWriter(true, false);
+    addCommits(writer, 3);
+    writer.writeRepository(myRootDir);
+    assertTrue(update(load()));
+
+    // e.g. the IDE was killed while the index was written
+    try (RandomAccessFile file = new RandomAccessFile(myIndexFile, "rw")) {
+      file.setLength(file.length() - 10);
+    }
+    HgCommitIndex loaded = load();
+    assertEquals(0, loaded.getRevisions().length);
+
+    assertTrue(update(loaded));
+    assertArrayEquals(new int[]{0, 1, 2}, load().getRevisions());
+  }
+
+  @Test
+  public void testTruncatedAuthors() throws IOException {
+    HgRevlogWriter writer = new HgRevlogWriter(true, false);
+    addCommits(writer, 2);
+    writer.writeRepository(myRootDir);
+    assertTrue(update(load()));
+
+    try (RandomAccessFile file = new RandomAccessFile(myAuthorsFile, "rw")) {
+      file.setLength(1);
+    }
+    assertEquals(0, load().getRevisions().length);
+  }
+
+  private static void addCommits(HgRevlogWriter writer, int count) {
+    for (int i = 0; i < count; i++) {
+      int revision = writer.getRevisionCount();
+      String author = revision % 2 == 0 ? "John Doe <john@example.com>" : "Jane Roe <jane@example.com>";
+      writer.addCommit(revision - 1, NULL, author, 1400000000 + revision * 60, Collections.singletonList("a.txt"), "Commit " + revision);
+    }
+  }
+
+  private HgCommitIndex load() {
+    return HgCommitIndex.load(myIndexFile, myAuthorsFile);
+  }
+
+  /**
+   * The changelog is readable without hg, so the project is never used.
+   */
+  private boolean update(HgCommitIndex index) {
+    return index.update(mock(Project.class), myRoot, mock(VcsLogObjectsFactory.class));
+  }
+}
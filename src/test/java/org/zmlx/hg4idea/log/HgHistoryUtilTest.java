@@ -0,0 +1,72 @@
+/*
+ * Copyright 2013-2025 consulo.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zmlx.hg4idea.log;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HgHistoryUtilTest {
+  private static final String FULL_HASH_1 = "0123456789abcdef0123456789abcdef01234567";
+  private static final String FULL_HASH_2 = "fedcba9876543210fedcba9876543210fedcba98";
+
+  @Test
+  public void testFullHashesAreWrappedInId() {
+    assertEquals(Collections.singletonList(Arrays.asList("-r", "id(" + FULL_HASH_1 + ")+id(" + FULL_HASH_2 + ")")),
+                 HgHistoryUtil.prepareRevisionBatches(Arrays.asList(FULL_HASH_1, FULL_HASH_2)));
+  }
+
+  @Test
+  public void testShortHashesArePassedAsIs() {
+    assertEquals(Collections.singletonList(Arrays.asList("-r", "0123456789ab+id(" + FULL_HASH_2 + ")")),
+                 HgHistoryUtil.prepareRevisionBatches(Arrays.asList("0123456789ab", FULL_HASH_2)));
+  }
+
+  @Test
+  public void testNoHashes() {
+    assertEquals(Collections.emptyList(), HgHistoryUtil.prepareRevisionBatches(Collections.emptyList()));
+  }
+
+  @Test
+  public void testBatchesAreLimitedByRevsetLength() {
+    List<String> hashes = new ArrayList<>();
+    for (int i = 0; i < 500; i++) {
+      hashes.add(String.format("%040x", i));
+    }
+
+    List<List<String>> batches = HgHistoryUtil.prepareRevisionBatches(hashes);
+    // "id(<hash>)" takes 44 characters, with the separator 177 of them fit into 8000
+    assertEquals(3, batches.size());
+    List<String> revsets = new ArrayList<>();
+    for (List<String> batch : batches) {
+      assertEquals(2, batch.size());
+      assertEquals("-r", batch.get(0));
+      assertTrue(batch.get(1).length() <= 8000);
+      revsets.addAll(Arrays.asList(batch.get(1).split("\\+")));
+    }
+    assertEquals(177, batches.get(0).get(1).split("\\+").length);
+    assertEquals(500, revsets.size());
+    for (int i = 0; i < hashes.size(); i++) {
+      assertEquals("id(" + hashes.get(i) + ")", revsets.get(i));
+    }
+  }
+}
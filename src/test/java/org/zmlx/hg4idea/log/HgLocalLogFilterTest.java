@@ -0,0 +1,238 @@
+/*
+ * Copyright 2013-2025 consulo.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zmlx.hg4idea.log;
+
+import consulo.versionControlSystem.FilePath;
+import consulo.versionControlSystem.log.*;
+import consulo.virtualFileSystem.VirtualFile;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class HgLocalLogFilterTest {
+  private static final int NULL = HgRevlog.NULL_REVISION;
+  private static final String ROOT = "/home/user/project";
+  // a whole minute, commits are made 30 seconds after minutes
+  private static final long MINUTE = 1400000040000L;
+
+  private VirtualFile myRoot;
+  private VcsLogObjectsFactory myFactory;
+  private HgCommitGraph myGraph;
+  private HgCommitTextStore myTexts;
+
+  @Before
+  public void setUp() {
+    myRoot = mock(VirtualFile.class);
+    when(myRoot.getPath()).thenReturn(ROOT);
+    myFactory = mock(VcsLogObjectsFactory.class);
+    when(myFactory.createHash(anyString())).thenAnswer(invocation -> createHash(invocation.getArgument(0)));
+    when(myFactory.createTimedCommit(any(Hash.class), anyList(), anyLong())).thenAnswer(invocation -> {
+      TimedVcsCommit commit = mock(TimedVcsCommit.class);
+      Hash hash = invocation.getArgument(0);
+      when(commit.getId()).thenReturn(hash);
+      return commit;
+    });
+
+    myGraph = new HgCommitGraph();
+    myTexts = new HgCommitTextStore();
+    addCommit("John Doe <john@example.com>", "Initial import", "README", "src/Main.java");
+    addCommit("Jane Roe <jane@example.com>", "Fix NPE in parser", "src/parser/Parser.java");
+    addCommit("John Doe <john@example.com>", "Update docs", "docs/guide.md", "srcfoo/notes.txt");
+    addCommit("Build Bot <bot@example.com>", "Merge");
+  }
+
+  @Test
+  public void testUser() {
+    VcsLogUserFilter userFilter = mock(VcsLogUserFilter.class);
+    VcsUser user = mock(VcsUser.class);
+    when(user.getName()).thenReturn("John Doe");
+    when(user.getEmail()).thenReturn("john@example.com");
+    when(userFilter.getUsers(myRoot)).thenReturn(Collections.singletonList(user));
+    VcsLogFilterCollection filters = mock(VcsLogFilterCollection.class);
+    when(filters.getUserFilter()).thenReturn(userFilter);
+
+    HgLocalLogFilter filter = HgLocalLogFilter.create(myRoot, filters);
+    assertFalse(filter.needsTexts());
+    assertFiltered(filter, 2, 0);
+  }
+
+  @Test
+  public void testDatesHaveMinutePrecision() {
+    // hg takes whole minutes in: 12:00:50 includes a commit at 12:00:30, 12:01:35 includes one at 12:01:30 and 12:01:31
+    assertFiltered(createDateFilter(new Date(MINUTE + 50000), new Date(MINUTE + 95000)), 1, 0);
+    assertFiltered(createDateFilter(new Date(MINUTE + 60000), null), 3, 2, 1);
+    assertFiltered(createDateFilter(null, new Date(MINUTE + 60000)), 1, 0);
+    assertFiltered(createDateFilter(new Date(MINUTE + 3 * 60000 + 59000), new Date(MINUTE + 4 * 60000)), 3);
+  }
+
+  @Test
+  public void testTextIgnoringCase() {
+    HgLocalLogFilter filter = createTextFilter("npe", false, false);
+    assertTrue(filter.needsTexts());
+    assertFiltered(filter, 1);
+    // the author and changed files are searched as well
+    assertFiltered(createTextFilter("JANE", false, false), 1);
+    assertFiltered(createTextFilter("guide.md", false, false), 2);
+    // a literal, not a pattern
+    assertFiltered(createTextFilter("guide.m.", false, false));
+  }
+
+  @Test
+  public void testTextMatchingCase() {
+    assertFiltered(createTextFilter("npe", false, true));
+    assertFiltered(createTextFilter("NPE", false, true), 1);
+  }
+
+  @Test
+  public void testRegexText() {
+    assertFiltered(createTextFilter("^(Update|Merge)", true, true), 3, 2);
+    assertFiltered(createTextFilter("Parser\\.java$", true, true), 1);
+  }
+
+  @Test
+  public void testStructure() {
+    HgLocalLogFilter filter = createStructureFilter(ROOT + "/src");
+    assertTrue(filter.needsTexts());
+    // srcfoo/ is not under src/
+    assertFiltered(filter, 1, 0);
+    assertFiltered(createStructureFilter(ROOT + "/README"), 0);
+    assertFiltered(createStructureFilter(ROOT + "/docs", ROOT + "/src/parser"), 2, 1);
+    // the root contains every changed file, a commit without changed files doesn't touch it
+    assertFiltered(createStructureFilter(ROOT), 2, 1, 0);
+  }
+
+  @Test
+  public void testCombinedFilters() {
+    VcsLogFilterCollection filters = mock(VcsLogFilterCollection.class);
+    VcsLogTextFilter textFilter = mockTextFilter("i", false, false);
+    when(filters.getTextFilter()).thenReturn(textFilter);
+    VcsLogStructureFilter structureFilter = mockStructureFilter(ROOT + "/src");
+    when(filters.getStructureFilter()).thenReturn(structureFilter);
+
+    assertFiltered(HgLocalLogFilter.create(myRoot, filters), 1, 0);
+  }
+
+  @Test
+  public void testMaxCount() {
+    HgLocalLogFilter filter = createStructureFilter(ROOT);
+    assertEquals(Collections.singletonList(myGraph.getNodeHex(2)), filter(filter, 1));
+    assertEquals(Arrays.asList(myGraph.getNodeHex(2), myGraph.getNodeHex(1)), filter(filter, 2));
+  }
+
+  @Test
+  public void testFiltersLeftToHg() {
+    VcsLogFilterCollection branchFilters = mock(VcsLogFilterCollection.class);
+    VcsLogBranchFilter branchFilter = mock(VcsLogBranchFilter.class);
+    when(branchFilters.getBranchFilter()).thenReturn(branchFilter);
+    assertNull(HgLocalLogFilter.create(myRoot, branchFilters));
+
+    VcsLogFilterCollection outsideFilters = mock(VcsLogFilterCollection.class);
+    VcsLogStructureFilter structureFilter = mockStructureFilter("/home/user/other/src");
+    when(outsideFilters.getStructureFilter()).thenReturn(structureFilter);
+    assertNull(HgLocalLogFilter.create(myRoot, outsideFilters));
+
+    VcsLogFilterCollection brokenRegexFilters = mock(VcsLogFilterCollection.class);
+    VcsLogTextFilter textFilter = mockTextFilter("(unclosed", true, false);
+    when(brokenRegexFilters.getTextFilter()).thenReturn(textFilter);
+    assertNull(HgLocalLogFilter.create(myRoot, brokenRegexFilters));
+  }
+
+  /**
+   * Adds a commit 30 seconds after the next minute, the first one 30 seconds after {@link #MINUTE}.
+   */
+  private void addCommit(String author, String message, String... files) {
+    int revision = myGraph.size();
+    byte[] node = new byte[HgRevlog.NODE_SIZE];
+    Arrays.fill(node, (byte)(revision + 1));
+    myGraph.add(revision, node, 0, revision - 1, NULL, MINUTE + revision * 60000 + 30000, myGraph.internAuthor(author));
+    myTexts.add(message, Arrays.asList(files));
+  }
+
+  private HgLocalLogFilter createDateFilter(Date after, Date before) {
+    VcsLogDateFilter dateFilter = mock(VcsLogDateFilter.class);
+    when(dateFilter.getAfter()).thenReturn(after);
+    when(dateFilter.getBefore()).thenReturn(before);
+    VcsLogFilterCollection filters = mock(VcsLogFilterCollection.class);
+    when(filters.getDateFilter()).thenReturn(dateFilter);
+    return HgLocalLogFilter.create(myRoot, filters);
+  }
+
+  private HgLocalLogFilter createTextFilter(String text, boolean regex, boolean matchCase) {
+    VcsLogTextFilter textFilter = mockTextFilter(text, regex, matchCase);
+    VcsLogFilterCollection filters = mock(VcsLogFilterCollection.class);
+    when(filters.getTextFilter()).thenReturn(textFilter);
+    return HgLocalLogFilter.create(myRoot, filters);
+  }
+
+  private HgLocalLogFilter createStructureFilter(String... paths) {
+    VcsLogStructureFilter structureFilter = mockStructureFilter(paths);
+    VcsLogFilterCollection filters = mock(VcsLogFilterCollection.class);
+    when(filters.getStructureFilter()).thenReturn(structureFilter);
+    return HgLocalLogFilter.create(myRoot, filters);
+  }
+
+  private static VcsLogTextFilter mockTextFilter(String text, boolean regex, boolean matchCase) {
+    VcsLogTextFilter textFilter = mock(VcsLogTextFilter.class);
+    when(textFilter.getText()).thenReturn(text);
+    when(textFilter.isRegex()).thenReturn(regex);
+    when(textFilter.matchesCase()).thenReturn(matchCase);
+    return textFilter;
+  }
+
+  private static VcsLogStructureFilter mockStructureFilter(String... paths) {
+    List<FilePath> files = new ArrayList<>();
+    for (String path : paths) {
+      FilePath file = mock(FilePath.class);
+      when(file.getPath()).thenReturn(path);
+      files.add(file);
+    }
+    VcsLogStructureFilter structureFilter = mock(VcsLogStructureFilter.class);
+    when(structureFilter.getFiles()).thenReturn(files);
+    return structureFilter;
+  }
+
+  private void assertFiltered(HgLocalLogFilter filter, int... expectedRevisions) {
+    assertNotNull(filter);
+    List<String> expected = new ArrayList<>();
+    for (int revision : expectedRevisions) {
+      expected.add(myGraph.getNodeHex(revision));
+    }
+    assertEquals(expected, filter(filter, 0));
+  }
+
+  private List<String> filter(HgLocalLogFilter filter, int maxCount) {
+    List<String> hashes = new ArrayList<>();
+    for (TimedVcsCommit commit : filter.filter(myGraph, filter.needsTexts() ? myTexts : null, myFactory, maxCount)) {
+      hashes.add(commit.getId().asString());
+    }
+    return hashes;
+  }
+
+  private static Hash createHash(String hex) {
+    Hash hash = mock(Hash.class);
+    when(hash.asString()).thenReturn(hex);
+    return hash;
+  }
+}
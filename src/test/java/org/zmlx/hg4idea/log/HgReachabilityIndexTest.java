@@ -0,0 +1,248 @@
+/*
+ * Copyright 2013-2025 consulo.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zmlx.hg4idea.log;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class HgReachabilityIndexTest {
+  private static final int NULL = HgRevlog.NULL_REVISION;
+
+  private HgCommitGraph myGraph;
+  private HgReachabilityIndex myIndex;
+  private Map<String, List<String>> myTargets;
+
+  /**
+   * 0 - 1 - 2 - 3   default
+   *      \
+   *       4 - 5     feature
+   */
+  @Before
+  public void setUp() {
+    myGraph = new HgCommitGraph();
+    myIndex = new HgReachabilityIndex();
+    myTargets = new HashMap<>();
+    addCommit(0, NULL, NULL);
+    addCommit(1, 0, NULL);
+    addCommit(2, 1, NULL);
+    addCommit(3, 2, NULL);
+    addCommit(4, 1, NULL);
+    addCommit(5, 4, NULL);
+    setTarget("default", 3);
+    setTarget("feature", 5);
+  }
+
+  @Test
+  public void testInitialBuild() {
+    update();
+    assertLabels(0, "default", "feature");
+    assertLabels(1, "default", "feature");
+    assertLabels(2, "default");
+    assertLabels(3, "default");
+    assertLabels(4, "feature");
+    assertLabels(5, "feature");
+  }
+
+  @Test
+  public void testHeadMovedToNewCommit() {
+    update();
+    addCommit(6, 3, NULL);
+    setTarget("default", 6);
+    update();
+    assertLabels(6, "default");
+    assertLabels(3, "default");
+    assertLabels(1, "default", "feature");
+    assertLabels(5, "feature");
+  }
+
+  @Test
+  public void testNewLabelIsPropagated() {
+    update();
+    setTarget("bookmark", 2);
+    update();
+    assertLabels(3, "default");
+    assertLabels(2, "bookmark", "default");
+    assertLabels(1, "bookmark", "default", "feature");
+    assertLabels(0, "bookmark", "default", "feature");
+    assertLabels(4, "feature");
+  }
+
+  @Test
+  public void testMergeIsPropagatedToBothParents() {
+    update();
+    addCommit(6, 3, 5);
+    setTarget("default", 6);
+    removeTarget("feature");
+    update();
+    for (int revision = 0; revision <= 6; revision++) {
+      assertLabels(revision, "default");
+    }
+  }
+
+  @Test
+  public void testRemovedLabel() {
+    update();
+    removeTarget("feature");
+    update();
+    assertLabels(5);
+    assertLabels(4);
+    assertLabels(1, "default");
+  }
+
+  @Test
+  public void testHeadMovedBack() {
+    update();
+    setTarget("default", 2);
+    update();
+    assertLabels(3);
+    assertLabels(2, "default");
+    assertLabels(1, "default", "feature");
+  }
+
+  @Test
+  public void testLabelMovedToAnotherBranch() {
+    update();
+    // not a descendant of the old target, so the old target doesn't contain the label anymore
+    setTarget("feature", 3);
+    update();
+    assertLabels(5);
+    assertLabels(4);
+    assertLabels(3, "default", "feature");
+  }
+
+  @Test
+  public void testSeveralLabelsOnOneCommit() {
+    myTargets.put(node(3), Arrays.asList("default", "tip"));
+    update();
+    assertLabels(2, "default", "tip");
+    assertLabels(4, "feature");
+  }
+
+  @Test
+  public void testUnknownNodes() {
+    myTargets.put("0123456789abcdef0123456789abcdef01234567", Collections.singletonList("unknown"));
+    update();
+    assertNull(myIndex.getContainingLabels(myGraph, "0123456789abcdef0123456789abcdef01234567"));
+    assertNull(myIndex.getContainingLabels(myGraph, node(1).substring(0, 12)));
+    assertLabels(0, "default", "feature");
+  }
+
+  @Test
+  public void testClearAfterStrip() {
+    update();
+    myGraph.truncate(4);
+    myIndex.clear();
+    removeTarget("feature");
+    update();
+    assertNull(myIndex.getContainingLabels(myGraph, node(5)));
+    assertLabels(1, "default");
+  }
+
+  @Test
+  public void testHiddenParent() {
+    // revision 7 is hidden, so 8 is linked to the graph through its second parent only
+    addCommit(8, 7, 5);
+    setTarget("feature", 8);
+    update();
+    assertLabels(8, "feature");
+    assertLabels(5, "feature");
+    assertLabels(3, "default");
+  }
+
+  @Test
+  public void testIncrementalUpdateMatchesRebuild() {
+    Random random = new Random(42);
+    List<String> labels = Arrays.asList("a", "b", "c", "d");
+    myTargets.clear();
+    update();
+    for (int step = 0; step < 200; step++) {
+      int revision = myGraph.size();
+      int parent1 = random.nextInt(revision);
+      int parent2 = random.nextInt(4) == 0 ? random.nextInt(revision) : NULL;
+      addCommit(revision, parent1, parent2 == parent1 ? NULL : parent2);
+      String label = labels.get(random.nextInt(labels.size()));
+      if (random.nextInt(5) == 0) {
+        removeTarget(label);
+      }
+      else {
+        // usually the label moves up to the new commit, as a head does after a commit
+        setTarget(label, random.nextInt(3) == 0 ? random.nextInt(revision + 1) : revision);
+      }
+      update();
+
+      HgReachabilityIndex rebuilt = new HgReachabilityIndex();
+      rebuilt.update(myGraph, myTargets);
+      for (int i = 0; i <= revision; i++) {
+        assertEquals("step " + step + ", revision " + i,
+                     new HashSet<>(rebuilt.getContainingLabels(myGraph, node(i))),
+                     new HashSet<>(myIndex.getContainingLabels(myGraph, node(i))));
+      }
+    }
+  }
+
+  private void addCommit(int revision, int parent1, int parent2) {
+    myGraph.add(revision, nodeBytes(revision), 0, parent1, parent2, 1400000000000L + revision, myGraph.internAuthor("John Doe <john@example.com>"));
+  }
+
+  private void setTarget(String label, int revision) {
+    removeTarget(label);
+    myTargets.computeIfAbsent(node(revision), node -> new ArrayList<>()).add(label);
+  }
+
+  private void removeTarget(String label) {
+    for (Iterator<List<String>> iterator = myTargets.values().iterator(); iterator.hasNext(); ) {
+      List<String> labels = iterator.next();
+      labels.remove(label);
+      if (labels.isEmpty()) {
+        iterator.remove();
+      }
+    }
+  }
+
+  private void update() {
+    myIndex.update(myGraph, myTargets);
+  }
+
+  private void assertLabels(int revision, String... expected) {
+    Collection<String> labels = myIndex.getContainingLabels(myGraph, node(revision));
+    assertEquals("revision " + revision, new HashSet<>(Arrays.asList(expected)), new HashSet<>(labels));
+  }
+
+  /**
+   * Nodes differ in the first bytes, which the index hashes, and share the rest.
+   */
+  private static byte[] nodeBytes(int revision) {
+    byte[] node = new byte[HgRevlog.NODE_SIZE];
+    Arrays.fill(node, (byte)0x5a);
+    node[0] = (byte)(revision * 37);
+    node[1] = (byte)(revision >> 8);
+    node[19] = (byte)revision;
+    return node;
+  }
+
+  private static String node(int revision) {
+    StringBuilder hex = new StringBuilder();
+    for (byte b : nodeBytes(revision)) {
+      hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+    }
+    return hex.toString();
+  }
+}
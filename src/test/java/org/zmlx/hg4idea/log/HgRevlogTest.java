@@ -0,0 +1,255 @@
+/*
+ * Copyright 2013-2025 consulo.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zmlx.hg4idea.log;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.zmlx.hg4idea.log.HgRevlogWriter.Compression;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class HgRevlogTest {
+  private static final int NULL = HgRevlog.NULL_REVISION;
+
+  @Rule
+  public TemporaryFolder myTempDir = new TemporaryFolder();
+
+  @Test
+  public void testMissingFileIsEmptyRevlog() throws IOException {
+    try (HgRevlog revlog = HgRevlog.open(new File(myTempDir.getRoot(), "00changelog.i"))) {
+      assertEquals(0, revlog.getRevisionCount());
+    }
+  }
+
+  @Test
+  public void testInline() throws IOException {
+    checkRevisions(new HgRevlogWriter(true, false));
+  }
+
+  @Test
+  public void testSplit() throws IOException {
+    checkRevisions(new HgRevlogWriter(false, false));
+  }
+
+  @Test
+  public void testInlineGeneralDelta() throws IOException {
+    checkRevisions(new HgRevlogWriter(true, true));
+  }
+
+  @Test
+  public void testSplitGeneralDelta() throws IOException {
+    checkRevisions(new HgRevlogWriter(false, true));
+  }
+
+  @Test
+  public void testGeneralDeltaAgainstEarlierRevision() throws IOException {
+    HgRevlogWriter writer = new HgRevlogWriter(false, true);
+    writer.addText(bytes("line 1\nline 2\n"), NULL, NULL, Compression.ZLIB);
+    writer.addDelta(bytes("line 1\nbranch a\n"), 0, 0, NULL, Compression.NONE);
+    writer.addDelta(bytes("line 1\nline 2\nbranch b\n"), 0, 0, NULL, Compression.ZLIB);
+    writer.addDelta(bytes("line 1\nline 2\nbranch b\nmore\n"), 2, 2, NULL, Compression.MARKER);
+    writer.addDelta(bytes("merged\nline 2\nbranch b\nmore\n"), 3, 3, 1, Compression.NONE);
+
+    try (HgRevlog revlog = open(writer)) {
+      // the newest first: the chain 4 -> 3 -> 2 -> 0 skips revision 1
+      for (int revision : new int[]{4, 1, 3, 0, 2}) {
+        assertArrayEquals("revision " + revision, writer.getText(revision), revlog.readRevision(revision));
+      }
+      assertEquals(3, revlog.getParent1(4));
+      assertEquals(1, revlog.getParent2(4));
+    }
+  }
+
+  @Test
+  public void testEmptyText() throws IOException {
+    HgRevlogWriter writer = new HgRevlogWriter(true, false);
+    writer.addText(new byte[0], NULL, NULL, Compression.ZLIB);
+    writer.addDelta(bytes("text"), 0, 0, NULL, Compression.NONE);
+    writer.addDelta(new byte[0], 1, 1, NULL, Compression.NONE);
+
+    try (HgRevlog revlog = open(writer)) {
+      assertEquals(0, revlog.readRevision(0).length);
+      assertArrayEquals(bytes("text"), revlog.readRevision(1));
+      assertEquals(0, revlog.readRevision(2).length);
+    }
+  }
+
+  @Test
+  public void testIncompleteInlineTailIsIgnored() throws IOException {
+    HgRevlogWriter writer = new HgRevlogWriter(true, false);
+    writer.addText(bytes("first"), NULL, NULL, Compression.MARKER);
+    writer.addDelta(bytes("second"), 0, 0, NULL, Compression.NONE);
+    File indexFile = new File(myTempDir.getRoot(), "00changelog.i");
+    writer.write(indexFile);
+    // hg is appending a revision: its entry is written, its data isn't yet
+    try (FileOutputStream output = new FileOutputStream(indexFile, true)) {
+      byte[] entry = new byte[64];
+      entry[11] = 100;
+      output.write(entry);
+    }
+
+    try (HgRevlog revlog = HgRevlog.open(indexFile)) {
+      assertEquals(2, revlog.getRevisionCount());
+      assertArrayEquals(bytes("second"), revlog.readRevision(1));
+    }
+  }
+
+  @Test
+  public void testUnsupportedVersion() throws IOException {
+    File indexFile = writeSingleRevision();
+    try (RandomAccessFile file = new RandomAccessFile(indexFile, "rw")) {
+      file.seek(2);
+      file.writeShort(2);
+    }
+    assertOpenFails(indexFile);
+  }
+
+  @Test
+  public void testUnknownIndexFlags() throws IOException {
+    File indexFile = writeSingleRevision();
+    try (RandomAccessFile file = new RandomAccessFile(indexFile, "rw")) {
+      file.seek(0);
+      file.writeShort(1 | 1 << 2);
+    }
+    assertOpenFails(indexFile);
+  }
+
+  @Test
+  public void testUnknownRevisionFlags() throws IOException {
+    HgRevlogWriter writer = new HgRevlogWriter(true, false);
+    writer.addText(bytes("censored"), NULL, NULL, Compression.MARKER);
+    writer.setFlags(0, 1 << 15);
+
+    try (HgRevlog revlog = open(writer)) {
+      assertEquals(1, revlog.getRevisionCount());
+      assertReadFails(revlog, 0);
+    }
+  }
+
+  @Test
+  public void testUnknownCompression() throws IOException {
+    File indexFile = writeSingleRevision();
+    try (RandomAccessFile file = new RandomAccessFile(indexFile, "rw")) {
+      // the chunk of an inline revision follows its entry, 'z' doesn't stand for any known engine
+      file.seek(64);
+      file.writeByte('z');
+    }
+    try (HgRevlog revlog = HgRevlog.open(indexFile)) {
+      assertReadFails(revlog, 0);
+    }
+  }
+
+  @Test
+  public void testDataBeyondEndOfDataFile() throws IOException {
+    HgRevlogWriter writer = new HgRevlogWriter(false, false);
+    writer.addText(bytes("some text"), NULL, NULL, Compression.ZLIB);
+    File indexFile = new File(myTempDir.getRoot(), "00changelog.i");
+    writer.write(indexFile);
+    try (RandomAccessFile file = new RandomAccessFile(new File(myTempDir.getRoot(), "00changelog.d"), "rw")) {
+      file.setLength(file.length() - 1);
+    }
+
+    try (HgRevlog revlog = HgRevlog.open(indexFile)) {
+      assertReadFails(revlog, 0);
+    }
+  }
+
+  @Test(expected = IndexOutOfBoundsException.class)
+  public void testRevisionOutOfRange() throws IOException {
+    try (HgRevlog revlog = HgRevlog.open(writeSingleRevision())) {
+      revlog.getParent1(1);
+    }
+  }
+
+  /**
+   * Five revisions with every kind of chunk: full texts, deltas, and both at the start of a new chain.
+   */
+  private void checkRevisions(HgRevlogWriter writer) throws IOException {
+    writer.addText(bytes("first line\n"), NULL, NULL, Compression.ZLIB);
+    writer.addDelta(bytes("first line\nsecond line\n"), 0, 0, NULL, Compression.NONE);
+    writer.addDelta(bytes("first line\nchanged line\n"), 1, 1, NULL, Compression.MARKER);
+    writer.addText(bytes("a new chain starts here\n"), 2, NULL, Compression.MARKER);
+    writer.addDelta(bytes("a new chain continues here\nwith a delta\n"), 3, 3, 1, Compression.ZLIB);
+
+    try (HgRevlog revlog = open(writer)) {
+      assertEquals(5, revlog.getRevisionCount());
+      // out of order, so that texts are restored both from the cached revision and from the chain base
+      for (int revision : new int[]{2, 4, 0, 1, 3, 4, 4}) {
+        assertArrayEquals("revision " + revision, writer.getText(revision), revlog.readRevision(revision));
+      }
+
+      int[][] parents = {{NULL, NULL}, {0, NULL}, {1, NULL}, {2, NULL}, {3, 1}};
+      byte[] node = new byte[HgRevlog.NODE_SIZE + 2];
+      for (int revision = 0; revision < parents.length; revision++) {
+        assertEquals(parents[revision][0], revlog.getParent1(revision));
+        assertEquals(parents[revision][1], revlog.getParent2(revision));
+
+        byte[] expected = writer.getNode(revision);
+        revlog.getNode(revision, node, 2);
+        for (int i = 0; i < HgRevlog.NODE_SIZE; i++) {
+          assertEquals(expected[i], node[i + 2]);
+        }
+        assertTrue(revlog.isNode(revision, expected));
+        assertFalse(revlog.isNode((revision + 1) % parents.length, expected));
+        int prefix = (expected[0] & 0xFF) << 24 | (expected[1] & 0xFF) << 16 | (expected[2] & 0xFF) << 8 | (expected[3] & 0xFF);
+        assertEquals(prefix, revlog.getNodePrefix(revision));
+      }
+    }
+  }
+
+  private HgRevlog open(HgRevlogWriter writer) throws IOException {
+    File indexFile = new File(myTempDir.getRoot(), "00changelog.i");
+    writer.write(indexFile);
+    return HgRevlog.open(indexFile);
+  }
+
+  private File writeSingleRevision() throws IOException {
+    HgRevlogWriter writer = new HgRevlogWriter(true, false);
+    writer.addText(bytes("text"), NULL, NULL, Compression.MARKER);
+    File indexFile = new File(myTempDir.getRoot(), "00changelog.i");
+    writer.write(indexFile);
+    return indexFile;
+  }
+
+  private static void assertOpenFails(File indexFile) {
+    try {
+      HgRevlog.open(indexFile).close();
+      fail("IOException expected");
+    }
+    catch (IOException expected) {
+    }
+  }
+
+  private static void assertReadFails(HgRevlog revlog, int revision) {
+    try {
+      revlog.readRevision(revision);
+      fail("IOException expected");
+    }
+    catch (IOException expected) {
+    }
+  }
+
+  private static byte[] bytes(String text) {
+    return text.getBytes(StandardCharsets.UTF_8);
+  }
+}
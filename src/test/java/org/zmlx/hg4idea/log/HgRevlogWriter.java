@@ -0,0 +1,271 @@
+/*
+ * Copyright 2013-2025 consulo.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zmlx.hg4idea.log;
+
+import com.google.common.io.BaseEncoding;
+import jakarta.annotation.Nonnull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.Deflater;
+
+/**
+ * Writes small revlogs in the RevlogNG format for tests, the way hg lays them out: inline or with a separate data file,
+ * deltas against the previous revision or, with generaldelta, against any earlier one.
+ */
+final class HgRevlogWriter {
+  private static final BaseEncoding HEX = BaseEncoding.base16().lowerCase();
+  private static final byte[] NULL_NODE = new byte[HgRevlog.NODE_SIZE];
+
+  enum Compression {
+    // the chunk is stored as is, hg does so for chunks starting with a zero byte, e.g. deltas
+    NONE,
+    // the chunk is stored after the 'u' marker
+    MARKER,
+    ZLIB
+  }
+
+  private final boolean myInline;
+  private final boolean myGeneralDelta;
+  private final List<byte[]> myTexts = new ArrayList<>();
+  private final List<byte[]> myChunks = new ArrayList<>();
+  private final List<byte[]> myNodes = new ArrayList<>();
+  // base, parent 1, parent 2 and revision flags of each revision
+  private final List<int[]> myFields = new ArrayList<>();
+
+  HgRevlogWriter(boolean inline, boolean generalDelta) {
+    myInline = inline;
+    myGeneralDelta = generalDelta;
+  }
+
+  /**
+   * Adds a revision stored as a full text.
+   */
+  int addText(@Nonnull byte[] text, int parent1, int parent2, @Nonnull Compression compression) {
+    int revision = myTexts.size();
+    return add(text, compress(text, compression), revision, parent1, parent2);
+  }
+
+  /**
+   * Adds a revision stored as a delta against the given one, which must be the previous revision without generaldelta.
+   */
+  int addDelta(@Nonnull byte[] text, int deltaParent, int parent1, int parent2, @Nonnull Compression compression) {
+    int revision = myTexts.size();
+    if (!myGeneralDelta && deltaParent != revision - 1) {
+      throw new IllegalArgumentException("Without generaldelta a delta is against the previous revision");
+    }
+    byte[] delta = createDelta(myTexts.get(deltaParent), text);
+    // without generaldelta the base is the start of the chain
+    int base = myGeneralDelta ? deltaParent : myFields.get(deltaParent)[0];
+    return add(text, compress(delta, compression), base, parent1, parent2);
+  }
+
+  /**
+   * Adds a changelog revision with a delta against the previous one, as hg usually stores commits.
+   */
+  int addCommit(int parent1, int parent2, @Nonnull String author, long seconds, @Nonnull List<String> files, @Nonnull String description) {
+    byte[] text = createChangelogEntry(author, seconds, files, description);
+    return myTexts.isEmpty()
+           ? addText(text, parent1, parent2, Compression.ZLIB)
+           : addDelta(text, myTexts.size() - 1, parent1, parent2, Compression.NONE);
+  }
+
+  void setFlags(int revision, int flags) {
+    myFields.get(revision)[3] = flags;
+  }
+
+  @Nonnull
+  byte[] getNode(int revision) {
+    return myNodes.get(revision).clone();
+  }
+
+  @Nonnull
+  String getNodeHex(int revision) {
+    return HEX.encode(myNodes.get(revision));
+  }
+
+  @Nonnull
+  byte[] getText(int revision) {
+    return myTexts.get(revision).clone();
+  }
+
+  int getRevisionCount() {
+    return myTexts.size();
+  }
+
+  /**
+   * Writes the index file and, for a revlog which isn't inline, the data file next to it.
+   */
+  void write(@Nonnull File indexFile) throws IOException {
+    File dataFile = new File(indexFile.getParentFile(), indexFile.getName().replaceFirst("\\.i$", ".d"));
+    ByteArrayOutputStream index = new ByteArrayOutputStream();
+    ByteArrayOutputStream data = new ByteArrayOutputStream();
+    long offset = 0;
+    for (int revision = 0; revision < myTexts.size(); revision++) {
+      int[] fields = myFields.get(revision);
+      byte[] chunk = myChunks.get(revision);
+      ByteBuffer entry = ByteBuffer.allocate(64);
+      entry.putLong(offset << 16 | fields[3]);
+      entry.putInt(chunk.length);
+      entry.putInt(myTexts.get(revision).length);
+      entry.putInt(fields[0]);
+      entry.putInt(revision);
+      entry.putInt(fields[1]);
+      entry.putInt(fields[2]);
+      entry.put(myNodes.get(revision));
+      if (revision == 0) {
+        entry.putInt(0, 1 | (myInline ? 1 << 16 : 0) | (myGeneralDelta ? 1 << 17 : 0));
+      }
+      index.write(entry.array());
+      (myInline ? index : data).write(chunk);
+      offset += chunk.length;
+    }
+    Files.write(indexFile.toPath(), index.toByteArray());
+    if (myInline) {
+      Files.deleteIfExists(dataFile.toPath());
+    }
+    else {
+      Files.write(dataFile.toPath(), data.toByteArray());
+    }
+  }
+
+  /**
+   * Creates a repository with the store layout hg uses by default and writes the changelog into it.
+   *
+   * @return the store directory
+   */
+  @Nonnull
+  File writeRepository(@Nonnull File root) throws IOException {
+    File hgDir = new File(root, ".hg");
+    File storeDir = new File(hgDir, "store");
+    if (!storeDir.isDirectory() && !storeDir.mkdirs()) {
+      throw new IOException("Couldn't create " + storeDir);
+    }
+    String requirements = "dotencode\nfncache\n" + (myGeneralDelta ? "generaldelta\n" : "") + "revlogv1\nstore\n";
+    Files.write(new File(hgDir, "requires").toPath(), requirements.getBytes(StandardCharsets.US_ASCII));
+    write(new File(storeDir, "00changelog.i"));
+    return storeDir;
+  }
+
+  /**
+   * @return the changelog text {@code manifest\nauthor\ntime timezone\nfile\n...\n\ndescription}
+   */
+  @Nonnull
+  static byte[] createChangelogEntry(@Nonnull String author, long seconds, @Nonnull List<String> files, @Nonnull String description) {
+    StringBuilder text = new StringBuilder();
+    text.append(HEX.encode(NULL_NODE)).append('\n').append(author).append('\n').append(seconds).append(" 0\n");
+    for (String file : files) {
+      text.append(file).append('\n');
+    }
+    return text.append('\n').append(description).toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  private int add(@Nonnull byte[] text, @Nonnull byte[] chunk, int base, int parent1, int parent2) {
+    myNodes.add(computeNode(text, parent1, parent2));
+    myTexts.add(text.clone());
+    myChunks.add(chunk);
+    myFields.add(new int[]{base, parent1, parent2, 0});
+    return myTexts.size() - 1;
+  }
+
+  /**
+   * @return the node as hg computes it: SHA-1 of the sorted parent nodes and the text
+   */
+  @Nonnull
+  private byte[] computeNode(@Nonnull byte[] text, int parent1, int parent2) {
+    byte[] node1 = getParentNode(parent1);
+    byte[] node2 = getParentNode(parent2);
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-1");
+      boolean ordered = Arrays.compareUnsigned(node1, node2) <= 0;
+      digest.update(ordered ? node1 : node2);
+      digest.update(ordered ? node2 : node1);
+      digest.update(text);
+      return digest.digest();
+    }
+    catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  @Nonnull
+  private byte[] getParentNode(int parent) {
+    // a broken revlog may refer to a parent which isn't written yet
+    return parent >= 0 && parent < myNodes.size() ? myNodes.get(parent) : NULL_NODE;
+  }
+
+  /**
+   * @return a delta of one hunk replacing everything between the common prefix and suffix
+   */
+  @Nonnull
+  private static byte[] createDelta(@Nonnull byte[] base, @Nonnull byte[] text) {
+    int prefix = 0;
+    while (prefix < base.length && prefix < text.length && base[prefix] == text[prefix]) {
+      prefix++;
+    }
+    int suffix = 0;
+    while (suffix < base.length - prefix && suffix < text.length - prefix &&
+           base[base.length - 1 - suffix] == text[text.length - 1 - suffix]) {
+      suffix++;
+    }
+    if (prefix == base.length && prefix == text.length) {
+      return new byte[0];
+    }
+    ByteBuffer delta = ByteBuffer.allocate(12 + text.length - prefix - suffix);
+    delta.putInt(prefix).putInt(base.length - suffix).putInt(text.length - prefix - suffix);
+    delta.put(text, prefix, text.length - prefix - suffix);
+    return delta.array();
+  }
+
+  @Nonnull
+  private static byte[] compress(@Nonnull byte[] chunk, @Nonnull Compression compression) {
+    if (chunk.length == 0) {
+      return chunk;
+    }
+    switch (compression) {
+      case NONE:
+        if (chunk[0] != 0) {
+          throw new IllegalArgumentException("Only a chunk starting with a zero byte can be stored as is");
+        }
+        return chunk;
+      case MARKER:
+        byte[] marked = new byte[chunk.length + 1];
+        marked[0] = 'u';
+        System.arraycopy(chunk, 0, marked, 1, chunk.length);
+        return marked;
+      default:
+        Deflater deflater = new Deflater();
+        deflater.setInput(chunk);
+        deflater.finish();
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        byte[] buffer = new byte[256];
+        while (!deflater.finished()) {
+          compressed.write(buffer, 0, deflater.deflate(buffer));
+        }
+        deflater.end();
+        return compressed.toByteArray();
+    }
+  }
+}
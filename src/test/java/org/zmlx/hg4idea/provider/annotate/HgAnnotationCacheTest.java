@@ -0,0 +1,176 @@
+/*
+ * Copyright 2013-2025 consulo.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zmlx.hg4idea.provider.annotate;
+
+import consulo.project.Project;
+import consulo.virtualFileSystem.VirtualFile;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.zmlx.hg4idea.HgFile;
+import org.zmlx.hg4idea.HgFileRevision;
+import org.zmlx.hg4idea.HgRevisionNumber;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.*;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class HgAnnotationCacheTest {
+  private static final String CHANGESET = "2222222222222222222222222222222222222222";
+
+  @Rule
+  public TemporaryFolder myTempDir = new TemporaryFolder();
+
+  private File myCacheDir;
+  private HgAnnotationCache myCache;
+  private Project myProject;
+  private VirtualFile myRoot;
+
+  @Before
+  public void setUp() throws IOException {
+    myCacheDir = new File(myTempDir.getRoot(), "annotate");
+    myCache = new HgAnnotationCache(myCacheDir);
+    myProject = mock(Project.class);
+    myRoot = mock(VirtualFile.class);
+    when(myRoot.getPath()).thenReturn(myTempDir.newFolder("repository").getPath());
+  }
+
+  @Test
+  public void testRoundTrip() {
+    HgRevisionNumber first = new HgRevisionNumber("1", "1111111111111111111111111111111111111111", "John Doe", "john@example.com",
+                                                  "First", Collections.emptyList());
+    HgRevisionNumber second = new HgRevisionNumber("2", CHANGESET, "Jane Roe", "jane@example.com", "Second\n\nwith a body",
+                                                   Collections.singletonList(first));
+    HgAnnotationLines.Builder builder = new HgAnnotationLines.Builder();
+    int firstIndex = builder.addRevision(first, "John Doe <john@example.com>", new Date(1400000000000L));
+    int secondIndex = builder.addRevision(second, "Jane Roe <jane@example.com>", null);
+    builder.addLine(firstIndex, 1, "class A {");
+    builder.addLine(secondIndex, 2, "  String s = \"\u00fcnic\u00f6de\";");
+    builder.addLine(firstIndex, 2, "}");
+    HgAnnotationLines lines = builder.build();
+
+    Map<String, String> moved = Collections.singletonMap("src/B.java", "src/A.java");
+    HgFileRevision revision = new HgFileRevision(myProject, mockFile("src/A.java"), second, null, new Date(1400000060000L),
+                                                 "Jane Roe <jane@example.com>", "Second\n\nwith a body",
+                                                 Collections.singleton("src/A.java"), Collections.singleton("src/C.java"),
+                                                 Collections.emptySet(), moved);
+    String key = createKey(false);
+    myCache.put(key, lines, Collections.singletonList(revision));
+
+    HgAnnotationCache.Annotation annotation = myCache.get(key, myProject, myRoot);
+    assertNotNull(annotation);
+    HgAnnotationLines cachedLines = annotation.myLines;
+    assertEquals(3, cachedLines.getLineCount());
+    assertEquals(2, cachedLines.getRevisionCount());
+    for (int i = 0; i < lines.getLineCount(); i++) {
+      assertEquals(lines.getRevision(i).getRevision(), cachedLines.getRevision(i).getRevision());
+      assertEquals(lines.getRevision(i).getChangeset(), cachedLines.getRevision(i).getChangeset());
+      assertEquals(lines.getUser(i), cachedLines.getUser(i));
+      assertEquals(lines.getDate(i), cachedLines.getDate(i));
+      assertEquals(lines.getLineNumber(i), cachedLines.getLineNumber(i));
+      assertEquals(lines.getContent(i), cachedLines.getContent(i));
+    }
+
+    assertEquals(1, annotation.myRevisions.size());
+    HgFileRevision cached = annotation.myRevisions.get(0);
+    assertEquals(new File(myRoot.getPath(), "src/A.java"), cached.getFile().getFile());
+    HgRevisionNumber number = cached.getRevisionNumber();
+    assertEquals("2", number.getRevision());
+    assertEquals(CHANGESET, number.getChangeset());
+    assertEquals("Jane Roe", number.getName());
+    assertEquals("jane@example.com", number.getEmail());
+    assertEquals("Second\n\nwith a body", number.getCommitMessage());
+    assertEquals(1, number.getParents().size());
+    assertEquals("1111111111111111111111111111111111111111", number.getParents().get(0).getChangeset());
+    assertEquals("John Doe", number.getParents().get(0).getName());
+    assertNull(cached.getBranchName());
+    assertEquals(new Date(1400000060000L), cached.getRevisionDate());
+    assertEquals("Jane Roe <jane@example.com>", cached.getAuthor());
+    assertEquals("Second\n\nwith a body", cached.getCommitMessage());
+    assertEquals(Collections.singleton("src/A.java"), cached.getModifiedFiles());
+    assertEquals(Collections.singleton("src/C.java"), cached.getAddedFiles());
+    assertEquals(Collections.emptySet(), cached.getDeletedFiles());
+    assertEquals(moved, cached.getMovedFiles());
+  }
+
+  @Test
+  public void testEntriesAreKeyedByWhitespaceMode() {
+    myCache.put(createKey(false), createLines(), Collections.emptyList());
+    assertNotNull(myCache.get(createKey(false), myProject, myRoot));
+    assertNull(myCache.get(createKey(true), myProject, myRoot));
+  }
+
+  @Test
+  public void testEntryIsReplaced() {
+    String key = createKey(false);
+    myCache.put(key, createLines(), Collections.emptyList());
+    HgAnnotationLines.Builder builder = new HgAnnotationLines.Builder();
+    builder.addLine(builder.addRevision(HgRevisionNumber.getInstance("3", "3333333333333333333333333333333333333333"), "me", null), 1, "new");
+    myCache.put(key, builder.build(), Collections.emptyList());
+
+    HgAnnotationCache.Annotation annotation = myCache.get(key, myProject, myRoot);
+    assertNotNull(annotation);
+    assertEquals("new", annotation.myLines.getContent(0));
+    // no temporary files are left behind
+    assertEquals(1, myCacheDir.list().length);
+  }
+
+  @Test
+  public void testBrokenEntryIsDeleted() throws IOException {
+    String key = createKey(false);
+    myCache.put(key, createLines(), Collections.emptyList());
+    File[] entries = myCacheDir.listFiles();
+    assertNotNull(entries);
+    assertEquals(1, entries.length);
+    Files.write(entries[0].toPath(), new byte[]{1, 2, 3});
+
+    assertNull(myCache.get(key, myProject, myRoot));
+    assertFalse(entries[0].exists());
+  }
+
+  @Test
+  public void testRevisionOutsideOfRootIsNotCached() {
+    HgFileRevision revision = new HgFileRevision(myProject, mockFile(null), HgRevisionNumber.getInstance("2", CHANGESET), "default",
+                                                 null, "me", "message", Collections.emptySet(), Collections.emptySet(),
+                                                 Collections.emptySet(), Collections.emptyMap());
+    String key = createKey(false);
+    myCache.put(key, createLines(), Collections.singletonList(revision));
+    assertNull(myCache.get(key, myProject, myRoot));
+  }
+
+  private String createKey(boolean whitespaceIgnored) {
+    return HgAnnotationCache.createKey(myRoot, CHANGESET, "src/A.java", "src/A.java", whitespaceIgnored);
+  }
+
+  private static HgAnnotationLines createLines() {
+    HgAnnotationLines.Builder builder = new HgAnnotationLines.Builder();
+    int revision = builder.addRevision(HgRevisionNumber.getInstance("2", CHANGESET), "me", new Date(1400000000000L));
+    builder.addLine(revision, 1, "line");
+    return builder.build();
+  }
+
+  private static HgFile mockFile(String relativePath) {
+    HgFile file = mock(HgFile.class);
+    when(file.getRelativePath()).thenReturn(relativePath);
+    return file;
+  }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright 2013-2025 consulo.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zmlx.hg4idea.provider.annotate;
+
+import org.junit.Test;
+import org.zmlx.hg4idea.HgRevisionNumber;
+
+import java.util.Date;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class HgWorkingCopyAnnotatorTest {
+
+  @Test
+  public void testIdentical() {
+    assertMatches(lines("a", "b", "c"), lines("a", "b", "c"), 0, 1, 2);
+  }
+
+  @Test
+  public void testInsertion() {
+    assertMatches(lines("a", "b", "c"), lines("a", "x", "b", "c"), 0, -1, 1, 2);
+    assertMatches(lines("a", "b"), lines("x", "a", "b", "y"), -1, 0, 1, -1);
+  }
+
+  @Test
+  public void testDeletion() {
+    assertMatches(lines("a", "b", "c", "d"), lines("a", "c", "d"), 0, 2, 3);
+    assertMatches(lines("a", "b", "c"), lines("b"), 1);
+  }
+
+  @Test
+  public void testReplacement() {
+    assertMatches(lines("a", "b", "c"), lines("a", "y", "c"), 0, -1, 2);
+    // nothing in common around the middle: the whole text goes through the diff
+    assertMatches(lines("a", "b", "c", "d", "e", "f"), lines("z", "b", "c", "y", "e", "w"), -1, 1, 2, -1, 4, -1);
+  }
+
+  @Test
+  public void testRepeatedLines() {
+    // the prefix takes the first copy, the suffix the last one
+    assertMatches(lines("x", "a", "x"), lines("x", "x"), 0, 2);
+    assertMatches(lines("}", "}", "}"), lines("}", "new", "}", "}"), 0, -1, 1, 2);
+  }
+
+  @Test
+  public void testEmptySides() {
+    assertMatches(lines(), lines("a", "b"), -1, -1);
+    assertMatches(lines("a", "b"), lines());
+  }
+
+  @Test
+  public void testTooDifferentMiddleStaysUnmatched() {
+    String[] before = new String[1502];
+    String[] after = new String[1502];
+    before[0] = after[0] = "header";
+    before[1501] = after[1501] = "footer";
+    for (int i = 1; i <= 1500; i++) {
+      before[i] = "old " + i;
+      after[i] = "new " + i;
+    }
+    // the one common line in the middle isn't found, the edit is too large for the diff
+    after[700] = before[700];
+
+    int[] origins = HgWorkingCopyAnnotator.matchLines(before, after);
+    assertEquals(0, origins[0]);
+    assertEquals(1501, origins[1501]);
+    for (int i = 1; i <= 1500; i++) {
+      assertEquals(-1, origins[i]);
+    }
+  }
+
+  @Test
+  public void testMatchesAreLongestCommonSubsequence() {
+    Random random = new Random(7);
+    for (int iteration = 0; iteration < 500; iteration++) {
+      String[] before = randomLines(random, random.nextInt(30));
+      String[] after = randomLines(random, random.nextInt(30));
+      int[] origins = HgWorkingCopyAnnotator.matchLines(before, after);
+
+      int matched = 0;
+      int previous = -1;
+      for (int i = 0; i < after.length; i++) {
+        if (origins[i] >= 0) {
+          assertEquals(before[origins[i]], after[i]);
+          assertTrue("matches must keep the order of lines", origins[i] > previous);
+          previous = origins[i];
+          matched++;
+        }
+      }
+      assertEquals(longestCommonSubsequence(before, after), matched);
+    }
+  }
+
+  @Test
+  public void testAnnotate() {
+    HgRevisionNumber first = HgRevisionNumber.getInstance("1", "1111111111111111111111111111111111111111");
+    HgRevisionNumber second = HgRevisionNumber.getInstance("2", "2222222222222222222222222222222222222222");
+    HgAnnotationLines.Builder builder = new HgAnnotationLines.Builder();
+    int firstIndex = builder.addRevision(first, "john", new Date(1000));
+    int secondIndex = builder.addRevision(second, "jane", new Date(2000));
+    builder.addLine(firstIndex, 1, "class A {");
+    builder.addLine(secondIndex, 2, "  int x;");
+    builder.addLine(firstIndex, 2, "}");
+    HgAnnotationLines parent = builder.build();
+
+    HgRevisionNumber working = HgRevisionNumber.getInstance("2", "2222222222222222222222222222222222222222+");
+    HgAnnotationLines lines = HgWorkingCopyAnnotator.annotate(parent, "class A {\r\n  int x;\r\n  int y;\r\n}\r\n", working, "me", false);
+
+    assertEquals(4, lines.getLineCount());
+    assertEquals(first, lines.getRevision(0));
+    assertEquals(1, lines.getLineNumber(0));
+    assertEquals(second, lines.getRevision(1));
+    assertEquals("jane", lines.getUser(1));
+    assertEquals(working, lines.getRevision(2));
+    assertEquals("me", lines.getUser(2));
+    assertNull(lines.getDate(2));
+    assertEquals(3, lines.getLineNumber(2));
+    assertEquals("  int y;", lines.getContent(2));
+    assertEquals(first, lines.getRevision(3));
+    assertEquals(2, lines.getLineNumber(3));
+  }
+
+  @Test
+  public void testAnnotateIgnoringWhitespace() {
+    HgRevisionNumber first = HgRevisionNumber.getInstance("1", "1111111111111111111111111111111111111111");
+    HgAnnotationLines.Builder builder = new HgAnnotationLines.Builder();
+    int index = builder.addRevision(first, "john", null);
+    builder.addLine(index, 1, "if (a) {");
+    builder.addLine(index, 2, "}");
+    HgAnnotationLines parent = builder.build();
+
+    HgRevisionNumber working = HgRevisionNumber.getInstance("1", "1111111111111111111111111111111111111111+");
+    HgAnnotationLines reindented = HgWorkingCopyAnnotator.annotate(parent, "  if(a) {\n  }", working, "me", true);
+    assertEquals(first, reindented.getRevision(0));
+    assertEquals(first, reindented.getRevision(1));
+
+    HgAnnotationLines changed = HgWorkingCopyAnnotator.annotate(parent, "  if(a) {\n  }", working, "me", false);
+    assertEquals(working, changed.getRevision(0));
+    assertEquals(working, changed.getRevision(1));
+  }
+
+  @Test
+  public void testCountLines() {
+    assertEquals(0, HgWorkingCopyAnnotator.countLines(""));
+    assertEquals(1, HgWorkingCopyAnnotator.countLines("a"));
+    assertEquals(1, HgWorkingCopyAnnotator.countLines("a\n"));
+    assertEquals(2, HgWorkingCopyAnnotator.countLines("a\r\n\r\n"));
+    assertEquals(3, HgWorkingCopyAnnotator.countLines("a\n\nb"));
+  }
+
+  private static void assertMatches(String[] before, String[] after, int... expected) {
+    assertArrayEquals(expected, HgWorkingCopyAnnotator.matchLines(before, after));
+  }
+
+  private static String[] lines(String... lines) {
+    return lines;
+  }
+
+  private static String[] randomLines(Random random, int count) {
+    String[] lines = new String[count];
+    for (int i = 0; i < count; i++) {
+      // a small alphabet makes many repeated lines
+      lines[i] = String.valueOf((char)('a' + random.nextInt(4)));
+    }
+    return lines;
+  }
+
+  private static int longestCommonSubsequence(String[] before, String[] after) {
+    int[][] lengths = new int[before.length + 1][after.length + 1];
+    for (int i = before.length - 1; i >= 0; i--) {
+      for (int j = after.length - 1; j >= 0; j--) {
+        lengths[i][j] = before[i].equals(after[j]) ? lengths[i + 1][j + 1] + 1 : Math.max(lengths[i + 1][j], lengths[i][j + 1]);
+      }
+    }
+    return lengths[0][0];
+  }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2013-2025 consulo.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zmlx.hg4idea.util;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class HgPathArgumentsTest {
+
+  @Test
+  public void testFewPathsArePassedInline() {
+    List<String> paths = Arrays.asList("a.txt", "dir/b.txt");
+    try (HgPathArguments arguments = HgPathArguments.create(paths, StandardCharsets.UTF_8)) {
+      assertEquals(paths, arguments.getArguments());
+    }
+  }
+
+  @Test
+  public void testManyPathsAreWrittenToListFile() throws IOException {
+    checkListFile(StandardCharsets.UTF_8);
+  }
+
+  @Test
+  public void testListFileIsWrittenInCommandCharset() throws IOException {
+    checkListFile(Charset.forName("windows-1251"));
+  }
+
+  private static void checkListFile(Charset charset) throws IOException {
+    List<String> paths = new ArrayList<>();
+    for (int i = 0; i < 500; i++) {
+      paths.add("\u043a\u0430\u0442\u0430\u043b\u043e\u0433/file " + i + ".txt");
+    }
+
+    File listFile;
+    try (HgPathArguments arguments = HgPathArguments.create(paths, charset)) {
+      List<String> result = arguments.getArguments();
+      assertEquals(1, result.size());
+      assertTrue(result.get(0).startsWith("listfile0:"));
+      listFile = new File(result.get(0).substring("listfile0:".length()));
+
+      StringBuilder expected = new StringBuilder();
+      for (String path : paths) {
+        expected.append("path:").append(path).append('\0');
+      }
+      assertArrayEquals(expected.toString().getBytes(charset), Files.readAllBytes(listFile.toPath()));
+    }
+    assertFalse("the list file is deleted on close", listFile.exists());
+  }
+}